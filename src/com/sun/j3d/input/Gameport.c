@@ -45,40 +45,20 @@
 /*
  * Class:     com_sun_j3d_input_Gameport
  * Method:    getEvents
- * Signature: (JI[D[D[I)I
+ * Signature: (JIJ)I
+ *
+ * Read the newest packet of a device, if a new one has arrived, in place
+ * into the serial_event record of its mailbox; see gameport_read_event().
  */
 JNIEXPORT jint JNICALL Java_com_sun_j3d_input_Gameport_getEvents
-    (JNIEnv *jenv, jobject jobj, jlong jin, jint jdev,
-     jdoubleArray jmat1, jdoubleArray jmat2, jintArray jbuts) {
-
-    double cmat1[2], cmat2[2] ;
-    int cbuts[4] = {0, 0, 0, 0} ;
+    (JNIEnv *jenv, jobject jobj, jlong jin, jint jdev, jlong jmailbox) {
 
     nu_serial_ctx_type *ctx ;
-    gameport_unit *unit ;
-    ctx = (nu_serial_ctx_type *)jin ;
-    unit = (gameport_unit *)ctx->peripheral_assignments[jdev] ;
-
-    if (! gameport_obtain_current_raw_events(unit))
-	return 0 ;  /* no new event yet */
+    serial_device_substruct *unit ;
 
-    if (unit->raw_event.buttons & BUTTON0_MASK)
-	cbuts[0] = 1 ;
-    if (unit->raw_event.buttons & BUTTON1_MASK)
-	cbuts[1] = 1 ;
-    if (unit->raw_event.buttons & BUTTON2_MASK)
-	cbuts[2] = 1 ;
-    if (unit->raw_event.buttons & BUTTON3_MASK)
-	cbuts[3] = 1 ;
-
-    cmat1[0] = (double)unit->raw_event.x1 ;
-    cmat1[1] = (double)unit->raw_event.y1 ;
-    cmat2[0] = (double)unit->raw_event.x2 ;
-    cmat2[1] = (double)unit->raw_event.y2 ;
-
-    (*jenv)->SetIntArrayRegion(jenv, jbuts, 0, 4, cbuts) ;
-    (*jenv)->SetDoubleArrayRegion(jenv, jmat1, 0, 2, cmat1) ;
-    (*jenv)->SetDoubleArrayRegion(jenv, jmat2, 0, 2, cmat2) ;
+    ctx = (nu_serial_ctx_type *)jin ;
+    unit = serial_device(ctx, jdev) ;
+    if (! unit) return 0 ;
 
-    return 1 ;
+    return serial_read_event(ctx, unit, (serial_event *)jmailbox) ;
 }
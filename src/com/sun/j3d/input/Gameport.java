@@ -108,6 +108,10 @@ public class Gameport extends SerialDevice implements EventDrivenInputDevice {
     private double[] p1 = new double[2] ;
     private double[] p2 = new double[2] ;
 
+    // X1, Y1, X2, Y2 as read from the mailbox or the context's batched
+    // poll.
+    private double[] axes = new double[4] ;
+
     // Sensor data.
     private Vector3d v3d = new Vector3d() ;
     private Transform3D t3d = new Transform3D() ;
@@ -140,9 +144,17 @@ public class Gameport extends SerialDevice implements EventDrivenInputDevice {
     // Event agent to use in event driven mode.
     private SensorEventAgent eventAgent = null ;
 
-    // Get the current values from the device.
-    native int getEvents
-	(long ctx, int deviceIndex, double[] p1, double[] p2, int[] buttons) ;
+    // Read the current values from the device, and their age in
+    // nanoseconds, in place into its mailbox.  Returns 1 if there was a new
+    // packet.
+    native int getEvents(long ctx, int deviceIndex, long mailbox) ;
+
+    // Size of a gameport packet, and the button masks in its second byte.
+    private static final int RECORD_SIZE = 6 ;
+    private static final int[] BUTTON_MASKS = {0x10, 0x20, 0x40, 0x80} ;
+
+    // Position in the Java transport's ring of the next unparsed character.
+    private int ringLast = 0 ;
 
     /**
      * A parameterless constructor for this <code>InputDevice</code>.  This 
@@ -156,7 +168,20 @@ public class Gameport extends SerialDevice implements EventDrivenInputDevice {
      * @see SerialDevice
      */
     public Gameport() {
-	super("Gameport") ;
+	this(SerialContext.getDefault()) ;
+    }
+
+    /**
+     * Creates a new <code>Gameport</code> instance in the given context.
+     * Only devices in the same context are initialized together.<p>
+     *
+     * @param context the context of the device
+     * @exception <code>IllegalStateException</code> if the context has been
+     *  closed
+     * @see SerialContext
+     */
+    public Gameport(SerialContext context) {
+	super(context, "Gameport") ;
 
 	// Each instance has two 2D valuator Sensors.
 	sensor[0] = new Sensor(this, 30, 4) ;
@@ -183,23 +208,31 @@ public class Gameport extends SerialDevice implements EventDrivenInputDevice {
     /**
      * Initializes the device.  A device should be initialized before it is
      * registered with Java 3D via the
-     * <code>PhysicalEnvironment.addInputDevice</code> method call.<p>
+     * <code>PhysicalEnvironment.addInputDevice</code> method call.  With
+     * <code>AsyncInitialize</code> set this returns at once, and the port
+     * is opened and any centering or calibration done on a worker
+     * thread.<p>
      * 
      * @return true for successful initialization, false for failure
      * @exception <code>IllegalStateException</code> if a port name has not
      *  been specified
      * @exception <code>RuntimeException</code> if there is an error opening
      *  the serial port
+     * @see SerialDevice#setAsyncInitialize
      */
     public boolean initialize() {
+	return initializeDevice() ;
+    }
+
+    void bringUp() {
 	super.openPorts() ;
+	if (javaPort != null)
+	    ringLast = javaPort.head ;
 
 	if (centerOnInitialize)
 	    center() ;
 	else if (calibrateOnInitialize)
 	    calibrate() ;
-
-	return true ;
     }
 
     /**
@@ -216,14 +249,34 @@ public class Gameport extends SerialDevice implements EventDrivenInputDevice {
 
     /**
      * Causes the device's sensor readings to be updated by the device driver.
-     * This is called by the Java 3D input device scheduler.
+     * This is called by the Java 3D input device scheduler, or repeatedly
+     * from a thread of its own in the <code>BLOCKING</code> processing mode,
+     * in which case it waits for an event as
+     * <code>processStreamInput</code> does.
      */
     public void pollAndProcessInput() {
-	if (! open)
-	    throw new IllegalStateException
-		("\nAttempt to read a device that is not open.") ;
+	if (processingMode == BLOCKING)
+	    processStreamInput() ;
+	else if (pollable())
+	    readInput() ;
+    }
+
+    // Reads the port once and publishes the most recent event.
+    boolean readInput() {
+	boolean got ;
+	if (batchReady()) {
+	    // read along with the other devices of the context
+	    got = batchedEvent(axes, 4, buttons) != 0 ;
+	    if (got) {
+		p1[0] = axes[0] ; p1[1] = axes[1] ;
+		p2[0] = axes[2] ; p2[1] = axes[3] ;
+	    }
+	}
+	else
+	    got = getRawEvent(p1, p2, buttons) ;
 
-	if (getRawEvent(p1, p2, buttons)) {
+	if (got) {
+	    long time = getEventTime() ;
 	    double x1 = (p1[0] - x1Info.neutral) * x1Info.scale ;
 	    if (x1 < -1.0) x1 = -1.0 ;
 	    else if (x1 >  1.0) x1 =  1.0 ;
@@ -237,8 +290,7 @@ public class Gameport extends SerialDevice implements EventDrivenInputDevice {
 		v3d.set(0, 0, 0) ;
 
 	    t3d.set(v3d) ;
-	    sensor[0].setNextSensorRead
-		(System.currentTimeMillis(), t3d, buttons) ;
+	    sensor[0].setNextSensorRead(time, t3d, buttons) ;
 
 	    double x2 = (p2[0] - x2Info.neutral) * x2Info.scale ;
 	    if (x2 < -1.0) x2 = -1.0 ;
@@ -253,50 +305,70 @@ public class Gameport extends SerialDevice implements EventDrivenInputDevice {
 		v3d.set(0, 0, 0) ;
 
 	    t3d.set(v3d) ;
-	    sensor[1].setNextSensorRead
-		(System.currentTimeMillis(), t3d, buttons) ;
+	    sensor[1].setNextSensorRead(time, t3d, buttons) ;
 
 	    // Dispatch events if in event driven mode.
 	    if (eventAgent != null)
 		eventAgent.dispatchEvents() ;
+	    return true ;
 	}
+	return false ;
     }
 
     /**
-     * This method will not be called by the Java 3D implementation and 
-     * should be implemented as an empty method.
+     * Waits for the device to deliver an event, publishes it to the
+     * device's sensors as soon as it is read, and returns.  This is used in
+     * the <code>BLOCKING</code> processing mode, in which Java 3D calls
+     * <code>pollAndProcessInput</code> repeatedly from a thread of its own
+     * for the device; <code>pollAndProcessInput</code> then calls this
+     * method.  An application reading the device itself may call it in a
+     * loop instead.<p>
+     *
+     * This method returns without an event after waiting about 100
+     * milliseconds, so that the calling thread can check for shutdown.
+     * The native serial transport waits in the kernel for characters to
+     * arrive; the Java transport checks the port every millisecond.
      */
     public void processStreamInput() {
+	streamInput() ;
     }
 
     /**
      * Sets a device's processing mode to either <code>NON_BLOCKING</code>,
      * <code>BLOCKING</code>, or <code>DEMAND_DRIVEN</code>.  The
-     * <code>Gameport</code> implementation only supports
-     * <code>NON_BLOCKING</code>; any other mode will throw an
-     * <code>IllegalArgumentException</code>.  There isn't any need to call
-     * this method for this implementation of <code>InputDevice</code>.<p>
+     * <code>Gameport</code> implementation supports
+     * <code>NON_BLOCKING</code>, the default, and <code>BLOCKING</code>;
+     * <code>DEMAND_DRIVEN</code> will throw an
+     * <code>IllegalArgumentException</code>.<p>
+     *
+     * In the <code>NON_BLOCKING</code> mode the device is polled by the
+     * Java 3D input device scheduler once per frame, so an event waits up
+     * to a frame before it is published.  In the <code>BLOCKING</code> mode
+     * each event is published to the device's sensors as soon as it is
+     * read, at the cost of a thread per device.<p>
      *
      * NOTE: this method should <i>not</i> be called after the input
      * device has been added to a <code>PhysicalEnvironment</code>.  The
      * processing mode must remain constant while a device is attached
      * to a <code>PhysicalEnvironment</code>.
      *
-     * @param mode <code>NON_BLOCKING</code>
+     * @param mode <code>NON_BLOCKING</code> or <code>BLOCKING</code>
      */
     public void setProcessingMode(int mode) {
-	if (mode != NON_BLOCKING)
-	    throw new IllegalArgumentException("Mode must NON_BLOCKING") ;
+	if (mode != NON_BLOCKING && mode != BLOCKING)
+	    throw new IllegalArgumentException
+		("Mode must be NON_BLOCKING or BLOCKING") ;
+
+	processingMode = mode ;
     }
 
     /**
-     * Retrieves the device's processing mode.  For the <code>Gameport</code>,
-     * this is always <code>NON_BLOCKING</code>.
+     * Retrieves the device's processing mode.
      * 
-     * @return <code>NON_BLOCKING</code>
+     * @return <code>NON_BLOCKING</code> or <code>BLOCKING</code>
      */
     public int getProcessingMode() {
-	return(InputDevice.NON_BLOCKING) ;
+	return processingMode ;
     }
 
     /**
@@ -881,7 +953,8 @@ public class Gameport extends SerialDevice implements EventDrivenInputDevice {
      * only when an axis value or a button changes state, so user interaction
      * is required to receive new values.  Only the most recent event is
      * returned.  If an application waits too long in its polling loop it
-     * may miss some button state transitions.
+     * may miss some button state transitions.  The time at which the event
+     * arrived is available from <code>getEventTime</code> afterwards.
      *
      * @param p1 a double array of length 2 to receive the raw X1, Y1 axis
      *  values
@@ -894,7 +967,95 @@ public class Gameport extends SerialDevice implements EventDrivenInputDevice {
      *  if a complete event packet was not read
      */
     public boolean getRawEvent(double[] p1, double[] p2, int[] buttons) {
-	// TODO:  put serial driver in blocking mode to avoid polling.
-	return getEvents(nativeContext, id, p1, p2, buttons) == 1 ;
+	boolean got ;
+	if (! beginRead())
+	    return false ;  // being reconnected
+	try {
+	    if (javaPort != null)
+		got = getJavaEvents(p1, p2, buttons) ;
+	    else {
+		got = getEvents(nativeContext, id, mailboxAddress) == 1 &&
+		    takeEvent(mailbox, 0, axes, 4, buttons) == 1 ;
+		if (got) {
+		    p1[0] = axes[0] ; p1[1] = axes[1] ;
+		    p2[0] = axes[2] ; p2[1] = axes[3] ;
+		}
+	    }
+	} finally {
+	    endRead() ;
+	}
+
+	if (got) eventArrived() ;
+	return got ;
+    }
+
+    // A reconnected Java transport port starts a new ring.
+    void reconnected() {
+	if (javaPort != null)
+	    ringLast = javaPort.head ;
+    }
+
+    // The native driver supports batched polling.
+    boolean batchable() {
+	return true ;
+    }
+
+    /**
+     * The gameport protocol is simple enough to decode in Java, so
+     * <code>Gameport</code> supports the Java serial transport.
+     */
+    int getJavaTransportBaud() {
+	return 9600 ;
+    }
+
+    // Java transport equivalent of the native getEvents(): scan the
+    // characters that have arrived since the last call for complete packets
+    // and return the most recent one.  A packet starts with a 0 sync byte
+    // followed by a button byte with its low 4 bits clear.
+    private boolean getJavaEvents(double[] p1, double[] p2, int[] buttons) {
+	JavaSerialPort port = javaPort ;
+	try {
+	    port.read() ;
+	} catch (java.io.IOException e) {
+	    javaReadFailed(e) ;
+	}
+
+	// If the ring has been overwritten, start at the oldest character.
+	int e = port.head ;
+	int i = ringLast ;
+	if (e - i > port.mask + 1) {
+	    counts[STAT_OVERRUNS] += e - i - (port.mask + 1) ;
+	    i = e - (port.mask + 1) ;
+	}
+
+	int packet = -1 ;
+	while (e - i >= RECORD_SIZE) {
+	    if (port.get(i) != 0 || (port.get(i+1) & 0x0F) != 0) {
+		// not a packet boundary, resync one character later
+		counts[STAT_RESYNC]++ ;
+		i++ ;
+		continue ;
+	    }
+	    counts[STAT_PACKETS]++ ;
+	    packet = i ;
+	    i += RECORD_SIZE ;
+	}
+	ringLast = i ;
+
+	if (packet == -1)
+	    return false ;  // no new event yet
+
+	int b = port.get(packet+1) ;
+	for (int j = 0 ; j < 4 ; j++)
+	    buttons[j] = (b & BUTTON_MASKS[j]) != 0 ? 1 : 0 ;
+
+	eventAge[0] = System.nanoTime() - port.arrivalTime(packet+RECORD_SIZE) ;
+
+	p1[0] = port.get(packet+2) ;
+	p1[1] = port.get(packet+3) ;
+	p2[0] = port.get(packet+4) ;
+	p2[1] = port.get(packet+5) ;
+
+	return true ;
     }
 }
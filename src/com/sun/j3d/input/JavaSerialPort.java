@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 1996-2002 Sun Microsystems, Inc. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistribution in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ *
+ * Neither the name of Sun Microsystems, Inc. or the names of
+ * contributors may be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * This software is provided "AS IS," without a warranty of any
+ * kind. ALL EXPRESS OR IMPLIED CONDITIONS, REPRESENTATIONS AND
+ * WARRANTIES, INCLUDING ANY IMPLIED WARRANTY OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE OR NON-INFRINGEMENT, ARE HEREBY
+ * EXCLUDED. SUN AND ITS LICENSORS SHALL NOT BE LIABLE FOR ANY DAMAGES
+ * SUFFERED BY LICENSEE AS A RESULT OF USING, MODIFYING OR
+ * DISTRIBUTING THE SOFTWARE OR ITS DERIVATIVES. IN NO EVENT WILL SUN
+ * OR ITS LICENSORS BE LIABLE FOR ANY LOST REVENUE, PROFIT OR DATA, OR
+ * FOR DIRECT, INDIRECT, SPECIAL, CONSEQUENTIAL, INCIDENTAL OR
+ * PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS OF THE THEORY OF
+ * LIABILITY, ARISING OUT OF THE USE OF OR INABILITY TO USE SOFTWARE,
+ * EVEN IF SUN HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * You acknowledge that Software is not designed,licensed or intended
+ * for use in the design, construction, operation or maintenance of
+ * any nuclear facility.
+ */
+
+package com.sun.j3d.input ;
+
+import java.io.IOException ;
+import java.io.RandomAccessFile ;
+import java.nio.ByteBuffer ;
+import java.nio.channels.FileChannel ;
+
+/**
+ * A serial port transport implemented entirely in Java.  This is used by
+ * <code>SerialDevice</code> instances whose <code>SerialTransport</code>
+ * property is set to "java", and doesn't require the native j3dInput
+ * library.<p>
+ *
+ * The port is configured once when it is opened by running
+ * <code>stty(1)</code>: raw mode, 8 data bits, no parity, one stop bit, no
+ * hardware flow control, and with the MIN and TIME parameters both 0 so
+ * that a read never waits for characters.  The port is then read through a
+ * <code>FileChannel</code> directly into a direct <code>ByteBuffer</code>
+ * allocated at open time, so polling allocates nothing and there is no JNI
+ * transition or array copy on the read path.<p>
+ *
+ * The buffer is a ring with the same conventions as the native
+ * <code>serial_ring</code>: its capacity is a power of two and positions
+ * are free-running <code>int</code> character counts, so the difference
+ * between two positions is the number of characters between them even
+ * after the counts wrap.  The ring is overwritten if the consumer falls more
+ * than a buffer behind.<p>
+ *
+ * Opening the port raises DTR and RTS, as the native transport does for
+ * devices that need them.
+ */
+final class JavaSerialPort {
+    // Ring buffer of characters read from the port.
+    private final ByteBuffer ring ;
+
+    // Capacity of the ring - 1.
+    final int mask ;
+
+    // Position after the last character read.
+    int head = 0 ;
+
+    // The ring position after each of the most recent reads, and the
+    // System.nanoTime() at which it returned, as for the native ring.
+    private static final int STAMPS = 64 ;
+    private final int[] stampEnd = new int[STAMPS] ;
+    private final long[] stampTime = new long[STAMPS] ;
+    private int stampCount = 0 ;
+
+    // System.nanoTime() of the last read that returned characters, or of
+    // the open; read by the supervisor thread.
+    volatile long lastArrival ;
+
+    // Set once a read has failed; the port then delivers nothing more.
+    volatile boolean failed = false ;
+
+    // The STAT_* counts of the device, of which the port keeps the reads.
+    private final long[] counts ;
+
+    private final String portName ;
+    private RandomAccessFile file ;
+    private FileChannel channel ;
+
+    /**
+     * Configures and opens the named serial port.
+     *
+     * @param portName name of the serial port device file
+     * @param baud baud rate
+     * @param size ring buffer capacity in bytes; must be a power of two
+     * @param counts the device's <code>SerialDevice.STAT_*</code> counts
+     * @exception IOException if the port can't be configured or opened
+     */
+    JavaSerialPort(String portName, int baud, int size, long[] counts)
+	throws IOException {
+	this.portName = portName ;
+	this.mask = size - 1 ;
+	this.counts = counts ;
+
+	// Configure first so that CLOCAL is set and the open doesn't wait
+	// for carrier detect.
+	stty(portName, baud) ;
+
+	file = new RandomAccessFile(portName, "rw") ;
+	channel = file.getChannel() ;
+	ring = ByteBuffer.allocateDirect(size) ;
+	lastArrival = System.nanoTime() ;
+    }
+
+    // Runs stty on the port.  GNU stty takes the device with -F; elsewhere
+    // stty operates on its standard input.
+    private static void stty(String portName, int baud) throws IOException {
+	String settings = baud + " raw -echo cs8 -cstopb -parenb " +
+	    "clocal cread -crtscts min 0 time 0" ;
+
+	String[] cmd ;
+	if (System.getProperty("os.name").startsWith("Linux"))
+	    cmd = new String[] {"/bin/sh", "-c",
+				"exec stty -F \"$0\" " + settings, portName} ;
+	else
+	    cmd = new String[] {"/bin/sh", "-c",
+				"exec stty " + settings + " < \"$0\"", portName} ;
+
+	Process p = Runtime.getRuntime().exec(cmd) ;
+	try {
+	    if (p.waitFor() != 0)
+		throw new IOException("stty failed on " + portName) ;
+	} catch (InterruptedException e) {
+	    throw new IOException("stty interrupted on " + portName) ;
+	}
+    }
+
+    /**
+     * Reads whatever characters have arrived into the ring, at most one
+     * ring's worth, and advances the head.  Once a read has failed nothing
+     * more is read.
+     *
+     * @exception IOException if the read fails
+     */
+    void read() throws IOException {
+	if (failed) return ;
+	int off = head & mask ;
+	ring.limit(mask + 1).position(off) ;
+
+	// A tty read with nothing available returns -1 here, not 0.
+	int n ;
+	long now ;
+	try {
+	    n = channel.read(ring) ;
+	    now = System.nanoTime() ;
+	    if (n > 0 && off + n == mask + 1 && off > 0) {
+		// wrap, then try to read some more
+		ring.limit(off).position(0) ;
+		int more = channel.read(ring) ;
+		if (more > 0) n += more ;
+	    }
+	} catch (IOException e) {
+	    failed = true ;
+	    ring.clear() ;
+	    throw e ;
+	}
+
+	// get() is bounded by the limit, so always leave the whole ring open
+	ring.clear() ;
+	counts[SerialDevice.STAT_READS]++ ;
+	if (n <= 0)
+	    counts[SerialDevice.STAT_EMPTY_READS]++ ;
+	else {
+	    counts[SerialDevice.STAT_BYTES] += n ;
+	    head += n ;
+	    stampEnd[stampCount & (STAMPS - 1)] = head ;
+	    stampTime[stampCount & (STAMPS - 1)] = now ;
+	    stampCount++ ;
+	    lastArrival = now ;
+	}
+    }
+
+    /**
+     * Returns the <code>System.nanoTime</code> at which the read that
+     * brought in the character before the given ring position returned.
+     * If that read is no longer remembered the time of the oldest one
+     * remembered is returned, and if no read has covered the position the
+     * current time is returned.
+     */
+    long arrivalTime(int position) {
+	long time = System.nanoTime() ;
+	for (int k = 1 ; k <= STAMPS && k <= stampCount ; k++) {
+	    int s = (stampCount - k) & (STAMPS - 1) ;
+	    if (stampEnd[s] - position < 0)
+		break ;
+	    time = stampTime[s] ;
+	}
+	return time ;
+    }
+
+    /**
+     * Returns the character at the given ring position.
+     */
+    int get(int position) {
+	return ring.get(position & mask) & 0xFF ;
+    }
+
+    /**
+     * Returns a read-only view of the ring, sharing its characters.
+     */
+    ByteBuffer view() {
+	return ring.asReadOnlyBuffer() ;
+    }
+
+    /**
+     * Writes characters to the port.
+     *
+     * @exception IOException if the write fails
+     */
+    void write(byte[] b) throws IOException {
+	ByteBuffer buffer = ByteBuffer.wrap(b) ;
+	while (buffer.hasRemaining())
+	    channel.write(buffer) ;
+    }
+
+    /**
+     * Closes the port.
+     */
+    void close() {
+	try {
+	    file.close() ;
+	} catch (IOException e) {
+	    // nothing useful to do
+	}
+    }
+
+    public String toString() {
+	return portName ;
+    }
+}
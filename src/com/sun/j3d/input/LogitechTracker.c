@@ -45,38 +45,79 @@
 /*
  * Class:     com_sun_j3d_input_LogitechTracker
  * Method:    getEvents
- * Signature: (JI[D[I)I
+ * Signature: (JIJ)I
+ *
+ * Read the current matrix and buttons of a device in place into the
+ * serial_event record of its mailbox; see redbarron_read_event().
  */
 JNIEXPORT jint JNICALL Java_com_sun_j3d_input_LogitechTracker_getEvents
-    (JNIEnv *jenv, jobject jobj, jlong jin, jint jdev, jdoubleArray jmat,
-     jintArray jbuts) {
+    (JNIEnv *jenv, jobject jobj, jlong jin, jint jdev, jlong jmailbox) {
+
+    nu_serial_ctx_type *ctx ;
+    serial_device_substruct *unit ;
+
+    ctx = (nu_serial_ctx_type *)jin ;
+    unit = serial_device(ctx, jdev) ;
+    if (! unit) return 0 ;
+
+    return serial_read_event(ctx, unit, (serial_event *)jmailbox) ;
+}
+
+/*
+ * Class:     com_sun_j3d_input_LogitechTracker
+ * Method:    getPipelineState
+ * Signature: (JI[D[J)I
+ *
+ * Copy what the Java port of the tracking pipeline takes over from a
+ * probed unit: its geometry, with any overrides, into jgeometry and its
+ * place in the ring and role into jstate, indexed by the GEOMETRY_* and
+ * STATE_* constants.  Returns 0 if the unit isn't open.
+ */
+JNIEXPORT jint JNICALL Java_com_sun_j3d_input_LogitechTracker_getPipelineState
+    (JNIEnv *jenv, jobject jobj, jlong jin, jint jdev,
+     jdoubleArray jgeometry, jlongArray jstate) {
 
     nu_serial_ctx_type *ctx ;
     redbarron_unit *unit ;
     track_ctx *t_ctx ;
-    matrix_d3d track_to_dig ;
-    long i, pdi, temp ;
-    int cbuts[4] ;
+    jdouble geometry[com_sun_j3d_input_LogitechTracker_GEOMETRY_COUNT] ;
+    jlong state[com_sun_j3d_input_LogitechTracker_STATE_COUNT] ;
 
     ctx = (nu_serial_ctx_type *)jin ;
-    unit = (redbarron_unit *)ctx->peripheral_assignments[jdev] ;
-    pdi = unit->peripheral_driver_index ;
-    t_ctx = (track_ctx *)ctx->peripheral_drivers[pdi].driver_ctx ;
-    
-    redbarron_obtain_current_raw_events(t_ctx, unit) ;
-    i = comp_redbarron_raws(t_ctx, unit, track_to_dig) ;
+    unit = (redbarron_unit *)serial_device(ctx, jdev) ;
+    if (!unit || unit->state != SERIAL_DEVICE_STATE_OPENED || !unit->ring.buf)
+	return 0 ;
 
-    if (i != 0)
-	(*jenv)->SetDoubleArrayRegion(jenv, jmat, 0, 16, &track_to_dig[0][0]) ;
+    t_ctx = (track_ctx *)
+	ctx->peripheral_drivers[unit->peripheral_driver_index].driver_ctx ;
 
-    if (i != 0 && (temp = redbarron_debounce_buttons(unit)) >= 0) {
-	cbuts[0] = (temp&1) == 0 ? 0 : 1 ;
-	cbuts[1] = (temp&2) == 0 ? 0 : 1 ;
-	cbuts[2] = (temp&4) == 0 ? 0 : 1 ;
-	cbuts[3] = (temp&8) == 0 ? 0 : 1 ;
-	(*jenv)->SetIntArrayRegion(jenv, jbuts, 0, 4, cbuts) ;
-    }
+    geometry[com_sun_j3d_input_LogitechTracker_GEOMETRY_BASELINE] =
+	unit->cur_op_info.d_r_ll_to_lr_mic ;
+    geometry[com_sun_j3d_input_LogitechTracker_GEOMETRY_LEFT_LEG] =
+	unit->cur_op_info.d_r_ll_to_top_mic ;
+    geometry[com_sun_j3d_input_LogitechTracker_GEOMETRY_HEIGHT] =
+	unit->cur_op_info.d_r_ll_lr_to_top_mic ;
+    geometry[com_sun_j3d_input_LogitechTracker_GEOMETRY_TOP_OFFSET] =
+	unit->cur_op_info.d_r_top_ams_mic ;
+    geometry[com_sun_j3d_input_LogitechTracker_GEOMETRY_CALIBRATION] =
+	unit->cur_op_info.d_t_ll_to_cal_mic ;
 
-    return i ;
-}
+    state[com_sun_j3d_input_LogitechTracker_STATE_RING_LAST] =
+	(jint)unit->ring_last ;
+    state[com_sun_j3d_input_LogitechTracker_STATE_TIME_ZERO] =
+	(jlong)t_ctx->long_long_pworld_time_zero ;
+    state[com_sun_j3d_input_LogitechTracker_STATE_MASTER] =
+	unit->cur_op_info.master_slave_status == 0x2 ;
+    state[com_sun_j3d_input_LogitechTracker_STATE_PORT_A] =
+	unit->ztty_buf == 0 ;
+    state[com_sun_j3d_input_LogitechTracker_STATE_SAMPLES] =
+	unit->raw_stack.ns ;
 
+    (*jenv)->SetDoubleArrayRegion
+	(jenv, jgeometry, 0,
+	 com_sun_j3d_input_LogitechTracker_GEOMETRY_COUNT, geometry) ;
+    (*jenv)->SetLongArrayRegion
+	(jenv, jstate, 0,
+	 com_sun_j3d_input_LogitechTracker_STATE_COUNT, state) ;
+    return 1 ;
+}
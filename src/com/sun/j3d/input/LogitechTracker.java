@@ -38,6 +38,7 @@
  */
 
 package com.sun.j3d.input ;
+import java.util.* ;
 import javax.media.j3d.* ;
 
 /**
@@ -135,7 +136,8 @@ import javax.media.j3d.* ;
  * through the <code>setSlave</code> accessor method.<p>
  *
  * NOTE: <i>The master and slave relationships must be established before any
- * of the devices are initialized</i>.<p>
+ * of the devices are initialized</i>, and the master and its slaves must be
+ * in the same <code>SerialContext</code>.<p>
  * 
  * @see SerialDevice
  */
@@ -149,18 +151,54 @@ public class LogitechTracker extends SerialDevice implements InputDevice {
     static final int D_T_LL_TO_TOP_SPK     =  6 + SerialDevice.LAST_ATTRIBUTE ;
     static final int D_T_LL_TO_CAL_MIC     =  7 + SerialDevice.LAST_ATTRIBUTE ;
     static final int D_T_LL_LR_TO_TOP_SPK  =  8 + SerialDevice.LAST_ATTRIBUTE ;
-
-    private static LogitechTracker master = null ;
-    private static int slaveCount = 0 ;
+    static final int PROBE_CACHE           =  9 + SerialDevice.LAST_ATTRIBUTE ;
+    static final int SAMPLE_HISTORY        = 10 + SerialDevice.LAST_ATTRIBUTE ;
+
+    // Bounds and default of the number of records kept for prediction.
+    static final int MIN_SAMPLE_HISTORY     =  4 ;
+    static final int MAX_SAMPLE_HISTORY     = 64 ;
+    static final int DEFAULT_SAMPLE_HISTORY = 16 ;
+
+    // Indices of the values copied by getPipelineState(): the receiver's
+    // geometry and the transmitter's calibration distance in meters, and
+    // the native driver's position in the ring, its time zero, whether the
+    // unit is the master and on a port whose name ends in `a', and the
+    // number of records it keeps for prediction.
+    static final int GEOMETRY_BASELINE    = 0 ;
+    static final int GEOMETRY_LEFT_LEG    = 1 ;
+    static final int GEOMETRY_HEIGHT      = 2 ;
+    static final int GEOMETRY_TOP_OFFSET  = 3 ;
+    static final int GEOMETRY_CALIBRATION = 4 ;
+    static final int GEOMETRY_COUNT       = 5 ;
+    static final int STATE_RING_LAST = 0 ;
+    static final int STATE_TIME_ZERO = 1 ;
+    static final int STATE_MASTER    = 2 ;
+    static final int STATE_PORT_A    = 3 ;
+    static final int STATE_SAMPLES   = 4 ;
+    static final int STATE_COUNT     = 5 ;
 
     private Sensor sensor = null ;
     private int[] buttons = null ;
     private Transform3D t3d = null ;
     private double[] matrix = null ;
 
-    // Get the current matrix and button array from the device.
-    native int getEvents(long ctx, int deviceIndex,
-			 double[] matrix, int[] buttons) ;
+    // Read the current matrix and buttons of the device, and the age in
+    // nanoseconds of the newest event used, in place into its mailbox.
+    // Returns 0 if there is no matrix, 1 if a record arrived since the last
+    // call, or 2 if the matrix is only extrapolated from older records.
+    native int getEvents(long ctx, int deviceIndex, long mailbox) ;
+
+    // Copy the geometry and state of a probed device that the Java
+    // pipeline takes over.  Returns 0 if the device isn't open.
+    native int getPipelineState(long ctx, int deviceIndex,
+				double[] geometry, long[] state) ;
+
+    // The Java port of the native tracking pipeline, or null to use the
+    // native one.
+    private RedBarronPipeline pipeline = null ;
+
+    // The number of records kept for prediction.
+    private int sampleHistory = DEFAULT_SAMPLE_HISTORY ;
 
     /**
      * A parameterless constructor for this <code>InputDevice</code>.  This 
@@ -174,7 +212,20 @@ public class LogitechTracker extends SerialDevice implements InputDevice {
      * @see SerialDevice
      */
     public LogitechTracker() {
-	super("RedBarron") ;
+	this(SerialContext.getDefault()) ;
+    }
+
+    /**
+     * Creates a new <code>LogitechTracker</code> instance in the given context.
+     * Only devices in the same context are initialized together.<p>
+     *
+     * @param context the context of the device
+     * @exception <code>IllegalStateException</code> if the context has been
+     *  closed
+     * @see SerialContext
+     */
+    public LogitechTracker(SerialContext context) {
+	super(context, "RedBarron") ;
 
 	// Each LogitechTracker instance supports one and only one Sensor.
 	// Create it with 30 SensorReads and 4 buttons (the glasses will not
@@ -211,19 +262,28 @@ public class LogitechTracker extends SerialDevice implements InputDevice {
      * 
      * All master and slave relationships between <code>LogitechTracker</code>
      * instances must be established before <code>initialize</code> is called
-     * for any of them.
+     * for any of them.  With <code>AsyncInitialize</code> set this returns
+     * at once, and the ports are opened and probed on a worker thread.
      * 
      * @return true for succesful initialization, false for failure
      * @exception <code>IllegalStateException</code> if a port name has not
-     *  been specified
+     *  been specified, or the serial buffer can't hold the sample history
      * @exception <code>RuntimeException</code> if there is an error opening
      *  the serial port
      * @see #Slave Slave()
      * @see #setSlave 
+     * @see #setSampleHistory
+     * @see SerialDevice#setAsyncInitialize
      */
     public boolean initialize() {
-	super.openPorts() ;
-	return true ;
+	if (sampleHistory * RedBarronPipeline.RECORD_SIZE >
+	    getSerialBufferSize())
+	    throw new IllegalStateException
+		("SampleHistory of " + sampleHistory + " records needs a " +
+		 "SerialBufferSize of at least " +
+		 sampleHistory * RedBarronPipeline.RECORD_SIZE) ;
+
+	return initializeDevice() ;
     }
 
     /**
@@ -239,58 +299,129 @@ public class LogitechTracker extends SerialDevice implements InputDevice {
 
     /**
      * Causes the device's sensor readings to be updated by the device driver.
-     * This is called by the Java 3D input device scheduler.
+     * This is called by the Java 3D input device scheduler, or repeatedly
+     * from a thread of its own in the <code>BLOCKING</code> processing mode,
+     * in which case it waits for an event as
+     * <code>processStreamInput</code> does.
      */
     public void pollAndProcessInput() {
-	if (! open)
-	    // This can happen and cause native code exceptions if close() is
-	    // called before removing from the PhysicalEnvironment.
-	    throw new IllegalStateException
-		("\nAttempt to read a device that is not open.") ;
+	if (processingMode == BLOCKING)
+	    processStreamInput() ;
+	else if (pollable())
+	    readInput() ;
+    }
 
-	if (getEvents(nativeContext, id, matrix, buttons) != 0) {
-	    t3d.set(matrix) ;
-	    sensor.setNextSensorRead
-		(System.currentTimeMillis(), t3d, buttons) ;
+    // Reads the port once and publishes the most recent event.
+    boolean readInput() {
+	int got ;
+	boolean batched = batchReady() ;
+	if (batched)
+	    // read along with the other devices of the context
+	    got = batchedEvent(matrix, 16, buttons) ;
+	else {
+	    // nothing is read while the port is being reconnected
+	    if (! beginRead())
+		return false ;
+	    try {
+		if (pipeline != null)
+		    got = pipeline.readEvent(matrix, buttons, eventAge) ;
+		else {
+		    getEvents(nativeContext, id, mailboxAddress) ;
+		    got = takeEvent(mailbox, 0, matrix, 16, buttons) ;
+		}
+	    } finally {
+		endRead() ;
+	    }
 	}
+
+	// a blocked reader publishes only records that are new
+	if (got == 0 || (got != 1 && processingMode == BLOCKING))
+	    return false ;
+
+	t3d.set(matrix) ;
+	sensor.setNextSensorRead(batched ? getEventTime() : eventArrived(),
+				 t3d, buttons) ;
+	return got == 1 ;
+    }
+
+    // The native driver supports batched polling.
+    boolean batchable() {
+	return pipeline == null ;
+    }
+
+    // The Java pipeline takes up the new ring of a reconnected port.
+    void reconnected() {
+	if (pipeline != null)
+	    pipeline.detach() ;
+    }
+
+    // The native driver can only probe the units of a context together,
+    // so they are all reconnected together.
+    SerialDevice[] reconnectGroup() {
+	List group = new ArrayList() ;
+	Iterator i = context.devices.iterator() ;
+	while (i.hasNext()) {
+	    SerialDevice d = (SerialDevice)i.next() ;
+	    if (d instanceof LogitechTracker && d.open)
+		group.add(d) ;
+	}
+	return (SerialDevice[])group.toArray(new SerialDevice[0]) ;
     }
 
     /**
-     * This method will not be called by the Java 3D implementation and 
-     * should be implemented as an empty method.
+     * Waits for the device to deliver an event, publishes it to the
+     * device's sensors as soon as it is read, and returns.  This is used in
+     * the <code>BLOCKING</code> processing mode, in which Java 3D calls
+     * <code>pollAndProcessInput</code> repeatedly from a thread of its own
+     * for the device; <code>pollAndProcessInput</code> then calls this
+     * method.  An application reading the device itself may call it in a
+     * loop instead.<p>
+     *
+     * This method returns without an event after waiting about 100
+     * milliseconds, so that the calling thread can check for shutdown.
+     * The native serial transport waits in the kernel for characters to
+     * arrive; the Java transport checks the port every millisecond.
      */
     public void processStreamInput() {
+	streamInput() ;
     }
 
     /**
      * Sets a device's processing mode to either <code>NON_BLOCKING</code>,
      * <code>BLOCKING</code>, or <code>DEMAND_DRIVEN</code>.  The
-     * <code>LogitechTracker</code> implementation only supports
-     * <code>NON_BLOCKING</code>; any other mode will throw an
-     * <code>IllegalArgumentException</code>.  There isn't any need to call
-     * this method for this implementation of <code>InputDevice</code>.<p>
+     * <code>LogitechTracker</code> implementation supports
+     * <code>NON_BLOCKING</code>, the default, and <code>BLOCKING</code>;
+     * <code>DEMAND_DRIVEN</code> will throw an
+     * <code>IllegalArgumentException</code>.<p>
+     *
+     * In the <code>NON_BLOCKING</code> mode the device is polled by the
+     * Java 3D input device scheduler once per frame, so an event waits up
+     * to a frame before it is published.  In the <code>BLOCKING</code> mode
+     * each event is published to the device's sensors as soon as it is
+     * read, at the cost of a thread per device.<p>
      *
      * NOTE: this method should <i>not</i> be called after the input
      * device has been added to a <code>PhysicalEnvironment</code>.  The
      * processing mode must remain constant while a device is attached
      * to a <code>PhysicalEnvironment</code>.
      *
-     * @param mode <code>NON_BLOCKING</code>
+     * @param mode <code>NON_BLOCKING</code> or <code>BLOCKING</code>
      */
     public void setProcessingMode(int mode) {
-	if (mode != NON_BLOCKING)
-	    throw new IllegalArgumentException("Mode must NON_BLOCKING") ;
+	if (mode != NON_BLOCKING && mode != BLOCKING)
+	    throw new IllegalArgumentException
+		("Mode must be NON_BLOCKING or BLOCKING") ;
+
+	processingMode = mode ;
     }
 
     /**
-     * Retrieves the device's processing mode.  For the
-     * <code>LogitechTracker</code>, this is always
-     * <code>NON_BLOCKING</code>.
+     * Retrieves the device's processing mode.
      * 
-     * @return <code>NON_BLOCKING</code>
+     * @return <code>NON_BLOCKING</code> or <code>BLOCKING</code>
      */
     public int getProcessingMode() {
-	return(InputDevice.NON_BLOCKING) ;
+	return processingMode ;
     }
 
     /**
@@ -333,10 +464,12 @@ public class LogitechTracker extends SerialDevice implements InputDevice {
      * method call.
      */
     public void close() {
-	if (this == master)
-	    master = null ;
-	else if (slaveCount > 0)
-	    slaveCount-- ;
+	synchronized (context) {
+	    if (this == context.logitechMaster)
+		context.logitechMaster = null ;
+	    else if (context.logitechSlaves > 0)
+		context.logitechSlaves-- ;
+	}
 
 	super.close() ;
     }
@@ -356,6 +489,8 @@ public class LogitechTracker extends SerialDevice implements InputDevice {
      * @param slave an uninitialized <code>LogitechTracker</code> instance
      * @exception <code>NullPointerException</code> if the slave reference is
      *  null
+     * @exception <code>IllegalArgumentException</code> if the slave is in a
+     *  different <code>SerialContext</code>
      * @exception <code>IllegalStateException</code> if either this instance
      *  or the slave instance have already been initialized, or if there is
      *  more than one master, or if there are more than three slaves
@@ -370,29 +505,37 @@ public class LogitechTracker extends SerialDevice implements InputDevice {
 	// single native-layer initialization of all the LogitechTracker
 	// slaves along with their master.
 	//
+	if (slave.context != context)
+	    throw new IllegalArgumentException
+		("slave must be in the same SerialContext") ;
+
 	if (slave.open)
 	    throw new IllegalStateException("slave device is already open") ;
 
 	if (this.open)
 	    throw new IllegalStateException("master device is already open") ;
 
-	if (master == null) {
-	    master = this ;
-	}
-	else if (this != master) {
-	    // already have a master
-	    if (master.portName == null)
+	synchronized (context) {
+	    LogitechTracker master = context.logitechMaster ;
+	    if (master == null) {
+		context.logitechMaster = this ;
+	    }
+	    else if (this != master) {
+		// already have a master
+		if (master.portName == null)
+		    throw new IllegalStateException
+			("another tracker is already master") ;
+		else
+		    throw new IllegalStateException
+			("tracker at " + master.portName + " is already master") ;
+	    }
+
+	    if (context.logitechSlaves > 2)
 		throw new IllegalStateException
-		    ("another tracker is already master") ;
+		    ("maximum number of slaves is 3") ;
 	    else
-		throw new IllegalStateException
-		    ("tracker at " + master.portName + " is already master") ;
+		context.logitechSlaves++ ;
 	}
-
-	if (slaveCount > 2)
-	    throw new IllegalStateException("maximum number of slaves is 3") ;
-	else
-	    slaveCount++ ;
     }
 
     /**
@@ -615,6 +758,176 @@ public class LogitechTracker extends SerialDevice implements InputDevice {
 			((Double)distance[0]).doubleValue()) ;
     }
 
+    /**
+     * Sets the name of a file in which the tracker's operational info is
+     * cached between runs.  Initialization normally resets the tracker,
+     * waits for it to report its operational info, and configures any
+     * slaves, which can take several seconds.  With a probe cache that info
+     * is saved after initialization, and on the next run the tracker is not
+     * reset but only asked for its info once; if the reply is unchanged the
+     * tracker is simply started.  Otherwise, as when a slave has been power
+     * cycled and lost its transmitter type, or the calibration overrides
+     * have changed, the tracker is reset and initialized in full and its
+     * cache entry is replaced.  The master and its slaves are only started
+     * from the cache if all of them have entries.  Several trackers may
+     * share a file, which holds one line per serial port.  This must be set
+     * before the device is initialized.<p>
+     *
+     * @param name path of the cache file, or null or an empty string for
+     *  no cache, the default
+     * @exception <code>IllegalStateException</code> if the device has
+     *  already been initialized
+     */
+    public void setProbeCache(String name) {
+	if (open)
+	    throw new IllegalStateException
+		("ProbeCache must be set before initialization") ;
+
+	deviceAttribute(nativeContext, id, PROBE_CACHE,
+			name == null ? "" : name) ;
+    }
+
+    /**
+     * Property which names a file in which the tracker's operational info
+     * is cached between runs, so that a restart need not reset and
+     * reconfigure the tracker.<p>
+     *
+     * This property is set in the configuration file read by
+     * <code>ConfiguredUniverse</code>.  Note: the name must be quoted to
+     * handle the forward slashes in Unix path names.<p>
+     *
+     * <b>Syntax:</b><br>(DeviceProperty <i>&lt;name&gt;</i>
+     * ProbeCache "<i>&lt;file name&gt;</i>")
+     *
+     * @param name array of length 1 containing an instance of
+     *  <code>String</code>
+     * @see #setProbeCache
+     */
+    public void ProbeCache(Object[] name) {
+	if (! (name.length == 1 && name[0] instanceof String))
+	    throw new IllegalArgumentException
+		("ProbeCache must be a file name") ;
+
+	setProbeCache((String)name[0]) ;
+    }
+
+    /**
+     * Selects the implementation of the tracking pipeline, which turns the
+     * tracker's records into the sensor's transform and buttons.  "native"
+     * (the default) is the C driver in the <code>libj3dInput</code>
+     * library.  "java" is a port of it to Java that decodes the same
+     * records to the same transforms and allocates nothing while polling,
+     * so that it can be profiled and tuned with the Java tools.  Either way
+     * the native driver opens, probes and configures the tracker, so the
+     * native library is still required.  This must be set before the
+     * device is initialized.<p>
+     *
+     * @param name "native" or "java"
+     * @exception <code>IllegalArgumentException</code> if the name is not
+     *  one of these
+     * @exception <code>IllegalStateException</code> if the device has
+     *  already been initialized
+     */
+    public void setPipeline(String name) {
+	if (open)
+	    throw new IllegalStateException
+		("Pipeline must be set before initialization") ;
+
+	if (name.equals("native"))
+	    pipeline = null ;
+	else if (name.equals("java"))
+	    pipeline = new RedBarronPipeline(this) ;
+	else
+	    throw new IllegalArgumentException
+		("Pipeline must be \"native\" or \"java\"") ;
+    }
+
+    /**
+     * Property which selects the implementation of the tracking pipeline,
+     * "native" or "java".<p>
+     *
+     * This property is set in the configuration file read by
+     * <code>ConfiguredUniverse</code>.<p>
+     *
+     * <b>Syntax:</b><br>(DeviceProperty <i>&lt;name&gt;</i>
+     * Pipeline ["native" | "java"])
+     *
+     * @param name array of length 1 containing an instance of
+     *  <code>String</code>
+     * @see #setPipeline
+     */
+    public void Pipeline(Object[] name) {
+	if (! (name.length == 1 && name[0] instanceof String))
+	    throw new IllegalArgumentException
+		("Pipeline must be \"native\" or \"java\"") ;
+
+	setPipeline((String)name[0]) ;
+    }
+
+    /**
+     * Returns the implementation of the tracking pipeline in use.
+     *
+     * @return "native" or "java"
+     * @see #setPipeline
+     */
+    public String getPipeline() {
+	return pipeline == null ? "native" : "java" ;
+    }
+
+    /**
+     * Sets the number of the tracker's most recent records kept for
+     * prediction.  The sensor's position is extrapolated from a least
+     * squares fit of each of the nine distances over the newest records,
+     * half of them when the receiver is close to the transmitter and up to
+     * all of them when it is far away, where the measurements are noisier.
+     * A longer history gives a smoother but laggier fit; the fit is kept up
+     * to date as records arrive, so its cost doesn't grow with the
+     * history.  The default is 16.  The records are 24 bytes long, and
+     * the serial buffer must be large enough to hold all of them.  This
+     * must be set before the device is initialized.<p>
+     *
+     * @param records the number of records, from 4 to 64
+     * @exception <code>IllegalArgumentException</code> if the number is
+     *  out of range
+     * @exception <code>IllegalStateException</code> if the device has
+     *  already been initialized
+     */
+    public void setSampleHistory(int records) {
+	if (open)
+	    throw new IllegalStateException
+		("SampleHistory must be set before initialization") ;
+
+	if (records < MIN_SAMPLE_HISTORY || records > MAX_SAMPLE_HISTORY)
+	    throw new IllegalArgumentException
+		("SampleHistory must be from " + MIN_SAMPLE_HISTORY +
+		 " to " + MAX_SAMPLE_HISTORY) ;
+
+	deviceAttribute(nativeContext, id, SAMPLE_HISTORY, (double)records) ;
+	sampleHistory = records ;
+    }
+
+    /**
+     * Property which sets the number of the tracker's most recent records
+     * kept for prediction.<p>
+     *
+     * This property is set in the configuration file read by
+     * <code>ConfiguredUniverse</code>.<p>
+     *
+     * <b>Syntax:</b><br>(DeviceProperty <i>&lt;name&gt;</i>
+     * SampleHistory <i>&lt;records&gt;</i>)
+     *
+     * @param records array of length 1 containing an instance of
+     *  <code>Double</code>
+     * @see #setSampleHistory
+     */
+    public void SampleHistory(Object[] records) {
+	if (! (records.length == 1 && records[0] instanceof Double))
+	    throw new IllegalArgumentException
+		("LogitechTracker SampleHistory must be a Double") ;
+
+	setSampleHistory(((Double)records[0]).intValue()) ;
+    }
+
     /**
      * Sets the given attribute/value pair for the device.  This is provided
      * for applications not using <code>ConfiguredUniverse</code>. Accepted
@@ -0,0 +1,502 @@
+/*
+ * Copyright (c) 1996-2002 Sun Microsystems, Inc. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistribution in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ *
+ * Neither the name of Sun Microsystems, Inc. or the names of
+ * contributors may be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * This software is provided "AS IS," without a warranty of any
+ * kind. ALL EXPRESS OR IMPLIED CONDITIONS, REPRESENTATIONS AND
+ * WARRANTIES, INCLUDING ANY IMPLIED WARRANTY OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE OR NON-INFRINGEMENT, ARE HEREBY
+ * EXCLUDED. SUN AND ITS LICENSORS SHALL NOT BE LIABLE FOR ANY DAMAGES
+ * SUFFERED BY LICENSEE AS A RESULT OF USING, MODIFYING OR
+ * DISTRIBUTING THE SOFTWARE OR ITS DERIVATIVES. IN NO EVENT WILL SUN
+ * OR ITS LICENSORS BE LIABLE FOR ANY LOST REVENUE, PROFIT OR DATA, OR
+ * FOR DIRECT, INDIRECT, SPECIAL, CONSEQUENTIAL, INCIDENTAL OR
+ * PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS OF THE THEORY OF
+ * LIABILITY, ARISING OUT OF THE USE OF OR INABILITY TO USE SOFTWARE,
+ * EVEN IF SUN HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * You acknowledge that Software is not designed,licensed or intended
+ * for use in the design, construction, operation or maintenance of
+ * any nuclear facility.
+ */
+
+package com.sun.j3d.input ;
+
+import java.io.IOException ;
+import java.nio.ByteBuffer ;
+import javax.media.j3d.InputDevice ;
+import javax.media.j3d.Sensor ;
+import javax.media.j3d.Transform3D ;
+
+/**
+ * Implements the Java 3D <code>InputDevice</code> interface for serial
+ * devices whose protocol is implemented in Java by a
+ * <code>SerialProtocol</code>.  The protocol is found by name with
+ * <code>java.util.ServiceLoader</code>, so devices can be supported without
+ * building native code.<p>
+ *
+ * The port is read by any of the serial transports.  With the native ones
+ * the j3dInput library opens the port with a generic driver that only
+ * fills the receive ring, and the protocol decodes directly from a
+ * read-only <code>ByteBuffer</code> over the ring's native memory, so no
+ * characters are copied into the Java heap and the JIT can compile the
+ * decoding together with the sensor update.  When the device is
+ * initialized the protocol's probe commands are sent and, if it has a probe
+ * timeout, the device must send a record within it.  DTR and RTS are
+ * raised when the port is opened.<p>
+ *
+ * Each poll decodes every complete record that has arrived since the
+ * last, and each sensor it reports on gets a new read with the time the
+ * record arrived.
+ *
+ * @see SerialProtocol
+ * @see SerialDevice
+ */
+public class ProtocolDevice extends SerialDevice implements InputDevice {
+    private SerialProtocol protocol = null ;
+    private Sensor[] sensors = new Sensor[0] ;
+    private Transform3D[] transforms ;
+    private int[][] buttons ;
+    private boolean[] updated ;
+
+    // The protocol's framing.
+    private int recordSize ;
+    private int[] framingMask ;
+    private int[] framingValue ;
+
+    // Read-only view of the ring, its capacity - 1, and the position of the
+    // next unparsed character.
+    private ByteBuffer ring = null ;
+    private int mask ;
+    private int ringLast = 0 ;
+
+    /**
+     * A parameterless constructor for this <code>InputDevice</code>.  This
+     * is used for <code>ConfiguredUniverse</code>, which requires such a
+     * constructor for configurable input devices.  The protocol and serial
+     * port must be specified with the <code>Protocol</code> and
+     * <code>SerialPort</code> properties.<p>
+     * <b>Syntax:</b><br>(NewDevice <i>&lt;name&gt;</i>
+     * com.sun.j3d.input.ProtocolDevice)
+     *
+     * @see SerialDevice
+     */
+    public ProtocolDevice() {
+	this(SerialContext.getDefault()) ;
+    }
+
+    /**
+     * Creates a new <code>ProtocolDevice</code> instance in the given
+     * context.  Only devices in the same context are initialized
+     * together.<p>
+     *
+     * @param context the context of the device
+     * @exception <code>IllegalStateException</code> if the context has been
+     *  closed
+     * @see SerialContext
+     */
+    public ProtocolDevice(SerialContext context) {
+	super(context, "Raw") ;
+    }
+
+    /**
+     * Creates a new <code>ProtocolDevice</code> instance using the named
+     * protocol.<p>
+     *
+     * @param protocolName name of the protocol
+     * @exception <code>IllegalArgumentException</code> if there is no
+     *  protocol by that name
+     */
+    public ProtocolDevice(String protocolName) {
+	this() ;
+	setProtocol(protocolName) ;
+    }
+
+    /**
+     * Selects the protocol by name, from the <code>SerialProtocol</code>
+     * providers found by <code>ServiceLoader</code>.  This must be set before
+     * the device is initialized.<p>
+     *
+     * @param name protocol name
+     * @exception <code>IllegalArgumentException</code> if there is no
+     *  protocol by that name
+     * @exception <code>IllegalStateException</code> if the device has
+     *  already been initialized
+     * @see SerialProtocol#forName
+     */
+    public void setProtocol(String name) {
+	SerialProtocol p = SerialProtocol.forName(name) ;
+	if (p == null)
+	    throw new IllegalArgumentException
+		("no SerialProtocol named \"" + name + "\"") ;
+
+	setProtocol(p) ;
+    }
+
+    /**
+     * Sets the protocol instance used by this device.  This must be set
+     * before the device is initialized, and the instance must not be
+     * shared with another device.<p>
+     *
+     * @param protocol the protocol
+     * @exception <code>IllegalArgumentException</code> if the protocol's
+     *  framing or probe commands are invalid
+     * @exception <code>IllegalStateException</code> if the device has
+     *  already been initialized
+     */
+    public void setProtocol(SerialProtocol protocol) {
+	if (open)
+	    throw new IllegalStateException
+		("Protocol must be set before initialization") ;
+
+	int size = protocol.getRecordSize() ;
+	int[] m = protocol.getFramingMask() ;
+	int[] v = protocol.getFramingValue() ;
+	if (size < 1 || m.length != v.length || m.length > size)
+	    throw new IllegalArgumentException
+		("invalid framing for SerialProtocol " + protocol.getName()) ;
+
+	byte[][] commands = protocol.getProbeCommands() ;
+	for (int i = 0 ; i < commands.length ; i++)
+	    for (int j = 0 ; j < commands[i].length ; j++)
+		if (commands[i][j] == 0)
+		    throw new IllegalArgumentException
+			("probe commands of SerialProtocol " +
+			 protocol.getName() + " contain a 0 byte") ;
+
+	int n = protocol.getSensorCount() ;
+	int b = protocol.getButtonCount() ;
+	this.protocol = protocol ;
+	recordSize = size ;
+	framingMask = (int[])m.clone() ;
+	framingValue = (int[])v.clone() ;
+
+	sensors = new Sensor[n] ;
+	transforms = new Transform3D[n] ;
+	buttons = new int[n][b] ;
+	updated = new boolean[n] ;
+	for (int i = 0 ; i < n ; i++) {
+	    transforms[i] = new Transform3D() ;
+	    sensors[i] = new Sensor(this, 30, b) ;
+	    sensors[i].setNextSensorRead
+		(System.currentTimeMillis(), transforms[i], buttons[i]) ;
+	}
+    }
+
+    /**
+     * Property which selects the protocol by name.<p>
+     *
+     * This property is set in the configuration file read by
+     * <code>ConfiguredUniverse</code>.<p>
+     *
+     * <b>Syntax:</b><br>(DeviceProperty <i>&lt;name&gt;</i>
+     * Protocol <i>&lt;protocol name&gt;</i>)
+     *
+     * @param name array of length 1 containing an instance of
+     *  <code>String</code>
+     * @see #setProtocol(String)
+     */
+    public void Protocol(Object[] name) {
+	if (! (name.length == 1 && name[0] instanceof String))
+	    throw new IllegalArgumentException
+		("Protocol must be a name") ;
+
+	setProtocol((String)name[0]) ;
+    }
+
+    /**
+     * Returns the protocol used by this device.
+     *
+     * @return the protocol, or null if none has been set
+     */
+    public SerialProtocol getProtocol() {
+	return protocol ;
+    }
+
+    int getJavaTransportBaud() {
+	return protocol == null ? 9600 : protocol.getBaudRate() ;
+    }
+
+    int getNativeTransportBaud() {
+	return protocol == null ? 0 : protocol.getBaudRate() ;
+    }
+
+    /**
+     * Initializes the device, sending the protocol's probe commands and
+     * waiting for a record if the protocol has a probe timeout.  A device
+     * should be initialized before it is registered with Java 3D via the
+     * <code>PhysicalEnvironment.addInputDevice</code> method call.<p>
+     *
+     * @return true for successful initialization, false for failure
+     * @exception <code>IllegalStateException</code> if a protocol or port
+     *  name has not been specified
+     * @exception <code>RuntimeException</code> if there is an error opening
+     *  the serial port, or if the device doesn't answer the probe
+     * @see SerialDevice#setAsyncInitialize
+     */
+    public boolean initialize() {
+	if (protocol == null)
+	    throw new IllegalStateException
+		("ProtocolDevice: no protocol specified") ;
+
+	return initializeDevice() ;
+    }
+
+    void bringUp() {
+	super.openPorts() ;
+
+	// the supervisor can't reconnect the port during the probe
+	beginRead() ;
+	try {
+	    probe() ;
+	} finally {
+	    endRead() ;
+	}
+    }
+
+    // Attaches to the ring and sends the probe commands, then waits for a
+    // record if the protocol has a probe timeout.
+    private void probe() {
+	attach() ;
+
+	long start = System.nanoTime() ;
+	sendProbeCommands() ;
+	initLatency[INIT_RESET] = System.nanoTime() - start ;
+
+	start = System.nanoTime() ;
+	long timeout = protocol.getProbeTimeout() * 1000000L ;
+	while (timeout > 0 && ! recordArrived()) {
+	    if (System.nanoTime() - start > timeout)
+		throw new RuntimeException
+		    ("no response from " + protocol.getName() +
+		     " device on " + portName) ;
+	    try {
+		Thread.sleep(10) ;
+	    } catch (InterruptedException e) {
+		throw new RuntimeException
+		    ("probe of " + portName + " interrupted") ;
+	    }
+	}
+	initLatency[INIT_PROBE] = System.nanoTime() - start ;
+    }
+
+    // Takes up the ring of the port as it is now.
+    private void attach() {
+	if (javaPort != null) {
+	    ring = javaPort.view() ;
+	    mask = javaPort.mask ;
+	}
+	else {
+	    ring = ringBuffer(nativeContext, id).asReadOnlyBuffer() ;
+	    mask = ring.capacity() - 1 ;
+	}
+	ringLast = readRing() ;
+    }
+
+    private void sendProbeCommands() {
+	byte[][] commands = protocol.getProbeCommands() ;
+	for (int i = 0 ; i < commands.length ; i++)
+	    sendCommand(commands[i]) ;
+    }
+
+    // A reconnected port has a new ring, and the device is sent the probe
+    // commands again without waiting for an answer.
+    void reconnected() {
+	attach() ;
+	sendProbeCommands() ;
+    }
+
+    // Sends a command through whichever transport is in use.
+    private void sendCommand(byte[] command) {
+	if (javaPort == null) {
+	    command(nativeContext, id, command) ;
+	    return ;
+	}
+	try {
+	    javaPort.write(command) ;
+	} catch (IOException e) {
+	    throw new RuntimeException
+		("error writing serial port " + javaPort + ": " +
+		 e.getMessage()) ;
+	}
+    }
+
+    // Brings the ring up to date and returns its head.
+    private int readRing() {
+	if (javaPort == null)
+	    return ringHead(nativeContext, id) ;
+	try {
+	    javaPort.read() ;
+	} catch (IOException e) {
+	    javaReadFailed(e) ;
+	}
+	return javaPort.head ;
+    }
+
+    // Returns true if the record framing matches at ring position i.
+    private boolean framed(int i) {
+	for (int j = 0 ; j < framingMask.length ; j++)
+	    if ((ring.get((i + j) & mask) & framingMask[j]) != framingValue[j])
+		return false ;
+	return true ;
+    }
+
+    // Returns true if a complete record has arrived since ringLast.
+    private boolean recordArrived() {
+	int e = readRing() ;
+	for (int i = ringLast ; e - i >= recordSize ; i++)
+	    if (framed(i))
+		return true ;
+	return false ;
+    }
+
+    /**
+     * Sets the device's current position and orientation as the device's
+     * nominal position and orientation.  This method does nothing in the
+     * <code>ProtocolDevice</code> implementation.
+     */
+    public void setNominalPositionAndOrientation() {
+    }
+
+    /**
+     * Causes the device's sensor readings to be updated by the device driver.
+     * This is called by the Java 3D input device scheduler.
+     */
+    public void pollAndProcessInput() {
+	if (! pollable())
+	    return ;
+
+	// nothing is read while the port is being reconnected
+	if (! beginRead())
+	    return ;
+	try {
+	    processRing() ;
+	} finally {
+	    endRead() ;
+	}
+    }
+
+    // Decodes the records that have arrived since the last poll.
+    private void processRing() {
+	// If the ring has been overwritten, start at the oldest character.
+	int e = readRing() ;
+	int i = ringLast ;
+	if (e - i > mask + 1) {
+	    counts[STAT_OVERRUNS] += e - i - (mask + 1) ;
+	    i = e - (mask + 1) ;
+	}
+
+	while (e - i >= recordSize) {
+	    boolean framed = framed(i) ;
+	    if (! framed ||
+		! protocol.decode(ring, i, mask, transforms, buttons, updated)) {
+		// not a record, resync one character later
+		if (framed) counts[STAT_BAD_PACKETS]++ ;
+		counts[STAT_RESYNC]++ ;
+		i++ ;
+		continue ;
+	    }
+	    counts[STAT_PACKETS]++ ;
+	    i += recordSize ;
+
+	    // time the record from the read that completed it
+	    if (javaPort == null)
+		eventAge[0] = arrivalAge(nativeContext, id, i) ;
+	    else
+		eventAge[0] = System.nanoTime() - javaPort.arrivalTime(i) ;
+	    long time = eventArrived() ;
+
+	    for (int s = 0 ; s < sensors.length ; s++) {
+		if (updated[s]) {
+		    sensors[s].setNextSensorRead(time, transforms[s], buttons[s]) ;
+		    updated[s] = false ;
+		}
+	    }
+	}
+	ringLast = i ;
+    }
+
+    /**
+     * This method will not be called by the Java 3D implementation and
+     * should be implemented as an empty method.
+     */
+    public void processStreamInput() {
+    }
+
+    /**
+     * Sets a device's processing mode to either <code>NON_BLOCKING</code>,
+     * <code>BLOCKING</code>, or <code>DEMAND_DRIVEN</code>.  The
+     * <code>ProtocolDevice</code> implementation only supports
+     * <code>NON_BLOCKING</code>; any other mode will throw an
+     * <code>IllegalArgumentException</code>.<p>
+     *
+     * @param mode <code>NON_BLOCKING</code>
+     */
+    public void setProcessingMode(int mode) {
+	if (mode != NON_BLOCKING)
+	    throw new IllegalArgumentException("Mode must NON_BLOCKING") ;
+    }
+
+    /**
+     * Retrieves the device's processing mode.  For the
+     * <code>ProtocolDevice</code>, this is always <code>NON_BLOCKING</code>.
+     *
+     * @return <code>NON_BLOCKING</code>
+     */
+    public int getProcessingMode() {
+	return(InputDevice.NON_BLOCKING) ;
+    }
+
+    /**
+     * Gets the specified sensor associated with the device.  The sensor
+     * indices begin at zero and end at <code>getSensorCount</code> minus
+     * one.
+     *
+     * @param index the sensor to retrieve
+     * @return the specified sensor
+     */
+    public Sensor getSensor(int index) {
+	if (index < 0 || index >= sensors.length)
+	    throw new IllegalArgumentException
+		("Sensor index must be 0 to " + (sensors.length - 1) +
+		 " for ProtocolDevice") ;
+
+	return sensors[index] ;
+    }
+
+    /**
+     * Gets the number of sensors associated with the device, as given by
+     * its protocol.
+     *
+     * @return sensor count, 0 if no protocol has been set
+     */
+    public int getSensorCount() {
+	return sensors.length ;
+    }
+
+    /**
+     * Cleans up the device and relinquishes associated resources.  This
+     * method should only be called after the device has been unregistered
+     * from Java 3D via the <code>PhysicalEnvironment.removeInputDevice</code>
+     * method call.
+     */
+    public void close() {
+	super.close() ;
+	ring = null ;
+    }
+}
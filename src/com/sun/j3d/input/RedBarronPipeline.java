@@ -0,0 +1,766 @@
+/*
+ * Copyright (c) 1996-2002 Sun Microsystems, Inc. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistribution in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ *
+ * Neither the name of Sun Microsystems, Inc. or the names of
+ * contributors may be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * This software is provided "AS IS," without a warranty of any
+ * kind. ALL EXPRESS OR IMPLIED CONDITIONS, REPRESENTATIONS AND
+ * WARRANTIES, INCLUDING ANY IMPLIED WARRANTY OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE OR NON-INFRINGEMENT, ARE HEREBY
+ * EXCLUDED. SUN AND ITS LICENSORS SHALL NOT BE LIABLE FOR ANY DAMAGES
+ * SUFFERED BY LICENSEE AS A RESULT OF USING, MODIFYING OR
+ * DISTRIBUTING THE SOFTWARE OR ITS DERIVATIVES. IN NO EVENT WILL SUN
+ * OR ITS LICENSORS BE LIABLE FOR ANY LOST REVENUE, PROFIT OR DATA, OR
+ * FOR DIRECT, INDIRECT, SPECIAL, CONSEQUENTIAL, INCIDENTAL OR
+ * PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS OF THE THEORY OF
+ * LIABILITY, ARISING OUT OF THE USE OF OR INABILITY TO USE SOFTWARE,
+ * EVEN IF SUN HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * You acknowledge that Software is not designed,licensed or intended
+ * for use in the design, construction, operation or maintenance of
+ * any nuclear facility.
+ */
+
+package com.sun.j3d.input ;
+
+import java.nio.ByteBuffer ;
+
+/**
+ * A Java port of the tracking pipeline of the native RedBarron driver in
+ * redbarron.c, used by a <code>LogitechTracker</code> whose
+ * <code>Pipeline</code> property is set to "java".  The native driver still
+ * opens, probes and configures the unit and its transport fills the ring;
+ * this class parses the ring in place, through a read-only view of the
+ * native ring, instead of redbarron_read_event().<p>
+ *
+ * Each step follows its native counterpart, with the same arithmetic in the
+ * same order and with <code>float</code> wherever the native structures use
+ * it, so that both decode a recording to the same transforms:
+ * readRecords() is redbarron_obtain_current_raw_events(), predict() is
+ * least_sq_fit_interpolate(), computePose() is comp_redbarron_raws() and
+ * debounceButtons() is redbarron_debounce_buttons().  The fixed track_ctx
+ * settings of the native driver are the constants below.<p>
+ *
+ * All the state is allocated when the instance is created, so a poll
+ * allocates nothing.  An instance is used only by the thread polling its
+ * device.
+ */
+final class RedBarronPipeline {
+    // Largest depth of the raw sample stack, and size of a streamed record.
+    static final int NS_MAX = LogitechTracker.MAX_SAMPLE_HISTORY ;
+    static final int RECORD_SIZE = 24 ;
+
+    // Largest squared distance in meters between a sample and the line
+    // fitted to its channel for the sample to be accepted.
+    private static final double OK_VEL = 0.015*0.015 ;
+
+    // Cosine of the largest angle of a speaker to the mics, 85 degrees.
+    private static final double MIN_COS = 0.087155743 ;
+
+    // The track_ctx settings of the native driver.  It keeps the time
+    // limit and the distance in ints, so they are 0 and 1 meter rather
+    // than the 0.5 seconds and 1.6 meters it assigns.
+    private static final boolean PREDICTION_ENABLE = false ;
+    private static final boolean PREDICTION_TIME_AUTOMATIC = true ;
+    private static final double PREDICTION_TIME = 0.0 ;
+    private static final double PREDICTION_MAX_TIME = 0.0 ;
+    private static final double MAX_TRACK_DISTANCE = 1.0 ;
+
+    // The nine speaker to mic channels in the order their samples are
+    // validated, and their offsets in a record: lower left, lower right
+    // and top speaker, each to the lower right, lower left and top mic.
+    private static final int SLL_TO_MLR  = 0 ;
+    private static final int SLL_TO_MLL  = 1 ;
+    private static final int SLL_TO_MTOP = 2 ;
+    private static final int SLR_TO_MLR  = 3 ;
+    private static final int SLR_TO_MLL  = 4 ;
+    private static final int SLR_TO_MTOP = 5 ;
+    private static final int STOP_TO_MLR  = 6 ;
+    private static final int STOP_TO_MLL  = 7 ;
+    private static final int STOP_TO_MTOP = 8 ;
+    private static final int CHANNELS = 9 ;
+    private static final int[] CHANNEL_OFFSET = {
+	2, 4, 6, 10, 12, 14, 18, 20, 22
+    } ;
+
+    // Offsets of the other fields of a record.
+    private static final int BUTTONS = 0 ;
+    private static final int SLL_TO_MCAL = 8 ;
+    private static final int EXT_REF_TIME = 16 ;
+
+    // The time before a record's time at which the speaker of each
+    // channel sounds: the top speaker sounds at the record's time, and the
+    // lower right and lower left ones 6.7 and 13.3 ms before it.
+    private static final double[] CHANNEL_PHASE = {
+	0.0133333, 0.0133333, 0.0133333,
+	0.0066667, 0.0066667, 0.0066667,
+	0.0, 0.0, 0.0
+    } ;
+
+    /**
+     * The state shared by the pipelines of the LogitechTrackers of a
+     * context, as the native units share their driver's track_ctx: the
+     * conversion from counts to meters, which only the master unit
+     * measures.
+     */
+    static final class Track {
+	volatile double timeToMeters = 0.00005549 ;
+    }
+
+    private final LogitechTracker device ;
+    private final long[] counts ;
+    private Track track = null ;
+
+    // Read-only view of the ring, its capacity - 1, and the position of the
+    // first character not yet parsed.  ring is null until attach().
+    private ByteBuffer ring = null ;
+    private int mask ;
+    private int ringLast ;
+
+    // The gethrtime() value of the native driver's pworld time zero, and
+    // the unit's time of the current and previous reads in pworld time.
+    private long timeZero ;
+    private double time, lastTime, deltaTime ;
+
+    // The unit's geometry and role from its operational info.
+    private final double[] geometry =
+	new double[LogitechTracker.GEOMETRY_COUNT] ;
+    private final long[] state = new long[LogitechTracker.STATE_COUNT] ;
+    private boolean master ;
+    private boolean portA ;
+
+    // The raw sample stack, its depth, and the number of its slots
+    // filled since it was last reset.  As in the native redbarron_raw_flt
+    // the stack is a structure of arrays: the nine distances of each slot
+    // are together in dists, at slot*CHANNELS, and the state of the
+    // channels is in arrays indexed by channel, so that each step goes
+    // over all the channels in one loop that the JIT can vectorize.
+    private double lastProcessedTime ;
+    private int stackIndex ;
+    private int ns ;
+    private int filled ;
+    private final boolean[] valid = new boolean[NS_MAX] ;
+    private final float[] extRefTime = new float[NS_MAX] ;
+    private final int[] stackButtons = new int[NS_MAX] ;
+    private final float[] mcal = new float[NS_MAX] ;
+    private final float[] dists = new float[NS_MAX*CHANNELS] ;
+
+    // The state of each channel, as the native samples: its last
+    // prediction, and the line last fitted to it while its samples were on
+    // good behavior.
+    private final float[] prediction = new float[CHANNELS] ;
+    private final float[] variance = new float[CHANNELS] ;
+    private final double[] slope = new double[CHANNELS] ;
+    private final double[] intercept = new double[CHANNELS] ;
+    private final float[] goodTime = new float[CHANNELS] ;
+    private final int[] lostCount = new int[CHANNELS] ;
+
+    // The least squares sums of each channel over the newest span slots,
+    // with times relative to t0, while prediction is enabled.
+    private int span ;
+    private double t0 ;
+    private final double[] sumN = new double[CHANNELS] ;
+    private final double[] sumT = new double[CHANNELS] ;
+    private final double[] sumTT = new double[CHANNELS] ;
+    private final double[] sumD = new double[CHANNELS] ;
+    private final double[] sumTD = new double[CHANNELS] ;
+    private final double[] sumDD = new double[CHANNELS] ;
+
+    // Scratch for the distances of a new record and the predictions.
+    private final double[] distance = new double[CHANNELS] ;
+    private final double[] pred = new double[CHANNELS] ;
+
+    // Sync of the unit's clock to pworld time.
+    private double clockMul, clockOff, diffFromTime ;
+    private int lostInTimeCount ;
+    private int temporalFilterLength ;
+
+    // gethrtime() of the read that completed the newest record used, and
+    // of the last read of the ring.
+    private long eventTime ;
+    private long now ;
+
+    RedBarronPipeline(LogitechTracker device) {
+	this.device = device ;
+	this.counts = device.counts ;
+    }
+
+    // Takes up the ring of the unit where the native driver left it, with
+    // the raw stack and clock sync of a newly probed unit.  Returns false
+    // if the unit isn't open.
+    private boolean attach() {
+	ByteBuffer b = device.ringBuffer(device.nativeContext, device.id) ;
+	if (b == null ||
+	    device.getPipelineState(device.nativeContext, device.id,
+				    geometry, state) == 0)
+	    return false ;
+
+	synchronized (device.context) {
+	    if (device.context.logitechTrack == null)
+		device.context.logitechTrack = new Track() ;
+	    track = device.context.logitechTrack ;
+	}
+
+	ring = b.asReadOnlyBuffer() ;
+	mask = ring.capacity() - 1 ;
+	ringLast = (int)state[LogitechTracker.STATE_RING_LAST] ;
+	timeZero = state[LogitechTracker.STATE_TIME_ZERO] ;
+	master = state[LogitechTracker.STATE_MASTER] != 0 ;
+	portA = state[LogitechTracker.STATE_PORT_A] != 0 ;
+	ns = (int)state[LogitechTracker.STATE_SAMPLES] ;
+
+	lastTime = -0.3 ;
+	time = 0.0 ;
+	deltaTime = 0.3 ;
+
+	clockMul = 1.0 ;
+	clockOff = -11000000.0 ;
+	diffFromTime = 0.0 ;
+	lastProcessedTime = 0.0 ;
+	stackIndex = 0 ;
+	filled = 0 ;
+	lostInTimeCount = 60 ;
+	temporalFilterLength = ns/2 ;
+	for (int j = 0 ; j < NS_MAX ; j++) {
+	    valid[j] = false ;
+	    mcal[j] = -1.0f ;
+	}
+	for (int k = 0 ; k < NS_MAX*CHANNELS ; k++)
+	    dists[k] = -1.0f ;
+
+	for (int c = 0 ; c < CHANNELS ; c++) {
+	    lostCount[c] = 60 ;
+	    slope[c] = intercept[c] = -11000000.0 ;
+	    prediction[c] = variance[c] = goodTime[c] = 0.0f ;
+	    sumN[c] = sumT[c] = sumTT[c] = 0.0 ;
+	    sumD[c] = sumTD[c] = sumDD[c] = 0.0 ;
+	}
+	span = 0 ;
+	return true ;
+    }
+
+    // Drops the ring, so that the next read takes up the unit's new one;
+    // called after the port has been reconnected.
+    void detach() {
+	ring = null ;
+    }
+
+    // Reads the records that have arrived since the last call and computes
+    // the unit's current transform, row major into values, and its
+    // debounced buttons if it has any, into buttons; age[0] is set to the
+    // age in nanoseconds of the newest record used.  Returns 0 if there is
+    // no transform, 1 if a record arrived since the last call, or 2 if it
+    // is only extrapolated from records already seen, as
+    // redbarron_read_event() does.
+    int readEvent(double[] values, int[] buttons, long[] age) {
+	if (ring == null && ! attach())
+	    return 0 ;
+
+	long packets = counts[SerialDevice.STAT_PACKETS] ;
+	readRecords() ;
+	if (! computePose(values))
+	    return 0 ;
+
+	age[0] = now - eventTime ;
+
+	int b = debounceButtons() ;
+	if (b >= 0)
+	    for (int i = 0 ; i < 4 ; i++)
+		buttons[i] = (b & (1 << i)) == 0 ? 0 : 1 ;
+
+	return counts[SerialDevice.STAT_PACKETS] != packets ? 1 : 2 ;
+    }
+
+    // Converts a gethrtime() value to pworld time in seconds, keeping the
+    // native driver's rounding.
+    private double pworldTime(long t) {
+	double d = (t - timeZero) >> 10 ;
+	return d / (1000000000.0/1024.0) ;
+    }
+
+    // Returns the character at ring position i.
+    private int ringChar(int i) {
+	return ring.get(i & mask) & 0xFF ;
+    }
+
+    // Returns the little-endian unsigned short at ring position i.
+    private int ringShort(int i) {
+	return ringChar(i) | ringChar(i + 1) << 8 ;
+    }
+
+    // Converts the counts of the nine channels of the record at ring
+    // position record into temperature corrected distances in stack slot
+    // bi.  A distance is marked invalid (-1) if it is beyond reality, or
+    // too far from the line last fitted to its channel unless the channel
+    // has been lost for a while.  All the channels are done in one pass
+    // with no branches.  Returns true if any distance is accepted.  This
+    // is redbarron_update_samples().
+    private boolean updateSamples(int record, int bi, double pworld) {
+	for (int c = 0 ; c < CHANNELS ; c++)
+	    distance[c] = ringShort(record + CHANNEL_OFFSET[c]) ;
+
+	double ttm = track.timeToMeters ;
+	double t = extRefTime[bi] ;
+	int k = bi*CHANNELS ;
+	boolean any = false ;
+	for (int c = 0 ; c < CHANNELS ; c++) {
+	    distance[c] = distance[c]*ttm ;
+	    double temp2 = distance[c] - t*slope[c] - intercept[c] ;
+
+	    boolean in = distance[c] <= 1.600 ;
+	    boolean ok = in &
+		(intercept[c] < -10000000.0 | temp2*temp2 < OK_VEL) ;
+	    boolean lost = in & ! ok ;
+	    lostCount[c] = ok ? 0 : lostCount[c] + (lost ? 1 : 0) ;
+	    boolean late = lost &
+		(lostCount[c] > 20 | pworld - goodTime[c] > 0.3) ;
+
+	    prediction[c] = late ? (float)distance[c] : prediction[c] ;
+	    dists[k + c] = ok | late ? (float)distance[c] : -1.0f ;
+	    any |= ok | late ;
+	}
+	return any ;
+    }
+
+    // Finds the records that have arrived in the ring since the last call,
+    // syncs the unit's clock to them, and pushes their buttons and
+    // temperature corrected distances onto the raw stack.  Returns the
+    // number of records pushed.  See the comments on
+    // redbarron_obtain_current_raw_events() for the details.
+    private int readRecords() {
+	int e = device.ringHead(device.nativeContext, device.id) ;
+
+	// sync pworld time only after loading e
+	now = device.deviceTime(device.nativeContext, device.id) ;
+	lastTime = time ;
+	time = pworldTime(now) ;
+	deltaTime = time - lastTime ;
+	double pworld = time ;
+
+	// if the ring has been overwritten, start at the oldest character
+	int l = ringLast ;
+	if (e - l > mask + 1) {
+	    counts[SerialDevice.STAT_OVERRUNS] += e - l - (mask + 1) ;
+	    l = e - (mask + 1) ;
+	}
+	int lastValid = l ;
+	if (e - l < RECORD_SIZE)
+	    return 0 ;
+
+	int i, bi ;
+	if (e - l < ns*RECORD_SIZE && lastProcessedTime + 1.2 > pworld) {
+	    // add new events since our last event
+	    i = l ;
+	    bi = stackIndex ;
+	}
+	else {
+	    // start over with the last ns records' worth of characters, or
+	    // as many of them as the ring still holds
+	    i = e - RECORD_SIZE*ns ;
+	    if (e - i > mask + 1) {
+		counts[SerialDevice.STAT_OVERRUNS] += e - i - (mask + 1) ;
+		i = e - (mask + 1) ;
+	    }
+	    for (int j = 0 ; j < ns ; j++) {
+		valid[j] = false ;
+		mcal[j] = -1.0f ;
+	    }
+	    for (int k = 0 ; k < ns*CHANNELS ; k++)
+		dists[k] = -1.0f ;
+	    bi = 0 ;
+	    filled = 0 ;
+	    if (PREDICTION_ENABLE)
+		rebuild(0, 0) ;
+	}
+
+	int bogus = 0 ;
+	int got = 0 ;
+	boolean oneInsideReality = false ;
+	double dt, lastValidDt = 0.0 ;
+	while (e - i >= RECORD_SIZE) {
+	    // look for a header at i
+	    if (ringChar(i + 1) != 0xF0 || (ringChar(i) & 0xF0) != 0xF0) {
+		i++ ;
+		bogus++ ;
+		if (e - i < RECORD_SIZE)
+		    lastValid = i ;  // skip past all the proven invalid
+		continue ;
+	    }
+
+	    int record = i ;
+	    i += RECORD_SIZE ;
+
+	    extRefTime[bi] = (float)(ringShort(record + EXT_REF_TIME)/1000.0) ;
+
+	    // the record arrived with the read that completed it
+	    long arrival = device.arrivalTime(device.nativeContext, device.id, i) ;
+	    if (arrival != 0)
+		dt = pworld - pworldTime(arrival) ;
+	    else
+		dt = (e-i)*0.02/24.0 ;
+
+	    // Resync the unit's clock, which rolls over every 60 seconds,
+	    // if the difference is small.
+	    if (clockOff < -10000000.0)
+		clockOff = pworld - clockMul*(extRefTime[bi] + dt) ;
+	    double temp = pworld - (clockMul*(extRefTime[bi] + dt) + clockOff) ;
+	    boolean rolled = temp - 60.0 - 0.1 < diffFromTime &&
+			     temp - 60.0 + 0.1 > diffFromTime ;
+	    if ((temp - 0.1 < diffFromTime && temp + 0.1 > diffFromTime) ||
+		rolled || lostInTimeCount > 30) {
+		if (rolled) {
+		    clockOff += 60.0 ;
+		    temp -= 60.0 ;
+		}
+		diffFromTime = temp ;
+		lostInTimeCount = 0 ;
+	    }
+	    else {
+		lostInTimeCount += 9 ;
+		// records before l are decoded again after a gap; count once
+		if (i - l > 0) counts[SerialDevice.STAT_CLOCK_REJECTS]++ ;
+		// must be a bogus time value; look again 2 characters back
+		i -= 2 ;
+		lastValid = i ;
+		continue ;
+	    }
+	    lastValid = i ;
+
+	    // the time the event happened, in pworld time
+	    extRefTime[bi] = (float)(extRefTime[bi]*clockMul + clockOff) ;
+	    valid[bi] = true ;
+
+	    // the raw mode has the button bits reversed from usual
+	    int gg = ringShort(record + BUTTONS) & 0xF ;
+	    stackButtons[bi] = (gg & 0xA) | ((gg & 0x1)<<2) | ((gg & 0x4)>>2) ;
+
+	    // the master's calibration mic gives the speed of sound
+	    mcal[bi] = ringShort(record + SLL_TO_MCAL) ;
+	    if (master) {
+		temp = geometry[LogitechTracker.GEOMETRY_CALIBRATION] /
+		    mcal[bi] ;
+		if (temp > 0.000045 && temp < 0.000065)
+		    track.timeToMeters = temp ;
+	    }
+
+	    if (updateSamples(record, bi, pworld))
+		oneInsideReality = true ;
+
+	    if (! oneInsideReality) {
+		valid[bi] = false ;
+		if (i - l > 0) counts[SerialDevice.STAT_BAD_PACKETS]++ ;
+		continue ;
+	    }
+	    got++ ;
+	    if (i - l > 0) counts[SerialDevice.STAT_PACKETS]++ ;
+	    lastValidDt = dt ;
+	    eventTime = arrival != 0 ? arrival :
+		timeZero + (long)((pworld - dt)*1000000000.0) ;
+
+	    // push the record onto the least squares sums
+	    if (filled < ns) filled++ ;
+	    if (PREDICTION_ENABLE)
+		pushSamples(bi) ;
+
+	    bi = (bi >= (ns-1)) ? 0 : bi+1 ;
+	}
+
+	ringLast = lastValid ;
+	counts[SerialDevice.STAT_RESYNC] += bogus ;
+	stackIndex = bi ;
+	lastProcessedTime = pworld ;
+
+	// brute force clock sync
+	if (got > 0)
+	    clockOff += (pworld - (extRefTime[bi==0 ? ns-1 : bi-1] +
+				   lastValidDt*clockMul))/7.0 ;
+	return got ;
+    }
+
+    // Adds (sign 1.0) or removes (sign -1.0) the samples in stack slot i
+    // to or from the least squares sums of each channel, if they are
+    // valid.  An invalid sample is added with a weight of 0, so that the
+    // loop has no branches.
+    private void sum(int i, double sign) {
+	double t = extRefTime[i] - t0 ;
+	int k = i*CHANNELS ;
+	for (int c = 0 ; c < CHANNELS ; c++) {
+	    double d = dists[k + c] ;
+	    double w = d > 0.0 ? sign : 0.0 ;
+	    sumN[c]  += w ;
+	    sumT[c]  += w*t ;
+	    sumTT[c] += w*t*t ;
+	    sumD[c]  += w*d ;
+	    sumTD[c] += w*t*d ;
+	    sumDD[c] += w*d*d ;
+	}
+    }
+
+    // Recomputes the sums over the span slots ending at slot cur, with
+    // times relative to that of cur, which keeps the times small and stops
+    // the rounding errors of the running sums from building up.
+    private void rebuild(int cur, int span) {
+	t0 = extRefTime[cur] ;
+	for (int c = 0 ; c < CHANNELS ; c++) {
+	    sumN[c] = sumT[c] = sumTT[c] = 0.0 ;
+	    sumD[c] = sumTD[c] = sumDD[c] = 0.0 ;
+	}
+
+	for (int k = 0, i = cur ; k < span ; k++, i = (i == 0) ? ns-1 : i-1)
+	    sum(i, 1.0) ;
+	this.span = span ;
+    }
+
+    // Moves the old end of the window of the sums, which ends at the
+    // newest slot cur, so that it spans the given number of slots.
+    private void slide(int cur, int span) {
+	while (this.span > span) {
+	    int i = cur - (this.span - 1) ;
+	    if (i < 0) i += ns ;
+	    sum(i, -1.0) ;
+	    this.span-- ;
+	}
+	while (this.span < span) {
+	    int i = cur - this.span ;
+	    if (i < 0) i += ns ;
+	    sum(i, 1.0) ;
+	    this.span++ ;
+	}
+    }
+
+    // Adds the record just pushed into slot cur to the sums, dropping
+    // those that leave the temporal filter window.  The sums are rebuilt
+    // when the stack wraps.
+    private void pushSamples(int cur) {
+	int span = this.span + 1 ;
+	if (span > temporalFilterLength - 1)
+	    span = temporalFilterLength - 1 ;
+
+	if (cur == 0 || this.span == 0)
+	    rebuild(cur, span) ;
+	else {
+	    sum(cur, 1.0) ;
+	    this.span++ ;
+	    slide(cur, span) ;
+	}
+    }
+
+    // Fits a line by least squares to the valid samples of each channel
+    // within the temporal filter range of stack slot cur, and puts their
+    // distances at deltaTime after the time of cur into pred.  Without
+    // prediction these are the samples at cur.  The sums are kept up to
+    // date as records are pushed, so only the samples entering or leaving
+    // the range are visited, and the nine fits are done in one pass with
+    // no branches.  A channel with no valid sample keeps its last
+    // prediction.
+    private void predict(double[] pred, int cur, double dt) {
+	int k = cur*CHANNELS ;
+	if (! PREDICTION_ENABLE) {
+	    for (int c = 0 ; c < CHANNELS ; c++)
+		pred[c] = dists[k + c] ;
+	    return ;
+	}
+
+	int span = temporalFilterLength - 1 ;
+	if (span > filled) span = filled ;
+	slide(cur, span) ;
+
+	double t = extRefTime[cur] - t0 ;
+	for (int c = 0 ; c < CHANNELS ; c++) {
+	    double n = sumN[c] ;
+	    double tmp = 1.0/(n*sumTT[c] - sumT[c]*sumT[c]) ;
+	    double mc = (n*sumTD[c] - sumT[c]*sumD[c])*tmp ;
+	    double bc = (sumD[c]*sumTT[c] - sumTD[c]*sumT[c])*tmp ;
+
+	    // the variance, expanded in terms of the sums
+	    double var = (mc*mc*sumTT[c] + 2.0*mc*bc*sumT[c] + n*bc*bc
+			  - 2.0*mc*sumTD[c] - 2.0*bc*sumD[c] + sumDD[c])/n ;
+
+	    // keep the fit while the samples are on good behavior, in terms
+	    // of the time the channel's speaker sounded
+	    boolean fit = n != 0 ;
+	    boolean good = fit & var < OK_VEL ;
+	    variance[c] = good ? (float)var : variance[c] ;
+	    goodTime[c] = good ?
+		(float)(extRefTime[cur] - CHANNEL_PHASE[c]) : goodTime[c] ;
+	    slope[c] = good ? mc : slope[c] ;
+	    intercept[c] = good ?
+		bc - mc*(t0 - CHANNEL_PHASE[c]) : intercept[c] ;
+
+	    prediction[c] = fit ?
+		(float)(mc*(t + dt) + bc) : prediction[c] ;
+	    pred[c] = prediction[c] ;
+	}
+    }
+
+    private static boolean finite(double d) {
+	return ! Double.isNaN(d) && ! Double.isInfinite(d) ;
+    }
+
+    // Computes the transform of the receiver in the transmitter's frame,
+    // row major into m, from the distances predicted for each of the
+    // speakers to each of the mics.  Returns false, leaving m as it is,
+    // if the receiver is out of range or the distances are inconsistent.
+    // See the derivation of the sphere formula in redbarron.c.
+    private boolean computePose(double[] m) {
+	double deltaTime ;
+	if (PREDICTION_TIME_AUTOMATIC) {
+	    deltaTime = this.deltaTime + 1.0/112.9 ;
+	    // if too long, don't overshoot, undershoot
+	    if (deltaTime > PREDICTION_MAX_TIME)
+		deltaTime = 3.0/112.9 ;
+	}
+	else
+	    deltaTime = PREDICTION_TIME ;
+
+	int bi = stackIndex ;
+	bi = (bi <= 0) ? (ns-1) : bi-1 ;
+
+	// the receiver's mic baseline, its half, and the height of its top
+	double bd = geometry[LogitechTracker.GEOMETRY_BASELINE] ;
+	double hbd = bd/2.0 ;
+	double h = geometry[LogitechTracker.GEOMETRY_HEIGHT] ;
+	if (h == 0) {
+	    double t1 = geometry[LogitechTracker.GEOMETRY_LEFT_LEG] ;
+	    // correction for the glasses, taken to be on the port ending in a
+	    if (portA) t1 += 0.0008 ;
+	    h = Math.sqrt(t1*t1 - hbd*hbd) ;
+	}
+	double ams = geometry[LogitechTracker.GEOMETRY_TOP_OFFSET] ;
+
+	// the predicted distances of all the channels
+	predict(pred, bi, deltaTime) ;
+
+	// sphere intersection for the lower left speaker
+	double mll  = pred[SLL_TO_MLL] ;
+	double mlr  = pred[SLL_TO_MLR] ;
+	double mtop = pred[SLL_TO_MTOP] ;
+
+	double llx = (mlr*mlr - mll*mll)/(2.0*bd) ;
+	double lly = (mll*mll - mtop*mtop + 2.0*llx*hbd - hbd*hbd + h*h +
+		      ams*ams + 2*llx*ams)/(2.0*h) ;
+	double llz = mll*mll - (llx-hbd)*(llx-hbd) - lly*lly ;
+	if (llz > 0.0) llz = -Math.sqrt(llz) ; else llz = 0.0 ;
+
+	// the lower right speaker
+	mll  = pred[SLR_TO_MLL] ;
+	mlr  = pred[SLR_TO_MLR] ;
+	mtop = pred[SLR_TO_MTOP] ;
+
+	double lrx = (mlr*mlr - mll*mll)/(2.0*bd) ;
+	double lry = (mll*mll - mtop*mtop + 2.0*lrx*hbd - hbd*hbd + h*h +
+		      ams*ams + 2*lrx*ams)/(2.0*h) ;
+	double lrz = mll*mll - (lrx-hbd)*(lrx-hbd) - lry*lry ;
+	if (lrz > 0.0) lrz = -Math.sqrt(lrz) ; else lrz = 0.0 ;
+
+	// the top speaker
+	mll  = pred[STOP_TO_MLL] ;
+	mlr  = pred[STOP_TO_MLR] ;
+	mtop = pred[STOP_TO_MTOP] ;
+
+	double topx = (mlr*mlr - mll*mll)/(2.0*bd) ;
+	double topy = (mll*mll - mtop*mtop + 2.0*topx*hbd - hbd*hbd + h*h +
+		       ams*ams + 2*topx*ams)/(2.0*h) ;
+	double topz = mll*mll - (topx-hbd)*(topx-hbd) - topy*topy ;
+	if (topz > 0.0) topz = -Math.sqrt(topz) ; else topz = 0.0 ;
+
+	// i = lr - ll, k = (top - ll) x i, j = i x k
+	double ix = lrx - llx, iy = lry - lly, iz = lrz - llz ;
+	double norm = 1.0/Math.sqrt(ix*ix + iy*iy + iz*iz) ;
+	ix *= norm ; iy *= norm ; iz *= norm ;
+
+	double jx = topx - llx, jy = topy - lly, jz = topz - llz ;
+	double kx = iy*jz - jy*iz, ky = jx*iz - ix*jz, kz = ix*jy - jx*iy ;
+	norm = 1.0/Math.sqrt(kx*kx + ky*ky + kz*kz) ;
+	kx *= norm ; ky *= norm ; kz *= norm ;
+
+	jx = ky*iz - iy*kz ; jy = ix*kz - kx*iz ; jz = kx*iy - ix*ky ;
+
+	// reject NaNs, and speakers out of range in distance or angle
+	if (!finite(llx) || !finite(lly) || !finite(llz) ||
+	    !finite(lrx) || !finite(lry) || !finite(lrz) ||
+	    !finite(topx) || !finite(topy) || !finite(topz))
+	    return false ;
+
+	norm = Math.sqrt(llx*llx + lly*lly + llz*llz) ;
+	if (-llz/norm < MIN_COS || norm > MAX_TRACK_DISTANCE) return false ;
+
+	norm = Math.sqrt(lrx*lrx + lry*lry + lrz*lrz) ;
+	if (-lrz/norm < MIN_COS || norm > MAX_TRACK_DISTANCE) return false ;
+
+	norm = Math.sqrt(topx*topx + topy*topy + topz*topz) ;
+	if (-topz/norm < MIN_COS || norm > MAX_TRACK_DISTANCE) return false ;
+
+	// adjust the temporal filter length by the last distance
+	if (temporalFilterLength >= ns/2) {
+	    if (norm < 0.50) temporalFilterLength = ns/2 ;
+	    else {
+		temporalFilterLength = (int)(ns*norm) ;
+		if (temporalFilterLength > ns) temporalFilterLength = ns ;
+		if (temporalFilterLength < ns/2) temporalFilterLength = ns/2 ;
+	    }
+	}
+
+	// the rotation must be orthonormal
+	if (!finite(ix) || !finite(iy) || !finite(iz) ||
+	    !finite(jx) || !finite(jy) || !finite(jz) ||
+	    !finite(kx) || !finite(ky) || !finite(kz))
+	    return false ;
+
+	norm = Math.sqrt(ix*ix + jx*jx + kx*kx) ;
+	if (norm < 0.97 || norm > 1.025) return false ;
+
+	norm = Math.sqrt(iy*iy + jy*jy + ky*ky) ;
+	if (norm < 0.98 || norm > 1.025) return false ;
+
+	norm = Math.sqrt(iz*iz + jz*jz + kz*kz) ;
+	if (norm < 0.975 || norm > 1.025) return false ;
+
+	double ox = -(llx+lrx)/2.0 ;
+	double oy = -(lly+lry)/2.0 ;
+	double oz = -(llz+lrz)/2.0 ;
+
+	m[0]  = ix ; m[1]  = iy ; m[2]  = iz ; m[3]  = ix*ox + iy*oy + iz*oz ;
+	m[4]  = jx ; m[5]  = jy ; m[6]  = jz ; m[7]  = jx*ox + jy*oy + jz*oz ;
+	m[8]  = kx ; m[9]  = ky ; m[10] = kz ; m[11] = kx*ox + ky*oy + kz*oz ;
+	m[12] = 0.0 ; m[13] = 0.0 ; m[14] = 0.0 ; m[15] = 1.0 ;
+	return true ;
+    }
+
+    // Returns the newest valid buttons on the stack if the two valid ones
+    // before them are the same, or -1.  Worn 3D mice can report a wrong
+    // button as the right one is first pressed.
+    private int debounceButtons() {
+	int bi = stackIndex ;
+	int i = bi==0 ? ns-1 : bi-1 ;
+	int but1 = -1, but2 = -1, but3 = -1 ;
+
+	for ( ; (but1 < 0 || but2 < 0 || but3 < 0) && i != bi ;
+	      i = i==0 ? ns-1 : i-1) {
+	    if (! valid[i]) continue ;
+	    if (but1 < 0) but1 = stackButtons[i] ;
+	    else if (but2 < 0) but2 = stackButtons[i] ;
+	    else if (but3 < 0) but3 = stackButtons[i] ;
+	    else break ;
+	}
+
+	if (but1 >= 0 && but2 >= 0 && but3 >= 0 &&
+	    but1 == but2 && but1 == but3)
+	    return but1 ;
+	return -1 ;
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 1996-2002 Sun Microsystems, Inc. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistribution in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ *
+ * Neither the name of Sun Microsystems, Inc. or the names of
+ * contributors may be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * This software is provided "AS IS," without a warranty of any
+ * kind. ALL EXPRESS OR IMPLIED CONDITIONS, REPRESENTATIONS AND
+ * WARRANTIES, INCLUDING ANY IMPLIED WARRANTY OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE OR NON-INFRINGEMENT, ARE HEREBY
+ * EXCLUDED. SUN AND ITS LICENSORS SHALL NOT BE LIABLE FOR ANY DAMAGES
+ * SUFFERED BY LICENSEE AS A RESULT OF USING, MODIFYING OR
+ * DISTRIBUTING THE SOFTWARE OR ITS DERIVATIVES. IN NO EVENT WILL SUN
+ * OR ITS LICENSORS BE LIABLE FOR ANY LOST REVENUE, PROFIT OR DATA, OR
+ * FOR DIRECT, INDIRECT, SPECIAL, CONSEQUENTIAL, INCIDENTAL OR
+ * PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS OF THE THEORY OF
+ * LIABILITY, ARISING OUT OF THE USE OF OR INABILITY TO USE SOFTWARE,
+ * EVEN IF SUN HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * You acknowledge that Software is not designed,licensed or intended
+ * for use in the design, construction, operation or maintenance of
+ * any nuclear facility.
+ */
+
+package com.sun.j3d.input ;
+
+import java.nio.ByteBuffer ;
+import java.nio.ByteOrder ;
+import java.util.* ;
+
+/**
+ * A set of <code>SerialDevice</code> instances sharing a native serial
+ * driver context.  The first call to <code>initialize</code> on any device
+ * in a context opens and probes all the unopened devices of that context
+ * together, which is how Logitech master and slave units are initialized as
+ * a group.  Contexts are otherwise independent: each has its own native
+ * device table and its own lock, so devices in different contexts can be
+ * created, initialized, and closed from different threads concurrently.<p>
+ *
+ * Devices constructed without a context belong to the default context
+ * returned by <code>getDefault</code>.  A <code>SerialContext</code> needs
+ * the native j3dInput library; without it contexts can still be created,
+ * but only for devices that use the Java serial transport.
+ */
+public class SerialContext {
+    private static SerialContext defaultContext = null ;
+
+    // Native context pointer; 0 if the native library is unavailable.
+    long handle = 0 ;
+
+    // Devices in this context in creation order, guarded by this.
+    final Set devices = new LinkedHashSet() ;
+
+    // A copy of devices for polling without the context lock; replaced
+    // whenever a device is added or removed.
+    private volatile SerialDevice[] pollList = new SerialDevice[0] ;
+
+    // Batched polling: the native drivers' newest events for the devices
+    // in batchList are read in one call into events, one
+    // SerialDevice.EVENT_SIZE record each in batchList order.  Guarded by
+    // batchLock; see pollBatch().
+    private final Object batchLock = new Object() ;
+    private ByteBuffer events = null ;
+    private long eventsAddress = 0 ;
+    private SerialDevice[] batchList = null ;
+    private boolean[] batchRead = null ;
+
+    private boolean closed = false ;
+
+    // LogitechTracker master and number of slaves, guarded by this.
+    LogitechTracker logitechMaster = null ;
+    int logitechSlaves = 0 ;
+
+    // State shared by the Java tracking pipelines of the LogitechTrackers,
+    // created by the first one to read; guarded by this.
+    RedBarronPipeline.Track logitechTrack = null ;
+
+    // Reconnects the devices whose ports are lost; started for the first
+    // device opened with the Reconnect property set.  Guarded by this.
+    private Thread supervisor = null ;
+
+    /**
+     * Creates a new context with no devices.
+     *
+     * @exception <code>RuntimeException</code> if the native context can't
+     *  be allocated
+     */
+    public SerialContext() {
+	if (SerialDevice.linkError == null) {
+	    handle = SerialDevice.initSerial() ;
+	    if (handle == 0)
+		throw new RuntimeException("cannot create serial context") ;
+	}
+    }
+
+    /**
+     * Returns the context used by devices that are constructed without one.
+     * A new default context is created if the previous one was closed.
+     *
+     * @return the default context
+     */
+    public static synchronized SerialContext getDefault() {
+	if (defaultContext == null || defaultContext.closed)
+	    defaultContext = new SerialContext() ;
+
+	return defaultContext ;
+    }
+
+    /**
+     * Closes all the devices in this context and releases the native
+     * context.  No devices can be added to the context afterwards.
+     */
+    public void close() {
+	SerialDevice[] d ;
+	synchronized (this) {
+	    if (closed) return ;
+	    closed = true ;
+	    d = (SerialDevice[])devices.toArray(new SerialDevice[0]) ;
+	    if (supervisor != null)
+		supervisor.interrupt() ;
+	}
+
+	for (int i = 0 ; i < d.length ; i++)
+	    d[i].close() ;
+
+	synchronized (this) {
+	    synchronized (batchLock) {
+		if (handle != 0)
+		    SerialDevice.freeSerial(handle) ;
+		handle = 0 ;
+	    }
+	}
+    }
+
+    // Starts the supervisor thread if it isn't running.  It checks each
+    // device every SerialDevice.SUPERVISE_INTERVAL ms until the context is
+    // closed, and as a daemon thread doesn't keep the application alive.
+    synchronized void supervise() {
+	if (supervisor != null || closed)
+	    return ;
+
+	supervisor = new Thread("SerialContext supervisor") {
+	    public void run() {
+		for (;;) {
+		    SerialDevice[] d ;
+		    synchronized (SerialContext.this) {
+			if (closed) return ;
+			d = (SerialDevice[])
+			    devices.toArray(new SerialDevice[0]) ;
+		    }
+
+		    for (int i = 0 ; i < d.length ; i++)
+			d[i].supervise() ;
+
+		    try {
+			Thread.sleep(SerialDevice.SUPERVISE_INTERVAL) ;
+		    } catch (InterruptedException e) {
+			return ;
+		    }
+		}
+	    }
+	} ;
+	supervisor.setDaemon(true) ;
+	supervisor.start() ;
+    }
+
+    // Throws IllegalStateException if the context has been closed; called
+    // with the lock held.
+    void checkOpen() {
+	if (closed)
+	    throw new IllegalStateException("SerialContext is closed") ;
+    }
+
+    // Adds a device; called from the SerialDevice constructor with the lock
+    // held.
+    void add(SerialDevice device) {
+	checkOpen() ;
+	devices.add(device) ;
+	pollList = (SerialDevice[])devices.toArray(new SerialDevice[0]) ;
+    }
+
+    // Removes a device; called from SerialDevice.close() with the lock
+    // held.  Returns once no batched poll can read the device, so that its
+    // native unit may be freed.
+    void remove(SerialDevice device) {
+	devices.remove(device) ;
+	pollList = (SerialDevice[])devices.toArray(new SerialDevice[0]) ;
+
+	// wait out a batch that started with the old list
+	synchronized (batchLock) {
+	}
+    }
+
+    // Reads the newest events of all the batchable devices of the context
+    // whose last batched event has been taken, in one native call, and
+    // hands each its record.  A device calls this when it is polled and
+    // finds its last event taken; the Java 3D input device scheduler polls
+    // each device once per frame, so the first device polled in a frame
+    // reads all of them and the others take their events from the same
+    // call.  Only the reading is serialized: a device takes its event
+    // without a lock, since a record is written only while its device's
+    // batchPending is false, and read only while it is true.
+    void pollBatch() {
+	synchronized (batchLock) {
+	    if (handle == 0)
+		return ;
+
+	    SerialDevice[] list = pollList ;
+	    if (list != batchList) {
+		// the slots change, so start a new buffer and drop the
+		// events not taken yet
+		if (batchList != null)
+		    for (int i = 0 ; i < batchList.length ; i++)
+			batchList[i].batchPending = 0 ;
+
+		events = ByteBuffer.allocateDirect
+		    (Math.max(1, list.length) * SerialDevice.EVENT_SIZE)
+		    .order(ByteOrder.nativeOrder()) ;
+		eventsAddress = SerialDevice.bufferAddress(events) ;
+		batchList = list ;
+		batchRead = new boolean[list.length] ;
+	    }
+
+	    int n = 0 ;
+	    for (int i = 0 ; i < list.length ; i++) {
+		SerialDevice d = list[i] ;
+		batchRead[i] = d.batchPending == 0 && d.batchReady() &&
+		    d.beginRead() ;
+		events.putInt(i * SerialDevice.EVENT_SIZE +
+			      SerialDevice.EVENT_DEVICE,
+			      batchRead[i] ? d.id : -1) ;
+		if (batchRead[i]) n++ ;
+	    }
+	    if (n == 0)
+		return ;
+
+	    int got = 0 ;
+	    try {
+		got = SerialDevice.pollEvents(handle, eventsAddress,
+					      list.length) ;
+	    } finally {
+		for (int i = 0 ; i < list.length ; i++)
+		    if (batchRead[i]) list[i].endRead() ;
+	    }
+
+	    // one clock read for the arrival times of the whole batch
+	    long now = got > 0 ? System.currentTimeMillis() : 0 ;
+	    for (int i = 0 ; i < list.length ; i++) {
+		if (! batchRead[i]) continue ;
+		SerialDevice d = list[i] ;
+		d.batchEvents = events ;
+		d.batchSlot = i * SerialDevice.EVENT_SIZE ;
+		d.batchTime = now ;
+		SerialDevice.PENDING.lazySet(d, 1) ;
+	    }
+	}
+    }
+}
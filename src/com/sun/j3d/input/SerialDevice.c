@@ -61,19 +61,30 @@ JNIEXPORT jlong JNICALL Java_com_sun_j3d_input_SerialDevice_initSerial
     (JNIEnv *jenv, jclass jobj) {
 
     nu_serial_ctx_type *ctx ;
-    ctx = (nu_serial_ctx_type *)malloc(sizeof(nu_serial_ctx_type)) ;
-    if (ctx == 0) {
-	fprintf(stderr, "Error:  cannot malloc serial context\n") ;
+    ctx = serial_context_create() ;
+    if (ctx == 0)
 	return 0 ;
-    }
 
-    memset(ctx, 0, sizeof(nu_serial_ctx_type)) ;
     redbarron_install_peripheral_driver(ctx) ;
     gameport_install_peripheral_driver(ctx) ;
+    serial_install_raw_peripheral_driver(ctx) ;
 
     return (jlong)ctx ;
 }
 
+/*
+ * Class:     com_sun_j3d_input_SerialDevice
+ * Method:    freeSerial
+ * Signature: (J)V
+ *
+ * Close any devices left in a context and free it.
+ */
+JNIEXPORT void JNICALL Java_com_sun_j3d_input_SerialDevice_freeSerial
+    (JNIEnv *jenv, jclass jobj, jlong jin) {
+
+    serial_context_free((nu_serial_ctx_type *)jin) ;
+}
+
 /*
  * Class:     com_sun_j3d_input_SerialDevice
  * Method:    newDevice
@@ -84,22 +95,21 @@ JNIEXPORT jlong JNICALL Java_com_sun_j3d_input_SerialDevice_initSerial
  * If no driver with this name is found, it prints an error message and
  * returns failure.
  *
- * If the maximum number of assigned drivers is exceeded, it prints an
- * error message and returns failure.
+ * If the device can't be allocated, it prints an error message and
+ * returns failure.
  *
- * Otherwise the information is recorded in the peripheral_assignments
- * data structure. Note that ALL input string information is copied.
+ * Otherwise the device is added to the peripheral_assignments table of the
+ * context, and its index there is returned.
  */
 JNIEXPORT jint JNICALL Java_com_sun_j3d_input_SerialDevice_newDevice
     (JNIEnv *jenv, jclass jobj, jlong jin, jstring deviceName) {
 
     int i, n ;
     nu_serial_ctx_type *ctx ;
-    serial_device_substruct *unit ;
     char *peripheral_driver_name ;
 
     ctx = (nu_serial_ctx_type *)jin ;
-    if (ctx == 0) return NULL ;
+    if (ctx == 0) return -1 ;
 
     peripheral_driver_name =
 	(char *) (*jenv)->GetStringUTFChars(jenv, deviceName, NULL) ;
@@ -108,27 +118,9 @@ JNIEXPORT jint JNICALL Java_com_sun_j3d_input_SerialDevice_newDevice
 	if (strcmp(peripheral_driver_name,
 	    ctx->peripheral_drivers[i].peripheral_driver_name) == 0) {
 
-	    for (n = 0 ; n < MAX_NUMBER_PERIPHERAL_ASSIGNMENTS ; n++) {
-		if (ctx->peripheral_assignments[n] == 0)
-		    break ;
-	    }
-
-	    if (n == MAX_NUMBER_PERIPHERAL_ASSIGNMENTS) {
-		fprintf(stderr, "Exceeded max peripheral assignments (%d)\n",
-			MAX_NUMBER_PERIPHERAL_ASSIGNMENTS);
-		(*jenv)->ReleaseStringUTFChars(jenv, deviceName, NULL) ;
-		return -1 ;
-	    }
-
-	    unit = ctx->peripheral_drivers[i].create_instance() ;
-	    unit->fd = -1 ;
-	    unit->peripheral_driver_index = i ;
-	    unit->state = SERIAL_DEVICE_STATE_CREATED ;
-
-	    ctx->peripheral_assignments[n] = unit ;
-
+	    n = serial_add_device(ctx, i) ;
 	    (*jenv)->ReleaseStringUTFChars(jenv, deviceName, NULL) ;
-	    return n ;  /* success */
+	    return n ;  /* device index, or -1 */
 	}
     }
 
@@ -158,9 +150,7 @@ Java_com_sun_j3d_input_SerialDevice_deviceAttribute__JIID
     if (!ctx) return 0 ;
 
     deviceIndex = (int)devin ;
-    if (deviceIndex >= MAX_NUMBER_PERIPHERAL_ASSIGNMENTS) return 0 ;
-
-    unit = ctx->peripheral_assignments[deviceIndex] ;
+    unit = serial_device(ctx, deviceIndex) ;
     if (!unit) return 0 ;
 
     if (attributeNumber == USE_RSB) {
@@ -168,6 +158,71 @@ Java_com_sun_j3d_input_SerialDevice_deviceAttribute__JIID
 	return 1 ;
     }
 
+    if (attributeNumber == SERIAL_BUFFER_SIZE) {
+	/* the ring buffer is allocated when the port is opened */
+	unsigned int size = (unsigned int)val ;
+	if (unit->state == SERIAL_DEVICE_STATE_OPENED ||
+	    size < SERIAL_RING_MIN_SIZE || size > SERIAL_RING_MAX_SIZE ||
+	    (size & (size - 1)) != 0)
+	    return 0 ;
+
+	unit->ring_size = size ;
+	return 1 ;
+    }
+
+    if (attributeNumber == BAUD_RATE) {
+	/* applied when the port is opened */
+	if (unit->state == SERIAL_DEVICE_STATE_OPENED ||
+	    !serial_baud_supported((int)val))
+	    return 0 ;
+
+	unit->baud = (int)val ;
+	return 1 ;
+    }
+
+    if (attributeNumber == LOW_LATENCY) {
+	/* applied after the device is probed */
+	if (unit->state == SERIAL_DEVICE_STATE_OPENED) return 0 ;
+	unit->low_latency = (int)val ;
+	return 1 ;
+    }
+
+    if (attributeNumber == USE_SHM) {
+	/* the ring is attached when the port is opened */
+	if (unit->state == SERIAL_DEVICE_STATE_OPENED) return 0 ;
+	unit->use_shm = (int)val ;
+	return 1 ;
+    }
+
+    if (attributeNumber == CAPTURE_SIZE) {
+	if (unit->state == SERIAL_DEVICE_STATE_OPENED ||
+	    val < SERIAL_CAPTURE_MIN_SIZE || val > 0x7fffffff)
+	    return 0 ;
+	unit->capture_size = (unsigned int)val ;
+	return 1 ;
+    }
+
+    if (attributeNumber == REPLAY_SPEED) {
+	if (unit->state == SERIAL_DEVICE_STATE_OPENED || val < 0.0)
+	    return 0 ;
+	unit->replay_speed = val ;
+	return 1 ;
+    }
+
+    if (attributeNumber == CAPTURE_KEEP) {
+	if (unit->state == SERIAL_DEVICE_STATE_OPENED || val < 2.0)
+	    return 0 ;
+	unit->capture_keep = (int)val ;
+	return 1 ;
+    }
+
+    if (attributeNumber == READER_CPU) {
+	if (unit->state == SERIAL_DEVICE_STATE_OPENED || val < -1.0)
+	    return 0 ;
+	unit->reader_cpu = (int)val ;
+	return 1 ;
+    }
+
     pdi = unit->peripheral_driver_index ;
     return ctx->peripheral_drivers[pdi].device_attribute_double
 	(unit, (int)attributeNumber, (double)val) ;
@@ -196,9 +251,7 @@ Java_com_sun_j3d_input_SerialDevice_deviceAttribute__JIILjava_lang_String_2
     if (!ctx) return 0 ;
 
     deviceIndex = (int)devin ;
-    if (deviceIndex >= MAX_NUMBER_PERIPHERAL_ASSIGNMENTS) return 0 ;
-
-    unit = ctx->peripheral_assignments[deviceIndex] ;
+    unit = serial_device(ctx, deviceIndex) ;
     if (!unit) return 0 ;
 
     if (attributeNumber == SERIAL_PORT_FILE_NAME) {
@@ -206,6 +259,28 @@ Java_com_sun_j3d_input_SerialDevice_deviceAttribute__JIILjava_lang_String_2
 	return 1;
     }
 
+    if (attributeNumber == REPLAY_FILE) {
+	/* the replay is read when the device is opened */
+	rval = unit->state != SERIAL_DEVICE_STATE_OPENED ;
+	if (rval) {
+	    free(unit->replay_file) ;
+	    unit->replay_file = *str ? strdup(str) : 0 ;
+	}
+	(*jenv)->ReleaseStringUTFChars(jenv, val, str) ;
+	return rval ;
+    }
+
+    if (attributeNumber == CAPTURE_FILE) {
+	/* the capture is opened with the port */
+	rval = unit->state != SERIAL_DEVICE_STATE_OPENED ;
+	if (rval) {
+	    free(unit->capture_file) ;
+	    unit->capture_file = *str ? strdup(str) : 0 ;
+	}
+	(*jenv)->ReleaseStringUTFChars(jenv, val, str) ;
+	return rval ;
+    }
+
     pdi = unit->peripheral_driver_index ;
     rval = ctx->peripheral_drivers[pdi].device_attribute_string
 	(unit, (int)attributeNumber, str) ;
@@ -226,6 +301,111 @@ JNIEXPORT jint JNICALL Java_com_sun_j3d_input_SerialDevice_openProbe
 }
 
 
+/*
+ * Class:     com_sun_j3d_input_SerialDevice
+ * Method:    initLatency
+ * Signature: (JI[J)V
+ */
+JNIEXPORT void JNICALL Java_com_sun_j3d_input_SerialDevice_initLatency
+    (JNIEnv *jenv, jobject jobj, jlong jin, jint jdev, jlongArray jtimes) {
+
+    int deviceIndex ;
+    jlong times[3] ;
+    nu_serial_ctx_type *ctx ;
+    serial_device_substruct *unit ;
+
+    deviceIndex = (int)jdev ;
+    ctx = (nu_serial_ctx_type *)jin ;
+    unit = serial_device(ctx, deviceIndex) ;
+    if (!unit) return ;
+
+    times[0] = (jlong)unit->init_open ;
+    times[1] = (jlong)unit->init_reset ;
+    times[2] = (jlong)unit->init_probe ;
+    (*jenv)->SetLongArrayRegion(jenv, jtimes, 0, 3, times) ;
+}
+
+
+/*
+ * Class:     com_sun_j3d_input_SerialDevice
+ * Method:    statistics
+ * Signature: (JI[J)V
+ *
+ * Copy the I/O and framing counts of a device, in serial_stats order.
+ */
+JNIEXPORT void JNICALL Java_com_sun_j3d_input_SerialDevice_statistics
+    (JNIEnv *jenv, jobject jobj, jlong jin, jint jdev, jlongArray jcounts) {
+
+    serial_device_substruct *unit ;
+    jlong counts[SERIAL_STATS] ;
+
+    unit = serial_device((nu_serial_ctx_type *)jin, (int)jdev) ;
+    if (!unit) return ;
+
+    counts[0] = (jlong)unit->stats.bytes ;
+    counts[1] = (jlong)unit->stats.reads ;
+    counts[2] = (jlong)unit->stats.empty_reads ;
+    counts[3] = (jlong)unit->stats.overruns ;
+    counts[4] = (jlong)unit->stats.resync ;
+    counts[5] = (jlong)unit->stats.packets ;
+    counts[6] = (jlong)unit->stats.bad_packets ;
+    counts[7] = (jlong)unit->stats.clock_rejects ;
+    (*jenv)->SetLongArrayRegion(jenv, jcounts, 0, SERIAL_STATS, counts) ;
+}
+
+
+/* the records must match the EVENT_* offsets in SerialDevice.java */
+typedef char serial_event_size_check
+    [sizeof(serial_event) == SERIAL_EVENT_SIZE ? 1 : -1] ;
+
+/*
+ * Class:     com_sun_j3d_input_SerialDevice
+ * Method:    bufferAddress
+ * Signature: (Ljava/nio/ByteBuffer;)J
+ *
+ * Return the address of a direct buffer for pollEvents(), or 0.
+ */
+JNIEXPORT jlong JNICALL Java_com_sun_j3d_input_SerialDevice_bufferAddress
+    (JNIEnv *jenv, jclass jcls, jobject jbuf) {
+
+    return (jlong)(*jenv)->GetDirectBufferAddress(jenv, jbuf) ;
+}
+
+/*
+ * Class:     com_sun_j3d_input_SerialDevice
+ * Method:    pollEvents
+ * Signature: (JJI)I
+ *
+ * Read the newest event of the device named by each of count consecutive
+ * serial_event records at the given address, so that all the devices of
+ * a context are polled with one call.  A record whose device is negative
+ * is left as it is; a device whose driver has no read_event function, or
+ * that no longer exists, gets a status of 0.  Returns the number of
+ * records written with a nonzero status.
+ */
+JNIEXPORT jint JNICALL Java_com_sun_j3d_input_SerialDevice_pollEvents
+    (JNIEnv *jenv, jclass jcls, jlong jin, jlong jevents, jint count) {
+
+    nu_serial_ctx_type *ctx ;
+    serial_device_substruct *unit ;
+    serial_event *events ;
+    int i, got = 0 ;
+
+    ctx = (nu_serial_ctx_type *)jin ;
+    events = (serial_event *)jevents ;
+    if (!events) return 0 ;
+
+    for (i = 0 ; i < count ; i++) {
+	if (events[i].device < 0) continue ;
+	events[i].status = 0 ;
+	unit = serial_device(ctx, events[i].device) ;
+	if (unit && serial_read_event(ctx, unit, &events[i]) != 0)
+	    got++ ;
+    }
+
+    return got ;
+}
+
 /*
  * Class:     com_sun_j3d_input_SerialDevice
  * Method:    close
@@ -239,10 +419,8 @@ JNIEXPORT void JNICALL Java_com_sun_j3d_input_SerialDevice_close
     serial_device_substruct *unit ;
 
     deviceIndex = (int)jdev ;
-    if (deviceIndex >= MAX_NUMBER_PERIPHERAL_ASSIGNMENTS) return ;
-
     ctx = (nu_serial_ctx_type *)jin ;
-    unit = ctx->peripheral_assignments[deviceIndex] ;
+    unit = serial_device(ctx, deviceIndex) ;
     if (!unit) return ;
 
     /* call instance-specific close_device() */
@@ -252,3 +430,250 @@ JNIEXPORT void JNICALL Java_com_sun_j3d_input_SerialDevice_close
     /* close the serial port */
     serial_close(ctx, deviceIndex) ;
 }
+
+
+/*
+ * Class:     com_sun_j3d_input_SerialDevice
+ * Method:    lowLatencyStatus
+ * Signature: (JI)I
+ */
+JNIEXPORT jint JNICALL Java_com_sun_j3d_input_SerialDevice_lowLatencyStatus
+    (JNIEnv *jenv, jobject jobj, jlong jin, jint jdev) {
+
+    serial_device_substruct *unit ;
+
+    unit = serial_device((nu_serial_ctx_type *)jin, (int)jdev) ;
+    if (!unit) return 0 ;
+
+    return unit->low_latency_status ;
+}
+
+/*
+ * Class:     com_sun_j3d_input_SerialDevice
+ * Method:    replayRemaining
+ * Signature: (JI)I
+ */
+JNIEXPORT jint JNICALL Java_com_sun_j3d_input_SerialDevice_replayRemaining
+    (JNIEnv *jenv, jobject jobj, jlong jin, jint jdev) {
+
+    serial_device_substruct *unit ;
+
+    unit = serial_device((nu_serial_ctx_type *)jin, (int)jdev) ;
+    if (!unit) return -1 ;
+
+    return serial_replay_remaining(unit) ;
+}
+
+/*
+ * Class:     com_sun_j3d_input_SerialDevice
+ * Method:    portFault
+ * Signature: (JI)I
+ *
+ * Return the errno with which a device's port was lost, -1 if its line
+ * hung up, or 0 if it is still connected.
+ */
+JNIEXPORT jint JNICALL Java_com_sun_j3d_input_SerialDevice_portFault
+    (JNIEnv *jenv, jobject jobj, jlong jin, jint jdev) {
+
+    serial_device_substruct *unit ;
+
+    unit = serial_device((nu_serial_ctx_type *)jin, (int)jdev) ;
+    if (!unit) return 0 ;
+
+    return unit->fault ;
+}
+
+/*
+ * Class:     com_sun_j3d_input_SerialDevice
+ * Method:    idleTime
+ * Signature: (JI)J
+ *
+ * Return the ns since an open device last received any characters.
+ */
+JNIEXPORT jlong JNICALL Java_com_sun_j3d_input_SerialDevice_idleTime
+    (JNIEnv *jenv, jobject jobj, jlong jin, jint jdev) {
+
+    serial_device_substruct *unit ;
+
+    unit = serial_device((nu_serial_ctx_type *)jin, (int)jdev) ;
+    if (!unit || unit->state != SERIAL_DEVICE_STATE_OPENED) return 0 ;
+
+    return (jlong)serial_idle_time(unit) ;
+}
+
+/*
+ * Class:     com_sun_j3d_input_SerialDevice
+ * Method:    reopen
+ * Signature: (JI)I
+ */
+JNIEXPORT jint JNICALL Java_com_sun_j3d_input_SerialDevice_reopen
+    (JNIEnv *jenv, jobject jobj, jlong jin, jint jdev) {
+
+    return serial_reopen((nu_serial_ctx_type *)jin, (int)jdev) ;
+}
+
+/*
+ * Class:     com_sun_j3d_input_SerialDevice
+ * Method:    ringBuffer
+ * Signature: (JI)Ljava/nio/ByteBuffer;
+ *
+ * Return a direct ByteBuffer over the ring of an open device, or null.
+ * The buffer is only valid until the device is closed.
+ */
+JNIEXPORT jobject JNICALL Java_com_sun_j3d_input_SerialDevice_ringBuffer
+    (JNIEnv *jenv, jobject jobj, jlong jin, jint jdev) {
+
+    serial_device_substruct *unit ;
+
+    unit = serial_device((nu_serial_ctx_type *)jin, (int)jdev) ;
+    if (!unit || unit->state != SERIAL_DEVICE_STATE_OPENED || !unit->ring.buf)
+	return 0 ;
+
+    return (*jenv)->NewDirectByteBuffer
+	(jenv, unit->ring.buf, (jlong)unit->ring.mask + 1) ;
+}
+
+/*
+ * Class:     com_sun_j3d_input_SerialDevice
+ * Method:    ringHead
+ * Signature: (JI)I
+ *
+ * Bring the ring of a device up to date and return its head position.
+ */
+JNIEXPORT jint JNICALL Java_com_sun_j3d_input_SerialDevice_ringHead
+    (JNIEnv *jenv, jobject jobj, jlong jin, jint jdev) {
+
+    serial_device_substruct *unit ;
+
+    unit = serial_device((nu_serial_ctx_type *)jin, (int)jdev) ;
+    if (!unit) return 0 ;
+
+    serial_read(unit) ;
+    return (jint)RING_HEAD(&unit->ring) ;
+}
+
+/*
+ * Class:     com_sun_j3d_input_SerialDevice
+ * Method:    inputPosition
+ * Signature: (JI)I
+ *
+ * Return the head position of a device's ring without reading the port.
+ */
+JNIEXPORT jint JNICALL Java_com_sun_j3d_input_SerialDevice_inputPosition
+    (JNIEnv *jenv, jobject jobj, jlong jin, jint jdev) {
+
+    serial_device_substruct *unit ;
+
+    unit = serial_device((nu_serial_ctx_type *)jin, (int)jdev) ;
+    if (!unit) return 0 ;
+
+    return (jint)RING_HEAD(&unit->ring) ;
+}
+
+/*
+ * Class:     com_sun_j3d_input_SerialDevice
+ * Method:    awaitInput
+ * Signature: (JIII)I
+ *
+ * Block until characters arrive after the given ring position or the
+ * timeout in ms passes; see serial_await().
+ */
+JNIEXPORT jint JNICALL Java_com_sun_j3d_input_SerialDevice_awaitInput
+    (JNIEnv *jenv, jobject jobj, jlong jin, jint jdev,
+     jint position, jint timeout) {
+
+    serial_device_substruct *unit ;
+
+    unit = serial_device((nu_serial_ctx_type *)jin, (int)jdev) ;
+    if (!unit) return 0 ;
+
+    return serial_await(unit, (unsigned int)position, (int)timeout) ;
+}
+
+/*
+ * Class:     com_sun_j3d_input_SerialDevice
+ * Method:    arrivalAge
+ * Signature: (JII)J
+ *
+ * Return how long ago, in nanoseconds, the character before the given ring
+ * position arrived, or 0 if that isn't known.
+ */
+JNIEXPORT jlong JNICALL Java_com_sun_j3d_input_SerialDevice_arrivalAge
+    (JNIEnv *jenv, jobject jobj, jlong jin, jint jdev, jint position) {
+
+    serial_device_substruct *unit ;
+    hrtime_t t ;
+
+    unit = serial_device((nu_serial_ctx_type *)jin, (int)jdev) ;
+    if (!unit) return 0 ;
+
+    t = serial_arrival_time(unit, (unsigned int)position) ;
+    return t == 0 ? 0 : (jlong)(serial_time(unit) - t) ;
+}
+
+/*
+ * Class:     com_sun_j3d_input_SerialDevice
+ * Method:    arrivalTime
+ * Signature: (JII)J
+ *
+ * Return the gethrtime() value at which the character before the given
+ * ring position arrived, or 0 if that isn't known.
+ */
+JNIEXPORT jlong JNICALL Java_com_sun_j3d_input_SerialDevice_arrivalTime
+    (JNIEnv *jenv, jobject jobj, jlong jin, jint jdev, jint position) {
+
+    serial_device_substruct *unit ;
+
+    unit = serial_device((nu_serial_ctx_type *)jin, (int)jdev) ;
+    if (!unit) return 0 ;
+
+    return (jlong)serial_arrival_time(unit, (unsigned int)position) ;
+}
+
+/*
+ * Class:     com_sun_j3d_input_SerialDevice
+ * Method:    deviceTime
+ * Signature: (JI)J
+ *
+ * Return the current time of a device as the drivers see it: gethrtime(),
+ * or the replay clock of a replayed device.
+ */
+JNIEXPORT jlong JNICALL Java_com_sun_j3d_input_SerialDevice_deviceTime
+    (JNIEnv *jenv, jobject jobj, jlong jin, jint jdev) {
+
+    serial_device_substruct *unit ;
+
+    unit = serial_device((nu_serial_ctx_type *)jin, (int)jdev) ;
+    if (!unit) return 0 ;
+
+    return (jlong)serial_time(unit) ;
+}
+
+/*
+ * Class:     com_sun_j3d_input_SerialDevice
+ * Method:    command
+ * Signature: (JI[B)V
+ *
+ * Send a command to a device.  The command may not contain 0 bytes.
+ */
+JNIEXPORT void JNICALL Java_com_sun_j3d_input_SerialDevice_command
+    (JNIEnv *jenv, jobject jobj, jlong jin, jint jdev, jbyteArray jcmd) {
+
+    serial_device_substruct *unit ;
+    unsigned char *command ;
+    jsize n ;
+
+    unit = serial_device((nu_serial_ctx_type *)jin, (int)jdev) ;
+    if (!unit) return ;
+
+    n = (*jenv)->GetArrayLength(jenv, jcmd) ;
+    if ((command = (unsigned char *)malloc(n + 1)) == 0) {
+	fprintf(stderr, "Error:  cannot malloc serial command\n") ;
+	return ;
+    }
+    (*jenv)->GetByteArrayRegion(jenv, jcmd, 0, n, (jbyte *)command) ;
+    command[n] = 0 ;
+
+    serial_command(&unit, 1, command) ;
+    free(command) ;
+}
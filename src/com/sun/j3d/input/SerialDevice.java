@@ -38,28 +38,292 @@
  */
 
 package com.sun.j3d.input ;
+import java.io.IOException ;
 import java.util.* ;
+import java.util.concurrent.atomic.AtomicInteger ;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater ;
+import javax.media.j3d.InputDevice ;
+import javax.media.j3d.Sensor ;
+import javax.media.j3d.Transform3D ;
+import javax.vecmath.Matrix4d ;
 
 /**
  * The base class for <code>com.sun.j3d.input.InputDevice</code> classes that
  * use serial ports for communication.  No public constructors are provided
- * for this class.
+ * for this class.  Each instance belongs to a <code>SerialContext</code>.
+ *
+ * @see SerialContext
  */
 public class SerialDevice {
     static final int USE_RSB               =  0 ;
     static final int SERIAL_PORT_FILE_NAME =  1 ;
-    static final int LAST_ATTRIBUTE        =  1 ;
+    static final int SERIAL_BUFFER_SIZE    =  2 ;
+    static final int BAUD_RATE             =  3 ;
+    static final int LOW_LATENCY           =  4 ;
+    static final int READER_CPU            =  5 ;
+    static final int USE_SHM               =  6 ;
+    static final int CAPTURE_FILE          =  7 ;
+    static final int CAPTURE_SIZE          =  8 ;
+    static final int CAPTURE_KEEP          =  9 ;
+    static final int REPLAY_FILE           = 10 ;
+    static final int REPLAY_SPEED          = 11 ;
+    static final int LAST_ATTRIBUTE        = 11 ;
+
+    static final int DEFAULT_BUFFER_SIZE   =  2048 ;
+    static final int MIN_BUFFER_SIZE       =  256 ;
+    static final int MAX_BUFFER_SIZE       =  1 << 20 ;
+
+    /**
+     * Index of the time taken to open and configure the serial port in the
+     * array returned by <code>getInitLatency</code>.
+     */
+    public static final int INIT_OPEN  = 0 ;
+
+    /**
+     * Index of the time taken to reset the device in the array returned by
+     * <code>getInitLatency</code>.
+     */
+    public static final int INIT_RESET = 1 ;
+
+    /**
+     * Index of the time taken to probe the device in the array returned by
+     * <code>getInitLatency</code>.
+     */
+    public static final int INIT_PROBE = 2 ;
+
+    /**
+     * Bit set in the value returned by <code>getLowLatencyStatus</code> if
+     * the serial driver was asked to pass characters on as they arrive
+     * (ASYNC_LOW_LATENCY).
+     */
+    public static final int LOW_LATENCY_PORT       = 1 ;
+
+    /**
+     * Bit set in the value returned by <code>getLowLatencyStatus</code> if
+     * the port wakes the reader thread once per device record (VMIN).
+     */
+    public static final int LOW_LATENCY_VMIN       = 2 ;
+
+    /**
+     * Bit set in the value returned by <code>getLowLatencyStatus</code> if
+     * the reader thread runs with real-time (SCHED_FIFO) priority.
+     */
+    public static final int LOW_LATENCY_SCHED_FIFO = 4 ;
+
+    /**
+     * Bit set in the value returned by <code>getLowLatencyStatus</code> if
+     * the reader thread was pinned to the <code>ReaderCPU</code>.
+     */
+    public static final int LOW_LATENCY_CPU        = 8 ;
+
+    /**
+     * <code>getReadiness</code> value of a device that hasn't been
+     * initialized.
+     */
+    public static final int NOT_INITIALIZED = 0 ;
+
+    /**
+     * <code>getReadiness</code> value of a device whose asynchronous
+     * initialization is under way.
+     */
+    public static final int INITIALIZING    = 1 ;
+
+    /**
+     * <code>getReadiness</code> value of an initialized device.
+     */
+    public static final int READY           = 2 ;
+
+    /**
+     * <code>getReadiness</code> value of a device whose asynchronous
+     * initialization failed.
+     */
+    public static final int FAILED          = 3 ;
+
+    /**
+     * Index of the number of characters read from the port in the array
+     * filled by <code>getStatistics</code>.
+     */
+    public static final int STAT_BYTES         = 0 ;
+
+    /**
+     * Index of the number of reads of the port in the array filled by
+     * <code>getStatistics</code>.  For the shared and replay transports
+     * this counts the copies from the shared ring or the capture.
+     */
+    public static final int STAT_READS         = 1 ;
+
+    /**
+     * Index of the number of reads that found no characters in the array
+     * filled by <code>getStatistics</code>.
+     */
+    public static final int STAT_EMPTY_READS   = 2 ;
+
+    /**
+     * Index of the number of characters overwritten in the ring buffer
+     * before the device decoded them in the array filled by
+     * <code>getStatistics</code>.
+     */
+    public static final int STAT_OVERRUNS      = 3 ;
+
+    /**
+     * Index of the number of characters skipped to find the start of a
+     * record in the array filled by <code>getStatistics</code>.
+     */
+    public static final int STAT_RESYNC        = 4 ;
+
+    /**
+     * Index of the number of records decoded in the array filled by
+     * <code>getStatistics</code>.
+     */
+    public static final int STAT_PACKETS       = 5 ;
+
+    /**
+     * Index of the number of framed records rejected as invalid in the
+     * array filled by <code>getStatistics</code>.
+     */
+    public static final int STAT_BAD_PACKETS   = 6 ;
+
+    /**
+     * Index of the number of records whose time stamps were rejected by
+     * the clock synchronization in the array filled by
+     * <code>getStatistics</code>.  Only the Logitech trackers time stamp
+     * their records.
+     */
+    public static final int STAT_CLOCK_REJECTS = 7 ;
+
+    /**
+     * Length of the array filled by <code>getStatistics</code>.
+     */
+    public static final int STAT_COUNT         = 8 ;
+
+    // Layout of the serial_event records written by the native drivers
+    // into the mailboxes and by pollEvents(), from serial.h, in bytes.
+    static final int EVENT_SIZE     = 168 ;
+    static final int EVENT_STATUS   = 0 ;
+    static final int EVENT_BUTTONS  = 4 ;
+    static final int EVENT_DEVICE   = 20 ;
+    static final int EVENT_AGE      = 24 ;
+    static final int EVENT_VALUES   = 32 ;
+    static final int EVENT_SEQUENCE = 160 ;
+
+    static final int[] BAUD_RATES = {
+	300, 600, 1200, 2400, 4800, 9600, 19200,
+	38400, 57600, 115200, 230400
+    } ;
 
-    static long nativeContext = 0 ;
-    static List devices = new ArrayList() ;
+    // Set if the native library could not be loaded.
+    static UnsatisfiedLinkError linkError = null ;
+
+    // The context of this device and its native pointer.
+    final SerialContext context ;
+    long nativeContext ;
+
+    // A serial_event record into which the native driver writes this
+    // device's newest event in place, and its address; null and 0 if the
+    // native library is unavailable.
+    final java.nio.ByteBuffer mailbox ;
+    final long mailboxAddress ;
 
     int id = -1 ;
     boolean open = false ;
     String portName = null ;
 
+    // Attributes kept on the Java side for the Java transport, and for
+    // switching back to the native transport.
+    private String driverName ;
+    private boolean useRsb = false ;
+    private int bufferSize = 0 ;
+    private int baudRate = 0 ;
+    private boolean lowLatency = false ;
+    private int readerCpu = -1 ;
+    private String captureFile = null ;
+    private int captureSize = 0 ;
+    private int captureKeep = 0 ;
+    private boolean useReplay = false ;
+    private String replayFile = null ;
+    private double replaySpeed = 1.0 ;
+
+    // Nanoseconds taken by each stage of the last initialization.
+    long[] initLatency = new long[3] ;
+
+    // Age in nanoseconds of the most recent event read from the device at
+    // the time it was returned; set by the drivers' getEvents() methods.
+    final long[] eventAge = new long[1] ;
+
+    // System.currentTimeMillis() time at which the most recent event arrived.
+    private volatile long eventTime = 0 ;
+
+    // The STAT_* counts kept in Java, by the Java transport and by devices
+    // that decode their records in Java; added to the native counts by
+    // getStatistics().  Written only by the polling thread.
+    final long[] counts = new long[STAT_COUNT] ;
+
+    // Guards the native device against being released while
+    // getStatistics() reads its counts, without waiting for the context.
+    private final Object statisticsLock = new Object() ;
+
+    // The processing mode set by the drivers that support BLOCKING, and the
+    // longest time in ms that processStreamInput() waits for an event.
+    // awaitLock guards the native device against being released or
+    // reopened while the processing thread waits for its port.
+    int processingMode = InputDevice.NON_BLOCKING ;
+    static final int BLOCK_TIMEOUT = 100 ;
+    private final Object awaitLock = new Object() ;
+
+    // The buffer and offset of this device's record in the context's
+    // batched events, and the System.currentTimeMillis() time it was read;
+    // written by SerialContext.pollBatch() before it sets batchPending,
+    // which is cleared once the event has been taken.
+    java.nio.ByteBuffer batchEvents = null ;
+    int batchSlot = 0 ;
+    long batchTime = 0 ;
+    volatile int batchPending = 0 ;
+
+    // Stores batchPending without a full fence; the reads that see the
+    // store see the record written before it.
+    static final AtomicIntegerFieldUpdater PENDING =
+	AtomicIntegerFieldUpdater.newUpdater(SerialDevice.class,
+					     "batchPending") ;
+
+    // Non-null if the Java transport is selected.
+    JavaSerialPort javaPort = null ;
+    private boolean useJavaTransport = false ;
+
+    // Intervals in milliseconds at which the context's supervisor checks
+    // the ports, and at which it retries a reopen that failed.
+    static final int SUPERVISE_INTERVAL = 100 ;
+    static final int REOPEN_RETRY = 1000 ;
+
+    // readState gates the polling thread against the supervisor: a poll
+    // reads the port only if it can move the state from IDLE to READING,
+    // and the supervisor reopens the port only after moving it from IDLE
+    // to RECONNECTING, so neither ever waits for the other.
+    private static final int IDLE = 0 ;
+    private static final int READING = 1 ;
+    private static final int RECONNECTING = 2 ;
+    private final AtomicInteger readState = new AtomicInteger(IDLE) ;
+
+    private volatile boolean reconnect = false ;
+    private volatile int reconnectSilence = 0 ;
+    private volatile boolean stale = false ;
+    private volatile int reconnectCount = 0 ;
+
+    // System.nanoTime() of the last reopen, guarded by context.
+    private long lastReopen = 0 ;
+
+    // Asynchronous initialization; the worker and close() change readiness
+    // and initializeError with the context locked, and notify it.
+    private boolean asyncInitialize = false ;
+    private volatile int readiness = NOT_INITIALIZED ;
+    private volatile RuntimeException initializeError = null ;
+    private final Transform3D nominalPose = new Transform3D() ;
+
     // Inits the serial device package, returns malloc'ed context pointer.
     static native long initSerial() ;
 
+    // Closes any devices left in the context and frees it.
+    static native void freeSerial(long ctx) ;
+
     // Creates another instance of serial device.   Returns internal index
     // number for this device for (-1 for failure).
     native int newDevice(long ctx, String deviceName) ;
@@ -82,40 +346,169 @@ public class SerialDevice {
     // Closes the device and releases resources.
     native void close(long ctx, int deviceIndex) ;
 
+    // Copies the open, reset, and probe times of the device into times.
+    native void initLatency(long ctx, int deviceIndex, long[] times) ;
+
+    // Returns the LOW_LATENCY_* bits applied to the device.
+    native int lowLatencyStatus(long ctx, int deviceIndex) ;
+
+    // Returns the number of chunks left to replay, -1 if not replayed.
+    native int replayRemaining(long ctx, int deviceIndex) ;
+
+    // Returns a direct buffer over the ring of an open device, valid until
+    // the device is closed.
+    native java.nio.ByteBuffer ringBuffer(long ctx, int deviceIndex) ;
+
+    // Brings the ring up to date and returns its head position.
+    native int ringHead(long ctx, int deviceIndex) ;
+
+    // Returns the age in nanoseconds of the character before a ring
+    // position, or 0 if unknown.
+    native long arrivalAge(long ctx, int deviceIndex, int position) ;
+
+    // Returns the gethrtime() value at which the character before the
+    // given ring position arrived, or 0 if that isn't known, and the
+    // current gethrtime() value, or the replay clock of a replayed device.
+    native long arrivalTime(long ctx, int deviceIndex, int position) ;
+    native long deviceTime(long ctx, int deviceIndex) ;
+
+    // Sends a command, which may not contain 0 bytes, to the device.
+    native void command(long ctx, int deviceIndex, byte[] command) ;
+
+    // Returns the errno with which the port was lost, -1 if it hung up, or
+    // 0 if it is connected.
+    native int portFault(long ctx, int deviceIndex) ;
+
+    // Returns the nanoseconds since the port last received characters.
+    native long idleTime(long ctx, int deviceIndex) ;
+
+    // Closes, reopens, and probes the device's port again; returns 1 if
+    // the device answered the probe.
+    native int reopen(long ctx, int deviceIndex) ;
+
+    // Returns the ring head without reading the port.
+    native int inputPosition(long ctx, int deviceIndex) ;
+
+    // Waits until the ring head moves from position or timeout ms pass.
+    native int awaitInput(long ctx, int deviceIndex, int position,
+			  int timeout) ;
+
+    // Returns the address of a direct buffer for pollEvents().
+    static native long bufferAddress(java.nio.ByteBuffer events) ;
+
+    // Reads the newest event of the device named by each of count
+    // EVENT_SIZE records at the address; negative devices are skipped.
+    static native int pollEvents(long ctx, long events, int count) ;
+
+    // Copies the STAT_* counts kept by the native transport and driver.
+    native void statistics(long ctx, int deviceIndex, long[] counts) ;
+
     /**
-     * Load the native code library and initialize the native serial driver
-     * context. 
+     * Load the native code library.  The library is optional for devices
+     * that support the Java transport; if it can't be loaded, those devices
+     * use the Java transport and all others fail on construction.
      */
     static {
         java.security.AccessController.doPrivileged(
             new java.security.PrivilegedAction() {
             public Object run() {
-                System.loadLibrary("j3dInput") ;
-		nativeContext = initSerial() ;
+		try {
+		    System.loadLibrary("j3dInput") ;
+		} catch (UnsatisfiedLinkError e) {
+		    linkError = e ;
+		}
                 return null ;
             }
         }) ;
     }
 
     /**
-     * Creates a new <code>SerialDevice</code> instance.<p>
+     * Creates a new <code>SerialDevice</code> instance in the default
+     * context.<p>
      *
      * @param driverName name of peripheral driver to use; "RedBarron" and
      *  "Gameport" are currently supported
      * @exception <code>IllegalArgumentException</code>
      *  if peripheral driver name is unknown or fails instantiation
+     * @exception <code>UnsatisfiedLinkError</code> if the native library
+     *  is unavailable and the device doesn't support the Java transport
      */
     SerialDevice(String driverName) {
-	synchronized(devices) {
-	    id = newDevice(nativeContext, driverName) ;
-	    if (id < 0)
-		throw new IllegalArgumentException
-		    ("peripheral driver assignment failed") ;
+	this(SerialContext.getDefault(), driverName) ;
+    }
+
+    /**
+     * Creates a new <code>SerialDevice</code> instance in the given
+     * context.<p>
+     *
+     * @param context the context of the device
+     * @param driverName name of peripheral driver to use; "RedBarron" and
+     *  "Gameport" are currently supported
+     * @exception <code>IllegalArgumentException</code>
+     *  if peripheral driver name is unknown or fails instantiation
+     * @exception <code>IllegalStateException</code> if the context has been
+     *  closed
+     * @exception <code>UnsatisfiedLinkError</code> if the native library
+     *  is unavailable and the device doesn't support the Java transport
+     */
+    SerialDevice(SerialContext context, String driverName) {
+	this.context = context ;
+	this.driverName = driverName ;
+	if (linkError == null) {
+	    mailbox = java.nio.ByteBuffer.allocateDirect(EVENT_SIZE)
+		.order(java.nio.ByteOrder.nativeOrder()) ;
+	    mailboxAddress = bufferAddress(mailbox) ;
+	}
+	else {
+	    mailbox = null ;
+	    mailboxAddress = 0 ;
+	}
+
+	synchronized(context) {
+	    // a closed context has no native handle to create the device in
+	    context.checkOpen() ;
+	    nativeContext = context.handle ;
+	    if (linkError == null) {
+		id = newDevice(nativeContext, driverName) ;
+		if (id < 0)
+		    throw new IllegalArgumentException
+			("peripheral driver assignment failed") ;
+	    }
+	    else if (getJavaTransportBaud() > 0)
+		useJavaTransport = true ;
+	    else
+		throw linkError ;
 
-	    devices.add(this) ;
+	    context.add(this) ;
 	}
     }
 
+    /**
+     * Returns the baud rate to use with the Java transport, or 0 if this
+     * device requires the native transport.  Subclasses that can decode
+     * their device protocol in Java override this.
+     */
+    int getJavaTransportBaud() {
+	return 0 ;
+    }
+
+    /**
+     * Returns the size in bytes of the buffer the device's characters are
+     * read into.
+     */
+    int getSerialBufferSize() {
+	return bufferSize == 0 ? DEFAULT_BUFFER_SIZE : bufferSize ;
+    }
+
+    /**
+     * Returns the baud rate to use with the native transport if none has
+     * been set, or 0 to use the native driver's.  Subclasses whose native
+     * driver doesn't know their rate override this.
+     */
+    int getNativeTransportBaud() {
+	return 0 ;
+    }
+
     /**
      * Set the serial port name for this instance.
      * 
@@ -125,11 +518,13 @@ public class SerialDevice {
      *  if port assignment fails
      */
     public void setSerialPort(String portName) {
-	int ret = deviceAttribute(nativeContext, id,
-				  SERIAL_PORT_FILE_NAME, portName) ;
-	if (ret == 0)
-	    throw new IllegalArgumentException
-		("port assignment " + portName + " failed") ;
+	if (!useJavaTransport) {
+	    int ret = deviceAttribute(nativeContext, id,
+				      SERIAL_PORT_FILE_NAME, portName) ;
+	    if (ret == 0)
+		throw new IllegalArgumentException
+		    ("port assignment " + portName + " failed") ;
+	}
 
 	this.portName = portName ;
     }
@@ -173,7 +568,9 @@ public class SerialDevice {
      *  otherwise
      */
     public void setRealtimeSerialBuffer(boolean status) {
-	deviceAttribute(nativeContext, id, USE_RSB, status ? 1.0 : 0.0) ;
+	useRsb = status ;
+	if (!useJavaTransport)
+	    deviceAttribute(nativeContext, id, USE_RSB, status ? 1.0 : 0.0) ;
     }
 
     /**
@@ -207,51 +604,1426 @@ public class SerialDevice {
     }
 
     /**
-     * Opens and initializes the serial ports for all instances of
-     * <code>SerialDevice</code> that have not yet been opened.  Some
-     * <code>SerialDevice</code> classes require some or all of their
-     * instances to be opened together; if not, this method may be called
-     * individually for each instance.
-     * 
-     * @exception <code>IllegalStateException</code> if a port name has not
-     *  been specified for any instance
-     * @exception <code>RuntimeException</code> if there is an error opening
-     *  the serial ports
+     * Sets the size in bytes of the buffer which holds characters read from
+     * the serial port until they are processed.  The size must be a power of
+     * two between 256 and 1048576; the default is 2048.  The buffer must be
+     * large enough to hold all the characters that can arrive between two
+     * polls of the device, so a larger size may be needed for high baud
+     * rates or slow frame rates.  This must be set before the device is
+     * initialized.<p>
+     *
+     * @param size buffer size in bytes
+     * @exception <code>IllegalArgumentException</code> if the size is not a
+     *  power of two within the supported range
+     * @exception <code>IllegalStateException</code> if the device has
+     *  already been initialized
      */
-    void openPorts() {
-	synchronized (devices) {
-	    boolean newDevice = false ;
-	    Iterator i = devices.iterator() ;
+    public void setSerialBufferSize(int size) {
+	if (size < MIN_BUFFER_SIZE || size > MAX_BUFFER_SIZE ||
+	    (size & (size - 1)) != 0)
+	    throw new IllegalArgumentException
+		("SerialBufferSize must be a power of two from " +
+		 MIN_BUFFER_SIZE + " to " + MAX_BUFFER_SIZE) ;
 
-	    while (i.hasNext()) {
-		SerialDevice d = (SerialDevice)i.next() ;
-		if (!d.open) {
-		    newDevice = true ;
-		    if (d.portName == null)
-			throw new IllegalStateException
-			    ("SerialDevice " + d.id + ": no port specified") ;
-		}
-	    }
+	if (open)
+	    throw new IllegalStateException
+		("SerialBufferSize must be set before initialization") ;
 
-	    if (!newDevice) return ;
-	    if (openProbe(nativeContext) == 0)
-		throw new RuntimeException("error opening serial ports") ;
+	bufferSize = size ;
+	if (!useJavaTransport)
+	    deviceAttribute(nativeContext, id, SERIAL_BUFFER_SIZE, (double)size) ;
+    }
+
+    /**
+     * Property which sets the size in bytes of the buffer which holds
+     * characters read from the serial port until they are processed.  The
+     * size must be a power of two between 256 and 1048576; the default is
+     * 2048.<p>
+     *
+     * This property is set in the configuration file read by
+     * <code>ConfiguredUniverse</code>.<p>
+     *
+     * <b>Syntax:</b><br>(DeviceProperty <i>&lt;name&gt;</i>
+     * SerialBufferSize <i>&lt;bytes&gt;</i>)
+     *
+     * @param size array of length 1 containing an instance of
+     *  <code>Double</code>
+     * @exception <code>IllegalArgumentException</code> if the size is not a
+     *  power of two within the supported range
+     * @see #setSerialBufferSize
+     */
+    public void SerialBufferSize(Object[] size) {
+	if (! (size.length == 1 && size[0] instanceof Double))
+	    throw new IllegalArgumentException
+		("SerialBufferSize must be a number") ;
+
+	setSerialBufferSize(((Double)size[0]).intValue()) ;
+    }
+
+    /**
+     * Sets the baud rate of the serial port.  The supported rates are 300,
+     * 600, 1200, 2400, 4800, 9600, 19200, 38400, 57600, 115200, and 230400,
+     * although the native transport only accepts the rates above 38400 on
+     * systems that define them.  The default is the standard rate of the
+     * device: 19200 for <code>LogitechTracker</code> and 9600 for
+     * <code>Gameport</code>.  The rate must match the rate the device is
+     * configured to send at.  This must be set before the device is
+     * initialized.<p>
+     *
+     * At higher rates each record spends less time on the wire, which
+     * reduces its latency, and devices that can report faster are no longer
+     * limited by the line; for example a 24-byte LogitechTracker record
+     * takes 12.5 milliseconds at 19200 baud and about 1 millisecond at
+     * 230400.<p>
+     *
+     * @param baud baud rate
+     * @exception <code>IllegalArgumentException</code> if the rate is not
+     *  supported
+     * @exception <code>IllegalStateException</code> if the device has
+     *  already been initialized
+     */
+    public void setBaudRate(int baud) {
+	if (Arrays.binarySearch(BAUD_RATES, baud) < 0)
+	    throw new IllegalArgumentException
+		("unsupported BaudRate " + baud) ;
+
+	if (open)
+	    throw new IllegalStateException
+		("BaudRate must be set before initialization") ;
+
+	if (!useJavaTransport &&
+	    deviceAttribute(nativeContext, id, BAUD_RATE, (double)baud) == 0)
+	    throw new IllegalArgumentException
+		("BaudRate " + baud + " not supported on this system") ;
+
+	baudRate = baud ;
+    }
+
+    /**
+     * Property which sets the baud rate of the serial port.  The supported
+     * rates are 300 through 230400; the default is the standard rate of the
+     * device.<p>
+     *
+     * This property is set in the configuration file read by
+     * <code>ConfiguredUniverse</code>.<p>
+     *
+     * <b>Syntax:</b><br>(DeviceProperty <i>&lt;name&gt;</i>
+     * BaudRate <i>&lt;baud&gt;</i>)
+     *
+     * @param baud array of length 1 containing an instance of
+     *  <code>Double</code>
+     * @exception <code>IllegalArgumentException</code> if the rate is not
+     *  supported
+     * @see #setBaudRate
+     */
+    public void BaudRate(Object[] baud) {
+	if (! (baud.length == 1 && baud[0] instanceof Double))
+	    throw new IllegalArgumentException
+		("BaudRate must be a number") ;
+
+	setBaudRate(((Double)baud[0]).intValue()) ;
+    }
+
+    /**
+     * Requests the low-latency mode of the Linux native transport, the
+     * successor to the Solaris Realtime Serial Buffer.  When the device has
+     * been initialized:<p>
+     * <ul>
+     * <li>the serial driver is asked to pass each character on as soon as
+     *  it arrives (ASYNC_LOW_LATENCY, set with TIOCSSERIAL; only real
+     *  serial ports support this, and it stays set after the port is
+     *  closed, as with <code>setserial(8)</code>);
+     * <li>the port is set to wake the native reader thread once per device
+     *  record instead of every few characters (VMIN);
+     * <li>the reader thread is given real-time SCHED_FIFO priority, which
+     *  requires the CAP_SYS_NICE capability or an RTPRIO resource limit;
+     *  and
+     * <li>the reader thread is pinned to the CPU set with
+     *  <code>setReaderCPU</code>, if any.
+     * </ul><p>
+     *
+     * Each part that can't be applied is skipped with a warning, and the
+     * device works as it would otherwise.  <code>getLowLatencyStatus</code>
+     * returns the parts that were applied.  There is one reader thread for
+     * all the serial ports, so its priority and CPU affect all of them.  The
+     * mode has no effect on other systems or with the Java transport.  This
+     * must be set before the device is initialized.<p>
+     *
+     * @param status true to use the low-latency mode
+     * @exception <code>IllegalStateException</code> if the device has
+     *  already been initialized
+     * @see #getLowLatencyStatus
+     */
+    public void setLowLatency(boolean status) {
+	if (open)
+	    throw new IllegalStateException
+		("LowLatency must be set before initialization") ;
+
+	lowLatency = status ;
+	if (!useJavaTransport)
+	    deviceAttribute(nativeContext, id, LOW_LATENCY, status ? 1.0 : 0.0) ;
+    }
+
+    /**
+     * Property which requests the low-latency mode of the Linux native
+     * transport.<p>
+     *
+     * This property is set in the configuration file read by
+     * <code>ConfiguredUniverse</code>.<p>
+     *
+     * <b>Syntax:</b><br>(DeviceProperty <i>&lt;name&gt;</i>
+     * LowLatency [true | false])
+     *
+     * @param status array of length 1 containing an instance of
+     *  <code>Boolean</code>
+     * @see #setLowLatency
+     */
+    public void LowLatency(Object[] status) {
+	if (! (status.length == 1 && status[0] instanceof Boolean))
+	    throw new IllegalArgumentException
+		("LowLatency must be a Boolean") ;
+
+	setLowLatency(((Boolean)status[0]).booleanValue()) ;
+    }
+
+    /**
+     * Sets the CPU to which the native reader thread is pinned in
+     * low-latency mode, numbered from 0 as in
+     * <code>sched_setaffinity(2)</code>; -1, the default, leaves the thread
+     * free to run on any CPU.  Keeping the reader on one CPU, ideally one
+     * not used by the rendering threads, avoids the cost of migrating it.
+     * The thread is shared by all serial ports, so the CPU of the device
+     * initialized last applies.  This must be set before the device is
+     * initialized.<p>
+     *
+     * @param cpu CPU number, or -1
+     * @exception <code>IllegalArgumentException</code> if cpu is less
+     *  than -1
+     * @exception <code>IllegalStateException</code> if the device has
+     *  already been initialized
+     * @see #setLowLatency
+     */
+    public void setReaderCPU(int cpu) {
+	if (cpu < -1)
+	    throw new IllegalArgumentException
+		("ReaderCPU must be a CPU number or -1") ;
+
+	if (open)
+	    throw new IllegalStateException
+		("ReaderCPU must be set before initialization") ;
+
+	readerCpu = cpu ;
+	if (!useJavaTransport)
+	    deviceAttribute(nativeContext, id, READER_CPU, (double)cpu) ;
+    }
+
+    /**
+     * Property which sets the CPU to which the native reader thread is
+     * pinned in low-latency mode.<p>
+     *
+     * This property is set in the configuration file read by
+     * <code>ConfiguredUniverse</code>.<p>
+     *
+     * <b>Syntax:</b><br>(DeviceProperty <i>&lt;name&gt;</i>
+     * ReaderCPU <i>&lt;cpu&gt;</i>)
+     *
+     * @param cpu array of length 1 containing an instance of
+     *  <code>Double</code>
+     * @see #setReaderCPU
+     */
+    public void ReaderCPU(Object[] cpu) {
+	if (! (cpu.length == 1 && cpu[0] instanceof Double))
+	    throw new IllegalArgumentException
+		("ReaderCPU must be a number") ;
 
-	    i = devices.iterator() ;
-	    while (i.hasNext()) ((SerialDevice)i.next()).open = true ;
+	setReaderCPU(((Double)cpu[0]).intValue()) ;
+    }
+
+    /**
+     * Returns the parts of the low-latency mode that were applied when the
+     * device was initialized, as a combination of the
+     * <code>LOW_LATENCY_PORT</code>, <code>LOW_LATENCY_VMIN</code>,
+     * <code>LOW_LATENCY_SCHED_FIFO</code>, and <code>LOW_LATENCY_CPU</code>
+     * bits.<p>
+     *
+     * @return the bits of the settings applied, 0 if the mode wasn't
+     *  requested, the device isn't open, or nothing could be applied
+     * @see #setLowLatency
+     */
+    public int getLowLatencyStatus() {
+	synchronized (context) {
+	    if (!open || javaPort != null || id < 0)
+		return 0 ;
+	    return lowLatencyStatus(nativeContext, id) ;
 	}
     }
 
     /**
-     * Cleans up the device and relinquishes associated resources.
+     * Captures everything read from the serial port in a series of segment
+     * files, for finding out what a device actually sent.  The segments are
+     * named by appending a six digit sequence number to the given name, and
+     * each is preallocated and mapped into memory so that the native
+     * transport can append to it without locks or system calls.  Each chunk
+     * of characters is recorded with the time it was read and a unit number
+     * identifying the port; the commands sent to the device are recorded
+     * too.  When a segment fills the next one is started and the oldest
+     * beyond <code>CaptureKeep</code> is removed, so a capture can be left
+     * running.  Devices given the same name, in any context, share a
+     * capture.  The format is described in <code>serialcapture.h</code>.
+     * The Java transport doesn't support capturing.  This must be set
+     * before the device is initialized.<p>
+     *
+     * @param name base name of the segment files, or null or an empty
+     *  string for no capture, the default
+     * @exception <code>IllegalStateException</code> if the device has
+     *  already been initialized
+     * @see #setCaptureSize
+     * @see #setCaptureKeep
      */
-    void close() {
-	synchronized (devices) {
-	    close(nativeContext, id) ;
-	    devices.remove(this) ;
-	    id = -1 ;
+    public void setCaptureFile(String name) {
+	if (open)
+	    throw new IllegalStateException
+		("CaptureFile must be set before initialization") ;
+
+	captureFile = (name == null || name.length() == 0) ? null : name ;
+	if (!useJavaTransport)
+	    deviceAttribute(nativeContext, id, CAPTURE_FILE,
+			    captureFile == null ? "" : captureFile) ;
+    }
+
+    /**
+     * Property which captures everything read from the serial port in a
+     * series of segment files.<p>
+     *
+     * This property is set in the configuration file read by
+     * <code>ConfiguredUniverse</code>.  Note: the name must be quoted to
+     * handle the forward slashes in Unix path names.<p>
+     *
+     * <b>Syntax:</b><br>(DeviceProperty <i>&lt;name&gt;</i>
+     * CaptureFile "<i>&lt;base name&gt;</i>")
+     *
+     * @param name array of length 1 containing an instance of
+     *  <code>String</code>
+     * @see #setCaptureFile
+     */
+    public void CaptureFile(Object[] name) {
+	if (! (name.length == 1 && name[0] instanceof String))
+	    throw new IllegalArgumentException
+		("CaptureFile must be a name") ;
+
+	setCaptureFile((String)name[0]) ;
+    }
+
+    /**
+     * Sets the size in bytes of each capture segment file.  The default is
+     * 16 megabytes, which holds several hours of tracker records; the
+     * minimum is 65536.  The size of a capture shared by several devices
+     * is set by the first one initialized.<p>
+     *
+     * @param size segment size in bytes
+     * @exception <code>IllegalArgumentException</code> if the size is too
+     *  small
+     * @exception <code>IllegalStateException</code> if the device has
+     *  already been initialized
+     * @see #setCaptureFile
+     */
+    public void setCaptureSize(int size) {
+	if (size < 65536)
+	    throw new IllegalArgumentException
+		("CaptureSize must be at least 65536") ;
+
+	if (open)
+	    throw new IllegalStateException
+		("CaptureSize must be set before initialization") ;
+
+	captureSize = size ;
+	if (!useJavaTransport)
+	    deviceAttribute(nativeContext, id, CAPTURE_SIZE, (double)size) ;
+    }
+
+    /**
+     * Property which sets the size in bytes of each capture segment file.<p>
+     *
+     * This property is set in the configuration file read by
+     * <code>ConfiguredUniverse</code>.<p>
+     *
+     * <b>Syntax:</b><br>(DeviceProperty <i>&lt;name&gt;</i>
+     * CaptureSize <i>&lt;bytes&gt;</i>)
+     *
+     * @param size array of length 1 containing an instance of
+     *  <code>Double</code>
+     * @see #setCaptureSize
+     */
+    public void CaptureSize(Object[] size) {
+	if (! (size.length == 1 && size[0] instanceof Double))
+	    throw new IllegalArgumentException
+		("CaptureSize must be a number") ;
+
+	setCaptureSize(((Double)size[0]).intValue()) ;
+    }
+
+    /**
+     * Sets the number of capture segment files kept, including the one
+     * being written; older segments are removed as new ones are started.
+     * The default is 4 and the minimum 2.<p>
+     *
+     * @param count number of segments to keep
+     * @exception <code>IllegalArgumentException</code> if count is less
+     *  than 2
+     * @exception <code>IllegalStateException</code> if the device has
+     *  already been initialized
+     * @see #setCaptureFile
+     */
+    public void setCaptureKeep(int count) {
+	if (count < 2)
+	    throw new IllegalArgumentException
+		("CaptureKeep must be at least 2") ;
+
+	if (open)
+	    throw new IllegalStateException
+		("CaptureKeep must be set before initialization") ;
+
+	captureKeep = count ;
+	if (!useJavaTransport)
+	    deviceAttribute(nativeContext, id, CAPTURE_KEEP, (double)count) ;
+    }
+
+    /**
+     * Property which sets the number of capture segment files kept.<p>
+     *
+     * This property is set in the configuration file read by
+     * <code>ConfiguredUniverse</code>.<p>
+     *
+     * <b>Syntax:</b><br>(DeviceProperty <i>&lt;name&gt;</i>
+     * CaptureKeep <i>&lt;count&gt;</i>)
+     *
+     * @param count array of length 1 containing an instance of
+     *  <code>Double</code>
+     * @see #setCaptureKeep
+     */
+    public void CaptureKeep(Object[] count) {
+	if (! (count.length == 1 && count[0] instanceof Double))
+	    throw new IllegalArgumentException
+		("CaptureKeep must be a number") ;
+
+	setCaptureKeep(((Double)count[0]).intValue()) ;
+    }
+
+    /**
+     * Sets the capture replayed by the "replay" serial transport: either
+     * the base name given to <code>setCaptureFile</code>, to replay the
+     * segments written by the first process that wrote them, or the name of
+     * one segment file.  The device is fed the characters recorded for the
+     * port named by its <code>SerialPort</code> property with the same
+     * driver.  This must be set before the device is initialized.<p>
+     *
+     * @param name capture base name or segment file name
+     * @exception <code>IllegalStateException</code> if the device has
+     *  already been initialized
+     * @see #setSerialTransport
+     * @see #setReplaySpeed
+     */
+    public void setReplayFile(String name) {
+	if (open)
+	    throw new IllegalStateException
+		("ReplayFile must be set before initialization") ;
+
+	replayFile = name ;
+	if (!useJavaTransport)
+	    deviceAttribute(nativeContext, id, REPLAY_FILE,
+			    useReplay && name != null ? name : "") ;
+    }
+
+    /**
+     * Property which sets the capture replayed by the "replay" serial
+     * transport.<p>
+     *
+     * This property is set in the configuration file read by
+     * <code>ConfiguredUniverse</code>.  Note: the name must be quoted to
+     * handle the forward slashes in Unix path names.<p>
+     *
+     * <b>Syntax:</b><br>(DeviceProperty <i>&lt;name&gt;</i>
+     * ReplayFile "<i>&lt;capture name&gt;</i>")
+     *
+     * @param name array of length 1 containing an instance of
+     *  <code>String</code>
+     * @see #setReplayFile
+     */
+    public void ReplayFile(Object[] name) {
+	if (! (name.length == 1 && name[0] instanceof String))
+	    throw new IllegalArgumentException
+		("ReplayFile must be a name") ;
+
+	setReplayFile((String)name[0]) ;
+    }
+
+    /**
+     * Sets the speed of a replay relative to the recording.  1.0, the
+     * default, replays in real time and 2.0 twice as fast.  0.0 replays as
+     * fast as the device is polled: each poll is given the next chunk of
+     * characters read in the recording, and the driver's clock is advanced
+     * to the time it was read, so that every record is decoded exactly as
+     * it was recorded whatever the polling rate.  That makes a replay at
+     * full speed deterministic, and a benchmark of the driver on real
+     * data.<p>
+     *
+     * @param speed replay speed, or 0.0 for as fast as possible
+     * @exception <code>IllegalArgumentException</code> if speed is
+     *  negative
+     * @exception <code>IllegalStateException</code> if the device has
+     *  already been initialized
+     * @see #setReplayFile
+     * @see #getReplayRemaining
+     */
+    public void setReplaySpeed(double speed) {
+	if (speed < 0.0)
+	    throw new IllegalArgumentException
+		("ReplaySpeed must not be negative") ;
+
+	if (open)
+	    throw new IllegalStateException
+		("ReplaySpeed must be set before initialization") ;
+
+	replaySpeed = speed ;
+	if (!useJavaTransport)
+	    deviceAttribute(nativeContext, id, REPLAY_SPEED, speed) ;
+    }
+
+    /**
+     * Property which sets the speed of a replay relative to the
+     * recording.<p>
+     *
+     * This property is set in the configuration file read by
+     * <code>ConfiguredUniverse</code>.<p>
+     *
+     * <b>Syntax:</b><br>(DeviceProperty <i>&lt;name&gt;</i>
+     * ReplaySpeed <i>&lt;speed&gt;</i>)
+     *
+     * @param speed array of length 1 containing an instance of
+     *  <code>Double</code>
+     * @see #setReplaySpeed
+     */
+    public void ReplaySpeed(Object[] speed) {
+	if (! (speed.length == 1 && speed[0] instanceof Double))
+	    throw new IllegalArgumentException
+		("ReplaySpeed must be a number") ;
+
+	setReplaySpeed(((Double)speed[0]).doubleValue()) ;
+    }
+
+    /**
+     * Returns the number of chunks of recorded characters that have yet
+     * to be fed to a replayed device; the replay is finished when this is
+     * 0.<p>
+     *
+     * @return chunks left to replay, or -1 if the device isn't open or
+     *  isn't replaying a capture
+     * @see #setReplayFile
+     */
+    public int getReplayRemaining() {
+	synchronized (context) {
+	    if (!open || javaPort != null || id < 0)
+		return -1 ;
+	    return replayRemaining(nativeContext, id) ;
+	}
+    }
+
+    /**
+     * Enables or disables automatic reconnection.  With it enabled, a
+     * supervisor thread shared by the devices of the context watches the
+     * port of this device, and when the port fails, hangs up, or has been
+     * silent for longer than the <code>ReconnectSilence</code> time, closes
+     * it, reopens it, and resets and probes the device again, retrying
+     * every second until the device answers.  Devices that must be
+     * initialized together, such as Logitech master and slave units, are
+     * reconnected together.<p>
+     *
+     * Polling never waits for a reconnection.  While the device is being
+     * reconnected each poll returns at once without reading the port, so
+     * its sensors keep their last good reads and <code>isStale</code>
+     * returns true.  Without reconnection, a port that fails stops
+     * delivering events, and with the Java transport the poll that sees
+     * the failure throws a <code>RuntimeException</code>.  The Java
+     * transport can't tell a port whose line has hung up from an idle one,
+     * so it needs a <code>ReconnectSilence</code> time to detect that.
+     * Replayed devices are never reconnected.  The default is false.<p>
+     *
+     * @param status true to reconnect the device when its port is lost
+     * @see #setReconnectSilence
+     * @see #isStale
+     */
+    public void setReconnect(boolean status) {
+	reconnect = status ;
+	if (status && open)
+	    context.supervise() ;
+    }
+
+    /**
+     * Property which enables automatic reconnection of the device when its
+     * port is lost.<p>
+     *
+     * This property is set in the configuration file read by
+     * <code>ConfiguredUniverse</code>.<p>
+     *
+     * <b>Syntax:</b><br>(DeviceProperty <i>&lt;name&gt;</i>
+     * Reconnect [true | false])
+     *
+     * @param status array of length 1 containing an instance of
+     *  <code>Boolean</code>
+     * @see #setReconnect
+     */
+    public void Reconnect(Object[] status) {
+	if (! (status.length == 1 && status[0] instanceof Boolean))
+	    throw new IllegalArgumentException
+		("Reconnect must be Boolean") ;
+
+	setReconnect(((Boolean)status[0]).booleanValue()) ;
+    }
+
+    /**
+     * Sets how long the port of a device with <code>Reconnect</code>
+     * enabled may go without receiving any characters before it is taken
+     * to be lost and is reconnected.  This should only be used with devices
+     * that send records continuously, such as a
+     * <code>LogitechTracker</code> in its streaming mode; a
+     * <code>Gameport</code> only sends when its state changes.  The
+     * default of 0 reconnects only ports whose reads fail or whose lines
+     * hang up.<p>
+     *
+     * @param ms silence in milliseconds, or 0 for no limit
+     * @exception <code>IllegalArgumentException</code> if the time is
+     *  negative
+     * @see #setReconnect
+     */
+    public void setReconnectSilence(int ms) {
+	if (ms < 0)
+	    throw new IllegalArgumentException
+		("ReconnectSilence must not be negative") ;
+
+	reconnectSilence = ms ;
+    }
+
+    /**
+     * Property which sets how long in milliseconds the port of a device
+     * with <code>Reconnect</code> enabled may be silent before it is
+     * reconnected.<p>
+     *
+     * This property is set in the configuration file read by
+     * <code>ConfiguredUniverse</code>.<p>
+     *
+     * <b>Syntax:</b><br>(DeviceProperty <i>&lt;name&gt;</i>
+     * ReconnectSilence <i>&lt;ms&gt;</i>)
+     *
+     * @param ms array of length 1 containing an instance of
+     *  <code>Double</code>
+     * @see #setReconnectSilence
+     */
+    public void ReconnectSilence(Object[] ms) {
+	if (! (ms.length == 1 && ms[0] instanceof Double))
+	    throw new IllegalArgumentException
+		("ReconnectSilence must be a number") ;
+
+	setReconnectSilence(((Double)ms[0]).intValue()) ;
+    }
+
+    /**
+     * Returns true while the device's port is lost and being reconnected.
+     * The device's sensors then hold the last reads made before the port
+     * was lost, which the application may want to show differently or
+     * ignore.<p>
+     *
+     * @return true if the sensor reads are stale
+     * @see #setReconnect
+     */
+    public boolean isStale() {
+	return stale ;
+    }
+
+    /**
+     * Returns the number of times the device has been reconnected.<p>
+     *
+     * @return number of successful reconnections
+     * @see #setReconnect
+     */
+    public int getReconnectCount() {
+	return reconnectCount ;
+    }
+
+    // Called by the polling thread before it reads the port.  Returns false
+    // if the port is being reconnected, in which case nothing must be read
+    // and the sensors left as they are; otherwise endRead() must follow.
+    boolean beginRead() {
+	return !stale && readState.compareAndSet(IDLE, READING) ;
+    }
+
+    // Called by the polling thread after it has read the port.
+    void endRead() {
+	readState.compareAndSet(READING, IDLE) ;
+    }
+
+    // Called by a driver when a read of its Java transport port fails.  The
+    // supervisor handles the failure if reconnection is enabled.
+    void javaReadFailed(IOException e) {
+	if (!reconnect)
+	    throw new RuntimeException
+		("error reading serial port " + javaPort + ": " +
+		 e.getMessage()) ;
+    }
+
+    // Returns the devices that are reconnected along with this one.
+    SerialDevice[] reconnectGroup() {
+	return new SerialDevice[] {this} ;
+    }
+
+    // Called with the context locked after the device has been reconnected
+    // and before it is polled again, so that a driver keeping state about
+    // the port can start over.
+    void reconnected() {
+    }
+
+    // Returns why the port is taken to be lost, or null if it isn't.
+    // Called with the context locked.
+    private String lost() {
+	long idle ;
+	if (javaPort != null) {
+	    if (javaPort.failed)
+		return "read failed" ;
+	    idle = System.nanoTime() - javaPort.lastArrival ;
+	}
+	else {
+	    int fault = portFault(nativeContext, id) ;
+	    if (fault == -1)
+		return "line hung up" ;
+	    if (fault != 0)
+		return "read failed (errno " + fault + ")" ;
+	    idle = idleTime(nativeContext, id) ;
+	}
+
+	if (reconnectSilence > 0 && idle > reconnectSilence * 1000000L)
+	    return "silent for " + idle / 1000000 + " ms" ;
+
+	return null ;
+    }
+
+    // Called by the context's supervisor thread every SUPERVISE_INTERVAL
+    // ms.  Reconnects the device if its port is lost, or retries a failed
+    // reconnection.
+    void supervise() {
+	synchronized (context) {
+	    if (!open || !reconnect || useReplay)
+		return ;
+
+	    long now = System.nanoTime() ;
+	    if (!stale) {
+		String why = lost() ;
+		if (why == null)
+		    return ;
+		System.err.println
+		    ("Warning:  " + portName + " " + why + ", reconnecting") ;
+	    }
+	    else if (now - lastReopen < REOPEN_RETRY * 1000000L)
+		return ;
+
+	    // Stop the polling of the group; a poll that is reading now
+	    // finishes first, and the reopen is tried again next time.
+	    SerialDevice[] group = reconnectGroup() ;
+	    for (int i = 0 ; i < group.length ; i++)
+		group[i].stale = true ;
+
+	    boolean[] stopped = new boolean[group.length] ;
+	    for (int i = 0 ; i < group.length ; i++) {
+		if (group[i].readState.get() == RECONNECTING)
+		    continue ;  // still stopped from a failed reopen
+
+		if (group[i].readState.compareAndSet(IDLE, RECONNECTING)) {
+		    stopped[i] = true ;
+		    continue ;
+		}
+
+		while (--i >= 0)
+		    if (stopped[i]) group[i].readState.set(IDLE) ;
+		return ;
+	    }
+
+	    boolean ok ;
+	    if (useJavaTransport) {
+		javaPort.close() ;
+		try {
+		    javaPort = openJavaPort() ;
+		    ok = true ;
+		} catch (IOException e) {
+		    ok = false ;
+		}
+	    }
+	    else {
+		synchronized (awaitLock) {
+		    ok = reopen(nativeContext, id) == 1 ;
+		}
+	    }
+
+	    for (int i = 0 ; i < group.length ; i++) {
+		group[i].lastReopen = now ;
+		if (!ok) continue ;
+
+		try {
+		    group[i].reconnected() ;
+		} catch (RuntimeException e) {
+		    System.err.println("Warning:  " + e.getMessage()) ;
+		}
+		group[i].reconnectCount++ ;
+		group[i].stale = false ;
+		group[i].readState.set(IDLE) ;
+	    }
+
+	    if (ok)
+		System.err.println("Warning:  " + portName + " reconnected") ;
+	}
+    }
+
+    /**
+     * Selects how the serial port is read.  "native" (the default) uses the
+     * j3dInput native library, which is required by devices that decode
+     * their protocol in native code such as <code>LogitechTracker</code>.
+     * "java" configures and reads the port entirely in Java, so the native
+     * library isn't needed; it is currently supported by
+     * <code>Gameport</code>.  The Java transport doesn't support the
+     * Realtime Serial Buffer or the low-latency mode.<p>
+     *
+     * "shared" is the native transport reading the port through the ring
+     * published by the <code>serialmux</code> daemon on Linux, so that
+     * several processes can use the device at once without system calls
+     * on the read path.  If <code>serialmux</code> isn't running for the
+     * port a warning is printed and the port is opened directly.  Once a
+     * shared device is open its commands are only sent to the device while
+     * no other process is attached, and the low-latency mode must be
+     * applied by <code>serialmux</code> instead.<p>
+     *
+     * "replay" feeds the characters recorded for the device's port in the
+     * capture named by <code>setReplayFile</code> to the native driver in
+     * place of the port, with their recorded timing scaled by
+     * <code>setReplaySpeed</code>.  The <code>SerialPort</code> property
+     * names the recorded port, and nothing is sent to it.  This must be set
+     * before the device is initialized.<p>
+     *
+     * @param transport "native", "java", "shared", or "replay"
+     * @exception <code>IllegalArgumentException</code> if the transport is
+     *  unknown or isn't supported by this device
+     * @exception <code>IllegalStateException</code> if the device has
+     *  already been initialized, or if the native transport is selected and
+     *  the native library is unavailable
+     */
+    public void setSerialTransport(String transport) {
+	if (open)
+	    throw new IllegalStateException
+		("SerialTransport must be set before initialization") ;
+
+	synchronized (context) {
+	    if (transport.equals("java")) {
+		if (getJavaTransportBaud() == 0)
+		    throw new IllegalArgumentException
+			("Java serial transport not supported by " +
+			 getClass().getName()) ;
+
+		if (!useJavaTransport) {
+		    // release the native device instance
+		    close(nativeContext, id) ;
+		    id = -1 ;
+		    useJavaTransport = true ;
+		}
+	    }
+	    else if (transport.equals("native") || transport.equals("shared") ||
+		     transport.equals("replay")) {
+		if (linkError != null)
+		    throw new IllegalStateException
+			("native serial transport unavailable: " + linkError) ;
+
+		if (useJavaTransport) {
+		    // recreate the native device instance and its attributes
+		    id = newDevice(nativeContext, driverName) ;
+		    if (id < 0)
+			throw new IllegalArgumentException
+			    ("peripheral driver assignment failed") ;
+
+		    useJavaTransport = false ;
+		    if (portName != null) setSerialPort(portName) ;
+		    if (useRsb) setRealtimeSerialBuffer(true) ;
+		    if (bufferSize != 0) setSerialBufferSize(bufferSize) ;
+		    if (baudRate != 0) setBaudRate(baudRate) ;
+		    if (lowLatency) setLowLatency(true) ;
+		    if (readerCpu >= 0) setReaderCPU(readerCpu) ;
+		    if (captureFile != null) setCaptureFile(captureFile) ;
+		    if (captureSize != 0) setCaptureSize(captureSize) ;
+		    if (captureKeep != 0) setCaptureKeep(captureKeep) ;
+		    if (replaySpeed != 1.0) setReplaySpeed(replaySpeed) ;
+		}
+
+		deviceAttribute(nativeContext, id, USE_SHM,
+				transport.equals("shared") ? 1.0 : 0.0) ;
+		useReplay = transport.equals("replay") ;
+		setReplayFile(replayFile) ;
+	    }
+	    else
+		throw new IllegalArgumentException
+		    ("SerialTransport must be \"native\", \"java\", " +
+		     "\"shared\", or \"replay\"") ;
+	}
+    }
+
+    /**
+     * Property which selects how the serial port is read.  "native" (the
+     * default) uses the j3dInput native library; "java" configures and
+     * reads the port entirely in Java; "shared" reads the port through the
+     * <code>serialmux</code> daemon's shared ring; "replay" replays a
+     * capture.<p>
+     *
+     * This property is set in the configuration file read by
+     * <code>ConfiguredUniverse</code>.<p>
+     *
+     * <b>Syntax:</b><br>(DeviceProperty <i>&lt;name&gt;</i>
+     * SerialTransport ["native" | "java" | "shared" | "replay"])
+     *
+     * @param transport array of length 1 containing an instance of
+     *  <code>String</code>
+     * @see #setSerialTransport
+     */
+    public void SerialTransport(Object[] transport) {
+	if (! (transport.length == 1 && transport[0] instanceof String))
+	    throw new IllegalArgumentException
+		("SerialTransport must be a string") ;
+
+	setSerialTransport((String)transport[0]) ;
+    }
+
+    /**
+     * Selects asynchronous initialization.  With it set,
+     * <code>initialize</code> returns at once: the device's sensors are
+     * given the nominal pose set by <code>setNominalPose</code>, and the
+     * ports are opened, the devices reset and probed, and a
+     * <code>Gameport</code> centered or calibrated if so configured, on a
+     * worker thread.  Until that finishes <code>getReadiness</code> returns
+     * <code>INITIALIZING</code> and polling returns without reading, so the
+     * sensors keep the nominal pose; then it returns <code>READY</code>,
+     * or <code>FAILED</code> if the initialization threw an exception,
+     * which <code>getInitializeError</code> returns.  The default is false,
+     * in which case <code>initialize</code> returns when the device is
+     * ready.<p>
+     *
+     * Devices opened together, such as Logitech master and slave units,
+     * are still opened together by whichever worker runs first, so they
+     * all become ready at about the same time.<p>
+     *
+     * @param status true to initialize the device asynchronously
+     * @exception <code>IllegalStateException</code> if the device has
+     *  already been initialized
+     */
+    public void setAsyncInitialize(boolean status) {
+	if (open)
+	    throw new IllegalStateException
+		("AsyncInitialize must be set before initialization") ;
+
+	asyncInitialize = status ;
+    }
+
+    /**
+     * Property which selects asynchronous initialization, so that
+     * <code>initialize</code> returns without waiting for the device.<p>
+     *
+     * This property is set in the configuration file read by
+     * <code>ConfiguredUniverse</code>.<p>
+     *
+     * <b>Syntax:</b><br>(DeviceProperty <i>&lt;name&gt;</i>
+     * AsyncInitialize [true | false])
+     *
+     * @param status array of length 1 containing an instance of
+     *  <code>Boolean</code>
+     * @see #setAsyncInitialize
+     */
+    public void AsyncInitialize(Object[] status) {
+	if (! (status.length == 1 && status[0] instanceof Boolean))
+	    throw new IllegalArgumentException
+		("AsyncInitialize must be Boolean") ;
+
+	setAsyncInitialize(((Boolean)status[0]).booleanValue()) ;
+    }
+
+    /**
+     * Sets the pose given to the device's sensors when it is initialized
+     * asynchronously, which they keep until the device is ready.  The
+     * default is the identity.<p>
+     *
+     * @param pose the nominal sensor pose, which is copied
+     * @see #setAsyncInitialize
+     */
+    public void setNominalPose(Transform3D pose) {
+	synchronized (nominalPose) {
+	    nominalPose.set(pose) ;
+	}
+    }
+
+    /**
+     * Property which sets the pose given to the device's sensors until an
+     * asynchronously initialized device is ready.<p>
+     *
+     * This property is set in the configuration file read by
+     * <code>ConfiguredUniverse</code>.<p>
+     *
+     * <b>Syntax:</b><br>(DeviceProperty <i>&lt;name&gt;</i>
+     * NominalPose <i>&lt;4x4 matrix&gt;</i>)
+     *
+     * @param pose array of length 1 containing an instance of
+     *  <code>Matrix4d</code>
+     * @see #setNominalPose
+     */
+    public void NominalPose(Object[] pose) {
+	if (! (pose.length == 1 && pose[0] instanceof Matrix4d))
+	    throw new IllegalArgumentException
+		("NominalPose must be a 4x4 matrix") ;
+
+	setNominalPose(new Transform3D((Matrix4d)pose[0])) ;
+    }
+
+    /**
+     * Returns the initialization state of the device:
+     * <code>NOT_INITIALIZED</code> before <code>initialize</code> is
+     * called or after the device is closed, <code>INITIALIZING</code>
+     * while an asynchronous initialization is under way,
+     * <code>READY</code> once the device is being read, and
+     * <code>FAILED</code> if an asynchronous initialization failed.<p>
+     *
+     * @return the initialization state
+     * @see #setAsyncInitialize
+     */
+    public int getReadiness() {
+	return readiness ;
+    }
+
+    /**
+     * Returns the exception that made an asynchronous initialization
+     * fail.<p>
+     *
+     * @return the exception, or null if the device's readiness isn't
+     *  <code>FAILED</code>
+     * @see #getReadiness
+     */
+    public RuntimeException getInitializeError() {
+	return initializeError ;
+    }
+
+    /**
+     * Waits for an asynchronous initialization to finish.<p>
+     *
+     * @param ms the longest time to wait in milliseconds
+     * @return true if the device is <code>READY</code>
+     * @exception <code>InterruptedException</code> if the thread is
+     *  interrupted while waiting
+     * @see #getReadiness
+     */
+    public boolean waitUntilReady(long ms) throws InterruptedException {
+	long end = System.currentTimeMillis() + ms ;
+	synchronized (context) {
+	    while (readiness == INITIALIZING) {
+		long left = end - System.currentTimeMillis() ;
+		if (left <= 0) break ;
+		context.wait(left) ;
+	    }
+	    return readiness == READY ;
+	}
+    }
+
+    // Opens the device's port and brings the device up; run by
+    // initialize(), on a worker thread if AsyncInitialize is set.
+    // Subclasses with more to do than opening the ports override this.
+    void bringUp() {
+	openPorts() ;
+    }
+
+    // Runs bringUp(), or starts it on a worker thread if AsyncInitialize is
+    // set, and returns the result of initialize().
+    boolean initializeDevice() {
+	if (!asyncInitialize) {
+	    bringUp() ;
+	    readiness = READY ;
+	    return true ;
+	}
+
+	// Don't lock the context here: another device's worker may be holding
+	// it while it probes.
+	if (readiness == INITIALIZING || readiness == READY)
+	    return true ;
+	readiness = INITIALIZING ;
+	initializeError = null ;
+	publishNominalPose() ;
+
+	Thread worker = new Thread("SerialDevice initialize " + portName) {
+	    public void run() {
+		RuntimeException error = null ;
+		try {
+		    bringUp() ;
+		} catch (RuntimeException e) {
+		    error = e ;
+		}
+
+		synchronized (context) {
+		    if (readiness != INITIALIZING)
+			return ;  // closed meanwhile
+		    initializeError = error ;
+		    readiness = error == null ? READY : FAILED ;
+		    context.notifyAll() ;
+		}
+		if (error != null)
+		    System.err.println
+			("Error:  cannot initialize device on " + portName +
+			 ": " + error.getMessage()) ;
+	    }
+	} ;
+	worker.setDaemon(true) ;
+	worker.start() ;
+	return true ;
+    }
+
+    // Gives each of the device's sensors the nominal pose.
+    private void publishNominalPose() {
+	if (! (this instanceof InputDevice))
+	    return ;
+
+	InputDevice device = (InputDevice)this ;
+	long time = System.currentTimeMillis() ;
+	synchronized (nominalPose) {
+	    for (int i = 0 ; i < device.getSensorCount() ; i++) {
+		Sensor s = device.getSensor(i) ;
+		s.setNextSensorRead
+		    (time, nominalPose, new int[s.getSensorButtonCount()]) ;
+	    }
+	}
+    }
+
+    // Called by the drivers at the start of each poll.  Returns false while
+    // the device is initialized asynchronously or if that failed, in which
+    // case nothing must be read.
+    boolean pollable() {
+	int r = readiness ;
+	if (r == INITIALIZING || r == FAILED)
+	    return false ;
+
+	if (!open)
+	    // This can happen and cause native code exceptions if close() is
+	    // called before removing from the PhysicalEnvironment.
+	    throw new IllegalStateException
+		("\nAttempt to read a device that is not open.") ;
+
+	return true ;
+    }
+
+    /**
+     * Opens and initializes the serial ports for all instances of
+     * <code>SerialDevice</code> in this device's context that have not yet
+     * been opened.  Some
+     * <code>SerialDevice</code> classes require some or all of their
+     * instances to be opened together; if not, this method may be called
+     * individually for each instance.
+     * 
+     * @exception <code>IllegalStateException</code> if a port name has not
+     *  been specified for any instance
+     * @exception <code>RuntimeException</code> if there is an error opening
+     *  the serial ports
+     */
+    void openPorts() {
+	synchronized (context) {
+	    boolean newDevice = false ;
+	    Iterator i = context.devices.iterator() ;
+
+	    while (i.hasNext()) {
+		SerialDevice d = (SerialDevice)i.next() ;
+		if (!d.open) {
+		    if (d.portName == null)
+			throw new IllegalStateException
+			    ("SerialDevice " + d.id + ": no port specified") ;
+
+		    if (d.useReplay && d.replayFile == null)
+			throw new IllegalStateException
+			    ("SerialDevice " + d.id + ": no replay specified") ;
+
+		    if (!d.useJavaTransport) {
+			if (d.baudRate == 0 && d.getNativeTransportBaud() > 0)
+			    deviceAttribute(nativeContext, d.id, BAUD_RATE,
+					    (double)d.getNativeTransportBaud()) ;
+			newDevice = true ;
+			continue ;
+		    }
+
+		    // Java transport devices are opened individually.
+		    long start = System.nanoTime() ;
+		    try {
+			d.javaPort = d.openJavaPort() ;
+		    } catch (IOException e) {
+			throw new RuntimeException
+			    ("error opening serial port " + d.portName +
+			     ": " + e.getMessage()) ;
+		    }
+		    d.initLatency[INIT_OPEN] = System.nanoTime() - start ;
+		    d.initLatency[INIT_RESET] = d.initLatency[INIT_PROBE] = 0 ;
+		    d.open = true ;
+		    if (d.reconnect) context.supervise() ;
+		}
+	    }
+
+	    if (!newDevice) return ;
+	    if (openProbe(nativeContext) == 0)
+		throw new RuntimeException("error opening serial ports") ;
+
+	    i = context.devices.iterator() ;
+	    while (i.hasNext()) {
+		SerialDevice d = (SerialDevice)i.next() ;
+		if (!d.open && d.javaPort == null)
+		    initLatency(nativeContext, d.id, d.initLatency) ;
+		d.open = true ;
+		if (d.reconnect) context.supervise() ;
+	    }
+	}
+    }
+
+    // Opens the port of a Java transport device.
+    private JavaSerialPort openJavaPort() throws IOException {
+	return new JavaSerialPort
+	    (portName, baudRate == 0 ? getJavaTransportBaud() : baudRate,
+	     getSerialBufferSize(), counts) ;
+    }
+
+    /**
+     * Returns the time taken by each stage of the last initialization of
+     * this device, in nanoseconds.  The array is indexed by
+     * <code>INIT_OPEN</code>, <code>INIT_RESET</code>, and
+     * <code>INIT_PROBE</code>.  Devices that must be initialized together,
+     * such as Logitech master and slave units, are reset and probed as a
+     * group and report the times for the group; otherwise each device or
+     * group is reset and probed concurrently with the others, so the
+     * initialization takes about as long as the slowest of them.  The Java
+     * transport has no reset or probe stages.
+     *
+     * @return a new array of 3 times in nanoseconds, all 0 if the device
+     *  hasn't been initialized
+     */
+    public long[] getInitLatency() {
+	synchronized (context) {
+	    return (long[])initLatency.clone() ;
+	}
+    }
+
+    /**
+     * Copies the cumulative I/O and framing counts of this device into the
+     * given array, indexed by the <code>STAT_*</code> constants.  These
+     * show where data is being lost:  empty reads and no characters point
+     * at the line, overruns at polling too slowly for the ring buffer
+     * size, resync characters and bad records at noise or a framing
+     * problem, and clock rejections at the Logitech clock synchronization.
+     * The counts start when the device is created and are kept across
+     * reconnections; they stop once it is closed.<p>
+     *
+     * This takes no locks shared with polling or initialization and
+     * allocates nothing, so it may be called periodically from a
+     * monitoring thread.  The counts are updated without synchronization,
+     * so a snapshot may lag the polling thread slightly.
+     *
+     * @param stats array of at least <code>STAT_COUNT</code> elements
+     * @exception <code>IllegalArgumentException</code> if the array is too
+     *  short
+     * @see #getStatistics()
+     */
+    public void getStatistics(long[] stats) {
+	if (stats.length < STAT_COUNT)
+	    throw new IllegalArgumentException
+		("statistics array must have " + STAT_COUNT + " elements") ;
+
+	synchronized (statisticsLock) {
+	    if (id >= 0)
+		statistics(nativeContext, id, stats) ;
+	    else
+		for (int k = 0 ; k < STAT_COUNT ; k++)
+		    stats[k] = 0 ;
+	}
+
+	for (int k = 0 ; k < STAT_COUNT ; k++)
+	    stats[k] += counts[k] ;
+    }
+
+    /**
+     * Returns the cumulative I/O and framing counts of this device in a
+     * new array.
+     *
+     * @return a new array of <code>STAT_COUNT</code> counts
+     * @see #getStatistics(long[])
+     */
+    public long[] getStatistics() {
+	long[] stats = new long[STAT_COUNT] ;
+	getStatistics(stats) ;
+	return stats ;
+    }
+
+    /**
+     * Returns the time at which the most recent event read from this device
+     * arrived, in the same terms as <code>System.currentTimeMillis</code>.
+     * This is the time at which the read of the serial port that completed
+     * the event returned, not the time the device was polled, and is the
+     * time given to the <code>SensorRead</code> created from the event.  The
+     * difference between the two is the latency added by polling.
+     *
+     * @return arrival time of the most recent event in milliseconds, or 0
+     *  if no event has been read
+     */
+    public long getEventTime() {
+	return eventTime ;
+    }
+
+    // Returns true for the devices whose native drivers can be read in a
+    // batch by pollEvents().
+    boolean batchable() {
+	return false ;
+    }
+
+    // Returns true if the device is to be read by the context's batched
+    // poll rather than on its own: a batchable device that is polled, with
+    // an initialized native transport port.
+    boolean batchReady() {
+	int r = readiness ;
+	return batchable() && processingMode == InputDevice.NON_BLOCKING &&
+	    open && javaPort == null && id >= 0 &&
+	    r != INITIALIZING && r != FAILED ;
+    }
+
+    // Takes this device's newest event from the context's batched poll,
+    // reading all the devices of the context if it has been taken already.
+    // The first valueCount driver-specific values are copied to values,
+    // and the buttons if the driver reported them; eventAge and the event
+    // time are set.  Returns the status of the native driver's event: 0 if
+    // there is none.
+    int batchedEvent(double[] values, int valueCount, int[] buttons) {
+	if (batchPending == 0) {
+	    // a device being reconnected mustn't read the others early
+	    if (stale)
+		return 0 ;
+
+	    context.pollBatch() ;
+	    if (batchPending == 0)
+		return 0 ;
+	}
+
+	int status = takeEvent(batchEvents, batchSlot,
+			       values, valueCount, buttons) ;
+	if (status != 0)
+	    eventTime = batchTime - eventAge[0] / 1000000 ;
+
+	PENDING.lazySet(this, 0) ;
+	return status ;
+    }
+
+    // Copies the serial_event record at base in e: the first valueCount
+    // driver-specific values to values, the buttons if the driver reported
+    // them, and the age to eventAge.  Returns the status of the event, 0 if
+    // there is none or if the record was being written meanwhile.
+    int takeEvent(java.nio.ByteBuffer e, int base,
+		  double[] values, int valueCount, int[] buttons) {
+	int sequence = e.getInt(base + EVENT_SEQUENCE) ;
+	int status = e.getInt(base + EVENT_STATUS) ;
+	if (status == 0 || (sequence & 1) != 0)
+	    return 0 ;
+
+	for (int i = 0 ; i < valueCount ; i++)
+	    values[i] = e.getDouble(base + EVENT_VALUES + 8*i) ;
+
+	if (e.getInt(base + EVENT_BUTTONS) >= 0)
+	    for (int i = 0 ; i < 4 ; i++)
+		buttons[i] = e.getInt(base + EVENT_BUTTONS + 4*i) ;
+
+	eventAge[0] = e.getLong(base + EVENT_AGE) ;
+	return e.getInt(base + EVENT_SEQUENCE) == sequence ? status : 0 ;
+    }
+
+    // Reads the port once and publishes the most recent event, if any, to
+    // the sensors.  Returns true if an event was published.  Overridden by
+    // the drivers that support the BLOCKING processing mode.
+    boolean readInput() {
+	return false ;
+    }
+
+    // The BLOCKING mode body of processStreamInput(): waits until an event
+    // has been read and published by readInput(), or until BLOCK_TIMEOUT
+    // ms have passed, so that the caller's loop can check for shutdown.
+    // The native transport sleeps in the kernel until characters arrive
+    // after the ring position seen before the read; the Java transport
+    // has no such wait and checks its port every millisecond instead.
+    void streamInput() {
+	long deadline = System.nanoTime() + BLOCK_TIMEOUT * 1000000L ;
+	try {
+	    if (! pollable()) {
+		Thread.sleep(BLOCK_TIMEOUT) ;
+		return ;
+	    }
+
+	    while (true) {
+		JavaSerialPort jp = javaPort ;
+		int seen = 0 ;
+		if (jp == null && !stale) {
+		    // a reconnect holds the lock for the whole reopen
+		    synchronized (awaitLock) {
+			if (id < 0) return ;
+			seen = inputPosition(nativeContext, id) ;
+		    }
+		}
+
+		if (readInput())
+		    return ;
+
+		int wait = (int)((deadline - System.nanoTime()) / 1000000) ;
+		if (wait <= 0)
+		    return ;
+
+		if (jp != null || stale)
+		    // being reconnected, or the Java transport
+		    Thread.sleep(1) ;
+		else {
+		    synchronized (awaitLock) {
+			if (id < 0) return ;
+			awaitInput(nativeContext, id, seen, wait) ;
+		    }
+		}
+	    }
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt() ;
+	}
+    }
+
+    // Converts eventAge into an arrival time, records it as the event time,
+    // and returns it.
+    long eventArrived() {
+	eventTime = System.currentTimeMillis() - eventAge[0] / 1000000 ;
+	return eventTime ;
+    }
+
+    /**
+     * Cleans up the device and relinquishes associated resources.
+     */
+    void close() {
+	synchronized (context) {
+	    // no batched poll reads the port once it's out of the context
+	    context.remove(this) ;
+
+	    if (javaPort != null) {
+		javaPort.close() ;
+		javaPort = null ;
+	    }
+	    else if (id >= 0) {
+		synchronized (awaitLock) {
+		    synchronized (statisticsLock) {
+			close(nativeContext, id) ;
+			id = -1 ;
+		    }
+		}
+	    }
+
 	    open = false ;
 	    portName = null ;
+	    readiness = NOT_INITIALIZED ;
+	    context.notifyAll() ;
 	}
     }
 }
@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 1996-2002 Sun Microsystems, Inc. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistribution in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ *
+ * Neither the name of Sun Microsystems, Inc. or the names of
+ * contributors may be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * This software is provided "AS IS," without a warranty of any
+ * kind. ALL EXPRESS OR IMPLIED CONDITIONS, REPRESENTATIONS AND
+ * WARRANTIES, INCLUDING ANY IMPLIED WARRANTY OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE OR NON-INFRINGEMENT, ARE HEREBY
+ * EXCLUDED. SUN AND ITS LICENSORS SHALL NOT BE LIABLE FOR ANY DAMAGES
+ * SUFFERED BY LICENSEE AS A RESULT OF USING, MODIFYING OR
+ * DISTRIBUTING THE SOFTWARE OR ITS DERIVATIVES. IN NO EVENT WILL SUN
+ * OR ITS LICENSORS BE LIABLE FOR ANY LOST REVENUE, PROFIT OR DATA, OR
+ * FOR DIRECT, INDIRECT, SPECIAL, CONSEQUENTIAL, INCIDENTAL OR
+ * PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS OF THE THEORY OF
+ * LIABILITY, ARISING OUT OF THE USE OF OR INABILITY TO USE SOFTWARE,
+ * EVEN IF SUN HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * You acknowledge that Software is not designed,licensed or intended
+ * for use in the design, construction, operation or maintenance of
+ * any nuclear facility.
+ */
+
+package com.sun.j3d.input ;
+
+import java.nio.ByteBuffer ;
+import java.util.Iterator ;
+import java.util.ServiceLoader ;
+import javax.media.j3d.Transform3D ;
+
+/**
+ * A serial device protocol implemented in Java, for use by
+ * <code>ProtocolDevice</code>.  This is a service provider interface:
+ * implementations are found with <code>java.util.ServiceLoader</code>, so a
+ * new serial device is supported by putting a jar on the class path
+ * containing a subclass with a public parameterless constructor and a
+ * <code>META-INF/services/com.sun.j3d.input.SerialProtocol</code> file
+ * naming it, without building any native code.<p>
+ *
+ * A protocol declares the device's baud rate, its framing, the commands
+ * that probe it, and its sensors, and decodes each complete record.  The
+ * framing is a fixed record size and a mask and value for the leading bytes
+ * of a record: a record starts at a position where each byte ANDed with its
+ * mask equals its value.  <code>ProtocolDevice</code> scans the characters
+ * that have arrived for records, resynchronizing one character later
+ * wherever the framing doesn't match, and passes the position of each
+ * record to <code>decode</code>.<p>
+ *
+ * <code>decode</code> reads the record directly from a read-only
+ * <code>ByteBuffer</code> view of the ring the serial transport reads the
+ * port into, native memory for the native transports, so the characters are
+ * never copied.  The ring's positions are free-running <code>int</code>
+ * character counts: the character at position p is at index
+ * <code>p &amp; mask</code> of the buffer, and a record may wrap around the
+ * end of it.<p>
+ *
+ * A new instance of the protocol is created for each device that uses it,
+ * so an instance may keep state, such as filters, between records.
+ *
+ * @see ProtocolDevice
+ */
+public abstract class SerialProtocol {
+    /**
+     * Returns the name by which devices select this protocol.
+     *
+     * @return protocol name
+     */
+    public abstract String getName() ;
+
+    /**
+     * Returns the baud rate at which the device communicates.  The default
+     * implementation returns 9600.
+     *
+     * @return baud rate
+     */
+    public int getBaudRate() {
+	return 9600 ;
+    }
+
+    /**
+     * Returns the size in bytes of the records the device sends.
+     *
+     * @return record size
+     */
+    public abstract int getRecordSize() ;
+
+    /**
+     * Returns the masks applied to the leading bytes of a record to
+     * recognize its start.  The array may be shorter than a record.
+     *
+     * @return framing masks
+     * @see #getFramingValue
+     */
+    public abstract int[] getFramingMask() ;
+
+    /**
+     * Returns the values the leading bytes of a record have after their
+     * masks are applied.  The array has the length of the masks.
+     *
+     * @return framing values
+     * @see #getFramingMask
+     */
+    public abstract int[] getFramingValue() ;
+
+    /**
+     * Returns the commands sent to the device, in order, when it is
+     * initialized, to reset it and start it reporting.  Commands may not
+     * contain 0 bytes.  The default implementation returns none.
+     *
+     * @return array of commands
+     * @see #getProbeTimeout
+     */
+    public byte[][] getProbeCommands() {
+	return new byte[0][] ;
+    }
+
+    /**
+     * Returns the time in milliseconds within which the device must send a
+     * record after the probe commands for its initialization to succeed,
+     * or 0 if the device may be silent until it is used.  The default
+     * implementation returns 0.
+     *
+     * @return probe timeout in milliseconds
+     * @see #getProbeCommands
+     */
+    public int getProbeTimeout() {
+	return 0 ;
+    }
+
+    /**
+     * Returns the number of sensors the device has.
+     *
+     * @return sensor count
+     */
+    public abstract int getSensorCount() ;
+
+    /**
+     * Returns the number of buttons each sensor has.  The default
+     * implementation returns 0.
+     *
+     * @return button count
+     */
+    public int getButtonCount() {
+	return 0 ;
+    }
+
+    /**
+     * Decodes a record.  For each sensor the record reports on, the sensor's
+     * transform and buttons are set and its entry in
+     * <code>updated</code> is set to true; the entries of the sensors it
+     * doesn't report on are left alone.  This is called from the thread
+     * polling the device, with a record that satisfies the framing.<p>
+     *
+     * @param ring read-only view of the ring buffer
+     * @param position ring position of the record's first byte
+     * @param mask ring capacity - 1
+     * @param transforms a transform to set for each sensor
+     * @param buttons a button array to set for each sensor
+     * @param updated an entry to set for each sensor updated
+     * @return false if the record is invalid
+     */
+    public abstract boolean decode(ByteBuffer ring, int position, int mask,
+				   Transform3D[] transforms, int[][] buttons,
+				   boolean[] updated) ;
+
+    /**
+     * Returns the unsigned value of the byte at a ring position.
+     *
+     * @param ring view of the ring buffer
+     * @param position ring position
+     * @param mask ring capacity - 1
+     * @return byte value from 0 to 255
+     */
+    protected static int get(ByteBuffer ring, int position, int mask) {
+	return ring.get(position & mask) & 0xFF ;
+    }
+
+    /**
+     * Returns a new instance of the named protocol, from the providers
+     * found by <code>ServiceLoader</code> with the context class loader.
+     *
+     * @param name protocol name
+     * @return new protocol instance, or null if there is none by that name
+     */
+    public static SerialProtocol forName(String name) {
+	Iterator i = ServiceLoader.load(SerialProtocol.class).iterator() ;
+	while (i.hasNext()) {
+	    SerialProtocol p = (SerialProtocol)i.next() ;
+	    if (p.getName().equals(name))
+		return p ;
+	}
+	return null ;
+    }
+}
@@ -37,7 +37,10 @@
  * any nuclear facility.
  */
 
-#ifdef SOLARIS
+#if defined(SOLARIS) || defined(LINUX)
+#ifdef LINUX
+#define _GNU_SOURCE  /* for RTLD_DEFAULT */
+#endif
 #include <dlfcn.h>
 /*
  * The following symbols are defined by libtrackdAPI.so.  Since this code may
@@ -82,7 +85,7 @@ JNIEXPORT jint JNICALL Java_com_sun_j3d_input_TrackdInputDevice_initTrackd
 
     jint status = 0 ;
 
-#ifdef SOLARIS
+#if defined(SOLARIS) || defined(LINUX)
     /*
      * The native code link is performed with the -z lazyload option. Check to
      * see if trackdInitTrackerReader is defined.  Since it is a weak symbol
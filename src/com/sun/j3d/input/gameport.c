@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 1996-2002 Sun Microsystems, Inc. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistribution in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ *
+ * Neither the name of Sun Microsystems, Inc. or the names of
+ * contributors may be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * This software is provided "AS IS," without a warranty of any
+ * kind. ALL EXPRESS OR IMPLIED CONDITIONS, REPRESENTATIONS AND
+ * WARRANTIES, INCLUDING ANY IMPLIED WARRANTY OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE OR NON-INFRINGEMENT, ARE HEREBY
+ * EXCLUDED. SUN AND ITS LICENSORS SHALL NOT BE LIABLE FOR ANY DAMAGES
+ * SUFFERED BY LICENSEE AS A RESULT OF USING, MODIFYING OR
+ * DISTRIBUTING THE SOFTWARE OR ITS DERIVATIVES. IN NO EVENT WILL SUN
+ * OR ITS LICENSORS BE LIABLE FOR ANY LOST REVENUE, PROFIT OR DATA, OR
+ * FOR DIRECT, INDIRECT, SPECIAL, CONSEQUENTIAL, INCIDENTAL OR
+ * PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS OF THE THEORY OF
+ * LIABILITY, ARISING OUT OF THE USE OF OR INABILITY TO USE SOFTWARE,
+ * EVEN IF SUN HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * You acknowledge that Software is not designed,licensed or intended
+ * for use in the design, construction, operation or maintenance of
+ * any nuclear facility.
+ */
+
+#include <stdlib.h>
+#include <stdio.h>
+#include <string.h>
+#include "serial.h"
+#include "gameport.h"
+
+/*
+ * Low level driver code for the Colorado Spectrum workstation gameport.
+ *
+ * The gameport has no command set.  It is powered from RTS and DTR and sends
+ * a 6-byte packet (gameport_raw in gameport.h) whenever an axis or button
+ * changes state.  A packet starts with a zero sync byte followed by the
+ * button byte, which only uses its upper 4 bits; the remaining 4 bytes are
+ * the X and Y values of the two sticks.
+ */
+
+#define GAMEPORT_RECORD_SIZE 6
+
+/*
+ * Check a candidate packet header for validity.
+ */
+#define GAMEPORT_VALID_HEADER(sync, buttons) \
+    ((sync) == 0 && ((buttons) & 0x0F) == 0)
+
+
+/*
+ *  Create and return a new instance of a gameport device.
+ */
+static serial_device_substruct *
+gameport_create_instance() {
+
+    gameport_unit *unit = (gameport_unit *)malloc(sizeof(gameport_unit)) ;
+    if (unit == 0) {
+	fprintf(stderr, "Error:  cannot malloc gameport instance\n") ;
+	return 0 ;
+    }
+
+    memset(unit, 0, sizeof(gameport_unit)) ;
+
+    unit->baud = 9600 ;
+    unit->needs_rts_and_dtr = 1 ;
+
+    return (serial_device_substruct *)unit ;
+}
+
+
+/*
+ *  Reset a gameport unit.  There is no reset command; just start reading
+ *  from the current position of the character buffer.
+ */
+static void
+gameport_reset_device(gameport_unit *unit) {
+    unit->ring_last = RING_HEAD(&unit->ring) ;
+}
+
+
+/*
+ *  Probe a gameport unit.  The gameport only speaks when spoken to by the
+ *  joystick, so there is nothing to query.
+ */
+static int
+gameport_probe_device(gameport_unit *unit) {
+    return 1 ;
+}
+
+
+/*
+ *  No attributes for the gameport (serial file name handled by super).
+ */
+static int
+gameport_device_attribute_double(
+    serial_device_substruct *instance_data, int attributeNumber, double val) {
+    return 0 ;
+}
+
+static int
+gameport_device_attribute_string(
+    serial_device_substruct *instance_data, int attributeNumber, char *val) {
+    return 0 ;
+}
+
+
+/*
+ *  Nothing to do on close; serial_close() releases the port.
+ */
+static void
+gameport_close(serial_device_substruct *unit) {
+}
+
+
+/*
+ *  Install peripheral driver data structure for the gameport device.
+ */
+int
+gameport_install_peripheral_driver(nu_serial_ctx_type *ctx) {
+    peripheral_driver *pd ;
+
+    DPRINT(("gameport_install_peripheral_driver\n")) ;
+
+    if ((pd = serial_add_peripheral_driver(ctx)) == 0)
+	return 0 ;
+
+    pd->driver_ctx = 0 ;
+    pd->packet_size = GAMEPORT_RECORD_SIZE ;
+
+    pd->peripheral_driver_name = "Gameport" ;
+    pd->create_instance = gameport_create_instance ;
+    pd->reset_device = gameport_reset_device ;
+    pd->reset_device_array = 0 ;
+    pd->probe_device = gameport_probe_device ;
+    pd->probe_device_array = 0 ;
+    pd->device_attribute_double = gameport_device_attribute_double ;
+    pd->device_attribute_string = gameport_device_attribute_string ;
+    pd->close_device = gameport_close ;
+    pd->read_event = gameport_read_event ;
+
+    return 1 ;
+}
+
+
+/*
+ *  Scan the characters that have arrived since the last call for complete
+ *  packets.  Only the most recent one is kept in unit->raw_event, and the
+ *  time it arrived in unit->event_time; the gameport reports absolute
+ *  values, so older packets carry no additional information except for
+ *  button transitions that the caller has missed anyway.  An incomplete
+ *  packet at the end of the buffer is left for the next call.
+ *
+ *  Returns 1 if a new packet was found, 0 otherwise.
+ */
+int
+gameport_obtain_current_raw_events(gameport_unit *unit) {
+    unsigned int i, e, last = 0 ;
+    int j, got_one = 0 ;
+    serial_ring *r = &unit->ring ;
+
+    serial_read((serial_device_substruct *)unit) ;
+    e = RING_HEAD(r) ;
+
+    /* if the ring has been overwritten, start at the oldest character */
+    i = serial_ring_start((serial_device_substruct *)unit, unit->ring_last, e) ;
+
+    while (e - i >= GAMEPORT_RECORD_SIZE) {
+	if (! GAMEPORT_VALID_HEADER(RING_CHAR(r, i), RING_CHAR(r, i+1))) {
+	    /* not a packet boundary, resync one character later */
+	    unit->stats.resync++ ;
+	    i++ ;
+	    continue ;
+	}
+
+	for (j = 0 ; j < GAMEPORT_RECORD_SIZE ; j++)
+	    unit->current_event[j] = RING_CHAR(r, i++) ;
+
+	unit->stats.packets++ ;
+
+	got_one = 1 ;
+	last = i ;
+    }
+
+    unit->ring_last = i ;
+
+    if (got_one) {
+	/* time the packet from the read that completed it */
+	unit->event_time =
+	    serial_arrival_time((serial_device_substruct *)unit, last) ;
+	if (unit->event_time == 0)
+	    unit->event_time = serial_time((serial_device_substruct *)unit) ;
+
+	unit->raw_event.sync_byte = unit->current_event[0] ;
+	unit->raw_event.buttons   = unit->current_event[1] ;
+	unit->raw_event.x1        = unit->current_event[2] ;
+	unit->raw_event.y1        = unit->current_event[3] ;
+	unit->raw_event.x2        = unit->current_event[4] ;
+	unit->raw_event.y2        = unit->current_event[5] ;
+    }
+
+    return got_one ;
+}
+
+
+/*
+ *  Read the unit's newest packet, if a new one has arrived, into event:
+ *  the raw X1, Y1, X2, Y2 axis values into values[0] through values[3]
+ *  and the button states.  Returns the status, 1 if there was a new
+ *  packet and 0 otherwise.
+ */
+int
+gameport_read_event(nu_serial_ctx_type *ctx, gameport_unit *unit,
+		    serial_event *event) {
+
+    if (! gameport_obtain_current_raw_events(unit)) {
+	event->status = 0 ;
+	return 0 ;  /* no new event yet */
+    }
+
+    event->buttons[0] = (unit->raw_event.buttons & BUTTON0_MASK) ? 1 : 0 ;
+    event->buttons[1] = (unit->raw_event.buttons & BUTTON1_MASK) ? 1 : 0 ;
+    event->buttons[2] = (unit->raw_event.buttons & BUTTON2_MASK) ? 1 : 0 ;
+    event->buttons[3] = (unit->raw_event.buttons & BUTTON3_MASK) ? 1 : 0 ;
+
+    event->values[0] = (double)unit->raw_event.x1 ;
+    event->values[1] = (double)unit->raw_event.y1 ;
+    event->values[2] = (double)unit->raw_event.x2 ;
+    event->values[3] = (double)unit->raw_event.y2 ;
+
+    event->age = serial_time((serial_device_substruct *)unit) -
+	unit->event_time ;
+
+    event->status = 1 ;
+    return 1 ;
+}
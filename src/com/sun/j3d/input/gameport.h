@@ -72,3 +72,7 @@ gameport_install_peripheral_driver(nu_serial_ctx_type *ctx) ;
 
 int
 gameport_obtain_current_raw_events(gameport_unit *unit) ;
+
+int
+gameport_read_event(nu_serial_ctx_type *ctx, gameport_unit *unit,
+		    serial_event *event) ;
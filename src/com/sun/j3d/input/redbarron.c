@@ -37,18 +37,22 @@
  * any nuclear facility.
  */
 
-#include <ieeefp.h>
 #include <stdlib.h>
 #include <stdio.h>
 #include <string.h>
 #include <math.h>
 #include <fcntl.h>
 #include <unistd.h>
+#include <pthread.h>
+#include <sys/types.h>
+#include <sys/stat.h>
+#ifndef LINUX
+#include <ieeefp.h>
 #include <sys/termios.h>
 #include <sys/filio.h>
-#include <sys/types.h>
 #include <sys/conf.h>
 #include <stropts.h>
+#endif
 #include "serial.h"
 #include "redbarron.h"
 
@@ -126,13 +130,12 @@ t_init_pworld_time(track_ctx *t_ctx)
 
 
 /*
- *  Update the current pworld time values.
+ *  Update the current pworld time values to the time tp, which is
+ *  gethrtime() or the replay clock of the unit being read.
  */
 static void
-t_sync_pworld_time(track_ctx *t_ctx)
+t_sync_pworld_time(track_ctx *t_ctx, hrtime_t tp)
 {
-    hrtime_t	tp;
-
     /*
      *  Time managment.
      *  Get the time as realtime in nanoseconds (as a 64 bit int (long long)).
@@ -140,7 +143,6 @@ t_sync_pworld_time(track_ctx *t_ctx)
      */
     t_ctx->t_pworld_time.last_time = t_ctx->t_pworld_time.time;
 
-    tp = gethrtime();
     tp -= t_ctx->long_long_pworld_time_zero; /* high accuracy time zero sub */
     tp = tp>>10;  /* shift to avoid overflow of double */
 
@@ -154,18 +156,202 @@ t_sync_pworld_time(track_ctx *t_ctx)
 
 
 /*
- *  Initialize time of flight samples, and time out count.
+ *  Convert a time returned by gethrtime() into pworld time.
+ */
+static double
+t_hrtime_to_pworld_time(track_ctx *t_ctx, hrtime_t tp)
+{
+    double time;
+
+    tp -= t_ctx->long_long_pworld_time_zero;
+    tp = tp>>10;
+    time = tp;
+    time /= 1000000000.0/1024.0;
+    return time;
+
+}  /* end of t_hrtime_to_pworld_time */
+
+
+/*
+ *  The time before a record's time at which the speaker of each channel
+ *  fires: the top speaker fires at the record's time, and the lower right
+ *  and lower left ones 6.7 and 13.3 ms before it.
+ */
+static const double channel_phase[NC] = {
+    0.0133333, 0.0133333, 0.0133333,
+    0.0066667, 0.0066667, 0.0066667,
+    0.0, 0.0, 0.0
+};
+
+/*
+ *  Index of each channel's count among the shorts of a record.
+ */
+static const int channel_short[NC] = { 1, 2, 3, 5, 6, 7, 9, 10, 11 };
+
+
+/*
+ *  Initialize time of flight samples, and time out counts.
+ */
+static void
+redbarron_init_samples(redbarron_raw_flt *r) {
+    int i, c;
+
+    for (i = 0; i < NS_MAX; i++) {
+	r->mcal[i] = -1.0;
+	for (c = 0; c < NC; c++)
+	    r->dists[i][c] = -1.0;
+    }
+
+    for (c = 0; c < NC; c++) {
+	r->lost_in_time_count[c] = 60;
+	r->m[c] = r->b[c] = -11000000.0;
+	r->phase[c] = channel_phase[c];
+	r->sum_n[c] = r->sum_t[c] = r->sum_tt[c] = 0.0;
+	r->sum_d[c] = r->sum_td[c] = r->sum_dd[c] = 0.0;
+    }
+    r->span = 0;
+}
+
+
+/*
+ *  Add (sign 1.0) or remove (sign -1.0) the samples in slot i of the raw
+ *  stack to or from the least squares sums of each channel, if they are
+ *  valid.  An invalid sample is added with a weight of 0, so that the
+ *  loop has no branches.
+ */
+static void
+stack_sum(redbarron_raw_flt *r, int i, double sign) {
+    double t, d, w;
+    int c;
+
+    t = (double)r->ext_ref_time[i] - r->t0;
+    for (c = 0; c < NC; c++) {
+	d = r->dists[i][c];
+	w = (d > 0.0) ? sign : 0.0;
+	r->sum_n[c]  += w;
+	r->sum_t[c]  += w*t;
+	r->sum_tt[c] += w*t*t;
+	r->sum_d[c]  += w*d;
+	r->sum_td[c] += w*t*d;
+	r->sum_dd[c] += w*d*d;
+    }
+}
+
+
+/*
+ *  Recompute the sums from scratch over the span slots ending at slot
+ *  cur, with times relative to that of cur.  Doing this once every ns
+ *  records keeps the times small and the rounding errors of the running
+ *  sums from building up.
  */
 static void
-redbarron_init_samples(samples *samp) {
+stack_rebuild(redbarron_raw_flt *r, int cur, int span) {
+    int i, k, c;
+
+    r->t0 = r->ext_ref_time[cur];
+    for (c = 0; c < NC; c++) {
+	r->sum_n[c] = r->sum_t[c] = r->sum_tt[c] = 0.0;
+	r->sum_d[c] = r->sum_td[c] = r->sum_dd[c] = 0.0;
+    }
+
+    for (k = 0, i = cur; k < span; k++, i = (i == 0)?(r->ns-1):i-1)
+	stack_sum(r, i, 1.0);
+    r->span = span;
+}
+
+
+/*
+ *  Move the old end of the window of the sums, which ends at the newest
+ *  slot cur, so that it spans the given number of slots.
+ */
+static void
+stack_slide(redbarron_raw_flt *r, int cur, int span) {
     int i;
 
-    for (i = 0; i < NS; i++)
-	samp->dists[i] = -1.0;
+    while (r->span > span) {
+	i = cur - (r->span - 1);
+	if (i < 0) i += r->ns;
+	stack_sum(r, i, -1.0);
+	r->span--;
+    }
+    while (r->span < span) {
+	i = cur - r->span;
+	if (i < 0) i += r->ns;
+	stack_sum(r, i, 1.0);
+	r->span++;
+    }
+}
+
+
+/*
+ *  Add the record just pushed into slot cur of the raw stack to the sums,
+ *  dropping those that leave the temporal filter window.  The sums are
+ *  rebuilt when the stack wraps.
+ */
+static void
+redbarron_push_samples(redbarron_unit *unit, int cur) {
+    redbarron_raw_flt *r = &unit->raw_stack;
+    int span;
+
+    span = r->span + 1;
+    if (span > unit->temporal_filter_length - 1)
+	span = unit->temporal_filter_length - 1;
+
+    if (cur == 0 || r->span == 0)
+	stack_rebuild(r, cur, span);
+    else {
+	stack_sum(r, cur, 1.0);
+	r->span++;
+	stack_slide(r, cur, span);
+    }
+}
+
+
+/*
+ *  Convert the nine counts of a new record into tempature corrected
+ *  distances in slot bi of the raw stack.  A distance is marked invalid
+ *  (-1) if it is beyond reality, or too far from the line last fitted to
+ *  its channel unless the channel has been lost for a while.  All the
+ *  channels are done in one pass with no branches.  Returns whether any
+ *  distance was accepted.
+ */
+static int
+redbarron_update_samples(track_ctx *t_ctx, redbarron_raw_flt *r,
+			 const unsigned short *counts, int bi,
+			 double pworld_time) {
+    double temp[NC], temp2, t, ttm = t_ctx->time_to_meters;
+    float *d = r->dists[bi];
+    int c, in, ok, lost, late, any = 0;
+
+    for (c = 0; c < NC; c++)
+	temp[c] = counts[channel_short[c]];
 
-    samp->lost_in_time_count = 60;
+    t = r->ext_ref_time[bi];
+    for (c = 0; c < NC; c++) {
+	temp[c] = temp[c]*ttm;
+	temp2 = temp[c] - t*r->m[c] - r->b[c];
 
-    samp->m = samp->b = -11000000.0;
+	/*
+	 *  Accept the distance if it is real and either no line has been
+	 *  fitted yet or it is close to the line.  Otherwise count the
+	 *  channel as lost, and take the distance anyway if it has been lost
+	 *  for 20 records or had no good fit for 0.3 seconds.
+	 *
+	 *  ADDITIONAL THRESHOLD BASED ON VELECOTY, NOT QUITE ROBUST ENOUGH YET:
+	 *  fabs(temp2) < 0.5*fabs(r->m[c])*t_ctx->t_pworld_time.delta_time
+	 */
+	in = temp[c] <= 1.600;
+	ok = in & ((r->b[c] < -10000000.0) | (temp2*temp2 < OK_VEL));
+	lost = in & !ok;
+	r->lost_in_time_count[c] = ok ? 0 : r->lost_in_time_count[c] + lost;
+	late = lost & ((r->lost_in_time_count[c] > 20) |
+		       (pworld_time - r->good_time[c] > 0.3));
+
+	r->prediction[c] = late ? (float)temp[c] : r->prediction[c];
+	d[c] = (ok | late) ? (float)temp[c] : -1.0f;
+	any |= ok | late;
+    }
+    return any;
 }
 
 
@@ -178,34 +364,24 @@ redbarron_device_struct_init(redbarron_unit *unit, int prom_rev) {
     unit->prom_revision = prom_rev;
     unit->clock_mul = 1.0; unit->clock_off = -11000000.0;
     unit->diff_from_pworld_time = 0.0;
+    unit->raw_stack.ns = NS;
     unit->raw_stack.stack_index = 0;
+    unit->raw_stack.filled = 0;
     unit->lost_in_time_count = 60 ;
-    unit->temporal_filter_length = 8 ;
-
-    redbarron_init_samples(&unit->raw_stack.sll_to_mcal);
-    redbarron_init_samples(&unit->raw_stack.sll_to_mlr);
-    redbarron_init_samples(&unit->raw_stack.sll_to_mll);
-    redbarron_init_samples(&unit->raw_stack.sll_to_mtop);
-    redbarron_init_samples(&unit->raw_stack.slr_to_mlr);
-    redbarron_init_samples(&unit->raw_stack.slr_to_mll);
-    redbarron_init_samples(&unit->raw_stack.slr_to_mtop);
-    redbarron_init_samples(&unit->raw_stack.stop_to_mlr);
-    redbarron_init_samples(&unit->raw_stack.stop_to_mll);
-    redbarron_init_samples(&unit->raw_stack.stop_to_mtop);
+    unit->temporal_filter_length = NS/2 ;
+
+    redbarron_init_samples(&unit->raw_stack);
 }
 
 /*
- * Record the *current* integer offset of the specified ztty serial unit.
- * This is primarily used just before sending a Logitech command with
+ * Record the *current* position in the ring buffer of the specified serial
+ * unit.  This is primarily used just before sending a Logitech command with
  * an expected response.
  */
 static void
 redbarron_obtain_current_offset(redbarron_unit *unit) {
-    if (unit->ztty_buf == 0) {
-	unit->ztty_last = unit->ztty->a_off ;
-    } else {
-	unit->ztty_last = unit->ztty->b_off ;
-    }
+    serial_read((serial_device_substruct *)unit) ;
+    unit->ring_last = RING_HEAD(&unit->ring) ;
 }
 
 
@@ -240,19 +416,12 @@ redbarron_convert_cur_op_info(unsigned char *ev,
 	r->transmitter_type_connected	= ev[ 9] & 0x7F;
 	r->buton_disable_status		= ev[14] & 0x7F;
 
-#ifdef SWAPBYTES
+	/* little-endian regardless of the host byte order */
 	i_r_ll_to_lr_mic  = (ev[11] << 8) | ev[10] ;
 	i_r_ll_to_top_mic = (ev[13] << 8) | ev[12] ;
 	i_t_ll_to_lr_spk  = (ev[16] << 8) | ev[15] ;
 	i_t_ll_to_top_spk = (ev[18] << 8) | ev[17] ;
 	i_t_ll_to_cal_mic = (ev[20] << 8) | ev[19] ;
-#else
-	i_r_ll_to_lr_mic  = (ev[10] << 8) | ev[11] ;
-	i_r_ll_to_top_mic = (ev[12] << 8) | ev[13] ;
-	i_t_ll_to_lr_spk  = (ev[15] << 8) | ev[16] ;
-	i_t_ll_to_top_spk = (ev[17] << 8) | ev[18] ;
-	i_t_ll_to_cal_mic = (ev[19] << 8) | ev[20] ;
-#endif	
 
 	r->d_r_ll_to_lr_mic  = i_r_ll_to_lr_mic  * METERS_PER_INCH/1000.0 ;
 	r->d_r_ll_to_top_mic = i_r_ll_to_top_mic * METERS_PER_INCH/1000.0 ;
@@ -272,40 +441,32 @@ redbarron_convert_cur_op_info(unsigned char *ev,
  */
 static int
 redbarron_obtain_current_op_info(redbarron_unit *unit) {
-    int  i, j, k ;
-    unsigned char *buf, tbuf[30] ;
+    unsigned int i, k ;
+    int j ;
+    unsigned char tbuf[30] ;
 
-    /* Make sure the old index is rational! */
-    i = unit->ztty_last ;
-    if (i < 0 || i >= 2044) return 0 ;
+    serial_read((serial_device_substruct *)unit) ;
 
-    if (!unit->use_rsb)
-	serial_read((serial_device_substruct *)unit) ;
-
-    /* Get the current index and proper buf pts for the desired channel. */
-    if (unit->ztty_buf == 0) {
-	k = unit->ztty->a_off;
-	buf = unit->ztty->abuf;
-    } else {
-	k = unit->ztty->b_off;
-	buf = unit->ztty->bbuf;
-    }
-    unit->ztty_last = k ;
+    /* Get the position before the command and the current position. */
+    i = unit->ring_last ;
+    k = RING_HEAD(&unit->ring) ;
+    unit->ring_last = k ;
 
     /*
      *  If the packet size is not *exactly* 30 bytes,
      *  something has gone wrong, so an all zero struct is pased back
      */
-    if((k<i?k+2044-i:k-i) != 30) {
+    if (k - i != 30) {
 	memset (&unit->cur_op_info, 0, sizeof(redbarron_cur_op_info));
 	return 0;
     }
 
     /* OK, copy the mem buff into the temp structure */
-    for (j = 0; j < 30; j++) {
-	tbuf[j] = buf[i++];
-	if(i >= 2044) i = 0;
-    }
+    for (j = 0; j < 30; j++)
+	tbuf[j] = RING_CHAR(&unit->ring, i++);
+
+    /* keep the reply as sent for the probe cache */
+    memcpy(unit->op_info_reply, tbuf, REDBARRON_OP_INFO_SIZE) ;
 
     /*
      *  Convert the temp structure into a more usable format,
@@ -343,12 +504,221 @@ redbarron_create_instance() {
 
 
 /*
- *  Reset an array of logitech units.
+ *  Timeouts for the responses waited for during a probe, in microseconds.
+ *  A unit is probed as soon as it answers; these are only fallbacks for a
+ *  unit that is slow to come out of reset or has dropped a command, which
+ *  is sent again after RB_REPLY_TIMEOUT.
+ */
+#define RB_REPLY_TIMEOUT	250000
+#define RB_OP_INFO_TIMEOUT	2000000
+#define RB_STREAM_TIMEOUT	1500000
+
+/*
+ *  The probe cache.  A full probe resets the units, waits for them to come
+ *  out of reset, and configures any slaves with the master's transmitter
+ *  type, which can take several seconds.  When a LogitechTracker has a
+ *  ProbeCache file the operational info reply of its unit is saved there
+ *  after a full probe, along with the PROM revision, firmware version, and
+ *  calibration overrides that applied.  On the next startup the units of
+ *  a group that all have a matching entry aren't reset; they are just asked
+ *  once for their operational info, and if every reply is the one cached
+ *  the units are still configured as the last full probe left them and are
+ *  simply started.  Otherwise (a slave was power cycled and lost its
+ *  transmitter type, a different unit is attached, or a unit's reply is
+ *  mixed with records it is still streaming) they are reset and probed in
+ *  full.
+ *
+ *  Each line of the file holds the entry for one port:  the port name, the
+ *  PROM revision, the firmware version index, the reply in hex, a bit mask
+ *  of the overrides set in attribute order, and the eight override values.
+ */
+#define RB_CACHE_LINE		512
+#define RB_CACHE_OVERRIDES	8
+
+/*
+ *  Collect the calibration overrides of a unit, returning the mask of
+ *  those that are set.
+ */
+#define RB_OVERRIDE(bit, field) \
+if (unit->overide_##field) { mask |= 1 << (bit) ; val[bit] = unit->field ; }
+
+static int
+redbarron_overrides(redbarron_unit *unit, double val[RB_CACHE_OVERRIDES]) {
+    int i, mask = 0 ;
+
+    for (i = 0 ; i < RB_CACHE_OVERRIDES ; i++)
+	val[i] = 0.0 ;
+
+    RB_OVERRIDE(0, d_r_ll_to_lr_mic) ;
+    RB_OVERRIDE(1, d_r_ll_to_top_mic) ;
+    RB_OVERRIDE(2, d_r_ll_lr_to_top_mic) ;
+    RB_OVERRIDE(3, d_r_top_ams_mic) ;
+    RB_OVERRIDE(4, d_t_ll_to_lr_spk) ;
+    RB_OVERRIDE(5, d_t_ll_to_top_spk) ;
+    RB_OVERRIDE(6, d_t_ll_to_cal_mic) ;
+    RB_OVERRIDE(7, d_t_ll_lr_to_top_spk) ;
+
+    return mask ;
+}
+
+
+/*
+ *  Look up the probe cache entry for a unit's port, setting probe_cached
+ *  if there is one for the same PROM revision and overrides.
+ */
+static int
+redbarron_cache_load(redbarron_unit *unit) {
+    char line[RB_CACHE_LINE], port[RB_CACHE_LINE], hex[RB_CACHE_LINE] ;
+    double val[RB_CACHE_OVERRIDES], cval[RB_CACHE_OVERRIDES] ;
+    int i, c, prom, firmware, mask, cmask ;
+    FILE *f ;
+
+    unit->probe_cached = 0 ;
+    if (!unit->probe_cache || !unit->port_name)
+	return 0 ;
+
+    if ((f = fopen(unit->probe_cache, "r")) == 0)
+	return 0 ;
+
+    mask = redbarron_overrides(unit, val) ;
+    while (fgets(line, sizeof(line), f)) {
+	if (sscanf(line, "%s %d %d %s %x %lg %lg %lg %lg %lg %lg %lg %lg",
+		   port, &prom, &firmware, hex, &cmask,
+		   &cval[0], &cval[1], &cval[2], &cval[3],
+		   &cval[4], &cval[5], &cval[6], &cval[7]) != 13 ||
+	    strcmp(port, unit->port_name) != 0)
+	    continue ;
+
+	if (prom != unit->prom_revision || cmask != mask ||
+	    strlen(hex) != 2*REDBARRON_OP_INFO_SIZE)
+	    break ;
+
+	for (i = 0 ; i < RB_CACHE_OVERRIDES ; i++)
+	    if (cval[i] != val[i]) break ;
+	if (i < RB_CACHE_OVERRIDES)
+	    break ;
+
+	for (i = 0 ; i < REDBARRON_OP_INFO_SIZE ; i++) {
+	    if (sscanf(hex + 2*i, "%2x", &c) != 1) break ;
+	    unit->cached_op_info[i] = c ;
+	}
+
+	unit->probe_cached = i == REDBARRON_OP_INFO_SIZE &&
+	    (unit->cached_op_info[0] & 0x3F) == firmware ;
+	break ;
+    }
+
+    fclose(f) ;
+    return unit->probe_cached ;
+}
+
+
+/*
+ *  Serializes the probe cache updates of the units of this process, which
+ *  may be probed at the same time in different contexts.
+ */
+static pthread_mutex_t cache_lock = PTHREAD_MUTEX_INITIALIZER ;
+
+/*
+ *  Save the probe cache entry for a unit after a full probe, replacing any
+ *  previous entry for its port.  The file is rewritten under a unique
+ *  temporary name and renamed, so a reader never sees it half written.
+ *  The update holds cache_lock, and a lockf(3C) lock on the file with .lock
+ *  appended to the cache's name against other processes, so that no two
+ *  updates drop each other's entries.
+ */
+static void
+redbarron_cache_store(redbarron_unit *unit) {
+    char line[RB_CACHE_LINE], port[RB_CACHE_LINE], *tmp, *lock ;
+    double val[RB_CACHE_OVERRIDES] ;
+    FILE *in, *out ;
+    int i, mask, fd, lock_fd ;
+
+    if (!unit->probe_cache || !unit->port_name)
+	return ;
+
+    tmp = (char *)malloc(strlen(unit->probe_cache) + 16) ;
+    lock = (char *)malloc(strlen(unit->probe_cache) + 16) ;
+    if (!tmp || !lock) {
+	free(tmp) ;
+	free(lock) ;
+	return ;
+    }
+
+    pthread_mutex_lock(&cache_lock) ;
+    sprintf(lock, "%s.lock", unit->probe_cache) ;
+    lock_fd = open(lock, O_RDWR | O_CREAT, 0644) ;
+    if (lock_fd == -1 || lockf(lock_fd, F_LOCK, 0) == -1)
+	fprintf(stderr, "Warning:  cannot lock probe cache %s\n", lock) ;
+
+    sprintf(tmp, "%s.XXXXXX", unit->probe_cache) ;
+    out = 0 ;
+    if ((fd = mkstemp(tmp)) != -1 &&
+	((out = fdopen(fd, "w")) == 0 || fchmod(fd, 0644) == -1)) {
+	if (out) fclose(out) ; else close(fd) ;
+	unlink(tmp) ;
+	out = 0 ;
+    }
+    if (!out) {
+	fprintf(stderr, "Warning:  cannot write probe cache %s\n", tmp) ;
+	goto done ;
+    }
+
+    /* keep the entries for other ports */
+    if ((in = fopen(unit->probe_cache, "r")) != 0) {
+	while (fgets(line, sizeof(line), in))
+	    if (sscanf(line, "%s", port) == 1 &&
+		strcmp(port, unit->port_name) != 0)
+		fputs(line, out) ;
+	fclose(in) ;
+    }
+
+    mask = redbarron_overrides(unit, val) ;
+    fprintf(out, "%s %d %d ", unit->port_name, unit->prom_revision,
+	    unit->op_info_reply[0] & 0x3F) ;
+    for (i = 0 ; i < REDBARRON_OP_INFO_SIZE ; i++)
+	fprintf(out, "%02x", unit->op_info_reply[i]) ;
+    fprintf(out, " %x", mask) ;
+    for (i = 0 ; i < RB_CACHE_OVERRIDES ; i++)
+	fprintf(out, " %.17g", val[i]) ;
+    fprintf(out, "\n") ;
+
+    if (fclose(out) != 0 || rename(tmp, unit->probe_cache) != 0) {
+	fprintf(stderr, "Warning:  cannot write probe cache %s\n",
+		unit->probe_cache) ;
+	unlink(tmp) ;
+    }
+
+  done:
+    /* closing the file releases the lockf() lock */
+    if (lock_fd != -1) close(lock_fd) ;
+    pthread_mutex_unlock(&cache_lock) ;
+    free(lock) ;
+    free(tmp) ;
+}
+
+
+/*
+ *  Reset an array of logitech units.  The units aren't waited for here;
+ *  the probe keeps asking for their operational info until they answer.
+ *  If every unit has a probe cache entry none is reset; the probe checks
+ *  the entries first.
  */
 static void
 redbarron_reset_device_array(redbarron_unit *units[], int count) {
-    serial_command((serial_device_substruct **)units, count,
-		   100000, 1000000, RB_RESET);
+    int i, cached ;
+
+    for (i = 0, cached = 1 ; i < count ; i++)
+	if (! redbarron_cache_load(units[i]))
+	    cached = 0 ;
+
+    if (cached)
+	return ;
+
+    for (i = 0 ; i < count ; i++)
+	units[i]->probe_cached = 0 ;
+
+    serial_command((serial_device_substruct **)units, count, RB_RESET) ;
 }
 
 
@@ -361,28 +731,160 @@ redbarron_reset_device(redbarron_unit *unit) {
 }
 
 
+/*
+ *  serial_wait() predicates: a full operational info reply, or enough
+ *  characters to hold a complete raw record wherever it starts.
+ */
+static int
+redbarron_op_info_ready(serial_device_substruct *unit) {
+    return RING_HEAD(&unit->ring) - unit->ring_last >= 30 ;
+}
+
+static int
+redbarron_record_ready(serial_device_substruct *unit) {
+    return RING_HEAD(&unit->ring) - unit->ring_last >=
+	2*MOUSE6D_RECORD_SIZE - 1 ;
+}
+
 
 /*
- *  Probe an array of logitech units.
+ *  Read the current operational info from an array of logitech units,
+ *  asking again any unit that hasn't answered within RB_REPLY_TIMEOUT.
+ *  Returns -1 once all units have answered, or the index of a unit that
+ *  still hasn't after timeout microseconds.
  */
 static int
-redbarron_probe_device_array(redbarron_unit *units[], int count) {
-    int i, master_index ;
+redbarron_request_op_info(redbarron_unit *units[], int count, int timeout) {
+    redbarron_unit **pending ;
+    hrtime_t deadline ;
+    int i, waiting ;
+
+    pending = (redbarron_unit **)malloc(count * sizeof(redbarron_unit *)) ;
+    if (!pending) return 0 ;
 
     for (i = 0 ; i < count ; i++)
-	if (units[i]) redbarron_obtain_current_offset(units[i]) ;
+	pending[i] = units[i] ;
 
-    /* get current operational info */
-    serial_command((serial_device_substruct **)units, count,
-		   100000, 500000, RB_CUR_OP_INFO) ;
+    deadline = gethrtime() + (hrtime_t)timeout * 1000 ;
+    for (;;) {
+	for (i = 0 ; i < count ; i++)
+	    if (pending[i]) redbarron_obtain_current_offset(pending[i]) ;
+
+	serial_command((serial_device_substruct **)pending, count,
+		       RB_CUR_OP_INFO) ;
+	serial_wait((serial_device_substruct **)pending, count,
+		    RB_REPLY_TIMEOUT, redbarron_op_info_ready) ;
+
+	waiting = -1 ;
+	for (i = 0 ; i < count ; i++) {
+	    if (! pending[i]) continue ;
+	    if (redbarron_obtain_current_op_info(pending[i]) == 1)
+		pending[i] = 0 ;
+	    else if (waiting == -1)
+		waiting = i ;
+	}
+
+	if (waiting == -1 || gethrtime() >= deadline) {
+	    free(pending) ;
+	    return waiting ;
+	}
+    }
+}
+
+
+/*
+ *  Put an array of logitech units into raw streaming mode, and wait until
+ *  each is sending records.  A unit that isn't is sent the commands again
+ *  after RB_REPLY_TIMEOUT.  Returns the index of a unit that never started
+ *  streaming, or -1.
+ */
+static int
+redbarron_start_streaming(redbarron_unit *units[], int count) {
+    redbarron_unit **pending ;
+    hrtime_t deadline ;
+    int i, waiting ;
+
+    pending = (redbarron_unit **)malloc(count * sizeof(redbarron_unit *)) ;
+    if (!pending) return 0 ;
 
     for (i = 0 ; i < count ; i++)
-	if (units[i] && redbarron_obtain_current_op_info(units[i]) != 1) {
-	    fprintf(stderr, "Error:  cannot read status from logitech unit ") ;
-	    fprintf(stderr, "at port %s.\n", units[i]->port_name) ;
-	    fprintf(stderr, "(Possibly power off?)\n") ;
-	    return 0 ;
+	pending[i] = units[i] ;
+
+    deadline = gethrtime() + (hrtime_t)RB_STREAM_TIMEOUT * 1000 ;
+    for (;;) {
+	for (i = 0 ; i < count ; i++)
+	    if (pending[i]) redbarron_obtain_current_offset(pending[i]) ;
+
+	/* put the devices into raw mode */
+	serial_command((serial_device_substruct **)pending, count,
+		       RB_RAW_MODE) ;
+
+	/* put the devices into continuous streaming mode */
+	serial_command((serial_device_substruct **)pending, count,
+		       RB_STREAMING) ;
+
+	serial_wait((serial_device_substruct **)pending, count,
+		    RB_REPLY_TIMEOUT, redbarron_record_ready) ;
+
+	waiting = -1 ;
+	for (i = 0 ; i < count ; i++) {
+	    if (! pending[i]) continue ;
+	    if (redbarron_record_ready((serial_device_substruct *)pending[i]))
+		pending[i] = 0 ;
+	    else if (waiting == -1)
+		waiting = i ;
+	}
+
+	if (waiting == -1 || gethrtime() >= deadline) {
+	    free(pending) ;
+	    return waiting ;
 	}
+    }
+}
+
+
+/*
+ *  Check the units of a group that wasn't reset against their probe cache
+ *  entries, with a single operational info request.  The reporting mode,
+ *  data type, and record size (bytes 2 through 4) are ignored, since the
+ *  last run left the units in raw mode and the probe sets them again.
+ */
+static int
+redbarron_cache_verify(redbarron_unit *units[], int count) {
+    unsigned char *reply, *cached ;
+    int i ;
+
+    if (redbarron_request_op_info(units, count, RB_REPLY_TIMEOUT) != -1)
+	return 0 ;
+
+    for (i = 0 ; i < count ; i++) {
+	reply = units[i]->op_info_reply ;
+	cached = units[i]->cached_op_info ;
+	if (memcmp(reply, cached, 2) != 0 ||
+	    memcmp(reply + 5, cached + 5, REDBARRON_OP_INFO_SIZE - 5) != 0)
+	    return 0 ;
+    }
+
+    return 1 ;
+}
+
+
+/*
+ *  Read the operational info of an array of logitech units that have just
+ *  been reset, and configure the slaves.
+ */
+static int
+redbarron_handshake(redbarron_unit *units[], int count) {
+    int i, master_index ;
+
+    /* get current operational info */
+    i = redbarron_request_op_info(units, count, RB_OP_INFO_TIMEOUT) ;
+    if (i != -1) {
+	fprintf(stderr, "Error:  cannot read status from logitech unit ") ;
+	fprintf(stderr, "at port %s.\n", units[i]->port_name) ;
+	fprintf(stderr, "(Possibly power off?)\n") ;
+	return 0 ;
+    }
 
     /*
      * The slave device does not know what transmitter type is connected; this
@@ -414,22 +916,53 @@ redbarron_probe_device_array(redbarron_unit *units[], int count) {
 	if (xmiter_type < 0 || xmiter_type > 15) xmiter_type = 15 ;
 	RB_SET_SLAVE_XMITER_TYPE[4] = xmiter_type ;
 	serial_command((serial_device_substruct **)units, count,
-		       100000, 100000, RB_SET_SLAVE_XMITER_TYPE) ;
+		       RB_SET_SLAVE_XMITER_TYPE) ;
 
 	/* re-read status to reflect updated info */
-	for (i = 0 ; i < count ; i++)
-	    if (units[i]) redbarron_obtain_current_offset(units[i]) ;
+	redbarron_request_op_info(units, count, RB_REPLY_TIMEOUT) ;
+
+	/* restore master unit */
+	units[master_index] = master ;
+    }
+
+    return 1 ;
+}
+
+
+/*
+ *  Probe an array of logitech units.
+ */
+static int
+redbarron_probe_device_array(redbarron_unit *units[], int count) {
+    int i, cached ;
+
+    /*
+     * Units that weren't reset because they have probe cache entries just
+     * need their transmitter turned back on and to be started if they still
+     * report the cached operational info.  Otherwise they're reset now and
+     * probed in full.
+     */
+    cached = units[0]->probe_cached ;
+    for (i = 0 ; i < count ; i++)
+	units[i]->probe_cached = 0 ;
 
+    if (cached && ! redbarron_cache_verify(units, count)) {
+	DPRINT(("redbarron_probe_device_array:  probe cache is stale\n")) ;
+	serial_command((serial_device_substruct **)units, count, RB_RESET) ;
+	cached = 0 ;
+    }
+
+    if (cached)
 	serial_command((serial_device_substruct **)units, count,
-		       100000, 500000, RB_CUR_OP_INFO) ;
+		       RB_ENABLE_TRANSMITTER_OUTPUT) ;
+    else {
+	if (! redbarron_handshake(units, count))
+	    return 0 ;
 
 	for (i = 0 ; i < count ; i++)
-	    if (units[i]) redbarron_obtain_current_op_info(units[i]) ;
-
-	/* restore master unit */
-	units[master_index] = master ;
+	    redbarron_cache_store(units[i]) ;
     }
-    
+
     /*
      * Now that we have read what devices and measurements that Logitech
      * thinks are connected to the boxes, see if the VR package has been
@@ -470,13 +1003,15 @@ redbarron_probe_device_array(redbarron_unit *units[], int count) {
 		    units[i]->d_t_ll_lr_to_top_spk ;
 	}
 
-    /* put the devices into raw mode */
-    serial_command((serial_device_substruct **)units, count,
-		   500000, 200000, RB_RAW_MODE) ;
-
-    /* put the devices into continuous streaming mode */
-    serial_command((serial_device_substruct **)units, count,
-		   100000, 100000, RB_STREAMING) ;
+    /*
+     * Start streaming.  A unit that doesn't send anything may still just
+     * have its transmitter out of range, so this is only a warning.
+     */
+    i = redbarron_start_streaming(units, count) ;
+    if (i != -1) {
+	fprintf(stderr, "Warning:  no data yet from logitech unit ") ;
+	fprintf(stderr, "at port %s.\n", units[i]->port_name) ;
+    }
 
     return 1 ;
 }
@@ -544,6 +1079,15 @@ redbarron_device_attribute_double(
 	unit->overide_d_t_ll_lr_to_top_spk = 1;
 	break;
 
+    case SAMPLE_HISTORY:
+	if (val < 4 || val > NS_MAX)
+	    return 0;
+	unit->raw_stack.ns = (int)val;
+	unit->raw_stack.stack_index = 0;
+	unit->raw_stack.filled = 0;
+	unit->temporal_filter_length = unit->raw_stack.ns/2;
+	break;
+
     default:
 	return 0;
     }
@@ -554,7 +1098,7 @@ redbarron_device_attribute_double(
 
 
 /*
- *  No string attribute for Redbarron yet (serial file name handled by super)
+ *  Sets the probe cache file (serial file name handled by super).
  */
 static int
 redbarron_device_attribute_string(
@@ -563,7 +1107,18 @@ redbarron_device_attribute_string(
 
     unit = (redbarron_unit *)instance_data;
 
-    return 0;
+    switch(attributeNumber) {
+
+    case PROBE_CACHE:
+	free(unit->probe_cache);
+	unit->probe_cache = *val ? strdup(val) : 0;
+	break;
+
+    default:
+	return 0;
+    }
+
+    return 1;
 }
 
 
@@ -578,10 +1133,8 @@ redbarron_close(serial_device_substruct *unit) {
 	 *  Place the logitech into demand reporting mode, i.e. no output.
 	 *  Also be nice and turn off transmitter.
 	 */
-	serial_command(&unit, 1, 100000, 200000,
-		       RB_DEMAND_REPORTING) ;
-	serial_command(&unit, 1, 100000, 200000,
-		       RB_DISABLE_TRANSMITTER_OUTPUT) ;
+	serial_command(&unit, 1, RB_DEMAND_REPORTING) ;
+	serial_command(&unit, 1, RB_DISABLE_TRANSMITTER_OUTPUT) ;
     }
 }
 
@@ -596,13 +1149,9 @@ redbarron_install_peripheral_driver(nu_serial_ctx_type *ctx) {
 
     DPRINT(("redbarron_install_peripheral_driver\n")) ;
 
-    if (ctx->number_peripheral_drivers >= MAX_NUMBER_PERIPHERAL_DRIVERS) {
-	fprintf(stderr, "Too many peripheral drivers installed (%d)\n",
-		MAX_NUMBER_PERIPHERAL_DRIVERS);
+    if ((pd = serial_add_peripheral_driver(ctx)) == 0)
 	return 0;
-    }
 
-    pd = &ctx->peripheral_drivers[ctx->number_peripheral_drivers++];
     pd->driver_ctx = (void *)malloc(sizeof(track_ctx)) ;
     if (!pd->driver_ctx) {
 	fprintf(stderr, "malloc failed for RedBarron driver context\n") ;
@@ -610,6 +1159,7 @@ redbarron_install_peripheral_driver(nu_serial_ctx_type *ctx) {
     }
 
     pd->peripheral_driver_name = "RedBarron";
+    pd->packet_size = MOUSE6D_RECORD_SIZE;
     pd->create_instance = redbarron_create_instance;
     pd->reset_device = redbarron_reset_device;
     pd->reset_device_array = redbarron_reset_device_array ;
@@ -618,6 +1168,7 @@ redbarron_install_peripheral_driver(nu_serial_ctx_type *ctx) {
     pd->device_attribute_double = redbarron_device_attribute_double;
     pd->device_attribute_string = redbarron_device_attribute_string;
     pd->close_device = redbarron_close ;
+    pd->read_event = redbarron_read_event ;
 
     /* Init pworld time computation */
     t_ctx = (track_ctx *)pd->driver_ctx ;
@@ -668,38 +1219,13 @@ redbarron_install_peripheral_driver(nu_serial_ctx_type *ctx) {
 }
 
 
-/*
- *  Macro to validate new sample distance between a speaker and mic.
- *  Only used in routine ``redbarron_obtain_current_raw_events'' below.
- */
-#define UPDATE_SAMP(pair) \
-temp = b->pair; temp = temp*t_ctx->time_to_meters; \
-if (temp > 1.600) r->pair.dists[bi] = -1.0; \
-else if (r->pair.b < -10000000.0) { \
- temp2 = temp - r->pair.prediction; \
- r->pair.dists[bi] = temp; r->pair.lost_in_time_count = 0; \
- one_inside_reality = 1; \
-} else { \
- temp2 = temp - r->ext_ref_time[bi]*r->pair.m - r->pair.b; \
- if (temp2*temp2 < OK_VEL /* || \
-    ADDITIONAL THRESHOLD BASED ON VELECOTY, NOT QUITE ROBUST ENOUGH YET \
-    fabs(temp2) < 0.5*fabs(r->pair.m)*t_ctx->t_pworld_time.delta_time*/) \
-     { r->pair.dists[bi] = temp; r->pair.lost_in_time_count = 0; \
-       one_inside_reality = 1; } \
- else if (++r->pair.lost_in_time_count > 20 || \
-	  pworld_time - r->pair.good_time > 0.3) \
- { r->pair.dists[bi] = r->pair.prediction = temp; one_inside_reality = 1; } \
- else r->pair.dists[bi] = -1.0; \
-}
-
-
 /*
  *  First, compare the current end charactor position of the shaired memory
  *  FIFO with that last seen by this routine.  From this (by deviding by 24),
  *  determine the number of possible valid uninterprepted new events in
- *  the FIFO (none, 1-(NS-1), NS or greater).  If it has been so long that
- *  NS or more events may be present, clear out *all* the old events cached
- *  on the event stack (as NS of them), marking the entire stack invalid.
+ *  the FIFO (none, 1-(ns-1), ns or greater).  If it has been so long that
+ *  ns or more events may be present, clear out *all* the old events cached
+ *  on the event stack (as ns of them), marking the entire stack invalid.
  *  
  *  Now go through the raw charactor data looking for legal event headers.
  *  If one is found, copy it into the current event buffer (mostly for
@@ -734,43 +1260,45 @@ else if (r->pair.b < -10000000.0) { \
  */
 int
 redbarron_obtain_current_raw_events(track_ctx *t_ctx, redbarron_unit *unit) {
-    register double temp, temp2;
-    int  i,j, l, gg, bi, obi, bi_ct = 0, e, last_valid, got_at_least_one = 0;
+    register double temp;
+    int  j, c, gg, bi, obi, bi_ct = 0, got_at_least_one = 0;
+    unsigned int i, l, e, last_valid;
     int	 one_inside_reality = 0;
-    unsigned char *buf;
+    serial_ring *buf;
     redbarron_raw_flt *r;
     redbarron_raw_int *b;
     int bogus_ct = 0;
     double dt, last_valid_dt, pworld_time ;
+    hrtime_t arrival ;
 
 #ifdef EXPERIMENTAL_1
     double delta1, delta2, delta3 ;
 #endif
 
-    t_sync_pworld_time(t_ctx) ;
-    pworld_time = t_ctx->t_pworld_time.time;
+    serial_read((serial_device_substruct *)unit) ;
 
-    if (!unit->use_rsb)
-	serial_read((serial_device_substruct *)unit) ;
+    /*
+     *  Set e to the ring position after the last char arrived.  Positions
+     *  are free-running, so e - i is always the number of chars from i to e.
+     */
+    buf = &unit->ring;
+    e = RING_HEAD(buf);
 
     /*
-     *  Figure out which ztty buf we should be looking in.
-     *  Set e to index of last char arrived.
+     *  Sync pworld time only after loading e, so that every char before
+     *  e arrived before pworld_time.
      */
-    if (unit->ztty_buf == 0) {
-	e = unit->ztty->a_off;  /* um, ptr to next or current loc?? */
-	buf = unit->ztty->abuf;
-    } else {
-	e = unit->ztty->b_off;
-	buf = unit->ztty->bbuf;
-    }
+    t_sync_pworld_time(t_ctx, serial_time((serial_device_substruct *)unit)) ;
+    pworld_time = t_ctx->t_pworld_time.time;
 
     /*
      *  Check to see that at least one more event has arrived
-     *  Set l to last valid index.
+     *  Set l to last valid index, or the oldest char left if the
+     *  ring has been overwritten since.
      */
-    last_valid = l = unit->ztty_last;
-    if (e - (l>e?l-2044:l) < 24) {
+    last_valid = l = serial_ring_start((serial_device_substruct *)unit,
+				       unit->ring_last, e);
+    if (e - l < 24) {
 	return 0;
     }
 
@@ -778,53 +1306,46 @@ redbarron_obtain_current_raw_events(track_ctx *t_ctx, redbarron_unit *unit) {
     r = &unit->raw_stack;
 
     /*
-     *  Check to see if the last pointer (l) isn't more than NS*24-1 back.
+     *  Check to see if the last pointer (l) isn't more than ns*24-1 back.
      *  Also make sure, via checking pworld_time, that we havn't wrapped.
      *  Set i to index back in buf of char that we will start looking
      *  forward from.
      */
-    if (l >= 0 && (e<l?e+2044:e) < (l + NS*24) &&
+    if (e - l < r->ns*24 &&
 	(r->last_processed_pworld_time + 1.2) > pworld_time) {
 	/* Add new events since our last event */
 	i = l;
 	obi = bi = r->stack_index;
     } else {
-	/* Get eight new events */
-	i = e-24*NS;
-	if (i < 0) i += 2044;
-	for (j = 0; j < NS; j++) {
+	/* Get ns new events, or as many as the ring still holds */
+	i = serial_ring_start((serial_device_substruct *)unit, e-24*r->ns, e);
+	for (j = 0; j < r->ns; j++) {
 	    r->valid[j] = 0;
 	    /* negitive distance implies invalid sample */
-	    r->sll_to_mcal.dists[j] = -1.0;
-	    r->sll_to_mlr.dists[j] = -1.0;
-	    r->sll_to_mll.dists[j] = -1.0;
-	    r->sll_to_mtop.dists[j] = -1.0;
-	    r->slr_to_mlr.dists[j] = -1.0;
-	    r->slr_to_mll.dists[j] = -1.0;
-	    r->slr_to_mtop.dists[j] = -1.0;
-	    r->stop_to_mlr.dists[j] = -1.0;
-	    r->stop_to_mll.dists[j] = -1.0;
-	    r->stop_to_mtop.dists[j] = -1.0;
+	    r->mcal[j] = -1.0;
+	    for (c = 0; c < NC; c++)
+		r->dists[j][c] = -1.0;
 	}
 	obi = bi = 0;
+	r->filled = 0;
+	if (t_ctx->t_track_prediction_enable)
+	    stack_rebuild(r, 0, 0);
     }
 
 
     /*
      *  Searching forwards from index i upto index e, find all packets.
      */
-    while (i+24 < e || i > (e + 22*24)) {
+    while (e - i >= 24) {
 
       throw_it_back:
-	while (i+24 < e || i > (e + 22*24)) {
-	    /* Set gg to index after i */
-	    gg = i==2043?0:i+1;
-
-	    /* Does gg point to valid header byte? If so, jump */
-	    if ((buf[gg] == 0xF0) && ((buf[i] & 0xF0) == 0xF0)) goto got_one;
+	while (e - i >= 24) {
+	    /* Does the char after i hold a valid header byte? If so, jump */
+	    if ((RING_CHAR(buf, i+1) == 0xF0) &&
+		((RING_CHAR(buf, i) & 0xF0) == 0xF0)) goto got_one;
 
 	    /* Inc index i by 1 */
-	    if (++i > 2043) i = 0;
+	    i++;
 	    bogus_ct++;
 	}
 /*if (unit->ztty_buf == SU)
@@ -842,11 +1363,9 @@ printf("none %d %f\n", bogus_ct, pworld_time);*/
 	 */
 	b = (redbarron_raw_int *) unit->current_event;
 
-	/* Copy event from ztty buf into unit->current_event */
-	for (j = 0; j < 24; j++) {
-	    unit->current_event[j] = buf[i++];  /* inc index i by 1 */
-	    if(i > 2043) i = 0;
-	}
+	/* Copy event from ring buf into unit->current_event */
+	for (j = 0; j < 24; j++)
+	    unit->current_event[j] = RING_CHAR(buf, i++);  /* inc index i by 1 */
 
 #ifdef SWAPBYTES
 	/* Swap byte order */
@@ -864,12 +1383,17 @@ printf("none %d %f\n", bogus_ct, pworld_time);*/
 printf("%d  %d %d  %d  %d %f\n", b->ext_ref_time, i, e, b->sll_to_mlr, bogus_ct, pworld_time);*/
 
 	/*
-	 *  ext_ref_time happend in the past, roughfly how much can be
-	 *  extimated by the number of charactors that have come in
+	 *  ext_ref_time happend in the past, roughly when the read that
+	 *  completed this event returned.  If that read wasn't stamped,
+	 *  extimate it by the number of charactors that have come in
 	 *  since it did, remembering events arrive about every 20ms,
 	 *  and each event is 24 charactors in length.
 	 */
-	dt = (e-i<0?e+2044-i:e-i)*0.02/24.0;
+	arrival = serial_arrival_time((serial_device_substruct *)unit, i);
+	if (arrival != 0)
+	    dt = pworld_time - t_hrtime_to_pworld_time(t_ctx, arrival);
+	else
+	    dt = (e-i)*0.02/24.0;
 
 	/*
 	 *  Both the Sun and the Logitech have accurate internal clocks.
@@ -899,8 +1423,10 @@ printf("%d  %d %d  %d  %d %f\n", b->ext_ref_time, i, e, b->sll_to_mlr, bogus_ct,
 	    unit->lost_in_time_count = 0;
 	} else {
 	    unit->lost_in_time_count += 9;
+	    /* records before l are decoded again after a gap; count once */
+	    if ((int)(i - l) > 0) unit->stats.clock_rejects++;
 	    /* Must be bogus time value!! */
-	    i -= 2; if (i < 0) i += 2044;
+	    i -= 2;
 	    last_valid = i;
 	    goto throw_it_back; /* go try again */
 	    /*  WAS::  continue; */
@@ -928,7 +1454,7 @@ printf("%d  %d %d  %d  %d %f\n", b->ext_ref_time, i, e, b->sll_to_mlr, bogus_ct,
 	r->buttons[bi] = (gg & 0xA) | ((gg & 0x1)<<2) | ((gg & 0x4)>>2);
 
 	/* Copy the microphone calibration distance measurment into the stack*/
-	r->sll_to_mcal.dists[bi] = b->sll_to_mcal;
+	r->mcal[bi] = b->sll_to_mcal;
 
 	/*
 	 *  The raw delay time data returned from the logitech units is in
@@ -939,7 +1465,7 @@ printf("%d  %d %d  %d  %d %f\n", b->ext_ref_time, i, e, b->sll_to_mlr, bogus_ct,
 	 */
 	if (unit->cur_op_info.master_slave_status == 0x2) {
 	    temp =
-		unit->cur_op_info.d_t_ll_to_cal_mic/r->sll_to_mcal.dists[bi];
+		unit->cur_op_info.d_t_ll_to_cal_mic/r->mcal[bi];
 	    /* Code to sanity check temp */
 	    if (temp > 0.000045 && temp < 0.000065)
 		t_ctx->time_to_meters = temp;
@@ -952,28 +1478,26 @@ printf("%d  %d %d  %d  %d %f\n", b->ext_ref_time, i, e, b->sll_to_mlr, bogus_ct,
 	 *  (individually) a reasonable value.
 	 */
 	/* If ALL are outside reality, probably should discard sample */
-	UPDATE_SAMP(sll_to_mlr);
-	UPDATE_SAMP(sll_to_mll);
-	UPDATE_SAMP(sll_to_mtop);
-	UPDATE_SAMP(slr_to_mlr);
-	UPDATE_SAMP(slr_to_mll);
-	UPDATE_SAMP(slr_to_mtop);
-	UPDATE_SAMP(stop_to_mlr);
-	UPDATE_SAMP(stop_to_mll);
-	UPDATE_SAMP(stop_to_mtop);
+	if (redbarron_update_samples(t_ctx, r, (unsigned short *)b, bi,
+				     pworld_time))
+	    one_inside_reality = 1;
 
 /*printf("%f %f %f\n%f %f %f\n%f %f %f\n\n",
-r->sll_to_mlr.dists[bi], r->sll_to_mll.dists[bi], r->sll_to_mtop.dists[bi],
-r->slr_to_mlr.dists[bi], r->slr_to_mll.dists[bi], r->slr_to_mtop.dists[bi],
-r->stop_to_mlr.dists[bi], r->stop_to_mll.dists[bi], r->stop_to_mtop.dists[bi]
-);*/
+r->dists[bi][0], r->dists[bi][1], r->dists[bi][2],
+r->dists[bi][3], r->dists[bi][4], r->dists[bi][5],
+r->dists[bi][6], r->dists[bi][7], r->dists[bi][8]);*/
 
 	if (one_inside_reality == 0) {
 	    r->valid[bi] = 0;
+	    if ((int)(i - l) > 0) unit->stats.bad_packets++;
 	    continue;
 	}
 	got_at_least_one++;
+	if ((int)(i - l) > 0) unit->stats.packets++;
 	last_valid_dt = dt;
+	unit->event_time = arrival != 0 ? arrival :
+	    t_ctx->long_long_pworld_time_zero +
+	    (hrtime_t)((pworld_time - dt)*1000000000.0);
 
 #ifdef EXPERIMENTAL_1
 	/*
@@ -983,39 +1507,29 @@ r->stop_to_mlr.dists[bi], r->stop_to_mll.dists[bi], r->stop_to_mtop.dists[bi]
 	 *  Replace the distance with just the prediction.
 	 */
 
-	delta1 = fabs(r->sll_to_mlr.dists[bi] - r->sll_to_mlr.prediction);
-	delta2 = fabs(r->slr_to_mlr.dists[bi] - r->slr_to_mlr.prediction);
-	delta3 = fabs(r->stop_to_mlr.dists[bi] - r->stop_to_mlr.prediction);
-	if (16.0*delta2 < delta1 && 16.0*delta3 < delta1)
-	    r->sll_to_mlr.dists[bi] = r->sll_to_mlr.prediction;
-	else if (16.0*delta1 < delta2 && 16.0*delta3 < delta2)
-	    r->slr_to_mlr.dists[bi] = r->slr_to_mlr.prediction;
-	if (16.0*delta2 < delta3 && 16.0*delta2 < delta3)
-	    r->stop_to_mlr.dists[bi] = r->stop_to_mlr.prediction;
-
-	delta1 = fabs(r->sll_to_mll.dists[bi] - r->sll_to_mll.prediction);
-	delta2 = fabs(r->slr_to_mll.dists[bi] - r->slr_to_mll.prediction);
-	delta3 = fabs(r->stop_to_mll.dists[bi] - r->stop_to_mll.prediction);
-	if (16.0*delta2 < delta1 && 16.0*delta3 < delta1)
-	    r->sll_to_mll.dists[bi] = r->sll_to_mll.prediction;
-	else if (16.0*delta1 < delta2 && 16.0*delta3 < delta2)
-	    r->slr_to_mll.dists[bi] = r->slr_to_mll.prediction;
-	if (16.0*delta2 < delta3 && 16.0*delta2 < delta3)
-	    r->stop_to_mll.dists[bi] = r->stop_to_mll.prediction;
-
-	delta1 = fabs(r->sll_to_mtop.dists[bi] - r->sll_to_mtop.prediction);
-	delta2 = fabs(r->slr_to_mtop.dists[bi] - r->slr_to_mtop.prediction);
-	delta3 = fabs(r->stop_to_mtop.dists[bi] - r->stop_to_mtop.prediction);
-	if (16.0*delta2 < delta1 && 16.0*delta3 < delta1)
-	    r->sll_to_mtop.dists[bi] = r->sll_to_mtop.prediction;
-	else if (16.0*delta1 < delta2 && 16.0*delta3 < delta2)
-	    r->slr_to_mtop.dists[bi] = r->slr_to_mtop.prediction;
-	if (16.0*delta2 < delta3 && 16.0*delta2 < delta3)
-	    r->stop_to_mtop.dists[bi] = r->stop_to_mtop.prediction;
+	for (c = 0; c < 3; c++) {
+	    delta1 = fabs(r->dists[bi][SLL_TO_MLR+c] -
+			  r->prediction[SLL_TO_MLR+c]);
+	    delta2 = fabs(r->dists[bi][SLR_TO_MLR+c] -
+			  r->prediction[SLR_TO_MLR+c]);
+	    delta3 = fabs(r->dists[bi][STOP_TO_MLR+c] -
+			  r->prediction[STOP_TO_MLR+c]);
+	    if (16.0*delta2 < delta1 && 16.0*delta3 < delta1)
+		r->dists[bi][SLL_TO_MLR+c] = r->prediction[SLL_TO_MLR+c];
+	    else if (16.0*delta1 < delta2 && 16.0*delta3 < delta2)
+		r->dists[bi][SLR_TO_MLR+c] = r->prediction[SLR_TO_MLR+c];
+	    if (16.0*delta2 < delta3 && 16.0*delta2 < delta3)
+		r->dists[bi][STOP_TO_MLR+c] = r->prediction[STOP_TO_MLR+c];
+	}
 #endif /* EXPERIMENTAL_1 */
 
+	/* Push the record onto the least squares sums */
+	if (r->filled < r->ns) r->filled++;
+	if (t_ctx->t_track_prediction_enable)
+	    redbarron_push_samples(unit, bi);
+
 	/* Inc pointer to next valid sample stash location */
-	bi = (bi >= (NS-1))?0:bi+1; bi_ct++;
+	bi = (bi >= (r->ns-1))?0:bi+1; bi_ct++;
 
 	/*
 	 *  Now go around again and see if there's another valid sample
@@ -1023,7 +1537,8 @@ r->stop_to_mlr.dists[bi], r->stop_to_mll.dists[bi], r->stop_to_mtop.dists[bi]
 	 */
     }
 
-    unit->ztty_last = last_valid;  /* update for next time */
+    unit->ring_last = last_valid;  /* update for next time */
+    unit->stats.resync += bogus_ct;
     r->stack_index = bi;
     r->last_processed_pworld_time = pworld_time;
 
@@ -1041,7 +1556,7 @@ r->stop_to_mlr.dists[bi], r->stop_to_mll.dists[bi], r->stop_to_mtop.dists[bi]
 	/* Brute force clock sync, for now. Eventually, phase rates */
 #ifdef EXPERIMENTAL_2
 	double avg_skew ;
-	avg_skew = (t_ctx->t_pworld_time.time - r->ext_ref_time[bi==0?NS-1:bi-1])/
+	avg_skew = (t_ctx->t_pworld_time.time - r->ext_ref_time[bi==0?r->ns-1:bi-1])/
 		   (100.0*t_ctx->t_pworld_time.delta_time);
 	unit->clock_mul = (unit->clock_mul + avg_skew)/unit->clock_mul;
 	if (unit->clock_mul > 1.1) unit->clock_mul = 1.1;
@@ -1049,7 +1564,7 @@ r->stop_to_mlr.dists[bi], r->stop_to_mll.dists[bi], r->stop_to_mtop.dists[bi]
 	unit->clock_mul = 1.0;
 #endif
 	unit->clock_off +=
-		(pworld_time - (r->ext_ref_time[bi==0?NS-1:bi-1] +
+		(pworld_time - (r->ext_ref_time[bi==0?r->ns-1:bi-1] +
 			      last_valid_dt*unit->clock_mul))/7.0;
     }
 
@@ -1061,76 +1576,118 @@ r->stop_to_mlr.dists[bi], r->stop_to_mll.dists[bi], r->stop_to_mtop.dists[bi]
 }  /* end of redbarron_obtain_current_raw_events */
 
 
+#ifdef DEBUG
 /*
- *  For an array of eight samples, form a least squares line fit to
- *  the valid members (positive dist). Then predict a future value
- *  at the delta time into the future.
+ *  Check the predictions made from the running sums against a line fitted
+ *  from scratch to the samples of the span slots ending at cur_t, each at
+ *  the time its channel's speaker fired, as the fit was first written.
+ *  The phase of a channel cancels: its samples and its prediction are all
+ *  at the same offset from their records' times.
  */
-static double
+static void
+least_sq_fit_check(redbarron_unit *unit, const double pred[],
+	int cur_t, int span, double delta_time) {
+
+    redbarron_raw_flt *r = &unit->raw_stack;
+    double n, st, stt, sd, std, t, d, den, m, b, p;
+    int c, i, k;
+
+    for (c = 0; c < NC; c++) {
+	n = st = stt = sd = std = 0.0;
+	for (k = 0, i = cur_t; k < span; k++, i = (i == 0)?(r->ns-1):i-1) {
+	    d = r->dists[i][c];
+	    if (d <= 0.0) continue;
+	    t = ((double)r->ext_ref_time[i] - r->phase[c]) -
+		((double)r->ext_ref_time[cur_t] - r->phase[c]);
+	    n += 1.0; st += t; stt += t*t; sd += d; std += t*d;
+	}
+
+	/* nothing to check without a well defined line */
+	den = n*stt - st*st;
+	if (n < 2.0 || !(fabs(den) > 1e-12))
+	    continue;
+
+	m = (n*std - st*sd)/den;
+	b = (sd*stt - std*st)/den;
+	p = m*delta_time + b;
+	if (fabs(p - pred[c]) > 1e-4)
+	    fprintf(stderr, "Warning:  channel %d predicted %g, fit %g\n",
+		    c, pred[c], p);
+    }
+}
+#endif /* DEBUG */
+
+
+/*
+ *  For each channel, form a least squares line fit to the valid members
+ *  (positive dist) within the temporal filter range ending at cur_t.  Then
+ *  predict a future value at the delta time into the future.
+ *
+ *  The sums of the fit are kept up to date as records are pushed onto the
+ *  raw stack, so only the samples that enter or leave the range since the
+ *  last call need to be visited here.  The fits of the nine channels are
+ *  done together in one pass with no branches; a channel with no valid
+ *  sample keeps its last prediction.
+ */
+static void
 least_sq_fit_interpolate(track_ctx *t_ctx,
-	redbarron_unit *unit, double times[], samples *samp,
+	redbarron_unit *unit, double pred[],
 	int cur_t, double delta_time) {
 
-    int i,j,k;
-    double sum_t = 0, sum_tt = 0, sum_d = 0, sum_td = 0, m, b, n = 0, tmp;
+    redbarron_raw_flt *r = &unit->raw_stack;
+    double m, b, n, tmp, var, t;
+    int c, span, fit, good;
 
     /* bail if prediction is not enabled */
-    if (!t_ctx->t_track_prediction_enable)
-	return samp->dists[cur_t];
-
-    /*
-     *  Loop through all samples within-in temporal filter range of cur_t,
-     *  computing least squares terms.
-     */
-    for (i = 0; i < NS; i++) {
-	if (cur_t >= i) {
-	    if (cur_t - i >= unit->temporal_filter_length-1) continue;
-	} else {
-	    if (cur_t >= unit->temporal_filter_length-1) continue;
-	    if (NS-1 - i >= unit->temporal_filter_length-1 - cur_t ) continue;
-	}
-	if (samp->dists[i] <= 0.0) continue;
-/*if (fabs(samp->dist[i] - samp->prediction) > 7.0)*/
-	sum_t  += times[i];
-	sum_tt += times[i]*times[i];
-	sum_d  += samp->dists[i];
-	sum_td += times[i]*samp->dists[i];
-	n++;
+    if (!t_ctx->t_track_prediction_enable) {
+	for (c = 0; c < NC; c++)
+	    pred[c] = r->dists[cur_t][c];
+	return;
     }
 
-    /* If no valid sample, indicate to use oldest full data. */
-    if (n == 0) return samp->prediction;
+    /* Bring the sums to the temporal filter range of cur_t */
+    span = unit->temporal_filter_length - 1;
+    if (span > r->filled) span = r->filled;
+    stack_slide(r, cur_t, span);
 
-    /* Finish least squares computation */
-    tmp = 1.0/(n*sum_tt - sum_t*sum_t);
-    m = (n*sum_td - sum_t*sum_d)*tmp;
-    b = (sum_d*sum_tt - sum_td*sum_t)*tmp;
+    /* Time of cur_t relative to t0 */
+    t = (double)r->ext_ref_time[cur_t] - r->t0;
 
-    /* Now to compute the varience */
-    for (i = 0, sum_t = 0.0; i < NS; i++) {
-	if (cur_t >= i) {
-	    if (cur_t - i >= unit->temporal_filter_length-1) continue;
-	} else {
-	    if (cur_t >= unit->temporal_filter_length-1) continue;
-	    if (NS-1 - i >= unit->temporal_filter_length-1 - cur_t ) continue;
-	}
-	if (samp->dists[i] <= 0.0) continue;
-	tmp     = m*times[i] + b - samp->dists[i];
-	sum_t  += tmp*tmp;
-    }
-    sum_t /= n;
+    for (c = 0; c < NC; c++) {
+	/* Finish least squares computation */
+	n = r->sum_n[c];
+	tmp = 1.0/(n*r->sum_tt[c] - r->sum_t[c]*r->sum_t[c]);
+	m = (n*r->sum_td[c] - r->sum_t[c]*r->sum_d[c])*tmp;
+	b = (r->sum_d[c]*r->sum_tt[c] - r->sum_td[c]*r->sum_t[c])*tmp;
 
-    /* If we're on good behavior, update our variance */
-    if (sum_t < OK_VEL) {
-	samp->variance = sum_t; samp->good_time = times[cur_t];
-	samp->m = m; samp->b = b;
+	/* Now to compute the varience, expanded in terms of the sums */
+	var = (m*m*r->sum_tt[c] + 2.0*m*b*r->sum_t[c] + n*b*b
+	       - 2.0*m*r->sum_td[c] - 2.0*b*r->sum_d[c] + r->sum_dd[c])/n;
+
+	/*
+	 *  If we're on good behavior, update our variance, keeping the line
+	 *  in terms of the time the channel's speaker fired.
+	 */
+	fit = n != 0;
+	good = fit & (var < OK_VEL);
+	r->variance[c] = good ? (float)var : r->variance[c];
+	r->good_time[c] = good ?
+	    (float)((double)r->ext_ref_time[cur_t] - r->phase[c]) :
+	    r->good_time[c];
+	r->m[c] = good ? m : r->m[c];
+	r->b[c] = good ? b - m*(r->t0 - r->phase[c]) : r->b[c];
+
+	/* dist = m*time + b */
+	/* Really need to augment delta_time with synchronized adjusted
+	   difference between the time of cur_t and current pworld_time!! */
+	r->prediction[c] = fit ?
+	    (float)(m*(t + delta_time) + b) : r->prediction[c];
+	pred[c] = r->prediction[c];
     }
 
-    /* dist = m*time + b */
-    /* Really need to augment delta_time with synchronized adjusted difference
-       between times[cur_t] and current pworld_time!! */
-    samp->prediction = m*(times[cur_t] + delta_time) + b;
-    return samp->prediction;
+#ifdef DEBUG
+    least_sq_fit_check(unit, pred, cur_t, span, delta_time);
+#endif
 
 }  /* end of least_sq_fit_interpolate */
 
@@ -1342,12 +1899,14 @@ comp_redbarron_raws(track_ctx *t_ctx,
     double	ox, oy, oz;
     double	t1, norm, hbd, ams = 0.0, t2, t3;
     double      mll, mlr, mtop;
+    double	pred[NC];
     double	h, bd;
-    double	times[3][NS];
     double	max_track_distance = 1.5;
-    int		i, j, ii, bi, foo_bar = 0, need_to_adjust_time;
+    int		j, ii, bi, foo_bar = 0, need_to_adjust_time;
 #ifdef EXPERIMENTAL_3
+    double	times[8];
     past_poss	*past_pos; int past_pos_i;
+    int		i;
 #endif
 
     /* Compute delta_time */
@@ -1365,21 +1924,16 @@ comp_redbarron_raws(track_ctx *t_ctx,
     /* Compute index into raw event stack as r->stack_index - 1 */
     r = &unit->raw_stack;
     bi = r->stack_index;
-    bi = (bi <= 0)?(NS-1):bi-1;
+    bi = (bi <= 0)?(r->ns-1):bi-1;
 
 
     /*
      *  The single packet logitech delivered included 9 (10) recpetion events
-     *  that occured in 3 batches, at 3 different times. First we must
-     *  set the proper phased times in the time array.
+     *  that occured in 3 batches, at 3 different times.  The phase of each
+     *  channel's batch relative to the packet time is kept with its samples.
+     *  Interpolate predicted future distances for all the channels at once.
      */
-    /* Copy time array */
-    for (i = 0; i < NS; i++) {
-	times[0][i] = r->ext_ref_time[i];
-	/* Times for older two speakers */
-	times[1][i] = times[0][i] - 0.0066667;
-	times[2][i] = times[0][i] - 0.0133333;
-    }
+    least_sq_fit_interpolate(t_ctx, unit, pred, bi, delta_time);
 
 
     /*
@@ -1402,15 +1956,12 @@ comp_redbarron_raws(track_ctx *t_ctx,
 
 
     /*
-     *  Now for the lower left source, interpolate predicted future
+     *  Now for the lower left source, take the predicted future
      *  distances to the three microphones.
      */
-    mll  = least_sq_fit_interpolate(t_ctx, unit, times[2], &r->sll_to_mll,
-		bi, delta_time);
-    mlr  = least_sq_fit_interpolate(t_ctx, unit, times[2], &r->sll_to_mlr,
-		bi, delta_time);
-    mtop = least_sq_fit_interpolate(t_ctx, unit, times[2], &r->sll_to_mtop,
-		bi, delta_time);
+    mll  = pred[SLL_TO_MLL];
+    mlr  = pred[SLL_TO_MLR];
+    mtop = pred[SLL_TO_MTOP];
 
     /*
      *  Use sphere formula to find intersect of three line segments.
@@ -1429,14 +1980,11 @@ lly, mll, mtop, 2.0*llx*hbd, -hbd*hbd, h*h,
 (mll*mll - mtop*mtop + 2.0*llx*hbd - hbd*hbd +h*h)/(2.0*h));*/
 
     /*
-     *  Interpolate predicted future distances from lower right spk to 3 mics.
+     *  Predicted future distances from lower right spk to 3 mics.
      */
-    mll  = least_sq_fit_interpolate(t_ctx, unit, times[1], &r->slr_to_mll,
-		bi, delta_time);
-    mlr  = least_sq_fit_interpolate(t_ctx, unit, times[1], &r->slr_to_mlr,
-		bi, delta_time);
-    mtop = least_sq_fit_interpolate(t_ctx, unit, times[1], &r->slr_to_mtop,
-		bi, delta_time);
+    mll  = pred[SLR_TO_MLL];
+    mlr  = pred[SLR_TO_MLR];
+    mtop = pred[SLR_TO_MTOP];
 
     /* Use sphere formula to find intersect of three line segments. */
     lrx = (mlr*mlr - mll*mll)/(2.0*bd);
@@ -1447,14 +1995,11 @@ lly, mll, mtop, 2.0*llx*hbd, -hbd*hbd, h*h,
 
 
     /*
-     *  Interpolate predicted future distances from top speaker to 3 mics.
+     *  Predicted future distances from top speaker to 3 mics.
      */
-    mll  = least_sq_fit_interpolate(t_ctx, unit, times[0], &r->stop_to_mll,
-		bi, delta_time);
-    mlr  = least_sq_fit_interpolate(t_ctx, unit, times[0], &r->stop_to_mlr,
-		bi, delta_time);
-    mtop = least_sq_fit_interpolate(t_ctx, unit, times[0], &r->stop_to_mtop,
-		bi, delta_time);
+    mll  = pred[STOP_TO_MLL];
+    mlr  = pred[STOP_TO_MLR];
+    mtop = pred[STOP_TO_MTOP];
 
     /* Use sphere formula to find intersect of three line segments. */
     topx = (mlr*mlr - mll*mll)/(2.0*bd);
@@ -1516,14 +2061,14 @@ topy, mll, mtop, 2.0*topx*hbd, -hbd*hbd, h*h);*/
 
 
     /* Adjust temporal_filter_length by *last* distance from above */
-    if (unit->temporal_filter_length >= 8) {
-	if (norm < 0.50) unit->temporal_filter_length = 8;
+    if (unit->temporal_filter_length >= r->ns/2) {
+	if (norm < 0.50) unit->temporal_filter_length = r->ns/2;
 	else {
-	    unit->temporal_filter_length = 16.0*norm;
-	    if (unit->temporal_filter_length > 16)
-		unit->temporal_filter_length = 16;
-	    if (unit->temporal_filter_length < 8)
-		unit->temporal_filter_length = 8;
+	    unit->temporal_filter_length = r->ns*norm;
+	    if (unit->temporal_filter_length > r->ns)
+		unit->temporal_filter_length = r->ns;
+	    if (unit->temporal_filter_length < r->ns/2)
+		unit->temporal_filter_length = r->ns/2;
 	}
     }
 
@@ -1574,16 +2119,16 @@ topy, mll, mtop, 2.0*topx*hbd, -hbd*hbd, h*h);*/
     } else {
 	past_pos = past_posB; past_pos_i = past_pos_iB;
     }
-    past_pos[past_pos_i].time = times[0][bi] + delta_time;
+    past_pos[past_pos_i].time = r->ext_ref_time[bi] + delta_time;
     past_pos[past_pos_i].x = ix*ox + iy*oy + iz*oz;
     past_pos[past_pos_i].y = jx*ox + jy*oy + jz*oz;
     past_pos[past_pos_i].z = kx*ox + ky*oy + kz*oz;
 
     
     /* Copy time array */
-    for (i = 0; i < 8; i++) times[0][i] = past_pos[i].time;
+    for (i = 0; i < 8; i++) times[i] = past_pos[i].time;
 
-    if (least_sq_fit_avg(times[0], past_pos,
+    if (least_sq_fit_avg(times, past_pos,
 	track_to_dig, past_pos_i) == 0) return 0;
     past_pos_i = (past_pos_i+1) & 0x7;
     /* really wants to know glasses unit in test */
@@ -1624,9 +2169,9 @@ redbarron_debounce_buttons(redbarron_unit *unit) {
     /* Cache pointer to raw stack */
     r = &unit->raw_stack;
     bi = r->stack_index;
-    i = bi==0?NS-1:bi-1;
+    i = bi==0?r->ns-1:bi-1;
 
-    for ( ; (but1 < 0 || but2 < 0 || but3 < 0) && i != bi; i = i==0?NS-1:i-1) {
+    for ( ; (but1 < 0 || but2 < 0 || but3 < 0) && i != bi; i = i==0?r->ns-1:i-1) {
         if (r->valid[i] == 0) continue;
         if (but1 < 0) but1 = r->buttons[i];
         else if (but2 < 0) but2 = r->buttons[i];
@@ -1648,6 +2193,47 @@ redbarron_debounce_buttons(redbarron_unit *unit) {
 }
 
 
+/*
+ *  Read the unit's current transform, row major into event->values, and
+ *  its debounced buttons.  The status is 0 if there is no transform yet,
+ *  1 if it includes a record that arrived since the last call, or 2 if it
+ *  is only extrapolated from records already seen.  Returns the status.
+ */
+int
+redbarron_read_event(nu_serial_ctx_type *ctx, redbarron_unit *unit,
+		     serial_event *event) {
+    track_ctx *t_ctx ;
+    matrix_d3d track_to_dig ;
+    unsigned long long packets ;
+    int i, buttons ;
+
+    t_ctx = (track_ctx *)
+	ctx->peripheral_drivers[unit->peripheral_driver_index].driver_ctx ;
+
+    packets = unit->stats.packets ;
+    redbarron_obtain_current_raw_events(t_ctx, unit) ;
+    if (comp_redbarron_raws(t_ctx, unit, track_to_dig) == 0) {
+	event->status = 0 ;
+	return 0 ;
+    }
+
+    memcpy(event->values, &track_to_dig[0][0], sizeof(event->values)) ;
+    event->age = serial_time((serial_device_substruct *)unit) -
+	unit->event_time ;
+
+    if ((buttons = redbarron_debounce_buttons(unit)) >= 0)
+	for (i = 0 ; i < 4 ; i++)
+	    event->buttons[i] = (buttons & (1 << i)) == 0 ? 0 : 1 ;
+    else
+	for (i = 0 ; i < 4 ; i++)
+	    event->buttons[i] = -1 ;
+
+    /* 2 if the matrix is only extrapolated from records already seen */
+    event->status = unit->stats.packets != packets ? 1 : 2 ;
+    return event->status ;
+}
+
+
 /*
  *  Debugging print for raw event record, int format.
  */
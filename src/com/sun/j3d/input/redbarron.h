@@ -40,12 +40,13 @@
 #include "com_sun_j3d_input_LogitechTracker.h"
 
 /*
- * The Logitech trackers are little-endian devices.  For now we assume this
- * code is most likely to be run on big-endian machines.
+ * The Logitech trackers are little-endian devices.  Compilers that don't
+ * advertise the target byte order (such as the Sun compiler) are assumed to
+ * be building for big-endian SPARC.
  */
-/* #if defined(sparc) || defined(__sparc) */
+#if !defined(__BYTE_ORDER__) || (__BYTE_ORDER__ == __ORDER_BIG_ENDIAN__)
 #define SWAPBYTES
-/* #endif */
+#endif
 
 typedef enum {
     D_R_LL_TO_LR_MIC = 
@@ -63,7 +64,11 @@ typedef enum {
     D_T_LL_TO_CAL_MIC =
     com_sun_j3d_input_LogitechTracker_D_T_LL_TO_CAL_MIC,
     D_T_LL_LR_TO_TOP_SPK =
-    com_sun_j3d_input_LogitechTracker_D_T_LL_LR_TO_TOP_SPK
+    com_sun_j3d_input_LogitechTracker_D_T_LL_LR_TO_TOP_SPK,
+    PROBE_CACHE =
+    com_sun_j3d_input_LogitechTracker_PROBE_CACHE,
+    SAMPLE_HISTORY =
+    com_sun_j3d_input_LogitechTracker_SAMPLE_HISTORY
 } redbarron_attributes ;
 
 
@@ -89,33 +94,69 @@ typedef	struct	redbarron_raw_int {
 
 
 
+/*
+ *  The raw sample stack holds the newest ns records of a unit, NS unless
+ *  set otherwise by its SAMPLE_HISTORY attribute, and at most NS_MAX.
+ */
 #define NS 16
-typedef struct	samples {
-    float	dists[NS];
-    float	prediction;
-    float	variance;
-    double	m,b;
-    float	good_time;
-    int		lost_in_time_count;
-} samples;
+#define NS_MAX com_sun_j3d_input_LogitechTracker_MAX_SAMPLE_HISTORY
+
+/*
+ *  The nine speaker to mic channels of a record, in the order they are
+ *  sent: the lower left, lower right and top speakers, each to the lower
+ *  right, lower left and top mics.
+ */
+enum {
+    SLL_TO_MLR, SLL_TO_MLL, SLL_TO_MTOP,
+    SLR_TO_MLR, SLR_TO_MLL, SLR_TO_MTOP,
+    STOP_TO_MLR, STOP_TO_MLL, STOP_TO_MTOP,
+    NC
+} ;
 
  
 /*
  *  Stack of raw mouse distances.
+ *
+ *  The stack is laid out as structure of arrays, with the state of the
+ *  nine channels in arrays indexed by channel, and the nine distances of
+ *  each record together, so that each step of the pipeline goes over all
+ *  the channels in one loop the compiler can vectorize.
+ *
+ *  While prediction is enabled, each channel keeps the least squares sums
+ *  of its valid samples among the newest `span' slots of the stack, with
+ *  times relative to t0, adding each record as it is pushed and dropping
+ *  it when it leaves the temporal filter window.  phase is the time before
+ *  the record's time at which the channel's speaker fired.
  */
 typedef	struct	redbarron_raw_flt {
     double	last_processed_pworld_time;
+    int		ns;		/* depth of the stack */
     int		stack_index;
-    int		valid[NS];
-    float	ext_ref_time[NS];
-    int		buttons[NS];
-    samples	sll_to_mcal;
-    samples	sll_to_mlr,  sll_to_mll,  sll_to_mtop;
-    samples	slr_to_mlr,  slr_to_mll,  slr_to_mtop;
-    samples	stop_to_mlr, stop_to_mll, stop_to_mtop;
+    int		filled;		/* records pushed since it was cleared */
+    int		span;
+    double	t0;
+    int		valid[NS_MAX];
+    float	ext_ref_time[NS_MAX];
+    int		buttons[NS_MAX];
+    float	mcal[NS_MAX];	/* counts of the calibration mic */
+    float	dists[NS_MAX][NC];
+
+    float	prediction[NC];
+    float	variance[NC];
+    double	m[NC], b[NC];
+    float	good_time[NC];
+    int		lost_in_time_count[NC];
+    double	phase[NC];
+    double	sum_n[NC], sum_t[NC], sum_tt[NC];
+    double	sum_d[NC], sum_td[NC], sum_dd[NC];
 } redbarron_raw_flt;
 
  
+/*
+ *  Size of the reply to a current operational information request.
+ */
+#define REDBARRON_OP_INFO_SIZE 30
+
 /*
  *  Structure of current operational information request
  *  from Logitech unit.
@@ -183,12 +224,22 @@ typedef struct redbarron_unit {
     double		 d_t_ll_lr_to_top_spk;
 
     int                  lost_in_time_count ;
+
+    /* the probe cache file, and the entry read from it for this port */
+    char		*probe_cache ;
+    int			 probe_cached ;
+    unsigned char	 cached_op_info[REDBARRON_OP_INFO_SIZE] ;
+
+    /* the last operational info reply, as sent by the unit */
+    unsigned char	 op_info_reply[REDBARRON_OP_INFO_SIZE] ;
 } redbarron_unit;
 
 
 extern	char	redbarron_message[256];
 
+#ifndef LINUX
 extern	int errno;
+#endif
 
 #ifndef METERS_PER_INCH
 #define METERS_PER_INCH 0.0254
@@ -250,3 +301,7 @@ comp_redbarron_raws(track_ctx *t_ctx,
 
 int
 redbarron_debounce_buttons(redbarron_unit *unit) ;
+
+int
+redbarron_read_event(nu_serial_ctx_type *ctx, redbarron_unit *unit,
+		     serial_event *event) ;
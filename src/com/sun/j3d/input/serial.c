@@ -37,18 +37,38 @@
  * any nuclear facility.
  */
 
+#ifdef LINUX
+#define _GNU_SOURCE  /* for pthread_setaffinity_np() */
+#endif
+
 #include <math.h>
 #include <fcntl.h>
 #include <stdlib.h>
 #include <unistd.h>
-#include <sys/termios.h>
-#include <sys/filio.h>
 #include <sys/types.h>
 #include <sys/mman.h>
+#ifdef LINUX
+#include <stdint.h>
+#include <termios.h>
+#include <time.h>
+#include <sys/ioctl.h>
+#include <sys/epoll.h>
+#include <sys/eventfd.h>
+#include <sched.h>
+#include <sys/stat.h>
+#include <sys/syscall.h>
+#include <linux/futex.h>
+#include <linux/serial.h>
+#include <limits.h>
+#else
+#include <sys/termios.h>
+#include <sys/filio.h>
 #include <stropts.h>
 #include <sys/conf.h>
+#endif
 #include <signal.h>
 #include <errno.h>
+#include <poll.h>
 #include <string.h>
 #include <pthread.h>
 #include "serial.h"
@@ -65,6 +85,11 @@
  * two.  serial_ports_init_open_probe() can now be called multiple times to
  * open ports individually, but will still allow multiple ports to be opened,
  * reset, and initialized for devices that share affinities.
+ *
+ * Builds with -DLINUX use a termios backend in place of the Solaris
+ * STREAMS ioctls, and a reader thread which fills the ring buffers as
+ * characters arrive in place of the RSB.  See serial_ports_open() and
+ * serial_reader_loop() below.
  */
 
 #ifdef SOLARIS
@@ -90,31 +115,377 @@ static void *mmap_va = 0 ;
 static int mmap_ref_count = 0 ;
 #endif
 
+#ifdef LINUX
+/*
+ * Linux has no gethrtime(); CLOCK_MONOTONIC provides the same guarantees
+ * (nanosecond units, not subject to adjustment by settimeofday()).
+ */
+hrtime_t
+gethrtime(void)
+{
+    struct timespec ts ;
+
+    clock_gettime(CLOCK_MONOTONIC, &ts) ;
+    return (hrtime_t)ts.tv_sec * 1000000000 + ts.tv_nsec ;
+}
+
+static void serial_reader_add(serial_device_substruct *unit) ;
+static void serial_reader_remove(serial_device_substruct *unit) ;
+static void serial_reader_tune(serial_device_substruct *unit) ;
+static int serial_shm_attach(serial_device_substruct *unit) ;
+static void serial_shm_detach(serial_device_substruct *unit) ;
+static void serial_shm_skip(serial_device_substruct *unit) ;
+static void serial_copy_shm(serial_device_substruct *unit) ;
+#endif /* LINUX */
+
+static void serial_replay_command(serial_device_substruct *unit) ;
+
+/*
+ *  Map a baud rate to its termios speed constant.  Returns 0 for rates that
+ *  aren't supported.  The rates above 38400 are not defined on every
+ *  system.
+ */
+static speed_t
+serial_baud_constant(int baud) {
+    switch (baud) {
+      case    300: return    B300 ;
+      case    600: return    B600 ;
+      case   1200: return   B1200 ;
+      case   2400: return   B2400 ;
+      case   4800: return   B4800 ;
+      case   9600: return   B9600 ;
+      case  19200: return  B19200 ;
+      case  38400: return  B38400 ;
+#ifdef B57600
+      case  57600: return  B57600 ;
+#endif
+#ifdef B115200
+      case 115200: return B115200 ;
+#endif
+#ifdef B230400
+      case 230400: return B230400 ;
+#endif
+      default:     return 0 ;
+    }
+}
+
+/*
+ *  Returns 1 if the baud rate can be set with serial_ports_open(), 0
+ *  otherwise.
+ */
+int
+serial_baud_supported(int baud) {
+    return serial_baud_constant(baud) != 0 ;
+}
+
+
+/*
+ * Add an entry to a table, returning its index or -1 if the table is full
+ * or memory can't be allocated.
+ */
+static int
+serial_table_add(serial_table *t, void *entry)
+{
+    int i, *grown ;
+    void **chunk ;
+
+    if (t->free_count > 0) {
+	i = t->free_list[--t->free_count] ;
+    }
+    else {
+	if (t->size == SERIAL_TABLE_CHUNK * SERIAL_TABLE_CHUNKS) {
+	    fprintf(stderr, "Exceeded max table entries (%d)\n",
+		    SERIAL_TABLE_CHUNK * SERIAL_TABLE_CHUNKS) ;
+	    return -1 ;
+	}
+
+	if (t->size % SERIAL_TABLE_CHUNK == 0) {
+	    chunk = (void **)calloc(SERIAL_TABLE_CHUNK, sizeof(void *)) ;
+	    if (!chunk) return -1 ;
+	    t->chunks[t->size / SERIAL_TABLE_CHUNK] = chunk ;
+	}
+
+	/* make sure a release of this entry won't have to grow the stack */
+	if (t->free_size <= t->size) {
+	    grown = (int *)realloc(t->free_list,
+				   (t->size + SERIAL_TABLE_CHUNK) * sizeof(int)) ;
+	    if (!grown) return -1 ;
+	    t->free_list = grown ;
+	    t->free_size = t->size + SERIAL_TABLE_CHUNK ;
+	}
+	i = t->size++ ;
+    }
+
+    t->chunks[i / SERIAL_TABLE_CHUNK][i % SERIAL_TABLE_CHUNK] = entry ;
+    return i ;
+}
+
+/*
+ * Return the entry at index i of a table, or null.
+ */
+static void *
+serial_table_get(serial_table *t, int i)
+{
+    void **chunk ;
+
+    if (i < 0 || i >= SERIAL_TABLE_CHUNK * SERIAL_TABLE_CHUNKS) return 0 ;
+
+    chunk = t->chunks[i / SERIAL_TABLE_CHUNK] ;
+    return chunk ? chunk[i % SERIAL_TABLE_CHUNK] : 0 ;
+}
+
+/*
+ * Release the entry at index i of a table, returning it.
+ */
+static void *
+serial_table_remove(serial_table *t, int i)
+{
+    void *entry = serial_table_get(t, i) ;
+
+    if (entry) {
+	t->chunks[i / SERIAL_TABLE_CHUNK][i % SERIAL_TABLE_CHUNK] = 0 ;
+	t->free_list[t->free_count++] = i ;
+    }
+    return entry ;
+}
+
+/*
+ * Free the memory used by a table, but not its entries.
+ */
+static void
+serial_table_free(serial_table *t)
+{
+    int i ;
+
+    for (i = 0 ; i < SERIAL_TABLE_CHUNKS ; i++)
+	free(t->chunks[i]) ;
+
+    free(t->free_list) ;
+    memset(t, 0, sizeof(serial_table)) ;
+}
+
+
+/*
+ * Create an empty serial context.  Peripheral drivers are installed in it
+ * with serial_add_peripheral_driver().
+ */
+nu_serial_ctx_type *
+serial_context_create(void)
+{
+    nu_serial_ctx_type *ctx ;
+
+    ctx = (nu_serial_ctx_type *)calloc(1, sizeof(nu_serial_ctx_type)) ;
+    if (ctx == 0)
+	fprintf(stderr, "Error:  cannot malloc serial context\n") ;
+
+    return ctx ;
+}
+
+/*
+ * Close all the devices of a context and free it.
+ */
+void
+serial_context_free(nu_serial_ctx_type *ctx)
+{
+    serial_device_substruct *unit ;
+    int i ;
+
+    if (! ctx) return ;
+
+    for (i = 0 ; i < ctx->peripheral_assignments.size ; i++) {
+	if ((unit = serial_device(ctx, i)) != 0) {
+	    ctx->peripheral_drivers[unit->peripheral_driver_index]
+		.close_device(unit) ;
+	    serial_close(ctx, i) ;
+	}
+    }
+
+    for (i = 0 ; i < ctx->number_peripheral_drivers ; i++)
+	free(ctx->peripheral_drivers[i].driver_ctx) ;
+
+    serial_table_free(&ctx->peripheral_assignments) ;
+    free(ctx->peripheral_drivers) ;
+    free(ctx) ;
+}
+
+/*
+ * Add a peripheral driver to a context, returning it zeroed for the caller
+ * to fill in, or null if memory can't be allocated.  Drivers may move as
+ * more are added, so they are referenced by index.
+ */
+peripheral_driver *
+serial_add_peripheral_driver(nu_serial_ctx_type *ctx)
+{
+    peripheral_driver *pd ;
+    int n ;
+
+    if (ctx->number_peripheral_drivers == ctx->max_peripheral_drivers) {
+	n = ctx->max_peripheral_drivers ? 2 * ctx->max_peripheral_drivers : 4 ;
+	pd = (peripheral_driver *)
+	    realloc(ctx->peripheral_drivers, n * sizeof(peripheral_driver)) ;
+	if (!pd) {
+	    fprintf(stderr, "Error:  cannot malloc peripheral driver\n") ;
+	    return 0 ;
+	}
+	ctx->peripheral_drivers = pd ;
+	ctx->max_peripheral_drivers = n ;
+    }
+
+    pd = &ctx->peripheral_drivers[ctx->number_peripheral_drivers++] ;
+    memset(pd, 0, sizeof(peripheral_driver)) ;
+    return pd ;
+}
+
+/*
+ * Create a device instance for the given driver, returning its index or -1.
+ */
+int
+serial_add_device(nu_serial_ctx_type *ctx, int driverIndex)
+{
+    serial_device_substruct *unit ;
+    int n ;
+
+    unit = ctx->peripheral_drivers[driverIndex].create_instance() ;
+    if (!unit) return -1 ;
+
+    unit->fd = -1 ;
+    unit->reader_cpu = -1 ;
+    unit->replay_speed = 1.0 ;
+    unit->peripheral_driver_index = driverIndex ;
+    unit->state = SERIAL_DEVICE_STATE_CREATED ;
+
+    if ((n = serial_table_add(&ctx->peripheral_assignments, unit)) == -1)
+	free(unit) ;
+
+    return n ;
+}
+
+/*
+ * Return the device with the given index, or null.  This doesn't lock, and
+ * may be called while devices are being added to the context.
+ */
+serial_device_substruct *
+serial_device(nu_serial_ctx_type *ctx, int deviceIndex)
+{
+    if (! ctx) return 0 ;
+
+    return (serial_device_substruct *)
+	serial_table_get(&ctx->peripheral_assignments, deviceIndex) ;
+}
+
+
+/*
+ * The "Raw" peripheral driver only opens the port and fills the ring.  It
+ * is used by the Java ProtocolDevice, which sends its own commands and
+ * decodes the ring from Java, so it has nothing to reset or probe.  DTR and
+ * RTS are raised, as the Java transport raises them for every device.
+ */
+static serial_device_substruct *
+serial_raw_create_instance() {
+    serial_device_substruct *unit ;
+
+    unit = (serial_device_substruct *)malloc(sizeof(serial_device_substruct)) ;
+    if (unit == 0) {
+	fprintf(stderr, "Error:  cannot malloc raw serial instance\n") ;
+	return 0 ;
+    }
+
+    memset(unit, 0, sizeof(serial_device_substruct)) ;
+
+    unit->baud = 9600 ;
+    unit->needs_rts_and_dtr = 1 ;
+
+    return unit ;
+}
+
+static void
+serial_raw_reset_device(serial_device_substruct *unit) {
+    unit->ring_last = RING_HEAD(&unit->ring) ;
+}
+
+static int
+serial_raw_probe_device(serial_device_substruct *unit) {
+    return 1 ;
+}
+
+static int
+serial_raw_device_attribute_double(
+    serial_device_substruct *instance_data, int attributeNumber, double val) {
+    return 0 ;
+}
+
+static int
+serial_raw_device_attribute_string(
+    serial_device_substruct *instance_data, int attributeNumber, char *val) {
+    return 0 ;
+}
+
+static void
+serial_raw_close(serial_device_substruct *unit) {
+}
+
+int
+serial_install_raw_peripheral_driver(nu_serial_ctx_type *ctx) {
+    peripheral_driver *pd ;
+
+    if ((pd = serial_add_peripheral_driver(ctx)) == 0)
+	return 0 ;
+
+    pd->driver_ctx = 0 ;
+    pd->packet_size = 0 ;
+
+    pd->peripheral_driver_name = "Raw" ;
+    pd->create_instance = serial_raw_create_instance ;
+    pd->reset_device = serial_raw_reset_device ;
+    pd->reset_device_array = 0 ;
+    pd->probe_device = serial_raw_probe_device ;
+    pd->probe_device_array = 0 ;
+    pd->device_attribute_double = serial_raw_device_attribute_double ;
+    pd->device_attribute_string = serial_raw_device_attribute_string ;
+    pd->close_device = serial_raw_close ;
+
+    return 1 ;
+}
+
 /*
  *  This routine does most of the work to initialize the Sun's serial port(s)
- *  for use with input devices. This routine handles arrays of serial ports
- *  to allow (necessary) sleeps during the baud rate changing period
- *  to be overlapped.
+ *  for use with input devices. This routine handles arrays of serial ports.
  *
  *  1 is returned on success, 0 on fail.
  *
- *  For all serial ports, in parallel (to gang sleep's):
+ *  For all serial ports:
  *
  *     Open the named serial port.
  *     Reset the serial port to the specified baud rate
  *       (optionally turn on RTS and DTR iff needed).
- *     Pop all streams modules.
+ *     Pop all streams modules (Solaris only).
  *     Set non-blocking IO.
+ *
+ *  On Linux the port is opened non-blocking from the start (O_NONBLOCK also
+ *  keeps open() from waiting on carrier detect) and put into raw mode with
+ *  cfmakeraw().  VMIN and VTIME are both 0, so the line discipline itself
+ *  never waits for characters or an inter-character timer: a read returns
+ *  whatever has been received and 0 otherwise, the same polling semantics
+ *  the Solaris path gets from O_NDELAY.  There are no STREAMS modules to
+ *  pop.
  */
 static int
 serial_ports_open(serial_device_substruct *ttys[], int count)
 {
-    int i, flags, baud ;
+    int i ;
+    speed_t baud ;
     struct termios tio ;
+#ifdef LINUX
+    int bits ;
+#else
+    int flags ;
     char exstreamname[FMNAMESZ+1] ;
+#endif
 
     for (i = 0 ; i < count ; i++) {
 	if (ttys[i] && ttys[i]->state != SERIAL_DEVICE_STATE_OPENED) {
+	    hrtime_t start = gethrtime() ;
+	    ttys[i]->init_reset = ttys[i]->init_probe = 0 ;
 
 	    /* check port name */
 	    if (!ttys[i]->port_name) {
@@ -122,8 +493,39 @@ serial_ports_open(serial_device_substruct *ttys[], int count)
 		return 0 ;
 	    }
 
+	    /* a replayed unit has no port; its capture is read later */
+	    if (ttys[i]->replay_file) {
+		ttys[i]->init_open = 0 ;
+		continue ;
+	    }
+
+#ifdef LINUX
+	    /* map the port's serialmux ring instead of opening it */
+	    if (ttys[i]->use_shm) {
+		int attached = serial_shm_attach(ttys[i]) ;
+		if (attached == -1)
+		    return 0 ;
+
+		if (attached) {
+		    ttys[i]->init_open = gethrtime() - start ;
+		    continue ;
+		}
+
+		fprintf(stderr, "Warning:  no serialmux for %s, ",
+			ttys[i]->port_name) ;
+		fprintf(stderr, "opening the port directly.\n") ;
+		ttys[i]->use_shm = 0 ;
+	    }
+#endif
+
 	    /* open the tty */
-	    if ((ttys[i]->fd = open(ttys[i]->port_name, O_RDWR)) == -1) {
+#ifdef LINUX
+	    ttys[i]->fd = open(ttys[i]->port_name,
+			       O_RDWR | O_NOCTTY | O_NONBLOCK) ;
+#else
+	    ttys[i]->fd = open(ttys[i]->port_name, O_RDWR) ;
+#endif
+	    if (ttys[i]->fd == -1) {
 		fprintf(stderr, "failed opening %s\n", ttys[i]->port_name) ;
 		return 0 ;
 	    }
@@ -133,23 +535,59 @@ serial_ports_open(serial_device_substruct *ttys[], int count)
 		    ttys[i]->needs_rts_and_dtr? "high" : "low")) ;
 
 	    /* set port parameters */
-	    switch (ttys[i]->baud) {
-	      case   300: baud =   B300 ; break ;
-	      case   600: baud =   B600 ; break ;
-	      case  1200: baud =  B1200 ; break ;
-	      case  2400: baud =  B2400 ; break ;
-	      case  4800: baud =  B4800 ; break ;
-	      case  9600: baud =  B9600 ; break ;
-	      case 19200: baud = B19200 ; break ;
-	      default:
+	    if ((baud = serial_baud_constant(ttys[i]->baud)) == 0) {
 		fprintf(stderr, "unsupported baud rate %d set for %s\n",
 			ttys[i]->baud, ttys[i]->port_name) ;
+		close(ttys[i]->fd) ;
+		ttys[i]->fd = -1 ;
+		return 0 ;
+	    }
+
+#ifdef LINUX
+	    if (tcgetattr(ttys[i]->fd, &tio) == -1) {
+		fprintf(stderr, "failed getting port parameters on %s (%d)\n",
+			ttys[i]->port_name, errno) ;
+		close(ttys[i]->fd) ;
+		ttys[i]->fd = -1 ;
+		return 0 ;
+	    }
+
+	    cfmakeraw(&tio) ;
+	    tio.c_cflag &= ~(CSTOPB | CRTSCTS) ;
+	    tio.c_cflag |= CREAD | CLOCAL ;
+	    tio.c_cc[VMIN] = 0 ;
+	    tio.c_cc[VTIME] = 0 ;
+	    cfsetispeed(&tio, baud) ;
+	    cfsetospeed(&tio, baud) ;
+
+	    if (tcsetattr(ttys[i]->fd, TCSANOW, &tio) == -1) {
+		fprintf(stderr, "failed setting port parameters on %s (%d)\n",
+			ttys[i]->port_name, errno) ;
+		close(ttys[i]->fd) ;
+		ttys[i]->fd = -1 ;
 		return 0 ;
 	    }
 
+	    /* discard anything received before the line was configured */
+	    tcflush(ttys[i]->fd, TCIOFLUSH) ;
+
+	    /*
+	     * Set RTS and DTR high, iff requested.  Some serial devices
+	     * (like the gameport) sneak power off of RTS and DTR, so they
+	     * must be high.
+	     */
+	    if (ttys[i]->needs_rts_and_dtr) {
+		bits = TIOCM_RTS | TIOCM_DTR ;
+		ioctl(ttys[i]->fd, TIOCMBIS, &bits) ;
+	    }
+#else
 	    tio.c_cc[VMIN] = 0 ;
 	    tio.c_cc[VTIME] = 1 ; 
-	    tio.c_cflag = baud | CS8 | CREAD | CLOCAL ;
+	    tio.c_cflag = CS8 | CREAD | CLOCAL ;
+
+	    /* rates above 38400 don't fit in CBAUD; let the library encode */
+	    cfsetispeed(&tio, baud) ;
+	    cfsetospeed(&tio, baud) ;
 	    if (ioctl(ttys[i]->fd, TCSETS, &tio) == -1) {
 		fprintf(stderr, "failed setting port parameters on %s (%d)",
 			ttys[i]->port_name, errno) ;
@@ -164,16 +602,23 @@ serial_ports_open(serial_device_substruct *ttys[], int count)
 	     */
 	    if (ttys[i]->needs_rts_and_dtr)
 		ioctl(ttys[i]->fd, TIOCMBIS, TIOCM_RTS | TIOCM_DTR) ;
+#endif /* LINUX */
+	    ttys[i]->init_open = gethrtime() - start ;
 	}
     }
 
     /*
-     *  Sleep, waiting for serial port baud changes to take effect.
+     *  No sleep is needed for the baud rate changes; they take effect
+     *  before the ioctl returns.  Devices that need time to settle after
+     *  the port is configured are waited for by their probe functions,
+     *  which look for an actual response with serial_wait().
      */
-    sleep(1) ;
 
+#ifndef LINUX
     for (i = 0 ; i < count ; i++) {
 	if (ttys[i] && ttys[i]->state != SERIAL_DEVICE_STATE_OPENED) {
+	    hrtime_t start = gethrtime() ;
+
 	    /* pop all stream modules */
 	    while (ioctl(ttys[i]->fd, I_LOOK, exstreamname) != -1) {
 		if (ioctl(ttys[i]->fd, I_POP, 0) == -1) {
@@ -188,8 +633,10 @@ serial_ports_open(serial_device_substruct *ttys[], int count)
 	    /* set non-blocking IO */
 	    flags = fcntl(ttys[i]->fd, F_GETFL) ;
 	    fcntl(ttys[i]->fd, F_SETFL, flags | O_NDELAY) ;
+	    ttys[i]->init_open += gethrtime() - start ;
 	}
     }
+#endif /* !LINUX */
 
     return 1 ;
 }
@@ -247,44 +694,279 @@ serial_map_rsb(mtty **ztty)
 #endif /* SOLARIS */
 
 
+/*
+ * A device, or a driver's group of affinity devices, to be reset and probed
+ * by serial_probe_thread().
+ */
+typedef struct serial_probe_job {
+    peripheral_driver *driver ;
+    serial_device_substruct **units ;
+    int count ;
+    int status ;	/* result of the probe */
+    int threaded ;	/* set if run on its own thread */
+    pthread_t thread ;
+} serial_probe_job ;
+
+
+/*
+ * Reset and probe the devices of a job, recording how long each step took.
+ * Drivers that handle affinities are always called with the array entry
+ * points, even for a single device.
+ */
+static void *
+serial_probe_thread(void *arg)
+{
+    serial_probe_job *job = (serial_probe_job *)arg ;
+    peripheral_driver *pd = job->driver ;
+    hrtime_t t0, t1, t2 ;
+    int i ;
+
+    t0 = gethrtime() ;
+    if (pd->reset_device_array)
+	pd->reset_device_array(job->units, job->count) ;
+    else
+	pd->reset_device(job->units[0]) ;
+
+    t1 = gethrtime() ;
+    if (pd->probe_device_array)
+	job->status = pd->probe_device_array(job->units, job->count) ;
+    else
+	job->status = pd->probe_device(job->units[0]) ;
+
+    t2 = gethrtime() ;
+    for (i = 0 ; i < job->count ; i++) {
+	job->units[i]->init_reset = t1 - t0 ;
+	job->units[i]->init_probe = t2 - t1 ;
+    }
+
+    return 0 ;
+}
+
+
+static int
+serial_ports_open_probe(nu_serial_ctx_type *ctx,
+			serial_device_substruct **devices, int count,
+			serial_device_substruct **group,
+			serial_probe_job *jobs) ;
+
+static void
+serial_release(serial_device_substruct *unit) ;
+
+/*
+ * Apply the LowLatency mode to a port once its device has been probed.
+ * Each part is applied independently, and a part that isn't supported or
+ * permitted is skipped with a warning; low_latency_status records the
+ * parts that were applied.
+ *
+ * On Linux, ASYNC_LOW_LATENCY asks the UART driver to pass characters to
+ * the tty layer as soon as they arrive instead of batching them.  It is set
+ * with TIOCSSERIAL, which only real serial ports support, and like
+ * setserial(8) it stays set after the port is closed.  VMIN is then set to
+ * the driver's record size, with VTIME 0, so that the reader thread is
+ * woken once per record rather than for every few characters; reads remain
+ * non-blocking, so polling is unaffected.  This is done after the probe so
+ * that the shorter replies read during the probe aren't held back.  Finally
+ * the reader thread is given SCHED_FIFO priority, which needs the
+ * CAP_SYS_NICE capability or an RLIMIT_RTPRIO limit, and pinned to the
+ * ReaderCPU if one was set.  There is a single reader thread for all the
+ * ports, so these last two affect them all and last until every port is
+ * closed.
+ *
+ * Elsewhere there is nothing to apply; Solaris has the Realtime Serial
+ * Buffer instead.
+ */
+static void
+serial_low_latency(serial_device_substruct *unit, peripheral_driver *driver)
+{
+#ifdef LINUX
+    struct serial_struct ss ;
+    struct termios tio ;
+    int missing ;
+
+    unit->low_latency_status = 0 ;
+
+    if (unit->replay)
+	return ;
+
+    if (unit->shm) {
+	fprintf(stderr, "Warning:  LowLatency for %s must be set ",
+		unit->port_name) ;
+	fprintf(stderr, "with serialmux -L.\n") ;
+	return ;
+    }
+
+    if (ioctl(unit->fd, TIOCGSERIAL, &ss) == 0) {
+	ss.flags |= ASYNC_LOW_LATENCY ;
+	if (ioctl(unit->fd, TIOCSSERIAL, &ss) == 0)
+	    unit->low_latency_status |= LOW_LATENCY_PORT ;
+    }
+
+    if (unit->use_reader &&
+	driver->packet_size > 0 && driver->packet_size <= 255 &&
+	tcgetattr(unit->fd, &tio) == 0) {
+	tio.c_cc[VMIN] = driver->packet_size ;
+	tio.c_cc[VTIME] = 0 ;
+	if (tcsetattr(unit->fd, TCSANOW, &tio) == 0)
+	    unit->low_latency_status |= LOW_LATENCY_VMIN ;
+    }
+
+    serial_reader_tune(unit) ;
+
+    missing = ~unit->low_latency_status &
+	(LOW_LATENCY_PORT | LOW_LATENCY_VMIN | LOW_LATENCY_SCHED_FIFO |
+	 (unit->reader_cpu >= 0 ? LOW_LATENCY_CPU : 0)) ;
+    if (missing)
+	fprintf(stderr, "Warning:  LowLatency on %s could not set%s%s%s%s\n",
+		unit->port_name,
+		missing & LOW_LATENCY_PORT ? " ASYNC_LOW_LATENCY" : "",
+		missing & LOW_LATENCY_VMIN ? " VMIN" : "",
+		missing & LOW_LATENCY_SCHED_FIFO ? " SCHED_FIFO" : "",
+		missing & LOW_LATENCY_CPU ? " ReaderCPU" : "") ;
+
+    DPRINT(("serial_low_latency:  %s status 0x%x\n",
+	    unit->port_name, unit->low_latency_status)) ;
+#else
+    unit->low_latency_status = 0 ;
+    fprintf(stderr, "Warning:  LowLatency not supported for %s; ",
+	    unit->port_name) ;
+    fprintf(stderr, "use RealtimeSerialBuffer instead.\n") ;
+#endif /* LINUX */
+}
+
 /*
  * Open and probe all currently unopened serial ports.
  */
 int
 serial_ports_init_open_probe(nu_serial_ctx_type *ctx)
 {
-    int i, j ;
+    serial_device_substruct **devices, **group, *unit ;
+    serial_probe_job *jobs ;
+    int i, n = 0, status ;
+
+    /* gather the unopened devices */
+    for (i = 0 ; i < ctx->peripheral_assignments.size ; i++) {
+	unit = serial_device(ctx, i) ;
+	if (unit && unit->state != SERIAL_DEVICE_STATE_OPENED) n++ ;
+    }
+    if (n == 0) return 1 ;
+
+    devices = (serial_device_substruct **)
+	malloc(n * sizeof(serial_device_substruct *)) ;
+    group = (serial_device_substruct **)
+	malloc(n * sizeof(serial_device_substruct *)) ;
+    jobs = (serial_probe_job *)malloc(n * sizeof(serial_probe_job)) ;
+
+    if (devices && group && jobs) {
+	for (i = 0, n = 0 ; i < ctx->peripheral_assignments.size ; i++) {
+	    unit = serial_device(ctx, i) ;
+	    if (unit && unit->state != SERIAL_DEVICE_STATE_OPENED)
+		devices[n++] = unit ;
+	}
+	status = serial_ports_open_probe(ctx, devices, n, group, jobs) ;
+    }
+    else {
+	fprintf(stderr, "Error:  cannot malloc serial probe data\n") ;
+	status = 0 ;
+    }
+
+    free(devices) ;
+    free(group) ;
+    free(jobs) ;
+    return status ;
+}
+
+
+/*
+ * Start capturing a unit's characters in the capture named by its
+ * CaptureFile property.  A capture that can't be created is reported and
+ * the unit is used without it.
+ */
+static void
+serial_capture_unit(serial_device_substruct *unit, peripheral_driver *driver)
+{
+    unit->capture = serial_capture_open
+	(unit->capture_file,
+	 unit->capture_size ? unit->capture_size : SERIAL_CAPTURE_DEFAULT_SIZE,
+	 unit->capture_keep ? unit->capture_keep : SERIAL_CAPTURE_DEFAULT_KEEP) ;
+    if (!unit->capture)
+	return ;
+
+    unit->capture_unit = serial_capture_attach
+	(unit->capture, driver->peripheral_driver_name, unit->port_name) ;
+    if (unit->capture_unit == -1) {
+	fprintf(stderr, "Warning:  cannot capture %s in %s\n",
+		unit->port_name, unit->capture_file) ;
+	serial_capture_close(unit->capture, -1) ;
+	unit->capture = 0 ;
+    }
+}
+
+
+/*
+ * Release the units of an array that didn't get opened, along with any
+ * replay they started, so that a later open starts them afresh.
+ */
+static void
+serial_release_unopened(serial_device_substruct **devices, int count)
+{
+    int i ;
+
+    for (i = 0 ; i < count ; i++) {
+	if (!devices[i] || devices[i]->state == SERIAL_DEVICE_STATE_OPENED)
+	    continue ;
+
+	serial_release(devices[i]) ;
+	if (devices[i]->replay) {
+	    serial_replay_close(devices[i]->replay) ;
+	    devices[i]->replay = 0 ;
+	}
+    }
+}
 
-    /* cache pointers to drivers and devices */
+/*
+ * Open and probe an array of count unopened devices.  group and jobs are
+ * scratch arrays with room for count entries.  On failure the devices that
+ * weren't opened are left closed.
+ */
+static int
+serial_ports_open_probe(nu_serial_ctx_type *ctx,
+			serial_device_substruct **devices, int count,
+			serial_device_substruct **group,
+			serial_probe_job *jobs)
+{
+    int i, j, k, g, njobs = 0, status ;
+
+    /* cache pointer to drivers */
     peripheral_driver *drivers = ctx->peripheral_drivers ;
-    serial_device_substruct **devices = ctx->peripheral_assignments ;
 
 #ifdef SOLARIS
     /* RSB requires special handling for ttya and ttyb */
     serial_device_substruct *ttya = 0 ;
     serial_device_substruct *ttyb = 0 ;
+    serial_device_substruct *unit ;
 
     /*
-     * Make initial pass for ttya and ttyb.
+     * Make initial pass for ttya and ttyb, including the opened devices.
      */
-    for (i = 0 ; i < MAX_NUMBER_PERIPHERAL_ASSIGNMENTS ; i++) {
+    for (i = 0 ; i < ctx->peripheral_assignments.size ; i++) {
 	/* skip unused or deallocated entries */
-	if (!devices[i] || !devices[i]->port_name) continue ;
+	unit = serial_device(ctx, i) ;
+	if (!unit || !unit->port_name) continue ;
 
 	/* get last character of port name */
-	switch (devices[i]->port_name[strlen(devices[i]->port_name)-1]) {
+	switch (unit->port_name[strlen(unit->port_name)-1]) {
 	  case 'a':
-	    ttya = devices[i] ;
+	    ttya = unit ;
 	    break ;
 	  case 'b':
-	    ttyb = devices[i] ;
+	    ttyb = unit ;
 	    break ;
 	  default:
-	    if (devices[i]->use_rsb) {
-		devices[i]->use_rsb = 0 ;
+	    if (unit->use_rsb) {
+		unit->use_rsb = 0 ;
 		fprintf(stderr, "Warning: RSB port must be ttya or ttyb.\n") ;
 		fprintf(stderr, "%s is not mapped to RSB; using read(2).\n",
-			devices[i]->port_name) ;
+			unit->port_name) ;
 	    }
 	}
     }
@@ -333,40 +1015,67 @@ serial_ports_init_open_probe(nu_serial_ctx_type *ctx)
      * Attempt to open all currently unopened ports.  Note that
      * serial_ports_open() doesn't set states to SERIAL_DEVICE_STATE_OPENED.
      */
-    if (!serial_ports_open(devices, MAX_NUMBER_PERIPHERAL_ASSIGNMENTS)) {
+    if (!serial_ports_open(devices, count)) {
 	fprintf(stderr, "Error:  cannot open one or more serial ports\n") ;
+	serial_release_unopened(devices, count) ;
 	return 0 ;
     }
 
     /*
      * Loop through all devices again.
      */
-    for (i = 0 ; i < MAX_NUMBER_PERIPHERAL_ASSIGNMENTS ; i++) {
+    for (i = 0 ; i < count ; i++) {
 	/* skip unused or deallocated entries */
 	if (!devices[i]) continue ;
 
 	/* skip initialized devices */
 	if (devices[i]->state == SERIAL_DEVICE_STATE_OPENED) continue ;
 
-#ifdef SOLARIS
-	/* if RSB seems OK, try to map it */
-	if (devices[i]->use_rsb && serial_map_rsb(&devices[i]->ztty)) {
-	    /* RSB mapping successful */
-	    mmap_ref_count++ ;
+	/* allocate the ring buffer */
+	if (!devices[i]->ring_size)
+	    devices[i]->ring_size = SERIAL_RING_DEFAULT_SIZE ;
+
+	devices[i]->ring.buf = (unsigned char *)malloc(devices[i]->ring_size) ;
+	if (!devices[i]->ring.buf) {
+	    fprintf(stderr, "Error:  cannot malloc %d byte serial buffer\n",
+		    devices[i]->ring_size) ;
+	    serial_release_unopened(devices, count) ;
+	    return 0 ;
 	}
-	else
-#endif
-	{
-	    /* RSB not requested or not successful -- use read(2) instead */
-	    struct mtty *m = (struct mtty *)malloc(sizeof(struct mtty)) ;
-	    if (!m) {
-		fprintf(stderr, "Error:  cannot malloc mtty\n") ;
+
+	memset((void *)devices[i]->ring.buf, 0, devices[i]->ring_size) ;
+	devices[i]->ring.mask = devices[i]->ring_size - 1 ;
+	devices[i]->ring.head = 0 ;
+	devices[i]->ring.stamp_count = 0 ;
+	devices[i]->event_time = 0 ;
+	devices[i]->ring_last = 0 ;
+	devices[i]->open_time = gethrtime() ;
+	devices[i]->fault = 0 ;
+
+	/*
+	 * Capture from the reset on, before the reader thread sees the unit.
+	 * A reopened unit keeps writing the capture it already had.
+	 */
+	if (devices[i]->capture_file && !devices[i]->capture)
+	    serial_capture_unit
+		(devices[i], &drivers[devices[i]->peripheral_driver_index]) ;
+
+	if (devices[i]->replay_file) {
+	    hrtime_t start = gethrtime() ;
+	    devices[i]->replay = serial_replay_open
+		(devices[i]->replay_file,
+		 drivers[devices[i]->peripheral_driver_index]
+		 .peripheral_driver_name,
+		 devices[i]->port_name) ;
+	    if (!devices[i]->replay) {
+		serial_release_unopened(devices, count) ;
 		return 0 ;
 	    }
 
-	    memset((void *)m, 0, sizeof(struct mtty)) ;
-	    devices[i]->ztty = m ;
-	    devices[i]->use_rsb = 0 ; /* in case serial_map_rsb() failed */
+	    devices[i]->replay_next = 0 ;
+	    devices[i]->replay_shift = 0 ;
+	    devices[i]->replay_start = devices[i]->replay_clock = gethrtime() ;
+	    devices[i]->init_open = devices[i]->replay_start - start ;
 	}
 
 	/* backward compatibility: use abuf in ztty for ttya, bbuf otherwise */
@@ -375,161 +1084,1154 @@ serial_ports_init_open_probe(nu_serial_ctx_type *ctx)
 	else
 	    devices[i]->ztty_buf = 1 ;
 
+#ifdef SOLARIS
+	/* if RSB seems OK, try to map it */
+	if (devices[i]->use_rsb && serial_map_rsb(&devices[i]->ztty)) {
+	    /* RSB mapping successful; start copying from current offset */
+	    mmap_ref_count++ ;
+	    devices[i]->ztty_off = devices[i]->ztty_buf == 0 ?
+		devices[i]->ztty->a_off : devices[i]->ztty->b_off ;
+	}
+	else
+#endif
+	{
+	    /* RSB not requested or not successful -- use read(2) instead */
+	    devices[i]->use_rsb = 0 ; /* in case serial_map_rsb() failed */
+#ifdef LINUX
+	    /* let the reader thread fill the ring from now on */
+	    if (!devices[i]->shm && !devices[i]->replay)
+		serial_reader_add(devices[i]) ;
+#endif
+	}
+
 	/* check if affinities supported */
 	j = devices[i]->peripheral_driver_index ;
-	if (drivers[j].reset_device_array && drivers[j].probe_device_array) {
+	if (drivers[j].reset_device_array && drivers[j].probe_device_array)
 	    /* just record affinity device for now and continue */
-	    drivers[j].affinities[drivers[j].affinity_count++] = devices[i] ;
 	    continue ;
-	}
-
-	/* reset and probe the device */
-	drivers[j].reset_device(devices[i]) ;
-	if (! drivers[j].probe_device(devices[i])) {
-	    fprintf(stderr, "Error:  cannot probe device %s\n",
-		    devices[i]->port_name) ;
-	    return 0 ;
-	}
 
-	/* it's open now */
-	devices[i]->state = SERIAL_DEVICE_STATE_OPENED ;
+	/* reset and probe the device on its own */
+	jobs[njobs].driver = &drivers[j] ;
+	jobs[njobs].units = &devices[i] ;
+	jobs[njobs].count = 1 ;
+	njobs++ ;
     }
 
     /*
-     * Initialize any affinity device arrays.  These are used for devices that
-     * need to be initialized together, such as the Logitech master and slave
+     * Add any affinity device arrays.  These are used for devices that need
+     * to be initialized together, such as the Logitech master and slave
      * devices, but any group of devices that share common reset and
      * initialization commands can also be treated as affinity devices.  The
      * caller must ensure that serial_ports_init_open_probe() is called only
      * after all such device instances have been created.
      */
-    for (j = 0 ; j < ctx->number_peripheral_drivers ; j++) {
-	if (drivers[j].affinity_count > 0) {
-	    drivers[j].reset_device_array(drivers[j].affinities,
-					  drivers[j].affinity_count) ;
+    for (j = 0, g = 0 ; j < ctx->number_peripheral_drivers ; j++) {
+	if (!drivers[j].reset_device_array || !drivers[j].probe_device_array)
+	    continue ;
 
-	    if (!drivers[j].probe_device_array(drivers[j].affinities,
-					       drivers[j].affinity_count)) {
-		fprintf(stderr, "Error:  cannot probe one or more devices\n") ;
-		return 0 ;
-	    }
+	/* the jobs array has no room for a job without devices */
+	for (i = 0, k = 0 ; i < count ; i++)
+	    if (devices[i]->peripheral_driver_index == j)
+		group[g + k++] = devices[i] ;
+
+	if (k > 0) {
+	    jobs[njobs].driver = &drivers[j] ;
+	    jobs[njobs].units = &group[g] ;
+	    jobs[njobs].count = k ;
+	    g += k ;
+	    njobs++ ;
+	}
+    }
 
-	    /* mark these devices as opened */
-	    for (i = 0 ; i < drivers[j].affinity_count ; i++)
-		drivers[j].affinities[i]->state = SERIAL_DEVICE_STATE_OPENED ;
+    /*
+     * Reset and probe each device or affinity group on a thread of its own,
+     * so that startup takes as long as the slowest handshake rather than
+     * the sum of them all.  The last one is run on this thread, as is any
+     * that a thread can't be created for.
+     */
+    for (k = 0 ; k < njobs ; k++) {
+	jobs[k].threaded = k < njobs - 1 &&
+	    pthread_create(&jobs[k].thread, 0,
+			   serial_probe_thread, &jobs[k]) == 0 ;
+	if (!jobs[k].threaded)
+	    serial_probe_thread(&jobs[k]) ;
+    }
 
-	    /* reset affinity count */
-	    drivers[j].affinity_count = 0 ;
+    status = 1 ;
+    for (k = 0 ; k < njobs ; k++) {
+	if (jobs[k].threaded)
+	    pthread_join(jobs[k].thread, 0) ;
+
+	for (i = 0 ; i < jobs[k].count ; i++) {
+	    DPRINT(("serial_ports_init_open_probe:  %s open %lld us, "
+		    "reset %lld us, probe %lld us\n",
+		    jobs[k].units[i]->port_name,
+		    (long long)jobs[k].units[i]->init_open / 1000,
+		    (long long)jobs[k].units[i]->init_reset / 1000,
+		    (long long)jobs[k].units[i]->init_probe / 1000)) ;
+
+	    /* it's open now */
+	    if (jobs[k].status) {
+		jobs[k].units[i]->state = SERIAL_DEVICE_STATE_OPENED ;
+		if (jobs[k].units[i]->low_latency)
+		    serial_low_latency(jobs[k].units[i], jobs[k].driver) ;
+	    }
+	}
+
+	if (!jobs[k].status) {
+	    if (jobs[k].count == 1)
+		fprintf(stderr, "Error:  cannot probe device %s\n",
+			jobs[k].units[0]->port_name) ;
+	    else
+		fprintf(stderr, "Error:  cannot probe one or more devices\n") ;
+	    status = 0 ;
 	}
     }
 
-    return 1 ;
+    if (!status)
+	serial_release_unopened(devices, count) ;
+
+    return status ;
+}
+
+
+/*
+ *  A unit reading a serialmux ring shares its device with other processes.
+ *  Once the unit is open its commands are dropped while other processes
+ *  are attached, so that closing it or changing its mode doesn't stop the
+ *  device for the others.  Commands sent while the unit is being opened
+ *  reset and probe the device as usual, which briefly interrupts the
+ *  others' records.
+ */
+static int
+serial_shm_muted(serial_device_substruct *s)
+{
+#ifdef LINUX
+    return s->shm && s->state == SERIAL_DEVICE_STATE_OPENED &&
+	__atomic_load_n(&s->shm->clients, __ATOMIC_SEQ_CST) > 1 ;
+#else
+    return 0 ;
+#endif
 }
 
 
 /*
- *  Send a multi-character command to the specified units.
- *  Pre/post sleep arguments are now passed in, so that the caller
- *  can avoid overstacking of sleeps.  Sleeps are in units of us.
+ *  Send a multi-character command to the specified units.  Any input
+ *  pending on the ports is discarded first, and this returns once the
+ *  command has been transmitted.  Callers that expect a response wait for
+ *  it with serial_wait() rather than sleeping for a fixed time.
  */
 void
 serial_command(serial_device_substruct *units[], int count,
-	       int pre_sleep, int post_sleep,
 	       unsigned char *command)
 {
     int i ;
 
-    /* first make sure any existing commands have been flushed out */
+    /*
+     * Discard pending input.  Output is left alone: without the old
+     * sleeps the previous command may still be queued (a pty's tcdrain()
+     * doesn't wait for the other side to read it), and flushing it would
+     * lose that command.
+     */
     for (i = 0 ; i < count ; i++)
-	if (units[i] && units[i]->fd != -1)
-	    ioctl(units[i]->fd, I_FLUSH, FLUSHRW) ;
-
-    /* sleep by users pre amount (in us) */
-    usleep(pre_sleep) ;
+	if (units[i] && units[i]->fd != -1) {
+#ifdef LINUX
+	    if (units[i]->shm)
+		serial_shm_skip(units[i]) ;
+	    else
+		tcflush(units[i]->fd, TCIFLUSH) ;
+#else
+	    ioctl(units[i]->fd, I_FLUSH, FLUSHR) ;
+#endif
+	}
 
     /* actually send the command */
     for (i = 0 ; i < count ; i++)
-	if (units[i] && units[i]->fd != -1)
+	if (units[i] && units[i]->replay)
+	    serial_replay_command(units[i]) ;
+	else if (units[i] && units[i]->fd != -1 &&
+		 !serial_shm_muted(units[i])) {
 	    write(units[i]->fd, command, strlen((char *)command)) ;
+	    if (units[i]->capture)
+		serial_capture_write(units[i]->capture, units[i]->capture_unit,
+				     SERIAL_CAPTURE_COMMAND, gethrtime(),
+				     command, strlen((char *)command), 0, 0) ;
+	}
 
-    /* sleep by users post amount (in us) */
-    usleep(post_sleep) ;
+    /* wait until it's on the wire; serialmux can't be waited for */
+    for (i = 0 ; i < count ; i++)
+	if (units[i] && units[i]->fd != -1 && !units[i]->shm)
+	    tcdrain(units[i]->fd) ;
 }
 
 
 /*
- * Read characters from the tty when RSB is not used.  The character data is
- * read into circular FIFOs that emulate the RSB since there is much existing
- * code which directly manipulates those FIFOs.
+ *  Wait for a response from the specified units.  The ports are polled
+ *  every SERIAL_WAIT_POLL microseconds until ready() returns nonzero for
+ *  each of them, or until timeout microseconds have passed.  Null entries
+ *  and units for which ready() has already returned nonzero are skipped.
  *
- * This leads to a minor memory inefficiency here, since a non-RSB tty always
- * gets its own ztty with two 2044-byte buffers (abuf and bbuf), and only one
- * will be used.  A single ztty could theoretically be shared between any two
- * ttys, but this entails more cumbersome bookkeeping, so for now a ztty is
- * shared between two ports only when RSB is in use.
+ *  Returns 1 if all the units are ready, 0 on timeout.
+ */
+int
+serial_wait(serial_device_substruct *units[], int count, int timeout,
+	    int (*ready)(serial_device_substruct *unit))
+{
+    hrtime_t deadline ;
+    int i, waiting ;
+    char *done ;
+
+    if ((done = (char *)calloc(count, 1)) == 0) return 0 ;
+    deadline = gethrtime() + (hrtime_t)timeout * 1000 ;
+
+    for (;;) {
+	waiting = 0 ;
+	for (i = 0 ; i < count ; i++) {
+	    if (!units[i] || done[i]) continue ;
+	    if (units[i]->fd == -1 && !units[i]->replay) continue ;
+
+	    serial_read(units[i]) ;
+	    if (ready(units[i]))
+		done[i] = 1 ;
+	    else
+		waiting++ ;
+	}
+
+	if (waiting == 0 || gethrtime() >= deadline) {
+	    free(done) ;
+	    return waiting == 0 ;
+	}
+	usleep(SERIAL_WAIT_POLL) ;
+    }
+}
+
+
+/*
+ * Record the time at which the characters from ring position start up to
+ * end were read, and capture them if the unit is being captured.  This
+ * must be done before the head covering them is published.
+ */
+static void
+serial_stamp_chunk(serial_device_substruct *s, unsigned int start,
+		   unsigned int end, hrtime_t time) {
+    serial_ring *r = &s->ring ;
+    serial_stamp *stamp = &r->stamps[r->stamp_count & (SERIAL_STAMPS - 1)] ;
+    unsigned int off, n ;
+
+    if (s->capture) {
+	/* the chunk may wrap around the end of the ring */
+	off = start & r->mask ;
+	n = end - start ;
+	if (off + n <= r->mask + 1)
+	    serial_capture_write(s->capture, s->capture_unit,
+				 SERIAL_CAPTURE_DATA, time,
+				 r->buf + off, n, 0, 0) ;
+	else
+	    serial_capture_write(s->capture, s->capture_unit,
+				 SERIAL_CAPTURE_DATA, time,
+				 r->buf + off, r->mask + 1 - off,
+				 r->buf, n - (r->mask + 1 - off)) ;
+    }
+
+    stamp->end = end ;
+    stamp->time = time ;
+#ifdef LINUX
+    __atomic_store_n(&r->stamp_count, r->stamp_count + 1, __ATOMIC_RELEASE) ;
+#else
+    r->stamp_count++ ;
+#endif
+}
+
+/*
+ * Record that a unit's port has been lost, with the errno of the failed
+ * read or -1 if the line hung up.  Only the first fault is reported; the
+ * port delivers nothing more until it is reopened.
+ */
+static void
+serial_fault(serial_device_substruct *s, int err) {
+    if (s->fault) return ;
+    fprintf(stderr, "Warning:  lost connection on %s (%d)\n",
+	    s->port_name, err) ;
+    s->fault = err ;
+}
+
+/*
+ * A tty whose line has hung up reads as empty, just like an idle one, so a
+ * port that is read only when polled is checked for a hangup with poll(2),
+ * at most once every SERIAL_HANGUP_CHECK ms.  The reader thread gets
+ * hangups from epoll_wait() instead.
+ */
+static void
+serial_check_hangup(serial_device_substruct *s) {
+    struct pollfd p ;
+    hrtime_t now = gethrtime() ;
+
+    if (now - s->hangup_check < (hrtime_t)SERIAL_HANGUP_CHECK * 1000000)
+	return ;
+
+    s->hangup_check = now ;
+    p.fd = s->fd ;
+    p.events = POLLIN ;
+    p.revents = 0 ;
+    if (poll(&p, 1, 0) == 1 && (p.revents & (POLLHUP | POLLERR | POLLNVAL)))
+	serial_fault(s, -1) ;
+}
+
+/*
+ * Read characters from the tty into the unit's ring buffer when RSB is not
+ * used.  At most one buffer's worth is read, in one or two contiguous
+ * pieces.  Like the RSB, the ring is overwritten if the consumer falls more
+ * than a buffer behind; the peripheral drivers resync on record headers and
+ * only ever want the most recent records.
  *
- * There is also some existing code that looks at ztty_buf to see if it is
- * reading from /dev/ttya or /dev/ttyb, so anything that is not /dev/ttya will
- * have ztty_buf set to 1.
+ * The new head is published only after the characters are in the buffer,
+ * so that a consumer on another thread using RING_HEAD() never sees a
+ * position covering data that hasn't been written yet.
  */
-void
-serial_read(serial_device_substruct *s) {
-    int *i, length, byteCount ;
-    unsigned char *buf ;
+static void
+serial_fill(serial_device_substruct *s) {
+    serial_ring *r = &s->ring ;
+    unsigned int off, length ;
+    int byteCount ;
+    hrtime_t now ;
+
+    off = r->head & r->mask ;
+    length = r->mask + 1 - off ;
+    byteCount = read(s->fd, (void *)(r->buf + off), length) ;
+    s->stats.reads++ ;
+    if (byteCount <= 0) {
+	s->stats.empty_reads++ ;
+	if (byteCount == -1 && errno != EAGAIN && errno != EINTR)
+	    serial_fault(s, errno) ;
+	else if (!s->use_reader)
+	    serial_check_hangup(s) ;
+	return ;
+    }
+    now = gethrtime() ;
+
+    if (byteCount == length && off > 0) {
+	/* wrap, then try to read some more */
+	int more = read(s->fd, (void *)r->buf, off) ;
+	if (more > 0) byteCount += more ;
+    }
+
+    s->stats.bytes += byteCount ;
+    serial_stamp_chunk(s, r->head, r->head + byteCount, now) ;
+
+#ifdef LINUX
+    /*
+     * A thread blocked in serial_await() registers itself before checking
+     * the head, and this checks for one after storing it; both are
+     * sequentially consistent, so one of them always sees the other.
+     */
+    __atomic_store_n(&r->head, r->head + byteCount, __ATOMIC_SEQ_CST) ;
+    if (__atomic_load_n(&s->awaiting, __ATOMIC_SEQ_CST))
+	syscall(SYS_futex, &r->head, FUTEX_WAKE_PRIVATE, INT_MAX, 0, 0, 0) ;
+#else
+    r->head += byteCount ;
+#endif
+}
+
+#ifdef SOLARIS
+/*
+ * Copy the characters the RSB driver has deposited in its ztty buffer since
+ * the last call into the unit's ring buffer.  The RSB buffers are 2044
+ * bytes, so this is the only place that has to deal with that size.
+ */
+static void
+serial_copy_rsb(serial_device_substruct *s) {
+    serial_ring *r = &s->ring ;
+    unsigned char *src ;
+    unsigned int head = r->head ;
+    int e, i ;
 
     if (s->ztty_buf == 0) {
-	i = &s->ztty->a_off ;
-	buf = s->ztty->abuf ;
+	e = s->ztty->a_off ;
+	src = s->ztty->abuf ;
     }
     else {
-	i = &s->ztty->b_off ;
-	buf = s->ztty->bbuf ;
+	e = s->ztty->b_off ;
+	src = s->ztty->bbuf ;
+    }
+
+    s->stats.reads++ ;
+    if (s->ztty_off == e) {
+	s->stats.empty_reads++ ;
+	return ;
     }
 
-    length = 2044 - *i ;
-    byteCount = read(s->fd, (void *)(buf + *i), length) ;
+    /* the RSB doesn't record arrival times, so this is the best we have */
+    for (i = s->ztty_off ; i != e ; i = (i == 2043 ? 0 : i + 1))
+	RING_CHAR(r, head++) = src[i] ;
+
+    s->stats.bytes += head - r->head ;
+
+    serial_stamp_chunk(s, r->head, head, gethrtime()) ;
+    r->head = head ;
+    s->ztty_off = e ;
+}
+#endif /* SOLARIS */
+
+#ifdef LINUX
+/*
+ * Map the serialmux ring for the unit's port and open its command pipe in
+ * place of the port.  See serialmux.h.  Returns 1 if attached, 0 if there
+ * is no serialmux running for the port, and -1 if there is one but its
+ * ring can't be used.
+ */
+static int
+serial_shm_attach(serial_device_substruct *s)
+{
+    const char *base ;
+    char *name ;
+    int fd ;
+    struct stat st ;
+    serial_shm *m ;
+
+    base = strrchr(s->port_name, '/') ;
+    base = base ? base + 1 : s->port_name ;
+    name = (char *)malloc(strlen(SERIAL_SHM_PREFIX) + strlen(base) +
+			  strlen(SERIAL_SHM_COMMAND_SUFFIX) + 1) ;
+    if (!name) {
+	fprintf(stderr, "Error:  cannot malloc serialmux file name\n") ;
+	return -1 ;
+    }
+    sprintf(name, "%s%s", SERIAL_SHM_PREFIX, base) ;
+
+    fd = open(name, O_RDWR | O_CLOEXEC) ;
+    if (fd == -1) {
+	if (errno != ENOENT)
+	    fprintf(stderr, "Error:  cannot open %s (%d)\n", name, errno) ;
+	free(name) ;
+	return errno == ENOENT ? 0 : -1 ;
+    }
+
+    m = MAP_FAILED ;
+    if (fstat(fd, &st) == 0 && st.st_size >= SERIAL_SHM_FILE_SIZE(0))
+	m = (serial_shm *)mmap(0, st.st_size, PROT_READ | PROT_WRITE,
+			       MAP_SHARED, fd, 0) ;
+    close(fd) ;
+    if (m == MAP_FAILED) {
+	fprintf(stderr, "Error:  cannot map %s\n", name) ;
+	free(name) ;
+	return -1 ;
+    }
+
+    /* a file left by a serialmux that has exited is ignored */
+    if (__atomic_load_n(&m->magic, __ATOMIC_ACQUIRE) != SERIAL_SHM_MAGIC ||
+	m->version != SERIAL_SHM_VERSION ||
+	SERIAL_SHM_FILE_SIZE(m->size) > st.st_size ||
+	m->pid == 0 || (kill(m->pid, 0) == -1 && errno == ESRCH)) {
+	munmap((void *)m, st.st_size) ;
+	free(name) ;
+	return 0 ;
+    }
+
+    strcat(name, SERIAL_SHM_COMMAND_SUFFIX) ;
+    s->fd = open(name, O_WRONLY | O_NONBLOCK | O_CLOEXEC) ;
+    if (s->fd == -1) {
+	/* ENXIO means nobody is reading the pipe */
+	if (errno != ENXIO)
+	    fprintf(stderr, "Error:  cannot open %s (%d)\n", name, errno) ;
+	munmap((void *)m, st.st_size) ;
+	free(name) ;
+	return errno == ENXIO ? 0 : -1 ;
+    }
+    free(name) ;
+
+    if (m->baud != s->baud)
+	fprintf(stderr, "Warning:  serialmux runs %s at %d baud, not %d\n",
+		s->port_name, m->baud, s->baud) ;
+
+    s->shm = m ;
+    s->shm_size = st.st_size ;
+    s->shm_off = __atomic_load_n(&m->head, __ATOMIC_ACQUIRE) ;
+    s->shm_stamp = __atomic_load_n(&m->stamp_count, __ATOMIC_ACQUIRE) ;
+    __atomic_add_fetch(&m->clients, 1, __ATOMIC_SEQ_CST) ;
+
+    DPRINT(("serial_shm_attach:  %s, %d clients\n", s->port_name,
+	    m->clients)) ;
+    return 1 ;
+}
+
+/*
+ * Unmap a unit's serialmux ring.
+ */
+static void
+serial_shm_detach(serial_device_substruct *s)
+{
+    __atomic_sub_fetch(&s->shm->clients, 1, __ATOMIC_SEQ_CST) ;
+    munmap((void *)s->shm, s->shm_size) ;
+    s->shm = 0 ;
+}
+
+/*
+ * Discard the characters serialmux has published but the unit hasn't
+ * copied yet, the equivalent of flushing the input of a port.
+ */
+static void
+serial_shm_skip(serial_device_substruct *s)
+{
+    s->shm_off = __atomic_load_n(&s->shm->head, __ATOMIC_ACQUIRE) ;
+    s->shm_stamp = __atomic_load_n(&s->shm->stamp_count, __ATOMIC_ACQUIRE) ;
+}
 
-    if (byteCount == length) {
-	/* try to read some more */
-	byteCount = read(s->fd, (void *)buf, 2044) ;
-        if (byteCount > 0) {
-	    *i = byteCount ;
+/*
+ * Copy the characters serialmux has published since the last call into the
+ * unit's ring buffer, stamping them with the times serialmux read them.
+ * Like the RSB copy this makes no system calls.  If the unit has fallen
+ * more than a ring behind, the oldest characters are lost.
+ */
+static void
+serial_copy_shm(serial_device_substruct *s)
+{
+    serial_shm *m = s->shm ;
+    serial_ring *r = &s->ring ;
+    serial_shm_stamp *stamp ;
+    unsigned int head, count, n, k, d, limit, start, end ;
+    int64_t time ;
+
+    /* the stamps are published before the head they cover */
+    head = __atomic_load_n(&m->head, __ATOMIC_ACQUIRE) ;
+    count = __atomic_load_n(&m->stamp_count, __ATOMIC_ACQUIRE) ;
+    n = head - s->shm_off ;
+    s->stats.reads++ ;
+    if (n == 0) {
+	s->stats.empty_reads++ ;
+	return ;
+    }
+
+    /* older characters may be being overwritten by serialmux */
+    limit = SERIAL_SHM_CHUNK(m->size) ;
+    if (limit > r->mask + 1) limit = r->mask + 1 ;
+    if (n > limit) {
+	s->stats.overruns += n - limit ;
+	s->shm_off = head - limit ;
+	n = limit ;
+    }
+    if (count - s->shm_stamp > SERIAL_SHM_STAMPS - 1)
+	s->shm_stamp = count - (SERIAL_SHM_STAMPS - 1) ;
+
+    for (k = 0 ; k < n ; k++)
+	RING_CHAR(r, r->head + k) = m->buf[(s->shm_off + k) & (m->size - 1)] ;
+
+    /*
+     * Drop the characters that serialmux may have overwritten while they
+     * were copied, those that the head has since moved too far ahead of.
+     */
+    __atomic_thread_fence(__ATOMIC_ACQUIRE) ;
+    d = __atomic_load_n(&m->head, __ATOMIC_RELAXED) - s->shm_off ;
+    if (d > limit) {
+	d -= limit ;
+	if (d > n) d = n ;
+	for (k = d ; k < n ; k++)
+	    RING_CHAR(r, r->head + k - d) = RING_CHAR(r, r->head + k) ;
+	s->stats.overruns += d ;
+	s->shm_off += d ;
+	n -= d ;
+    }
+    s->stats.bytes += n ;
+
+    start = r->head ;
+    for ( ; (int)(count - s->shm_stamp) > 0 ; s->shm_stamp++) {
+	stamp = &m->stamps[s->shm_stamp & (SERIAL_SHM_STAMPS - 1)] ;
+	end = stamp->end ;
+	time = stamp->time ;
+
+	/* skip to the stamps that can't have been reused while read */
+	__atomic_thread_fence(__ATOMIC_ACQUIRE) ;
+	k = __atomic_load_n(&m->stamp_count, __ATOMIC_RELAXED) ;
+	if (k - s->shm_stamp > SERIAL_SHM_STAMPS - 1) {
+	    s->shm_stamp = k - (SERIAL_SHM_STAMPS - 1) - 1 ;
+	    continue ;
+	}
+
+	if ((int)(end - head) > 0)
+	    /* covers characters beyond the head loaded above */
+	    break ;
+	if ((int)(end - s->shm_off) > 0) {
+	    serial_stamp_chunk(s, start, r->head + (end - s->shm_off),
+			       (hrtime_t)time) ;
+	    start = r->head + (end - s->shm_off) ;
+	}
+    }
+
+    r->head += n ;
+    s->shm_off = head ;
+}
+#endif /* LINUX */
+
+/*
+ * Deliver the characters of a replayed unit that are due into its ring
+ * buffer, stamped with their recorded times moved to the replay clock.  At
+ * full speed (a ReplaySpeed of 0) every call delivers the next chunk and
+ * advances the replay clock to it, so the drivers see each chunk in turn
+ * however fast they are polled.
+ *
+ * Until the unit is opened the replay stops at each recorded command
+ * until the driver sends one, so that the responses to its reset and probe
+ * commands come after them whatever their timing; afterwards the commands
+ * are passed over.
+ */
+static void
+serial_copy_replay(serial_device_substruct *s) {
+    serial_ring *r = &s->ring ;
+    const unsigned char *data ;
+    unsigned int n, k, skip, start = r->head ;
+    int64_t time ;
+    hrtime_t due, now = serial_time(s) ;
+
+    while (s->replay_next < serial_replay_count(s->replay)) {
+	data = serial_replay_chunk(s->replay, s->replay_next, &time, &n) ;
+	due = s->replay_start + s->replay_shift +
+	    (time - serial_replay_start(s->replay)) ;
+	if (n == 0) {
+	    if (s->state != SERIAL_DEVICE_STATE_OPENED)
+		break ;
+	    s->replay_next++ ;
+	    continue ;
+	}
+	if (s->replay_speed > 0.0 && due > now)
+	    break ;
+
+	/* only the last ring's worth of a long chunk would survive */
+	skip = n > r->mask + 1 ? n - (r->mask + 1) : 0 ;
+	for (k = skip ; k < n ; k++)
+	    RING_CHAR(r, r->head + k) = data[k] ;
+
+	serial_stamp_chunk(s, r->head + skip, r->head + n, due) ;
+	s->stats.bytes += n ;
+	s->stats.overruns += skip ;
+	r->head += n ;
+	s->replay_next++ ;
+
+	if (s->replay_speed <= 0.0) {
+	    s->replay_clock = due ;
+	    break ;
 	}
     }
-    else if (byteCount > 0) {
-	*i += byteCount ;
+
+    s->stats.reads++ ;
+    if (r->head == start)
+	s->stats.empty_reads++ ;
+}
+
+/*
+ * A command sent to a replayed unit.  Like the flush of a port before a
+ * command, this discards the characters recorded before the next recorded
+ * command that haven't been delivered, and the replay then continues from
+ * that command, delayed so that it is recorded as sent now.
+ */
+static void
+serial_replay_command(serial_device_substruct *s) {
+    unsigned int n ;
+    int64_t time ;
+    int k ;
+
+    for (k = s->replay_next ; k < serial_replay_count(s->replay) ; k++) {
+	serial_replay_chunk(s->replay, k, &time, &n) ;
+	if (n > 0)
+	    continue ;
+
+	s->replay_shift = serial_time(s) - s->replay_start -
+	    (time - serial_replay_start(s->replay)) ;
+	if (s->replay_shift < 0)
+	    s->replay_shift = 0 ;
+	s->replay_next = k + 1 ;
+	return ;
     }
 }
 
+/*
+ * Returns the current time for a unit on the gethrtime() clock.  For a
+ * replayed unit this is the replay clock, which runs ReplaySpeed times as
+ * fast as gethrtime() from the start of the replay, or at full speed is the
+ * recorded time of the last chunk delivered; the drivers use it wherever
+ * they compare the arrival times of characters with the present.
+ */
+hrtime_t
+serial_time(serial_device_substruct *s) {
+    if (!s->replay)
+	return gethrtime() ;
+    if (s->replay_speed <= 0.0)
+	return s->replay_clock ;
+    return s->replay_start +
+	(hrtime_t)((gethrtime() - s->replay_start) * s->replay_speed) ;
+}
 
 /*
- * Close a serial port and release resources.
+ * Returns the number of chunks of a replayed unit not yet delivered, or -1
+ * if the unit isn't replayed.
+ */
+int
+serial_replay_remaining(serial_device_substruct *s) {
+    if (!s->replay)
+	return -1 ;
+    return serial_replay_count(s->replay) - s->replay_next ;
+}
+
+/*
+ * Called by the peripheral drivers to bring the unit's ring buffer up to
+ * date before parsing it.  If the port is serviced by the reader thread this
+ * does nothing, since the ring is already current.
  */
 void
-serial_close(nu_serial_ctx_type *ctx, int deviceIndex)
+serial_read(serial_device_substruct *s) {
+    if (s->use_reader) return ;
+    if (s->replay) {
+	serial_copy_replay(s) ;
+	return ;
+    }
+#ifdef SOLARIS
+    if (s->use_rsb) {
+	serial_copy_rsb(s) ;
+	return ;
+    }
+#endif
+#ifdef LINUX
+    if (s->shm) {
+	serial_copy_shm(s) ;
+	return ;
+    }
+#endif
+    serial_fill(s) ;
+}
+
+/*
+ * Returns the gethrtime() value at which the character just before ring
+ * position `position' was read, which for a packet ending at that position
+ * is when the packet became complete.  The search runs back through only
+ * half the stamps, so that the producer would have to read that many more
+ * chunks during the search to overwrite one being examined; if the
+ * character is older than that, the time of the oldest stamp examined is
+ * returned as an upper bound.  Returns 0 if no chunk covering the position
+ * has been stamped.
+ */
+hrtime_t
+serial_arrival_time(serial_device_substruct *s, unsigned int position) {
+    serial_ring *r = &s->ring ;
+    serial_stamp *stamp ;
+    unsigned int n, k ;
+    hrtime_t time = 0 ;
+
+#ifdef LINUX
+    n = __atomic_load_n(&r->stamp_count, __ATOMIC_ACQUIRE) ;
+#else
+    n = r->stamp_count ;
+#endif
+    for (k = 0 ; k < SERIAL_STAMPS/2 && k < n ; k++) {
+	stamp = &r->stamps[(n - 1 - k) & (SERIAL_STAMPS - 1)] ;
+	if ((int)(stamp->end - position) < 0)
+	    /* this chunk and all earlier ones end before the position */
+	    break ;
+	time = stamp->time ;
+    }
+    return time ;
+}
+
+/*
+ * Returns the position from which a consumer at `position' can still read
+ * the unit's ring, given its current head.  If the consumer has fallen more
+ * than a ring behind this is the oldest character left, and the characters
+ * overwritten before it are counted as overruns.
+ */
+unsigned int
+serial_ring_start(serial_device_substruct *s, unsigned int position,
+		  unsigned int head) {
+    unsigned int size = s->ring.mask + 1 ;
+
+    if (head - position > size) {
+	s->stats.overruns += head - position - size ;
+	position = head - size ;
+    }
+    return position ;
+}
+
+/*
+ * Reads the newest event of a unit with its driver's read_event function
+ * into a record shared with Java.  The record's sequence number is made
+ * odd before it is written and even again afterwards, so that a reader
+ * that finds it odd, or changed across its reads, knows the record was
+ * being written.  Returns the event's status, or 0 if the driver has no
+ * read_event function.
+ */
+int
+serial_read_event(nu_serial_ctx_type *ctx, serial_device_substruct *s,
+		  serial_event *event) {
+    int status, (*read_event)() ;
+
+    read_event = ctx->peripheral_drivers[s->peripheral_driver_index]
+	.read_event ;
+
+#ifdef LINUX
+    __atomic_store_n(&event->sequence, event->sequence + 1,
+		     __ATOMIC_RELAXED) ;
+    __atomic_thread_fence(__ATOMIC_RELEASE) ;
+#else
+    event->sequence++ ;
+#endif
+
+    if (read_event)
+	status = read_event(ctx, s, event) ;
+    else
+	status = event->status = 0 ;
+
+#ifdef LINUX
+    __atomic_store_n(&event->sequence, event->sequence + 1,
+		     __ATOMIC_RELEASE) ;
+#else
+    event->sequence++ ;
+#endif
+    return status ;
+}
+
+/*
+ * Blocks the calling thread until characters arrive in the unit's ring
+ * after `position', for at most timeout ms.  This is how devices in the
+ * InputDevice BLOCKING mode wait between records.  It never reads the port
+ * or touches the ring's characters, so it may be called without the
+ * serialization the polling thread needs, but the unit must not be freed
+ * meanwhile.
+ *
+ * A ring filled by the Linux reader thread is waited for on its head
+ * with a futex, and the thread is woken as soon as the reader publishes
+ * new characters.  A port read only when polled is waited for with
+ * poll(2), and this returns when it is readable, before the characters are
+ * in the ring; the shared, replayed, and RSB transports only have their
+ * rings brought up to date when polled, so for them this just sleeps for
+ * SERIAL_WAIT_POLL us.  The caller should poll the device after any
+ * return and wait again if there isn't a complete record yet.
+ *
+ * Returns 1 if characters may have arrived, or 0 if the timeout passed.
+ */
+int
+serial_await(serial_device_substruct *s, unsigned int position, int timeout) {
+    struct pollfd p ;
+    hrtime_t deadline, left ;
+#ifdef LINUX
+    struct timespec ts ;
+#endif
+
+    deadline = gethrtime() + (hrtime_t)timeout * 1000000 ;
+    for (;;) {
+	if (RING_HEAD(&s->ring) != position)
+	    return 1 ;
+
+	left = deadline - gethrtime() ;
+	if (left <= 0)
+	    return 0 ;
+
+	if (s->state != SERIAL_DEVICE_STATE_OPENED || s->fault) {
+	    /* nothing will arrive until the port is reopened */
+	    usleep((useconds_t)(left / 1000)) ;
+	    return 0 ;
+	}
+
+#ifdef LINUX
+	if (s->use_reader) {
+	    ts.tv_sec = left / 1000000000 ;
+	    ts.tv_nsec = left % 1000000000 ;
+	    __atomic_add_fetch(&s->awaiting, 1, __ATOMIC_SEQ_CST) ;
+	    if (__atomic_load_n(&s->ring.head, __ATOMIC_SEQ_CST) == position)
+		syscall(SYS_futex, &s->ring.head, FUTEX_WAIT_PRIVATE,
+			position, &ts, 0, 0) ;
+	    __atomic_sub_fetch(&s->awaiting, 1, __ATOMIC_SEQ_CST) ;
+	    continue ;
+	}
+	if (s->shm) {
+	    usleep(SERIAL_WAIT_POLL) ;
+	    return 1 ;
+	}
+#endif
+	if (s->replay || s->use_rsb || s->fd < 0) {
+	    usleep(SERIAL_WAIT_POLL) ;
+	    return 1 ;
+	}
+
+	p.fd = s->fd ;
+	p.events = POLLIN ;
+	p.revents = 0 ;
+	if (poll(&p, 1, (int)((left + 999999) / 1000000)) <= 0)
+	    return 0 ;
+
+	/* a hangup stays readable until the poll sees it; don't spin */
+	if (p.revents & (POLLHUP | POLLERR))
+	    usleep(SERIAL_WAIT_POLL) ;
+	return 1 ;
+    }
+}
+
+/*
+ * Returns the time in ns since a unit last received any characters, or
+ * since its port was opened if it hasn't received any since.
+ */
+hrtime_t
+serial_idle_time(serial_device_substruct *s) {
+    serial_ring *r = &s->ring ;
+    unsigned int n ;
+
+#ifdef LINUX
+    n = __atomic_load_n(&r->stamp_count, __ATOMIC_ACQUIRE) ;
+#else
+    n = r->stamp_count ;
+#endif
+    return serial_time(s) -
+	(n ? r->stamps[(n - 1) & (SERIAL_STAMPS - 1)].time : s->open_time) ;
+}
+
+
+#ifdef LINUX
+/*
+ * Linux reader thread.
+ *
+ * Without RSB, each poll from the Input Device Scheduler thread calls
+ * read(2) on every port, once per frame.  Characters accumulate in the
+ * kernel between polls, and a slow frame can let the tty layer's own
+ * buffering fall behind.  Instead, a single reader thread global to all
+ * serial contexts waits in epoll_wait(2) on every open non-RSB port and
+ * copies characters into the port's ring buffer as soon as they arrive,
+ * which is exactly what the RSB driver does on Solaris.  The peripheral
+ * drivers are unchanged: they see the ring head advance on its own and
+ * serial_read() returns immediately.
+ *
+ * Each ring has a single producer (this thread) and a single consumer (the
+ * polling thread), so no locks are needed on the data path: the producer
+ * publishes the head with a release store in serial_fill() and the consumer
+ * loads it with RING_HEAD().
+ *
+ * reader_lock serializes registration against event dispatch, so that
+ * serial_close() can't free a ring while the reader thread is filling it.
+ * The thread is started with the first registered port and stopped when the
+ * last one is closed.  If it can't be started, ports fall back to being
+ * read from serial_read().
+ *
+ * Ports of any context may be added and removed from several threads at
+ * once.  While the last remove joins the thread, reader_stopping is set and
+ * serial_reader_add() waits on reader_stopped, so that a port is never
+ * handed to a thread that is exiting and only one remove joins it.
+ */
+static pthread_mutex_t reader_lock = PTHREAD_MUTEX_INITIALIZER ;
+static pthread_cond_t reader_stopped = PTHREAD_COND_INITIALIZER ;
+static pthread_t reader_thread ;
+static int reader_epfd = -1 ;
+static int reader_wakefd = -1 ;
+static int reader_count = 0 ;
+static int reader_stopping = 0 ;
+
+/*
+ * The registered units.  The epoll data of each port is its index here plus
+ * one, and 0 for reader_wakefd, so a closed unit is never dereferenced.
+ */
+static serial_table reader_units ;
+
+#define READER_MAX_EVENTS 16
+
+static void *
+serial_reader_loop(void *arg)
 {
+    int i, n ;
+    uint64_t wake ;
     serial_device_substruct *unit ;
+    struct epoll_event ev[READER_MAX_EVENTS] ;
 
-    DPRINT(("serial_close:  device %d\n", deviceIndex)) ;
+    for (;;) {
+	n = epoll_wait(reader_epfd, ev, READER_MAX_EVENTS, -1) ;
+	if (n == -1) {
+	    if (errno == EINTR) continue ;
+	    fprintf(stderr, "serial reader:  epoll_wait failed (%d)\n", errno) ;
+	    return 0 ;
+	}
 
-    if (! ctx) return ;
-    if (deviceIndex >= MAX_NUMBER_PERIPHERAL_ASSIGNMENTS) return ;
+	pthread_mutex_lock(&reader_lock) ;
+	for (i = 0 ; i < n ; i++) {
+	    if (ev[i].data.u64 == 0) {
+		/* woken by serial_reader_remove() for the last port */
+		read(reader_wakefd, &wake, sizeof(wake)) ;
+		if (reader_count == 0) {
+		    pthread_mutex_unlock(&reader_lock) ;
+		    return 0 ;
+		}
+		continue ;
+	    }
 
-    unit = ctx->peripheral_assignments[deviceIndex] ;
-    ctx->peripheral_assignments[deviceIndex] = 0 ;
-    if (! unit) return ;
+	    /* the port may have been closed since epoll_wait() returned */
+	    unit = (serial_device_substruct *)
+		serial_table_get(&reader_units, (int)ev[i].data.u64 - 1) ;
+	    if (!unit) continue ;
 
-    if (unit->port_name) {
-	DPRINT(("  port name %s\n", unit->port_name)) ;
-	free(unit->port_name) ;
-	unit->port_name = 0 ;
+	    if (ev[i].events & EPOLLIN)
+		serial_fill(unit) ;
+
+	    if (ev[i].events & (EPOLLERR | EPOLLHUP))
+		serial_fault(unit, -1) ;
+
+	    if (unit->fault)
+		/*
+		 * Stop watching the port, which would otherwise report the
+		 * hangup forever.  It stays registered, and so delivers
+		 * nothing, until it is closed or reopened.
+		 */
+		epoll_ctl(reader_epfd, EPOLL_CTL_DEL, unit->fd, 0) ;
+	}
+	pthread_mutex_unlock(&reader_lock) ;
     }
+}
+
+/*
+ * Hand a newly opened port over to the reader thread, starting the thread
+ * if necessary.
+ */
+static void
+serial_reader_add(serial_device_substruct *unit)
+{
+    int i ;
+    struct epoll_event ev ;
+
+    pthread_mutex_lock(&reader_lock) ;
+    /* a unit is read from one slot only */
+    if (unit->use_reader) {
+	pthread_mutex_unlock(&reader_lock) ;
+	return ;
+    }
+
+    /* wait for a stopping thread to be joined, then start a new one */
+    while (reader_stopping)
+	pthread_cond_wait(&reader_stopped, &reader_lock) ;
+
+    if (reader_epfd == -1) {
+	reader_epfd = epoll_create1(EPOLL_CLOEXEC) ;
+	reader_wakefd = eventfd(0, EFD_CLOEXEC | EFD_NONBLOCK) ;
+	if (reader_epfd == -1 || reader_wakefd == -1) {
+	    fprintf(stderr, "Warning:  cannot create serial reader (%d)\n",
+		    errno) ;
+	    goto fail ;
+	}
+
+	ev.events = EPOLLIN ;
+	ev.data.u64 = 0 ;
+	epoll_ctl(reader_epfd, EPOLL_CTL_ADD, reader_wakefd, &ev) ;
+
+	if (pthread_create(&reader_thread, 0, serial_reader_loop, 0) != 0) {
+	    fprintf(stderr, "Warning:  cannot start serial reader thread\n") ;
+	    goto fail ;
+	}
+    }
+
+    i = serial_table_add(&reader_units, unit) ;
+
+    ev.events = EPOLLIN ;
+    ev.data.u64 = (uint64_t)i + 1 ;
+    if (i == -1 || epoll_ctl(reader_epfd, EPOLL_CTL_ADD, unit->fd, &ev) == -1) {
+	if (i != -1) serial_table_remove(&reader_units, i) ;
+	fprintf(stderr, "Warning:  %s not added to serial reader; ",
+		unit->port_name) ;
+	fprintf(stderr, "reading from tty when polled instead.\n") ;
+	pthread_mutex_unlock(&reader_lock) ;
+	return ;
+    }
+
+    unit->reader_index = i ;
+    reader_count++ ;
+    unit->use_reader = 1 ;
+    DPRINT(("serial_reader_add:  %s\n", unit->port_name)) ;
+
+    pthread_mutex_unlock(&reader_lock) ;
+    return ;
+
+  fail:
+    fprintf(stderr, "Reading from tty when polled instead.\n") ;
+    if (reader_epfd != -1) close(reader_epfd) ;
+    if (reader_wakefd != -1) close(reader_wakefd) ;
+    reader_epfd = reader_wakefd = -1 ;
+    pthread_mutex_unlock(&reader_lock) ;
+}
+
+/*
+ * Give the reader thread SCHED_FIFO priority and pin it to the unit's
+ * ReaderCPU, if any, recording the settings applied in the unit's
+ * low_latency_status.
+ */
+static void
+serial_reader_tune(serial_device_substruct *unit)
+{
+    struct sched_param sp ;
+    cpu_set_t cpus ;
+
+    pthread_mutex_lock(&reader_lock) ;
+    if (unit->use_reader) {
+	sp.sched_priority = SERIAL_READER_PRIORITY ;
+	if (pthread_setschedparam(reader_thread, SCHED_FIFO, &sp) == 0)
+	    unit->low_latency_status |= LOW_LATENCY_SCHED_FIFO ;
+
+	if (unit->reader_cpu >= 0 && unit->reader_cpu < CPU_SETSIZE) {
+	    CPU_ZERO(&cpus) ;
+	    CPU_SET(unit->reader_cpu, &cpus) ;
+	    if (pthread_setaffinity_np(reader_thread, sizeof(cpus), &cpus) == 0)
+		unit->low_latency_status |= LOW_LATENCY_CPU ;
+	}
+    }
+    pthread_mutex_unlock(&reader_lock) ;
+}
+
+/*
+ * Take a port away from the reader thread before it is closed, stopping the
+ * thread if this was the last one.  On return the reader thread no longer
+ * references the unit.
+ */
+static void
+serial_reader_remove(serial_device_substruct *unit)
+{
+    int stop = 0 ;
+    uint64_t wake = 1 ;
+
+    pthread_mutex_lock(&reader_lock) ;
+    if (serial_table_remove(&reader_units, unit->reader_index) == unit) {
+	epoll_ctl(reader_epfd, EPOLL_CTL_DEL, unit->fd, 0) ;
+	unit->use_reader = 0 ;
+	if (--reader_count == 0) {
+	    write(reader_wakefd, &wake, sizeof(wake)) ;
+	    reader_stopping = 1 ;
+	    stop = 1 ;
+	}
+    }
+    pthread_mutex_unlock(&reader_lock) ;
+
+    if (stop) {
+	/* no port can be added until the thread is joined */
+	DPRINT(("serial_reader_remove:  stopping reader thread\n")) ;
+	pthread_join(reader_thread, 0) ;
+
+	pthread_mutex_lock(&reader_lock) ;
+	close(reader_epfd) ;
+	close(reader_wakefd) ;
+	reader_epfd = reader_wakefd = -1 ;
+	reader_stopping = 0 ;
+	pthread_cond_broadcast(&reader_stopped) ;
+	pthread_mutex_unlock(&reader_lock) ;
+    }
+}
+#endif /* LINUX */
+
+
+/*
+ * Release a unit's port: stop reading it, close it, and free its ring,
+ * leaving the unit's attributes, capture, and replay so that it can be
+ * opened again.
+ */
+static void
+serial_release(serial_device_substruct *unit)
+{
+#ifdef LINUX
+    if (unit->use_reader)
+	serial_reader_remove(unit) ;
+    if (unit->shm)
+	serial_shm_detach(unit) ;
+#endif
 
     if (unit->fd >= 0) {
 	DPRINT(("  port file descriptor %d\n", unit->fd)) ;
 	close(unit->fd) ;
 	unit->fd = -1 ;
-	unit->state = SERIAL_DEVICE_STATE_CLOSED ;
     }
 
 #ifdef SOLARIS
@@ -545,14 +2247,132 @@ serial_close(nu_serial_ctx_type *ctx, int deviceIndex)
 	    rsb_fd = -1 ;
 	}
     }
-    else 
 #endif
-    if (unit->ztty) {
-	DPRINT(("  freeing ztty @ 0x%x\n", unit->ztty)) ;
-	free(unit->ztty) ;
+
+    if (unit->ring.buf) {
+	DPRINT(("  freeing ring buffer @ 0x%x\n", unit->ring.buf)) ;
+	free(unit->ring.buf) ;
+	unit->ring.buf = 0 ;
     }
 
     unit->ztty = 0 ;
+    unit->state = SERIAL_DEVICE_STATE_CLOSED ;
+    unit->low_latency_status = 0 ;
+}
+
+/*
+ * Close and reopen a unit's port after its connection was lost, and reset
+ * and probe its device again.  A unit whose driver handles affinities is
+ * reopened along with all the other units of that driver in the context,
+ * since those can only be probed together; a Logitech slave, for example,
+ * takes its transmitter type from the master.  The units keep their
+ * attributes, their places in the context, and any capture they were
+ * writing.  The caller must ensure that none of the units are polled
+ * meanwhile.
+ *
+ * Returns 1 if the devices answered the probe.  Otherwise the ports are
+ * left closed and 0 is returned, and the reopen can be tried again later.
+ * Replayed units are never reopened.
+ */
+int
+serial_reopen(nu_serial_ctx_type *ctx, int deviceIndex)
+{
+    serial_device_substruct **devices, **group, *unit, *u ;
+    serial_probe_job *jobs, job ;
+    peripheral_driver *driver ;
+    int i, n = 0, status ;
+
+    unit = serial_device(ctx, deviceIndex) ;
+    if (!unit || unit->replay_file)
+	return 0 ;
+
+    driver = &ctx->peripheral_drivers[unit->peripheral_driver_index] ;
+    if (!driver->reset_device_array || !driver->probe_device_array) {
+	DPRINT(("serial_reopen:  %s\n", unit->port_name)) ;
+	serial_release(unit) ;
+	status = serial_ports_open_probe(ctx, &unit, 1, &u, &job) ;
+	if (!status)
+	    serial_release(unit) ;
+	return status ;
+    }
+
+    for (i = 0 ; i < ctx->peripheral_assignments.size ; i++) {
+	u = serial_device(ctx, i) ;
+	if (u && !u->replay_file &&
+	    u->peripheral_driver_index == unit->peripheral_driver_index)
+	    n++ ;
+    }
+
+    devices = (serial_device_substruct **)
+	malloc(n * sizeof(serial_device_substruct *)) ;
+    group = (serial_device_substruct **)
+	malloc(n * sizeof(serial_device_substruct *)) ;
+    jobs = (serial_probe_job *)malloc(n * sizeof(serial_probe_job)) ;
+
+    if (devices && group && jobs) {
+	for (i = 0, n = 0 ; i < ctx->peripheral_assignments.size ; i++) {
+	    u = serial_device(ctx, i) ;
+	    if (u && !u->replay_file &&
+		u->peripheral_driver_index == unit->peripheral_driver_index) {
+		DPRINT(("serial_reopen:  %s\n", u->port_name)) ;
+		serial_release(u) ;
+		devices[n++] = u ;
+	    }
+	}
+	status = serial_ports_open_probe(ctx, devices, n, group, jobs) ;
+	if (!status)
+	    for (i = 0 ; i < n ; i++)
+		serial_release(devices[i]) ;
+    }
+    else {
+	fprintf(stderr, "Error:  cannot malloc serial probe data\n") ;
+	status = 0 ;
+    }
+
+    free(devices) ;
+    free(group) ;
+    free(jobs) ;
+    return status ;
+}
+
+/*
+ * Close a serial port and release resources.
+ */
+void
+serial_close(nu_serial_ctx_type *ctx, int deviceIndex)
+{
+    serial_device_substruct *unit ;
+
+    DPRINT(("serial_close:  device %d\n", deviceIndex)) ;
+
+    if (! ctx) return ;
+
+    unit = (serial_device_substruct *)
+	serial_table_remove(&ctx->peripheral_assignments, deviceIndex) ;
+    if (! unit) return ;
+
+    serial_release(unit) ;
+
+    if (unit->port_name) {
+	DPRINT(("  port name %s\n", unit->port_name)) ;
+	free(unit->port_name) ;
+	unit->port_name = 0 ;
+    }
+
+    free(unit->capture_file) ;
+    unit->capture_file = 0 ;
+    if (unit->capture) {
+	serial_capture_close(unit->capture, unit->capture_unit) ;
+	unit->capture = 0 ;
+    }
+
+    if (unit->replay) {
+	serial_replay_close(unit->replay) ;
+	unit->replay = 0 ;
+    }
+    free(unit->replay_file) ;
+    unit->replay_file = 0 ;
+
     unit->peripheral_driver_index = -1 ;
     free(unit) ;
 }
@@ -40,6 +40,19 @@
 #include <stdio.h>
 #include <sys/time.h>
 #include "com_sun_j3d_input_SerialDevice.h"
+#include "serialmux.h"
+
+#ifdef LINUX
+#include <stdint.h>
+/*
+ * The tracking code uses the Solaris high resolution timer interface.  On
+ * Linux gethrtime() is provided by serial.c.
+ */
+typedef int64_t hrtime_t ;
+extern hrtime_t gethrtime(void) ;
+#endif
+
+#include "serialcapture.h"
 
 #ifdef DEBUG
 #define DPRINT(args) printf args
@@ -51,9 +64,47 @@ typedef enum {
     USE_RSB =
     com_sun_j3d_input_SerialDevice_USE_RSB,
     SERIAL_PORT_FILE_NAME =
-    com_sun_j3d_input_SerialDevice_SERIAL_PORT_FILE_NAME
+    com_sun_j3d_input_SerialDevice_SERIAL_PORT_FILE_NAME,
+    SERIAL_BUFFER_SIZE =
+    com_sun_j3d_input_SerialDevice_SERIAL_BUFFER_SIZE,
+    BAUD_RATE =
+    com_sun_j3d_input_SerialDevice_BAUD_RATE,
+    LOW_LATENCY =
+    com_sun_j3d_input_SerialDevice_LOW_LATENCY,
+    READER_CPU =
+    com_sun_j3d_input_SerialDevice_READER_CPU,
+    USE_SHM =
+    com_sun_j3d_input_SerialDevice_USE_SHM,
+    CAPTURE_FILE =
+    com_sun_j3d_input_SerialDevice_CAPTURE_FILE,
+    CAPTURE_SIZE =
+    com_sun_j3d_input_SerialDevice_CAPTURE_SIZE,
+    CAPTURE_KEEP =
+    com_sun_j3d_input_SerialDevice_CAPTURE_KEEP,
+    REPLAY_FILE =
+    com_sun_j3d_input_SerialDevice_REPLAY_FILE,
+    REPLAY_SPEED =
+    com_sun_j3d_input_SerialDevice_REPLAY_SPEED
 } serial_attributes ;
 
+/*
+ * Bits of low_latency_status: the parts of the LowLatency mode that were
+ * actually applied to a port.
+ */
+typedef enum {
+    LOW_LATENCY_PORT =
+    com_sun_j3d_input_SerialDevice_LOW_LATENCY_PORT,
+    LOW_LATENCY_VMIN =
+    com_sun_j3d_input_SerialDevice_LOW_LATENCY_VMIN,
+    LOW_LATENCY_SCHED_FIFO =
+    com_sun_j3d_input_SerialDevice_LOW_LATENCY_SCHED_FIFO,
+    LOW_LATENCY_CPU =
+    com_sun_j3d_input_SerialDevice_LOW_LATENCY_CPU
+} serial_low_latency_settings ;
+
+/* SCHED_FIFO priority of the Linux reader thread in LowLatency mode */
+#define SERIAL_READER_PRIORITY 10
+
 typedef enum {
     SERIAL_DEVICE_STATE_NULL,
     SERIAL_DEVICE_STATE_CREATED,
@@ -63,10 +114,9 @@ typedef enum {
 
 /*
  * Struct of memory ttys for special shared memory RSB ztty driver (qzs & no
- * std zs).  Also used when RSB is not available; in that case, read(2) is
- * called to read character data from the tty port and write into this
- * struct to emulate the RSB.  This is done for backward compatibility with
- * the existing code base.
+ * std zs).  The layout is defined by the RSB driver; it is used only for
+ * ports read through RSB, and the characters are copied from here into the
+ * unit's ring buffer by serial_read().
  */
 typedef struct  mtty {
     unsigned char abuf[2044] ;
@@ -75,17 +125,144 @@ typedef struct  mtty {
     int           b_off ;
 } mtty ;
 
+/*
+ * Character ring buffer for each serial unit.  The capacity is a power of
+ * two, so positions in the ring are kept as free-running unsigned character
+ * counts and reduced to buffer indices by masking with (capacity - 1).  The
+ * difference between two positions is always the number of characters
+ * between them, even across wraparound, so callers never need to test for
+ * the end of the buffer.
+ *
+ * head is advanced only by the producer (serial_read(), or the reader thread
+ * on Linux).  Consumers load it with RING_HEAD() and keep their own position
+ * in ring_last.
+ *
+ * Each chunk of characters the producer reads is also stamped with the
+ * time it was read and the ring position after it, before the head covering
+ * it is published.  serial_arrival_time() uses these stamps to find when the
+ * characters before a given position arrived, which the peripheral drivers
+ * use to time their packets.
+ */
+typedef struct serial_stamp {
+    unsigned int end ;   /* ring position after the chunk */
+    hrtime_t     time ;  /* gethrtime() when the chunk was read */
+} serial_stamp ;
+
+/* number of chunk stamps kept per ring; a power of two */
+#define SERIAL_STAMPS 64
+
+typedef struct serial_ring {
+    unsigned char *buf ;
+    unsigned int   mask ;   /* capacity - 1 */
+    unsigned int   head ;   /* position after the last character written */
+    serial_stamp   stamps[SERIAL_STAMPS] ; /* most recent chunks read */
+    unsigned int   stamp_count ; /* free-running count of chunks stamped */
+} serial_ring ;
+
+#define SERIAL_RING_DEFAULT_SIZE 2048
+#define SERIAL_RING_MIN_SIZE     256
+#define SERIAL_RING_MAX_SIZE     (1 << 20)
+
+/* character at position i of a ring */
+#define RING_CHAR(r, i) ((r)->buf[(i) & (r)->mask])
+
+/*
+ * Load the current head position of a unit's ring.  On Linux the heads of
+ * non-RSB ports are advanced asynchronously by the reader thread in
+ * serial.c, so they must be loaded with acquire semantics to guarantee that
+ * the character data they cover is visible to the caller.
+ */
+#ifdef LINUX
+#define RING_HEAD(r) __atomic_load_n(&(r)->head, __ATOMIC_ACQUIRE)
+#else
+#define RING_HEAD(r) ((r)->head)
+#endif
+
+/*
+ * Cumulative I/O and framing counts of a unit, from when it is created
+ * until it is closed, indexed in this order by the array returned by
+ * SerialDevice.getStatistics().  The first three are kept by whatever
+ * fills the ring, which on Linux may be the reader thread; the others by
+ * the peripheral driver as it consumes the ring.  They are read without a
+ * lock, so a snapshot may be a few characters out of date.
+ */
+typedef struct serial_stats {
+    unsigned long long bytes ;        /* characters put in the ring */
+    unsigned long long reads ;        /* reads of the port, or copies */
+    unsigned long long empty_reads ;  /* those that found nothing */
+    unsigned long long overruns ;     /* characters lost unconsumed */
+    unsigned long long resync ;       /* characters skipped to frame */
+    unsigned long long packets ;      /* records accepted */
+    unsigned long long bad_packets ;  /* framed records rejected */
+    unsigned long long clock_rejects ; /* records the clock sync rejected */
+} serial_stats ;
+
+#define SERIAL_STATS 8
+
+/*
+ * The newest event of a unit as read by its driver's read_event function.
+ * These are written in place into direct buffers shared with Java: each
+ * device's mailbox, and the records of SerialDevice.pollEvents(), so the
+ * layout is mirrored by the EVENT_* offsets in SerialDevice.java.  The
+ * sequence number is odd while serial_read_event() writes the record.
+ */
+typedef struct serial_event {
+    int status ;        /* 0 none, 1 new record, 2 older records only */
+    int buttons[4] ;    /* 1 if down; all -1 if not known this time */
+    int device ;        /* set by the caller: device index, or -1 */
+    hrtime_t age ;      /* ns since the newest record used arrived */
+    double values[16] ; /* driver-specific: a matrix, or axis values */
+    unsigned int sequence ; /* incremented before and after writing */
+    int reserved ;
+} serial_event ;
+
+#define SERIAL_EVENT_SIZE 168
+
 #define SERIAL_DEVICE_COMMON_FIELDS                            \
     int peripheral_driver_index ;                              \
     serial_device_states state ;                               \
     char *port_name ;                                          \
-    int baud ;                                                 \
+    int baud ;      /* driver default, or BaudRate property */ \
     int needs_rts_and_dtr ;                                    \
     int fd ;                                                   \
     int use_rsb ;   /* set by RealtimeSerialBuffer property */ \
-    mtty *ztty ;    /* ptr to ztty, may be shared memory */    \
-    int ztty_buf ;  /* 0 means use abuf, 1 means use bbuf */   \
-    int ztty_last   /* previous position in the ztty buffer */ \
+    int use_reader ; /* ring filled by the reader thread */    \
+    int reader_index ; /* index among the reader's units */    \
+    mtty *ztty ;    /* RSB shared memory, only if use_rsb */   \
+    int ztty_buf ;  /* 0 means ttya (abuf), 1 otherwise */     \
+    int ztty_off ;  /* RSB offset last copied into ring */     \
+    unsigned int ring_size ; /* set by SerialBufferSize */     \
+    serial_ring ring ;                                         \
+    unsigned int ring_last ; /* consumer position in ring */   \
+    hrtime_t init_open ;  /* ns to open and configure port */  \
+    hrtime_t init_reset ; /* ns to reset device or group */    \
+    hrtime_t init_probe ; /* ns to probe device or group */    \
+    hrtime_t event_time ; /* arrival of newest event */       \
+    int low_latency ;     /* set by LowLatency property */     \
+    int reader_cpu ;      /* set by ReaderCPU, -1 if unset */  \
+    int low_latency_status ; /* LOW_LATENCY_* bits applied */  \
+    int use_shm ;   /* set by SerialTransport "shared" */      \
+    serial_shm *shm ; /* serialmux ring, if attached */        \
+    size_t shm_size ;                                          \
+    unsigned int shm_off ;   /* serialmux position copied */   \
+    unsigned int shm_stamp ; /* serialmux stamps copied */     \
+    char *capture_file ;  /* set by CaptureFile property */    \
+    unsigned int capture_size ; /* set by CaptureSize */       \
+    int capture_keep ;    /* set by CaptureKeep */             \
+    serial_capture *capture ; /* open capture, if any */       \
+    int capture_unit ;    /* unit number in the capture */     \
+    char *replay_file ;   /* set by ReplayFile if replayed */ \
+    double replay_speed ; /* set by ReplaySpeed, 0 for max */  \
+    serial_replay *replay ; /* replayed in place of the port */ \
+    int replay_next ;     /* next chunk to replay */           \
+    hrtime_t replay_start ; /* when the replay started */      \
+    hrtime_t replay_shift ; /* delay waiting for commands */   \
+    hrtime_t replay_clock ; /* replay time at full speed */    \
+    hrtime_t open_time ;  /* when the port was last opened */  \
+    volatile int fault ;  /* errno of a lost port, -1 at EOF */ \
+    hrtime_t hangup_check ; /* last poll(2) for a hangup */    \
+    serial_stats stats ;  /* see serial_stats above */         \
+    int awaiting          /* threads in serial_await() */      \
 
 /*
  * This struct is extended by the peripheral driver implementations.
@@ -94,19 +271,40 @@ typedef struct serial_device_substruct {
     SERIAL_DEVICE_COMMON_FIELDS ;
 } serial_device_substruct ;
 
-#define MAX_NUMBER_PERIPHERAL_DRIVERS 16
-#define MAX_NUMBER_PERIPHERAL_ASSIGNMENTS 32
+/* polling interval of serial_wait() in microseconds */
+#define SERIAL_WAIT_POLL 1000
+
+/* minimum interval between hangup checks of a polled port in ms */
+#define SERIAL_HANGUP_CHECK 100
+
+/*
+ * A growable table of pointers.  The table is allocated in chunks of
+ * SERIAL_TABLE_CHUNK entries which never move once allocated, so an entry
+ * can be looked up without a lock while others are being added or removed.
+ * Released indices are kept on a stack and reused first.  Additions and
+ * removals must be serialized by the caller.
+ */
+#define SERIAL_TABLE_CHUNK 32
+#define SERIAL_TABLE_CHUNKS 1024
+
+typedef struct serial_table {
+    void **chunks[SERIAL_TABLE_CHUNKS] ;
+    int size ;          /* indices handed out so far */
+    int *free_list ;    /* stack of released indices */
+    int free_count ;
+    int free_size ;
+} serial_table ;
 
 typedef struct peripheral_driver {
     /* string identifying this peripheral driver */
     char *peripheral_driver_name ;
 
+
     /* driver-specific data area for all driver's devices */
     void *driver_ctx ;
 
-    /* array of references to devices that can be initialized in parallel */
-    serial_device_substruct *affinities[MAX_NUMBER_PERIPHERAL_ASSIGNMENTS] ;
-    int affinity_count ;
+    /* size of the records the devices send, 0 if they vary */
+    int packet_size ;
 
     /* pointers to functions implementing the driver */
     void (*reset_device)() ;
@@ -117,18 +315,24 @@ typedef struct peripheral_driver {
     int  (*device_attribute_double)() ;
     int  (*device_attribute_string)() ;
     serial_device_substruct *(*create_instance)() ;
+    int  (*read_event)() ;              /* null if not polled in batches */
 
 } peripheral_driver;
 
 
+/*
+ * A set of devices that are opened and probed together.  Independent
+ * contexts share nothing but the Linux reader thread, so each may be used
+ * from its own thread; calls on a single context, other than the device
+ * lookups done when polling, must be serialized by the caller.
+ */
 typedef struct nu_serial_ctx_type {
     int number_peripheral_drivers ;
+    int max_peripheral_drivers ;
+    peripheral_driver *peripheral_drivers ;
 
-    peripheral_driver
-        peripheral_drivers[MAX_NUMBER_PERIPHERAL_DRIVERS] ;
-
-    serial_device_substruct *
-        peripheral_assignments[MAX_NUMBER_PERIPHERAL_ASSIGNMENTS] ;
+    /* serial_device_substruct pointers, indexed by device number */
+    serial_table peripheral_assignments ;
 
 } nu_serial_ctx_type ;
 
@@ -138,16 +342,67 @@ typedef double matrix_d3d[4][4];  /* 3D 64-bit floating-point matrix */
 /*
  * Extern prototypes.
  */
+nu_serial_ctx_type *
+serial_context_create(void) ;
+
+void
+serial_context_free(nu_serial_ctx_type *ctx) ;
+
+peripheral_driver *
+serial_add_peripheral_driver(nu_serial_ctx_type *ctx) ;
+
+int
+serial_add_device(nu_serial_ctx_type *ctx, int driverIndex) ;
+
+int
+serial_install_raw_peripheral_driver(nu_serial_ctx_type *ctx) ;
+
+serial_device_substruct *
+serial_device(nu_serial_ctx_type *ctx, int deviceIndex) ;
+
 int
 serial_ports_init_open_probe(nu_serial_ctx_type *ctx) ;
 
+int
+serial_baud_supported(int baud) ;
+
 void
 serial_read(serial_device_substruct *unit) ;
 
+hrtime_t
+serial_arrival_time(serial_device_substruct *unit, unsigned int position) ;
+
+unsigned int
+serial_ring_start(serial_device_substruct *unit, unsigned int position,
+                  unsigned int head) ;
+
+hrtime_t
+serial_time(serial_device_substruct *unit) ;
+
+int
+serial_replay_remaining(serial_device_substruct *unit) ;
+
 void
 serial_command(serial_device_substruct *units[], int count,
-               int pre_sleep, int post_sleep,
                unsigned char *command);
 
+int
+serial_wait(serial_device_substruct *units[], int count, int timeout,
+            int (*ready)(serial_device_substruct *unit)) ;
+
+hrtime_t
+serial_idle_time(serial_device_substruct *unit) ;
+
+int
+serial_read_event(nu_serial_ctx_type *ctx, serial_device_substruct *unit,
+                  serial_event *event) ;
+
+int
+serial_await(serial_device_substruct *unit, unsigned int position,
+             int timeout) ;
+
+int
+serial_reopen(nu_serial_ctx_type *ctx, int deviceIndex) ;
+
 void
 serial_close(nu_serial_ctx_type *ctx, int deviceIndex) ;
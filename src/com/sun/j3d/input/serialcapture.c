@@ -0,0 +1,750 @@
+/*
+ * Copyright (c) 1996-2002 Sun Microsystems, Inc. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistribution in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ *
+ * Neither the name of Sun Microsystems, Inc. or the names of
+ * contributors may be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * This software is provided "AS IS," without a warranty of any
+ * kind. ALL EXPRESS OR IMPLIED CONDITIONS, REPRESENTATIONS AND
+ * WARRANTIES, INCLUDING ANY IMPLIED WARRANTY OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE OR NON-INFRINGEMENT, ARE HEREBY
+ * EXCLUDED. SUN AND ITS LICENSORS SHALL NOT BE LIABLE FOR ANY DAMAGES
+ * SUFFERED BY LICENSEE AS A RESULT OF USING, MODIFYING OR
+ * DISTRIBUTING THE SOFTWARE OR ITS DERIVATIVES. IN NO EVENT WILL SUN
+ * OR ITS LICENSORS BE LIABLE FOR ANY LOST REVENUE, PROFIT OR DATA, OR
+ * FOR DIRECT, INDIRECT, SPECIAL, CONSEQUENTIAL, INCIDENTAL OR
+ * PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS OF THE THEORY OF
+ * LIABILITY, ARISING OUT OF THE USE OF OR INABILITY TO USE SOFTWARE,
+ * EVEN IF SUN HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * You acknowledge that Software is not designed,licensed or intended
+ * for use in the design, construction, operation or maintenance of
+ * any nuclear facility.
+ */
+
+/*
+ * Capture files; see serialcapture.h for the format.
+ */
+
+#include <dirent.h>
+#include <errno.h>
+#include <fcntl.h>
+#include <sched.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <unistd.h>
+#include <pthread.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <sys/types.h>
+#include "serial.h"
+
+typedef struct capture_segment {
+    unsigned int number ;
+    int fd ;
+    serial_capture_header *map ;
+    uint64_t size ;
+    uint64_t off ;          /* next record; reserved with a CAS */
+    int writers ;           /* writers between reserving and committing */
+} capture_segment ;
+
+typedef struct capture_unit {
+    char *driver ;          /* null if the unit number is free */
+    char *port ;
+} capture_unit ;
+
+struct serial_capture {
+    char *base ;
+    uint64_t size ;         /* of each segment */
+    int keep ;              /* segments kept, including the current one */
+    int refs ;
+    capture_segment *current ;  /* null if the capture failed */
+    capture_segment *next ;     /* created ahead of time */
+    capture_segment *retired ;  /* full, to be freed by the thread */
+    int failed ;                /* the next segment can't be created */
+    int stopping ;              /* the thread is to exit */
+    pthread_t thread ;          /* creates and frees the segments */
+    pthread_cond_t wake ;       /* wakes the thread */
+    capture_unit *units ;
+    int unit_count ;
+    unsigned long dropped ;
+    serial_capture *link ;
+} ;
+
+/*
+ * Guards the list of open captures, and everything but the record writes.
+ * It is only held briefly: segments are created and freed without it.
+ */
+static pthread_mutex_t capture_lock = PTHREAD_MUTEX_INITIALIZER ;
+static serial_capture *captures = 0 ;
+
+static void
+capture_write_open(serial_capture *c, capture_segment *seg, int unit) ;
+
+/*
+ * Find the lowest and highest segment numbers among the existing files of
+ * a capture.  last is -1 if there are none.
+ */
+static void
+capture_segment_range(const char *base, long *first, long *last)
+{
+    const char *slash = strrchr(base, '/') ;
+    const char *name = slash ? slash + 1 : base ;
+    char *dir ;
+    DIR *d ;
+    struct dirent *e ;
+    size_t n = strlen(name) ;
+    long k ;
+    char *end ;
+
+    *first = *last = -1 ;
+    dir = slash ? strndup(base, slash == base ? 1 : slash - base) :
+	strdup(".") ;
+    if (!dir || !(d = opendir(dir))) {
+	free(dir) ;
+	return ;
+    }
+
+    while ((e = readdir(d)) != 0) {
+	if (strncmp(e->d_name, name, n) != 0 || e->d_name[n] != '.')
+	    continue ;
+	k = strtol(e->d_name + n + 1, &end, 10) ;
+	if (*end != '\0' || end == e->d_name + n + 1 || k < 0)
+	    continue ;
+	if (k > *last) *last = k ;
+	if (*first == -1 || k < *first) *first = k ;
+    }
+
+    closedir(d) ;
+    free(dir) ;
+}
+
+static char *
+capture_segment_name(serial_capture *c, unsigned int number)
+{
+    char *name = (char *)malloc(strlen(c->base) + 16) ;
+
+    if (name) sprintf(name, "%s.%06u", c->base, number) ;
+    return name ;
+}
+
+/*
+ * Create, preallocate, and map a segment.  The segment that falls out of
+ * the number kept is removed.  This takes as long as the file system needs
+ * to allocate the segment, so it is called without capture_lock held.
+ */
+static capture_segment *
+capture_segment_create(serial_capture *c, unsigned int number)
+{
+    capture_segment *seg ;
+    char *name ;
+    struct timespec ts ;
+    int err ;
+
+    if (!(name = capture_segment_name(c, number)) ||
+	!(seg = (capture_segment *)calloc(1, sizeof(capture_segment)))) {
+	fprintf(stderr, "Error:  cannot malloc capture segment\n") ;
+	free(name) ;
+	return 0 ;
+    }
+
+    seg->fd = open(name, O_RDWR | O_CREAT | O_TRUNC, 0644) ;
+    if (seg->fd == -1) {
+	fprintf(stderr, "Warning:  cannot create capture file %s (%d)\n",
+		name, errno) ;
+	free(name) ;
+	free(seg) ;
+	return 0 ;
+    }
+
+    /* allocate the blocks now so that writing the records can't fail */
+    err = posix_fallocate(seg->fd, 0, (off_t)c->size) ;
+    if (err == EOPNOTSUPP || err == EINVAL)
+	err = ftruncate(seg->fd, (off_t)c->size) == -1 ? errno : 0 ;
+    if (err == 0)
+	seg->map = (serial_capture_header *)
+	    mmap(0, c->size, PROT_READ | PROT_WRITE, MAP_SHARED, seg->fd, 0) ;
+
+    if (err != 0 || seg->map == MAP_FAILED) {
+	fprintf(stderr, "Warning:  cannot allocate capture file %s (%d)\n",
+		name, err ? err : errno) ;
+	close(seg->fd) ;
+	unlink(name) ;
+	free(name) ;
+	free(seg) ;
+	return 0 ;
+    }
+    free(name) ;
+
+#ifdef MADV_POPULATE_WRITE
+    /*
+     * Fault the pages in writable now.  Otherwise the first write to each
+     * page of a shared file mapping faults, which costs more than the
+     * records written to it.
+     */
+    madvise((void *)seg->map, c->size, MADV_POPULATE_WRITE) ;
+#endif
+
+    clock_gettime(CLOCK_REALTIME, &ts) ;
+    seg->map->magic = SERIAL_CAPTURE_MAGIC ;
+    seg->map->version = SERIAL_CAPTURE_VERSION ;
+    seg->map->segment = number ;
+    seg->map->header_size = SERIAL_CAPTURE_HEADER_SIZE ;
+    seg->map->size = c->size ;
+    seg->map->time = gethrtime() ;
+    seg->map->realtime = (int64_t)ts.tv_sec * 1000000000 + ts.tv_nsec ;
+    seg->map->pid = (int32_t)getpid() ;
+
+    seg->number = number ;
+    seg->size = c->size ;
+    seg->off = SERIAL_CAPTURE_HEADER_SIZE ;
+
+    /* this is the next segment, so keep one more */
+    if (number > (unsigned int)c->keep &&
+	(name = capture_segment_name(c, number - c->keep - 1)) != 0) {
+	unlink(name) ;
+	free(name) ;
+    }
+
+    DPRINT(("capture_segment_create:  %s.%06u\n", c->base, number)) ;
+    return seg ;
+}
+
+/*
+ * Record the attached units in a new segment.  Called with capture_lock
+ * held, before the segment is made the next one.
+ */
+static void
+capture_segment_start(serial_capture *c, capture_segment *seg)
+{
+    int i ;
+
+    for (i = 0 ; i < c->unit_count ; i++)
+	if (c->units[i].driver)
+	    capture_write_open(c, seg, i) ;
+}
+
+/*
+ * Unmap and close a segment.  The current segment is cut down to the
+ * records written; a segment that was never used is removed.
+ */
+static void
+capture_segment_free(serial_capture *c, capture_segment *seg, int used)
+{
+    char *name ;
+    uint64_t off = seg->off < seg->size ? seg->off : seg->size ;
+
+    if (used) seg->map->size = off ;
+    munmap((void *)seg->map, seg->size) ;
+
+    if (used) {
+	if (ftruncate(seg->fd, (off_t)off) == -1)
+	    fprintf(stderr, "Warning:  cannot truncate capture file\n") ;
+    }
+    else if ((name = capture_segment_name(c, seg->number)) != 0) {
+	unlink(name) ;
+	free(name) ;
+    }
+
+    close(seg->fd) ;
+    free(seg) ;
+}
+
+/*
+ * Reserve space for a record in a segment and write it.  Returns 0 if the
+ * segment doesn't have room for it.
+ */
+static int
+capture_segment_write(capture_segment *seg, int unit, int type, int64_t time,
+		      const unsigned char *p1, unsigned int n1,
+		      const unsigned char *p2, unsigned int n2)
+{
+    serial_capture_record *rec ;
+    uint64_t size = SERIAL_CAPTURE_RECORD_SIZE(n1 + n2), off ;
+
+    off = __atomic_load_n(&seg->off, __ATOMIC_RELAXED) ;
+    do {
+	if (off + size > seg->size)
+	    return 0 ;
+    } while (!__atomic_compare_exchange_n(&seg->off, &off, off + size, 1,
+					  __ATOMIC_RELAXED, __ATOMIC_RELAXED)) ;
+
+    rec = (serial_capture_record *)((char *)seg->map + off) ;
+    rec->unit = (uint16_t)unit ;
+    rec->type = (uint16_t)type ;
+    rec->time = time ;
+    memcpy((void *)(rec + 1), p1, n1) ;
+    if (n2) memcpy((char *)(rec + 1) + n1, p2, n2) ;
+
+    /* a reader seeing the length sees the record */
+    __atomic_store_n(&rec->length, n1 + n2, __ATOMIC_RELEASE) ;
+    return 1 ;
+}
+
+/*
+ * Record that a unit is attached in a segment.
+ */
+static void
+capture_write_open(serial_capture *c, capture_segment *seg, int unit)
+{
+    capture_unit *u = &c->units[unit] ;
+
+    capture_segment_write(seg, unit, SERIAL_CAPTURE_OPEN, gethrtime(),
+			  (unsigned char *)u->driver, strlen(u->driver) + 1,
+			  (unsigned char *)u->port, strlen(u->port) + 1) ;
+}
+
+/*
+ * Switch from a full segment to the next, which was created ahead of time,
+ * and leave the full one to the capture's thread.  Every writer that finds
+ * the segment full calls this; the first switches.  If the thread hasn't
+ * finished creating the next segment yet, nothing is switched, and the
+ * writer drops its record.
+ */
+static void
+capture_roll(serial_capture *c, capture_segment *seg)
+{
+    capture_segment *next ;
+
+    pthread_mutex_lock(&capture_lock) ;
+    if (c->current == seg && (c->next || c->failed)) {
+	next = c->next ;
+	c->next = 0 ;
+	__atomic_store_n(&c->current, next, __ATOMIC_SEQ_CST) ;
+	if (!next)
+	    fprintf(stderr, "Warning:  capture %s stopped\n", c->base) ;
+
+	c->retired = seg ;
+	pthread_cond_signal(&c->wake) ;
+    }
+    pthread_mutex_unlock(&capture_lock) ;
+}
+
+/*
+ * The thread of a capture.  It frees each segment retired by
+ * capture_roll(), once the writers still copying into it have finished,
+ * and creates the segment after the current one, so that the writers never
+ * wait on the file system.
+ */
+static void *
+capture_thread(void *arg)
+{
+    serial_capture *c = (serial_capture *)arg ;
+    capture_segment *retired, *seg ;
+    unsigned int number = 0 ;
+    int create ;
+
+    pthread_mutex_lock(&capture_lock) ;
+    for (;;) {
+	while (!c->stopping && !c->retired &&
+	       !(c->current && !c->next && !c->failed))
+	    pthread_cond_wait(&c->wake, &capture_lock) ;
+	if (c->stopping)
+	    break ;
+
+	retired = c->retired ;
+	c->retired = 0 ;
+	create = c->current && !c->next && !c->failed ;
+	if (create)
+	    number = c->current->number + 1 ;
+	pthread_mutex_unlock(&capture_lock) ;
+
+	if (retired) {
+	    /* let the writers still copying into the old segment finish */
+	    while (__atomic_load_n(&retired->writers, __ATOMIC_SEQ_CST) != 0)
+		sched_yield() ;
+	    capture_segment_free(c, retired, 1) ;
+	}
+	seg = create ? capture_segment_create(c, number) : 0 ;
+
+	pthread_mutex_lock(&capture_lock) ;
+	if (seg) {
+	    capture_segment_start(c, seg) ;
+	    c->next = seg ;
+	}
+	else if (create)
+	    c->failed = 1 ;
+    }
+    pthread_mutex_unlock(&capture_lock) ;
+    return 0 ;
+}
+
+void
+serial_capture_write(serial_capture *c, int unit, int type, int64_t time,
+		     const unsigned char *p1, unsigned int n1,
+		     const unsigned char *p2, unsigned int n2)
+{
+    capture_segment *seg ;
+    int tries, written ;
+
+    if (SERIAL_CAPTURE_RECORD_SIZE(n1 + n2) >
+	c->size - SERIAL_CAPTURE_HEADER_SIZE) {
+	__atomic_add_fetch(&c->dropped, 1, __ATOMIC_RELAXED) ;
+	return ;
+    }
+
+    /* a record fits in an empty segment, so this rarely loops */
+    for (tries = 0 ; tries < 3 ; tries++) {
+	seg = __atomic_load_n(&c->current, __ATOMIC_SEQ_CST) ;
+	if (!seg) break ;
+
+	/* keep the segment mapped until the record is written */
+	__atomic_add_fetch(&seg->writers, 1, __ATOMIC_SEQ_CST) ;
+	if (__atomic_load_n(&c->current, __ATOMIC_SEQ_CST) != seg) {
+	    __atomic_sub_fetch(&seg->writers, 1, __ATOMIC_SEQ_CST) ;
+	    continue ;
+	}
+
+	written = capture_segment_write(seg, unit, type, time,
+					p1, n1, p2, n2) ;
+	__atomic_sub_fetch(&seg->writers, 1, __ATOMIC_SEQ_CST) ;
+	if (written)
+	    return ;
+
+	capture_roll(c, seg) ;
+    }
+
+    __atomic_add_fetch(&c->dropped, 1, __ATOMIC_RELAXED) ;
+}
+
+serial_capture *
+serial_capture_open(const char *base, uint64_t size, int keep)
+{
+    serial_capture *c ;
+    long first, last ;
+
+    pthread_mutex_lock(&capture_lock) ;
+    for (c = captures ; c ; c = c->link)
+	if (strcmp(c->base, base) == 0) {
+	    c->refs++ ;
+	    pthread_mutex_unlock(&capture_lock) ;
+	    return c ;
+	}
+
+    if (!(c = (serial_capture *)calloc(1, sizeof(serial_capture))) ||
+	!(c->base = strdup(base))) {
+	fprintf(stderr, "Error:  cannot malloc capture\n") ;
+	free(c) ;
+	pthread_mutex_unlock(&capture_lock) ;
+	return 0 ;
+    }
+    c->size = size & ~(uint64_t)7 ;
+    c->keep = keep < 2 ? 2 : keep ;
+
+    /* don't overwrite the segments of an earlier run */
+    capture_segment_range(base, &first, &last) ;
+    c->current = capture_segment_create(c, (unsigned int)(last + 1)) ;
+    if (c->current)
+	c->next = capture_segment_create(c, c->current->number + 1) ;
+
+    pthread_cond_init(&c->wake, 0) ;
+    if (c->current && c->next) {
+	if (pthread_create(&c->thread, 0, capture_thread, c) == 0) {
+	    c->refs = 1 ;
+	    c->link = captures ;
+	    captures = c ;
+	    pthread_mutex_unlock(&capture_lock) ;
+	    return c ;
+	}
+	fprintf(stderr, "Warning:  cannot start capture thread for %s\n",
+		base) ;
+    }
+
+    if (c->current) capture_segment_free(c, c->current, 0) ;
+    if (c->next) capture_segment_free(c, c->next, 0) ;
+    pthread_cond_destroy(&c->wake) ;
+    free(c->base) ;
+    free(c) ;
+    pthread_mutex_unlock(&capture_lock) ;
+    return 0 ;
+}
+
+int
+serial_capture_attach(serial_capture *c, const char *driver,
+		      const char *port)
+{
+    capture_unit *units ;
+    capture_segment *seg ;
+    int unit ;
+
+    pthread_mutex_lock(&capture_lock) ;
+    if (c->unit_count > 0xffff ||
+	!(units = (capture_unit *)realloc
+	  (c->units, (c->unit_count + 1) * sizeof(capture_unit)))) {
+	pthread_mutex_unlock(&capture_lock) ;
+	return -1 ;
+    }
+    c->units = units ;
+    unit = c->unit_count++ ;
+    units[unit].driver = strdup(driver) ;
+    units[unit].port = strdup(port) ;
+    if (!units[unit].driver || !units[unit].port) {
+	free(units[unit].driver) ;
+	free(units[unit].port) ;
+	units[unit].driver = 0 ;
+	pthread_mutex_unlock(&capture_lock) ;
+	return -1 ;
+    }
+
+    /*
+     * A switch can't happen while the lock is held.  If the current segment
+     * is too full for the record it will be switched for the next, which
+     * has one.
+     */
+    if ((seg = c->current) != 0)
+	capture_write_open(c, seg, unit) ;
+    if (c->next)
+	capture_write_open(c, c->next, unit) ;
+
+    pthread_mutex_unlock(&capture_lock) ;
+    return unit ;
+}
+
+void
+serial_capture_close(serial_capture *c, int unit)
+{
+    serial_capture **p ;
+
+    pthread_mutex_lock(&capture_lock) ;
+    if (unit >= 0 && unit < c->unit_count) {
+	free(c->units[unit].driver) ;
+	free(c->units[unit].port) ;
+	c->units[unit].driver = c->units[unit].port = 0 ;
+    }
+
+    if (--c->refs > 0) {
+	pthread_mutex_unlock(&capture_lock) ;
+	return ;
+    }
+
+    for (p = &captures ; *p ; p = &(*p)->link)
+	if (*p == c) {
+	    *p = c->link ;
+	    break ;
+	}
+
+    /* no unit writes any more, so the segments are left to this thread */
+    c->stopping = 1 ;
+    pthread_cond_signal(&c->wake) ;
+    pthread_mutex_unlock(&capture_lock) ;
+    pthread_join(c->thread, 0) ;
+
+    if (c->dropped)
+	fprintf(stderr, "Warning:  capture %s dropped %lu records\n",
+		c->base, c->dropped) ;
+
+    if (c->retired) capture_segment_free(c, c->retired, 1) ;
+    if (c->current) capture_segment_free(c, c->current, 1) ;
+    if (c->next) capture_segment_free(c, c->next, 0) ;
+    pthread_cond_destroy(&c->wake) ;
+    free(c->units) ;
+    free(c->base) ;
+    free(c) ;
+}
+
+
+/*
+ * Replay.  The DATA records of one unit are read into memory when the
+ * replay is opened, so that nothing but copying is done while replaying.
+ */
+
+typedef struct replay_chunk {
+    int64_t time ;
+    uint32_t off ;          /* in data */
+    uint32_t length ;
+} replay_chunk ;
+
+struct serial_replay {
+    int64_t start ;         /* time of the unit's OPEN record */
+    replay_chunk *chunks ;
+    int count ;
+    int max_count ;
+    unsigned char *data ;
+    uint32_t data_size ;
+    uint32_t max_data ;
+} ;
+
+/*
+ * Add the records of a unit from one segment to a replay.  units[] flags
+ * the unit numbers opened for the port, which are found from the OPEN
+ * records as the segment is read.  Returns 0 if memory runs out.
+ */
+static int
+replay_add_segment(serial_replay *r, serial_capture_header *h, uint64_t end,
+		   const char *driver, const char *port, unsigned char *units)
+{
+    serial_capture_record *rec ;
+    char *data ;
+    uint64_t off, size ;
+    void *p ;
+
+    for (off = h->header_size ; off + sizeof(*rec) <= end ; off += size) {
+	rec = (serial_capture_record *)((char *)h + off) ;
+	if (rec->length == 0)
+	    break ;
+	size = SERIAL_CAPTURE_RECORD_SIZE(rec->length) ;
+	if (off + size > end)
+	    break ;
+	data = (char *)(rec + 1) ;
+
+	if (rec->type == SERIAL_CAPTURE_OPEN) {
+	    units[rec->unit] =
+		strcmp(data, driver) == 0 &&
+		strcmp(data + strlen(data) + 1, port) == 0 ;
+	    if (units[rec->unit] && r->start == 0)
+		r->start = rec->time ;
+	    continue ;
+	}
+	if ((rec->type != SERIAL_CAPTURE_DATA &&
+	     rec->type != SERIAL_CAPTURE_COMMAND) || !units[rec->unit])
+	    continue ;
+
+	if (r->count == r->max_count) {
+	    r->max_count = r->max_count ? 2 * r->max_count : 1024 ;
+	    if (!(p = realloc(r->chunks, r->max_count * sizeof(replay_chunk))))
+		return 0 ;
+	    r->chunks = (replay_chunk *)p ;
+	}
+	while (r->data_size + rec->length > r->max_data) {
+	    if (r->max_data >= 0x80000000U)
+		return 0 ;
+	    r->max_data = r->max_data ? 2 * r->max_data : 65536 ;
+	    if (!(p = realloc(r->data, r->max_data)))
+		return 0 ;
+	    r->data = (unsigned char *)p ;
+	}
+
+	r->chunks[r->count].time = rec->time ;
+	r->chunks[r->count].off = r->data_size ;
+	r->chunks[r->count].length = 0 ;
+	if (rec->type == SERIAL_CAPTURE_DATA) {
+	    r->chunks[r->count].length = rec->length ;
+	    memcpy(r->data + r->data_size, data, rec->length) ;
+	    r->data_size += rec->length ;
+	}
+	r->count++ ;
+    }
+    return 1 ;
+}
+
+serial_replay *
+serial_replay_open(const char *name, const char *driver, const char *port)
+{
+    serial_replay *r ;
+    serial_capture_header *h ;
+    unsigned char *units ;
+    struct stat st ;
+    long first, last, k ;
+    char *file ;
+    int fd, pid = 0, same, single, ok = 1 ;
+
+    r = (serial_replay *)calloc(1, sizeof(serial_replay)) ;
+    units = (unsigned char *)calloc(0x10000, 1) ;
+    file = (char *)malloc(strlen(name) + 16) ;
+    if (!r || !units || !file) {
+	fprintf(stderr, "Error:  cannot malloc replay\n") ;
+	free(r) ; free(units) ; free(file) ;
+	return 0 ;
+    }
+
+    /* a segment replays by itself; a base name replays all its segments */
+    single = stat(name, &st) == 0 && S_ISREG(st.st_mode) ;
+    if (single)
+	first = last = 0 ;
+    else
+	capture_segment_range(name, &first, &last) ;
+
+    for (k = first ; ok && k <= last && k >= 0 ; k++) {
+	if (single)
+	    strcpy(file, name) ;
+	else
+	    sprintf(file, "%s.%06ld", name, k) ;
+
+	if ((fd = open(file, O_RDONLY)) == -1)
+	    continue ;
+	h = MAP_FAILED ;
+	if (fstat(fd, &st) == 0 && st.st_size >= SERIAL_CAPTURE_HEADER_SIZE)
+	    h = (serial_capture_header *)
+		mmap(0, st.st_size, PROT_READ, MAP_SHARED, fd, 0) ;
+	close(fd) ;
+
+	if ((void *)h == MAP_FAILED ||
+	    h->magic != SERIAL_CAPTURE_MAGIC ||
+	    h->version != SERIAL_CAPTURE_VERSION) {
+	    fprintf(stderr, "Warning:  %s is not a capture segment\n", file) ;
+	    if ((void *)h != MAP_FAILED) munmap((void *)h, st.st_size) ;
+	    continue ;
+	}
+
+	/* the times of a later run aren't related to those of the first */
+	if (pid == 0)
+	    pid = h->pid ;
+	same = h->pid == pid ;
+	if (same)
+	    ok = replay_add_segment(r, h, (uint64_t)st.st_size < h->size ?
+				    (uint64_t)st.st_size : h->size,
+				    driver, port, units) ;
+	munmap((void *)h, st.st_size) ;
+	if (!same)
+	    break ;
+    }
+    free(units) ;
+    free(file) ;
+
+    if (!ok)
+	fprintf(stderr, "Error:  cannot malloc replay of %s\n", name) ;
+    else if (r->start == 0)
+	fprintf(stderr, "Error:  %s has no %s device on %s\n",
+		name, driver, port) ;
+
+    if (!ok || r->start == 0) {
+	serial_replay_close(r) ;
+	return 0 ;
+    }
+
+    DPRINT(("serial_replay_open:  %d chunks of %s\n", r->count, port)) ;
+    return r ;
+}
+
+int64_t
+serial_replay_start(serial_replay *r)
+{
+    return r->start ;
+}
+
+int
+serial_replay_count(serial_replay *r)
+{
+    return r->count ;
+}
+
+const unsigned char *
+serial_replay_chunk(serial_replay *r, int k, int64_t *time,
+		    unsigned int *length)
+{
+    *time = r->chunks[k].time ;
+    *length = r->chunks[k].length ;
+    return r->data + r->chunks[k].off ;
+}
+
+void
+serial_replay_close(serial_replay *r)
+{
+    free(r->chunks) ;
+    free(r->data) ;
+    free(r) ;
+}
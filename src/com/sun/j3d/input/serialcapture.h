@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 1996-2002 Sun Microsystems, Inc. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistribution in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ *
+ * Neither the name of Sun Microsystems, Inc. or the names of
+ * contributors may be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * This software is provided "AS IS," without a warranty of any
+ * kind. ALL EXPRESS OR IMPLIED CONDITIONS, REPRESENTATIONS AND
+ * WARRANTIES, INCLUDING ANY IMPLIED WARRANTY OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE OR NON-INFRINGEMENT, ARE HEREBY
+ * EXCLUDED. SUN AND ITS LICENSORS SHALL NOT BE LIABLE FOR ANY DAMAGES
+ * SUFFERED BY LICENSEE AS A RESULT OF USING, MODIFYING OR
+ * DISTRIBUTING THE SOFTWARE OR ITS DERIVATIVES. IN NO EVENT WILL SUN
+ * OR ITS LICENSORS BE LIABLE FOR ANY LOST REVENUE, PROFIT OR DATA, OR
+ * FOR DIRECT, INDIRECT, SPECIAL, CONSEQUENTIAL, INCIDENTAL OR
+ * PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS OF THE THEORY OF
+ * LIABILITY, ARISING OUT OF THE USE OF OR INABILITY TO USE SOFTWARE,
+ * EVEN IF SUN HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * You acknowledge that Software is not designed,licensed or intended
+ * for use in the design, construction, operation or maintenance of
+ * any nuclear facility.
+ */
+
+/*
+ * Capture files: a log of every chunk of characters read from the serial
+ * ports, for finding out after the fact what a device actually sent.
+ *
+ * A capture is a series of segment files named by appending a sequence
+ * number to a base name: /var/tmp/tracker becomes /var/tmp/tracker.000000,
+ * /var/tmp/tracker.000001, and so on.  Each segment is preallocated at its
+ * full size and mapped, so appending a record is a reservation with a
+ * compare-and-swap and a copy into the mapping; there are no locks or
+ * system calls until a segment fills.  The first writer to find a segment
+ * full then switches every unit to the next segment, which has already
+ * been created, holding a lock only to swap the pointers.  A thread of the
+ * capture frees the full segment and creates the one after that, removing
+ * the oldest beyond the number to keep, so no writer waits on the file
+ * system.  A record that can't be written, because it is larger than a
+ * segment, the next segment isn't ready yet, or a segment can't be
+ * created, is dropped and counted.
+ *
+ * A segment is a serial_capture_header followed by records at
+ * SERIAL_CAPTURE_HEADER_SIZE.  Each record is a serial_capture_record
+ * followed by length characters, padded to a multiple of 8 bytes.  length
+ * is stored last with release semantics; the rest of the file is zero, so
+ * a reader stops at the first record whose length is 0, which also covers
+ * a record whose writer died before finishing it.  Times are the
+ * gethrtime() clock, CLOCK_MONOTONIC on Linux; the header gives the
+ * wall-clock time at which the segment was created on the same clock.
+ *
+ * Unit numbers are assigned by the capture as units attach to it, so the
+ * devices of several contexts can share one.  Every segment begins with a
+ * SERIAL_CAPTURE_OPEN record for each unit attached when it was created,
+ * and a unit that attaches later writes one when it does, so each segment
+ * can be read on its own.  The data of an OPEN record is the driver name
+ * and the port name, each terminated by a NUL.
+ *
+ * Only fixed-size types are used so that captures can be read by 32 and 64
+ * bit processes and on machines of the same byte order.
+ *
+ * A capture can be replayed into a unit in place of its port.  The replay
+ * of a unit is the DATA and COMMAND records of the units recorded with the
+ * same driver and port name, from all the segments of the capture written
+ * by the process that wrote the first, or from a single segment.  The
+ * COMMAND records are chunks of length 0, which the replay uses to keep
+ * the responses to the driver's commands in step with them.
+ */
+
+#include <stdint.h>
+
+#define SERIAL_CAPTURE_MAGIC          0x6a336463   /* "j3dc" */
+#define SERIAL_CAPTURE_VERSION        1
+#define SERIAL_CAPTURE_HEADER_SIZE    64
+#define SERIAL_CAPTURE_DEFAULT_SIZE   (16 << 20)
+#define SERIAL_CAPTURE_MIN_SIZE       (64 << 10)
+#define SERIAL_CAPTURE_DEFAULT_KEEP   4
+
+/* record types */
+#define SERIAL_CAPTURE_DATA     1   /* characters read from the port */
+#define SERIAL_CAPTURE_OPEN     2   /* a unit attached */
+#define SERIAL_CAPTURE_COMMAND  3   /* a command written to the port */
+
+typedef struct serial_capture_header {
+    uint32_t magic ;
+    uint32_t version ;
+    uint32_t segment ;      /* sequence number */
+    uint32_t header_size ;  /* offset of the first record */
+    uint64_t size ;         /* of the file */
+    int64_t  time ;         /* gethrtime() when created */
+    int64_t  realtime ;     /* CLOCK_REALTIME ns at the same moment */
+    int32_t  pid ;          /* of the writing process */
+    uint32_t pad ;
+} serial_capture_header ;
+
+typedef struct serial_capture_record {
+    uint32_t length ;       /* of the data; 0 ends the segment */
+    uint16_t unit ;
+    uint16_t type ;
+    int64_t  time ;         /* gethrtime() when the data was read */
+} serial_capture_record ;
+
+/* bytes taken by a record with length characters of data */
+#define SERIAL_CAPTURE_RECORD_SIZE(length) \
+    ((sizeof(serial_capture_record) + (length) + 7) & ~(uint64_t)7)
+
+typedef struct serial_capture serial_capture ;
+
+/*
+ * Open the capture with the given base name, or add a reference to it if
+ * it is already open in this process.  The size and keep count of a
+ * capture are those given when it was first opened.  Returns null with a
+ * warning printed if it can't be created.
+ */
+serial_capture *
+serial_capture_open(const char *base, uint64_t size, int keep) ;
+
+/*
+ * Assign a unit number for a port and record it.  Returns -1 if the
+ * capture has no more unit numbers.
+ */
+int
+serial_capture_attach(serial_capture *c, const char *driver,
+		      const char *port) ;
+
+/*
+ * Append a record whose data is the n1 characters at p1 followed by the n2
+ * at p2.  This may be called from any thread, and only blocks when the
+ * segment is full.
+ */
+void
+serial_capture_write(serial_capture *c, int unit, int type, int64_t time,
+		     const unsigned char *p1, unsigned int n1,
+		     const unsigned char *p2, unsigned int n2) ;
+
+/*
+ * Release a unit number, and a reference to the capture.  The capture is
+ * closed when its last reference is released.
+ */
+void
+serial_capture_close(serial_capture *c, int unit) ;
+
+typedef struct serial_replay serial_replay ;
+
+/*
+ * Read the characters recorded for a port from a capture, given its base
+ * name or the name of one segment.  Returns null with an error printed if
+ * there are none.
+ */
+serial_replay *
+serial_replay_open(const char *name, const char *driver, const char *port) ;
+
+/* time at which the unit was opened in the capture */
+int64_t
+serial_replay_start(serial_replay *r) ;
+
+/* number of chunks of characters */
+int
+serial_replay_count(serial_replay *r) ;
+
+/* chunk k, with its length and the time it was read; 0 for a command */
+const unsigned char *
+serial_replay_chunk(serial_replay *r, int k, int64_t *time,
+		    unsigned int *length) ;
+
+void
+serial_replay_close(serial_replay *r) ;
@@ -0,0 +1,478 @@
+/*
+ * Copyright (c) 1996-2002 Sun Microsystems, Inc. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistribution in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ *
+ * Neither the name of Sun Microsystems, Inc. or the names of
+ * contributors may be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * This software is provided "AS IS," without a warranty of any
+ * kind. ALL EXPRESS OR IMPLIED CONDITIONS, REPRESENTATIONS AND
+ * WARRANTIES, INCLUDING ANY IMPLIED WARRANTY OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE OR NON-INFRINGEMENT, ARE HEREBY
+ * EXCLUDED. SUN AND ITS LICENSORS SHALL NOT BE LIABLE FOR ANY DAMAGES
+ * SUFFERED BY LICENSEE AS A RESULT OF USING, MODIFYING OR
+ * DISTRIBUTING THE SOFTWARE OR ITS DERIVATIVES. IN NO EVENT WILL SUN
+ * OR ITS LICENSORS BE LIABLE FOR ANY LOST REVENUE, PROFIT OR DATA, OR
+ * FOR DIRECT, INDIRECT, SPECIAL, CONSEQUENTIAL, INCIDENTAL OR
+ * PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS OF THE THEORY OF
+ * LIABILITY, ARISING OUT OF THE USE OF OR INABILITY TO USE SOFTWARE,
+ * EVEN IF SUN HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * You acknowledge that Software is not designed,licensed or intended
+ * for use in the design, construction, operation or maintenance of
+ * any nuclear facility.
+ */
+
+/*
+ * serialmux -- share serial ports between processes on Linux.
+ *
+ * usage:  serialmux [-b baud] [-d] [-L] [-m mode] [-s size] port ...
+ *
+ * serialmux opens and configures each port and copies every chunk of
+ * characters it reads, stamped with the time of the read, into a ring in a
+ * file under /dev/shm; see serialmux.h for the layout.  SerialDevice
+ * instances whose SerialTransport property is "shared" map that ring
+ * instead of opening the port, so several processes (a renderer, a
+ * recorder, and a monitor, say) can read the same tracker, and polling
+ * makes no system calls.  Commands written by the devices to the ring's
+ * named pipe are forwarded to the port.
+ *
+ * The ports are configured as the native transport configures them: raw
+ * mode, 8 data bits, no parity, one stop bit, no flow control, at the given
+ * baud rate (default 19200).  -d raises DTR and RTS, which the gameport
+ * needs for power.  -L sets ASYNC_LOW_LATENCY on the ports and runs
+ * serialmux at SCHED_FIFO priority, each where permitted.  -m gives the
+ * permissions of the files (default 0660); the processes sharing a port
+ * need read and write access to both.  -s gives the ring size in bytes, a
+ * power of two (default 65536).
+ *
+ * The names of the files are printed on standard output once they are
+ * ready.  serialmux runs until it is interrupted, then removes the files
+ * and prints a summary of the traffic on standard error.
+ */
+
+#define _GNU_SOURCE
+
+#include <errno.h>
+#include <fcntl.h>
+#include <sched.h>
+#include <signal.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <termios.h>
+#include <time.h>
+#include <unistd.h>
+#include <poll.h>
+#include <sys/epoll.h>
+#include <sys/ioctl.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <linux/serial.h>
+#include "serialmux.h"
+
+/* SCHED_FIFO priority with -L, the same as the native reader thread's */
+#define MUX_PRIORITY 10
+
+typedef struct mux_port {
+    char *name ;            /* the port */
+    int fd ;                /* the port, or -1 once lost */
+    char *shm_name ;        /* the ring file */
+    serial_shm *shm ;
+    size_t shm_size ;
+    char *cmd_name ;        /* the command pipe */
+    int cmd ;               /* the command pipe, open for reading */
+    unsigned long long chars, chunks, commands ;
+} mux_port ;
+
+static volatile sig_atomic_t done = 0 ;
+
+static void
+on_signal(int sig)
+{
+    done = 1 ;
+}
+
+static int64_t
+now_ns(void)
+{
+    struct timespec ts ;
+
+    clock_gettime(CLOCK_MONOTONIC, &ts) ;
+    return (int64_t)ts.tv_sec * 1000000000 + ts.tv_nsec ;
+}
+
+static speed_t
+baud_constant(int baud)
+{
+    switch (baud) {
+    case 300:    return B300 ;
+    case 600:    return B600 ;
+    case 1200:   return B1200 ;
+    case 2400:   return B2400 ;
+    case 4800:   return B4800 ;
+    case 9600:   return B9600 ;
+    case 19200:  return B19200 ;
+    case 38400:  return B38400 ;
+#ifdef B57600
+    case 57600:  return B57600 ;
+#endif
+#ifdef B115200
+    case 115200: return B115200 ;
+#endif
+#ifdef B230400
+    case 230400: return B230400 ;
+#endif
+    default:     return 0 ;
+    }
+}
+
+/*
+ * Open and configure a port.  Returns 1 on success, 0 on failure.
+ */
+static int
+open_port(mux_port *p, speed_t baud, int rts_dtr, int low_latency)
+{
+    struct termios tio ;
+    struct serial_struct ss ;
+    int bits ;
+
+    p->fd = open(p->name, O_RDWR | O_NOCTTY | O_NONBLOCK) ;
+    if (p->fd == -1) {
+	fprintf(stderr, "serialmux:  cannot open %s (%s)\n",
+		p->name, strerror(errno)) ;
+	return 0 ;
+    }
+
+    if (tcgetattr(p->fd, &tio) == -1) {
+	fprintf(stderr, "serialmux:  %s is not a tty\n", p->name) ;
+	return 0 ;
+    }
+
+    cfmakeraw(&tio) ;
+    tio.c_cflag &= ~(CSTOPB | CRTSCTS) ;
+    tio.c_cflag |= CREAD | CLOCAL ;
+    tio.c_cc[VMIN] = 0 ;
+    tio.c_cc[VTIME] = 0 ;
+    cfsetispeed(&tio, baud) ;
+    cfsetospeed(&tio, baud) ;
+    if (tcsetattr(p->fd, TCSANOW, &tio) == -1) {
+	fprintf(stderr, "serialmux:  cannot configure %s (%s)\n",
+		p->name, strerror(errno)) ;
+	return 0 ;
+    }
+    tcflush(p->fd, TCIOFLUSH) ;
+
+    if (rts_dtr) {
+	bits = TIOCM_RTS | TIOCM_DTR ;
+	ioctl(p->fd, TIOCMBIS, &bits) ;
+    }
+
+    if (low_latency) {
+	if (ioctl(p->fd, TIOCGSERIAL, &ss) == 0) {
+	    ss.flags |= ASYNC_LOW_LATENCY ;
+	    if (ioctl(p->fd, TIOCSSERIAL, &ss) == 0)
+		return 1 ;
+	}
+	fprintf(stderr, "serialmux:  warning:  cannot set ASYNC_LOW_LATENCY "
+		"on %s\n", p->name) ;
+    }
+
+    return 1 ;
+}
+
+/*
+ * Create the ring file and the command pipe of a port.  Returns 1 on
+ * success, 0 on failure.
+ */
+static int
+publish(mux_port *p, unsigned int size, int baud, mode_t mode)
+{
+    const char *base ;
+    int fd ;
+
+    base = strrchr(p->name, '/') ;
+    base = base ? base + 1 : p->name ;
+
+    p->shm_name = malloc(strlen(SERIAL_SHM_PREFIX) + strlen(base) + 1) ;
+    p->cmd_name = malloc(strlen(SERIAL_SHM_PREFIX) + strlen(base) +
+			 strlen(SERIAL_SHM_COMMAND_SUFFIX) + 1) ;
+    if (!p->shm_name || !p->cmd_name) {
+	fprintf(stderr, "serialmux:  out of memory\n") ;
+	return 0 ;
+    }
+    sprintf(p->shm_name, "%s%s", SERIAL_SHM_PREFIX, base) ;
+    sprintf(p->cmd_name, "%s%s", p->shm_name, SERIAL_SHM_COMMAND_SUFFIX) ;
+
+    /* replace any file left by a serialmux that didn't exit cleanly */
+    unlink(p->shm_name) ;
+    unlink(p->cmd_name) ;
+
+    p->shm_size = SERIAL_SHM_FILE_SIZE(size) ;
+    fd = open(p->shm_name, O_RDWR | O_CREAT | O_EXCL, mode) ;
+    if (fd == -1 || fchmod(fd, mode) == -1 ||
+	ftruncate(fd, p->shm_size) == -1) {
+	fprintf(stderr, "serialmux:  cannot create %s (%s)\n",
+		p->shm_name, strerror(errno)) ;
+	if (fd != -1) close(fd) ;
+	return 0 ;
+    }
+
+    p->shm = (serial_shm *)mmap(0, p->shm_size, PROT_READ | PROT_WRITE,
+				MAP_SHARED, fd, 0) ;
+    close(fd) ;
+    if (p->shm == MAP_FAILED) {
+	fprintf(stderr, "serialmux:  cannot map %s (%s)\n",
+		p->shm_name, strerror(errno)) ;
+	p->shm = 0 ;
+	return 0 ;
+    }
+
+    /* the new file is all zero */
+    p->shm->version = SERIAL_SHM_VERSION ;
+    p->shm->size = size ;
+    p->shm->pid = getpid() ;
+    p->shm->baud = baud ;
+
+    /* opened for writing too, so that it never reports end of file */
+    if (mkfifo(p->cmd_name, mode) == -1 || chmod(p->cmd_name, mode) == -1 ||
+	(p->cmd = open(p->cmd_name, O_RDWR | O_NONBLOCK)) == -1) {
+	fprintf(stderr, "serialmux:  cannot create %s (%s)\n",
+		p->cmd_name, strerror(errno)) ;
+	return 0 ;
+    }
+
+    __atomic_store_n(&p->shm->magic, SERIAL_SHM_MAGIC, __ATOMIC_RELEASE) ;
+    return 1 ;
+}
+
+/*
+ * Read whatever has arrived on a port into its ring, in at most two
+ * pieces, and publish it.
+ */
+static void
+fill(mux_port *p)
+{
+    serial_shm *m = p->shm ;
+    serial_shm_stamp *stamp ;
+    unsigned int mask = m->size - 1 ;
+    unsigned int max = SERIAL_SHM_CHUNK(m->size) ;
+    unsigned int off, length ;
+    int n, more ;
+    int64_t now ;
+
+    /* consumers rely on no more than max characters being unpublished */
+    off = m->head & mask ;
+    length = m->size - off ;
+    if (length > max) length = max ;
+    n = read(p->fd, m->buf + off, length) ;
+    if (n <= 0) return ;
+    now = now_ns() ;
+
+    if (n == length && n < max) {
+	/* stopped at the end of the ring; read the rest at its start */
+	more = read(p->fd, m->buf, max - n) ;
+	if (more > 0) n += more ;
+    }
+
+    stamp = &m->stamps[m->stamp_count & (SERIAL_SHM_STAMPS - 1)] ;
+    stamp->end = m->head + n ;
+    stamp->time = now ;
+    __atomic_store_n(&m->stamp_count, m->stamp_count + 1, __ATOMIC_RELEASE) ;
+    __atomic_store_n(&m->head, m->head + n, __ATOMIC_RELEASE) ;
+
+    p->chars += n ;
+    p->chunks++ ;
+}
+
+/*
+ * Write the commands waiting in a port's pipe to the port.
+ */
+static void
+forward(mux_port *p)
+{
+    unsigned char buf[512] ;
+    struct pollfd pfd ;
+    int n, i, w ;
+
+    while ((n = read(p->cmd, buf, sizeof(buf))) > 0) {
+	p->commands++ ;
+	if (p->fd == -1) continue ;
+
+	for (i = 0 ; i < n ; i += w) {
+	    w = write(p->fd, buf + i, n - i) ;
+	    if (w == -1) {
+		if (errno != EAGAIN && errno != EINTR) break ;
+
+		/* the port is non-blocking; wait for room */
+		pfd.fd = p->fd ;
+		pfd.events = POLLOUT ;
+		poll(&pfd, 1, 100) ;
+		w = 0 ;
+	    }
+	}
+    }
+}
+
+static void
+usage(void)
+{
+    fprintf(stderr, "usage:  serialmux [-b baud] [-d] [-L] [-m mode] "
+	    "[-s size] port ...\n") ;
+    exit(2) ;
+}
+
+int
+main(int argc, char *argv[])
+{
+    int baud = 19200, rts_dtr = 0, low_latency = 0 ;
+    unsigned int size = SERIAL_SHM_DEFAULT_SIZE ;
+    mode_t mode = 0660 ;
+    speed_t speed ;
+    mux_port *ports ;
+    int nports, epfd, c, i, n ;
+    struct epoll_event ev, events[16] ;
+    struct sigaction sa ;
+    struct sched_param sp ;
+
+    while ((c = getopt(argc, argv, "b:dLm:s:")) != -1) {
+	switch (c) {
+	case 'b':
+	    baud = atoi(optarg) ;
+	    break ;
+	case 'd':
+	    rts_dtr = 1 ;
+	    break ;
+	case 'L':
+	    low_latency = 1 ;
+	    break ;
+	case 'm':
+	    mode = (mode_t)strtol(optarg, 0, 8) ;
+	    break ;
+	case 's':
+	    size = (unsigned int)strtoul(optarg, 0, 0) ;
+	    break ;
+	default:
+	    usage() ;
+	}
+    }
+
+    nports = argc - optind ;
+    if (nports == 0)
+	usage() ;
+
+    if ((speed = baud_constant(baud)) == 0) {
+	fprintf(stderr, "serialmux:  unsupported baud rate %d\n", baud) ;
+	return 1 ;
+    }
+
+    if (size < 256 || size > (1 << 24) || (size & (size - 1)) != 0) {
+	fprintf(stderr, "serialmux:  size must be a power of two from "
+		"256 to %d\n", 1 << 24) ;
+	return 1 ;
+    }
+
+    memset(&sa, 0, sizeof(sa)) ;
+    sa.sa_handler = on_signal ;
+    sigaction(SIGINT, &sa, 0) ;
+    sigaction(SIGTERM, &sa, 0) ;
+    sigaction(SIGHUP, &sa, 0) ;
+
+    if (low_latency) {
+	sp.sched_priority = MUX_PRIORITY ;
+	if (sched_setscheduler(0, SCHED_FIFO, &sp) == -1)
+	    fprintf(stderr, "serialmux:  warning:  cannot use SCHED_FIFO "
+		    "(%s)\n", strerror(errno)) ;
+    }
+
+    ports = (mux_port *)calloc(nports, sizeof(mux_port)) ;
+    epfd = epoll_create1(EPOLL_CLOEXEC) ;
+    if (!ports || epfd == -1) {
+	fprintf(stderr, "serialmux:  cannot start (%s)\n", strerror(errno)) ;
+	return 1 ;
+    }
+
+    /*
+     * The epoll data is twice the port index for the port, and one more
+     * for its command pipe.
+     */
+    for (i = 0 ; i < nports ; i++) {
+	ports[i].name = argv[optind + i] ;
+	ports[i].fd = ports[i].cmd = -1 ;
+	if (!open_port(&ports[i], speed, rts_dtr, low_latency) ||
+	    !publish(&ports[i], size, baud, mode))
+	    goto cleanup ;
+
+	ev.events = EPOLLIN ;
+	ev.data.u64 = 2 * i ;
+	epoll_ctl(epfd, EPOLL_CTL_ADD, ports[i].fd, &ev) ;
+	ev.data.u64 = 2 * i + 1 ;
+	epoll_ctl(epfd, EPOLL_CTL_ADD, ports[i].cmd, &ev) ;
+
+	printf("%s %s\n", ports[i].name, ports[i].shm_name) ;
+    }
+    fflush(stdout) ;
+
+    while (!done) {
+	n = epoll_wait(epfd, events, 16, -1) ;
+	if (n == -1) {
+	    if (errno == EINTR) continue ;
+	    fprintf(stderr, "serialmux:  epoll_wait failed (%s)\n",
+		    strerror(errno)) ;
+	    break ;
+	}
+
+	for (c = 0 ; c < n ; c++) {
+	    mux_port *p = &ports[events[c].data.u64 / 2] ;
+
+	    if (events[c].data.u64 % 2 == 1) {
+		forward(p) ;
+		continue ;
+	    }
+
+	    if (events[c].events & EPOLLIN)
+		fill(p) ;
+
+	    if (events[c].events & (EPOLLERR | EPOLLHUP)) {
+		/* new clients refuse a ring without a serialmux */
+		fprintf(stderr, "serialmux:  lost connection on %s\n",
+			p->name) ;
+		epoll_ctl(epfd, EPOLL_CTL_DEL, p->fd, 0) ;
+		close(p->fd) ;
+		p->fd = -1 ;
+		p->shm->pid = 0 ;
+	    }
+	}
+    }
+
+  cleanup:
+    for (i = 0 ; i < nports ; i++) {
+	if (ports[i].shm_name) unlink(ports[i].shm_name) ;
+	if (ports[i].cmd_name) unlink(ports[i].cmd_name) ;
+	if (ports[i].shm) {
+	    ports[i].shm->pid = 0 ;
+	    munmap(ports[i].shm, ports[i].shm_size) ;
+	}
+	if (ports[i].fd != -1) close(ports[i].fd) ;
+	if (ports[i].cmd != -1) close(ports[i].cmd) ;
+
+	if (ports[i].name)
+	    fprintf(stderr, "%s:  %llu chars in %llu reads, %llu commands\n",
+		    ports[i].name, ports[i].chars, ports[i].chunks,
+		    ports[i].commands) ;
+    }
+
+    return done ? 0 : 1 ;
+}
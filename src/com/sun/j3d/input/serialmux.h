@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 1996-2002 Sun Microsystems, Inc. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistribution in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ *
+ * Neither the name of Sun Microsystems, Inc. or the names of
+ * contributors may be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * This software is provided "AS IS," without a warranty of any
+ * kind. ALL EXPRESS OR IMPLIED CONDITIONS, REPRESENTATIONS AND
+ * WARRANTIES, INCLUDING ANY IMPLIED WARRANTY OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE OR NON-INFRINGEMENT, ARE HEREBY
+ * EXCLUDED. SUN AND ITS LICENSORS SHALL NOT BE LIABLE FOR ANY DAMAGES
+ * SUFFERED BY LICENSEE AS A RESULT OF USING, MODIFYING OR
+ * DISTRIBUTING THE SOFTWARE OR ITS DERIVATIVES. IN NO EVENT WILL SUN
+ * OR ITS LICENSORS BE LIABLE FOR ANY LOST REVENUE, PROFIT OR DATA, OR
+ * FOR DIRECT, INDIRECT, SPECIAL, CONSEQUENTIAL, INCIDENTAL OR
+ * PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS OF THE THEORY OF
+ * LIABILITY, ARISING OUT OF THE USE OF OR INABILITY TO USE SOFTWARE,
+ * EVEN IF SUN HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * You acknowledge that Software is not designed,licensed or intended
+ * for use in the design, construction, operation or maintenance of
+ * any nuclear facility.
+ */
+
+/*
+ * Layout of the shared ring files published by serialmux, the Linux serial
+ * port multiplexer.  This is the shared memory interface the Realtime
+ * Serial Buffer provided on Solaris: serialmux owns the physical port and
+ * copies the characters it reads into a ring in a file under /dev/shm,
+ * which any number of processes map and read without system calls.
+ *
+ * The file for a port is SERIAL_SHM_PREFIX followed by the last component
+ * of the port's name, so /dev/ttyS0 is published in /dev/shm/j3dinput.ttyS0.
+ * A named pipe with SERIAL_SHM_COMMAND_SUFFIX appended to that name carries
+ * commands the other way: serialmux writes whatever is written to the pipe
+ * to the port.  Writes of up to PIPE_BUF bytes to a pipe are atomic, so the
+ * commands of different processes are never interleaved.
+ *
+ * The ring follows the conventions of serial_ring in serial.h: the capacity
+ * is a power of two and positions are free-running character counts.  There
+ * is a single producer, which stamps each chunk it reads with its
+ * CLOCK_MONOTONIC time and the position after it, and publishes the stamp
+ * and then the head with release stores.  Consumers load the head with
+ * acquire semantics and keep their own positions; a consumer that falls more
+ * than a ring behind loses the oldest characters.
+ *
+ * The producer keeps writing while consumers copy, so a consumer checks what
+ * it copied afterwards, like a seqlock reader.  The producer reads at most
+ * SERIAL_SHM_CHUNK(size) characters before publishing them, so the
+ * characters it may be overwriting are always more than that far behind the
+ * head; a consumer copies only the newest SERIAL_SHM_CHUNK(size) characters,
+ * and after copying loads the head again and drops any that are no longer
+ * within that distance of it.  Likewise it uses a stamp only if fewer than
+ * SERIAL_SHM_STAMPS - 1 stamps have been published after it.
+ *
+ * magic is stored last when the file is created, so a consumer that sees it
+ * sees a complete header.  clients is only informational: it is incremented
+ * and decremented by consumers as they attach and detach, and a consumer
+ * that dies without detaching is still counted.
+ *
+ * Only fixed-size types are used so that 32 and 64 bit processes can share
+ * a ring.
+ */
+
+#include <stddef.h>
+#include <stdint.h>
+
+#define SERIAL_SHM_PREFIX         "/dev/shm/j3dinput."
+#define SERIAL_SHM_COMMAND_SUFFIX ".cmd"
+#define SERIAL_SHM_MAGIC          0x6a336473   /* "j3ds" */
+#define SERIAL_SHM_VERSION        2
+#define SERIAL_SHM_DEFAULT_SIZE   65536
+#define SERIAL_SHM_STAMPS         256          /* a power of two */
+
+typedef struct serial_shm_stamp {
+    uint32_t end ;      /* ring position after the chunk */
+    uint32_t pad ;
+    int64_t  time ;     /* CLOCK_MONOTONIC ns when the chunk was read */
+} serial_shm_stamp ;
+
+typedef struct serial_shm {
+    uint32_t magic ;
+    uint32_t version ;
+    uint32_t size ;         /* ring capacity, a power of two */
+    int32_t  pid ;          /* of the serialmux process */
+    int32_t  baud ;         /* rate the port is configured for */
+    uint32_t clients ;      /* consumers attached */
+    uint32_t head ;         /* position after the last character written */
+    uint32_t stamp_count ;  /* free-running count of chunks stamped */
+    serial_shm_stamp stamps[SERIAL_SHM_STAMPS] ;
+    unsigned char buf[8] ;  /* actually size bytes */
+} serial_shm ;
+
+/* most characters read before publishing, and most a consumer copies */
+#define SERIAL_SHM_CHUNK(size) ((size) / 2)
+
+/* size of the file holding a ring of the given capacity */
+#define SERIAL_SHM_FILE_SIZE(size) (offsetof(serial_shm, buf) + (size))
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 1996-2002 Sun Microsystems, Inc. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistribution in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ *
+ * Neither the name of Sun Microsystems, Inc. or the names of
+ * contributors may be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * This software is provided "AS IS," without a warranty of any
+ * kind. ALL EXPRESS OR IMPLIED CONDITIONS, REPRESENTATIONS AND
+ * WARRANTIES, INCLUDING ANY IMPLIED WARRANTY OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE OR NON-INFRINGEMENT, ARE HEREBY
+ * EXCLUDED. SUN AND ITS LICENSORS SHALL NOT BE LIABLE FOR ANY DAMAGES
+ * SUFFERED BY LICENSEE AS A RESULT OF USING, MODIFYING OR
+ * DISTRIBUTING THE SOFTWARE OR ITS DERIVATIVES. IN NO EVENT WILL SUN
+ * OR ITS LICENSORS BE LIABLE FOR ANY LOST REVENUE, PROFIT OR DATA, OR
+ * FOR DIRECT, INDIRECT, SPECIAL, CONSEQUENTIAL, INCIDENTAL OR
+ * PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS OF THE THEORY OF
+ * LIABILITY, ARISING OUT OF THE USE OF OR INABILITY TO USE SOFTWARE,
+ * EVEN IF SUN HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * You acknowledge that Software is not designed,licensed or intended
+ * for use in the design, construction, operation or maintenance of
+ * any nuclear facility.
+ */
+
+import java.nio.ByteBuffer ;
+import javax.media.j3d.Transform3D ;
+import javax.vecmath.Vector3d ;
+import com.sun.j3d.input.SerialProtocol ;
+
+/**
+ * An example <code>SerialProtocol</code>: the workstation gameport protocol
+ * decoded in Java, registered as "JavaGameport" by the
+ * META-INF/services/com.sun.j3d.input.SerialProtocol file in this
+ * directory.  With this directory on the class path a
+ * <code>ProtocolDevice</code> using it gives the same two sensors as a
+ * <code>Gameport</code> with its nominal calibration, for instance with
+ * <code>java SensorDump JavaGameport &lt;port&gt;</code>.
+ */
+public class GameportProtocol extends SerialProtocol {
+    private static final int[] FRAMING_MASK  = {0xFF, 0x0F} ;
+    private static final int[] FRAMING_VALUE = {0x00, 0x00} ;
+    private static final int[] BUTTON_MASKS = {0x10, 0x20, 0x40, 0x80} ;
+
+    private final Vector3d v3d = new Vector3d() ;
+
+    public String getName() {
+	return "JavaGameport" ;
+    }
+
+    public int getRecordSize() {
+	return 6 ;
+    }
+
+    public int[] getFramingMask() {
+	return FRAMING_MASK ;
+    }
+
+    public int[] getFramingValue() {
+	return FRAMING_VALUE ;
+    }
+
+    public int getSensorCount() {
+	return 2 ;
+    }
+
+    public int getButtonCount() {
+	return 4 ;
+    }
+
+    public boolean decode(ByteBuffer ring, int position, int mask,
+			  Transform3D[] transforms, int[][] buttons,
+			  boolean[] updated) {
+	int b = get(ring, position + 1, mask) ;
+	for (int s = 0 ; s < 2 ; s++) {
+	    for (int j = 0 ; j < 4 ; j++)
+		buttons[s][j] = (b & BUTTON_MASKS[j]) != 0 ? 1 : 0 ;
+
+	    v3d.set(axis(get(ring, position + 2 + 2*s, mask) - 128),
+		    axis(128 - get(ring, position + 3 + 2*s, mask)), 0.0) ;
+	    transforms[s].set(v3d) ;
+	    updated[s] = true ;
+	}
+	return true ;
+    }
+
+    // Scales a centered axis value to [-1.0 .. +1.0].
+    private static double axis(int v) {
+	double d = v / 127.0 ;
+	return d < -1.0 ? -1.0 : (d > 1.0 ? 1.0 : d) ;
+    }
+}
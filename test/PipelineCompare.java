@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 1996-2002 Sun Microsystems, Inc. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistribution in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ *
+ * Neither the name of Sun Microsystems, Inc. or the names of
+ * contributors may be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * This software is provided "AS IS," without a warranty of any
+ * kind. ALL EXPRESS OR IMPLIED CONDITIONS, REPRESENTATIONS AND
+ * WARRANTIES, INCLUDING ANY IMPLIED WARRANTY OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE OR NON-INFRINGEMENT, ARE HEREBY
+ * EXCLUDED. SUN AND ITS LICENSORS SHALL NOT BE LIABLE FOR ANY DAMAGES
+ * SUFFERED BY LICENSEE AS A RESULT OF USING, MODIFYING OR
+ * DISTRIBUTING THE SOFTWARE OR ITS DERIVATIVES. IN NO EVENT WILL SUN
+ * OR ITS LICENSORS BE LIABLE FOR ANY LOST REVENUE, PROFIT OR DATA, OR
+ * FOR DIRECT, INDIRECT, SPECIAL, CONSEQUENTIAL, INCIDENTAL OR
+ * PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS OF THE THEORY OF
+ * LIABILITY, ARISING OUT OF THE USE OF OR INABILITY TO USE SOFTWARE,
+ * EVEN IF SUN HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * You acknowledge that Software is not designed,licensed or intended
+ * for use in the design, construction, operation or maintenance of
+ * any nuclear facility.
+ */
+
+import java.util.* ;
+import javax.media.j3d.* ;
+import com.sun.j3d.input.* ;
+
+/**
+ * Checks that the Java and native LogitechTracker pipelines decode a
+ * recording the same way.  Usage:<p>
+ *
+ * <code>java PipelineCompare &lt;capture&gt; &lt;port&gt;</code><p>
+ *
+ * The capture is one written with the <code>CaptureFile</code> property,
+ * for instance by SensorDump's `-capture' flag, and the port names a
+ * Logitech tracker recorded in it.  The capture is replayed at a
+ * <code>ReplaySpeed</code> of 0 once with each <code>Pipeline</code>, and
+ * after every poll the two are compared: whether the sensor has a new
+ * read, and its transform and buttons, which must be bit for bit the
+ * same.  The packet, bad packet, resync, clock reject and overrun counts
+ * of the two runs must match as well.  The first difference is printed,
+ * and the exit status is 1 if there is one.
+ */
+public class PipelineCompare {
+    // The statistics compared; the others count the replay itself.
+    private static final int[] STATS = {
+	SerialDevice.STAT_PACKETS, SerialDevice.STAT_BAD_PACKETS,
+	SerialDevice.STAT_RESYNC, SerialDevice.STAT_CLOCK_REJECTS,
+	SerialDevice.STAT_OVERRUNS
+    } ;
+    private static final String[] STAT_NAMES = {
+	"packets", "bad packets", "resync", "clock rejects", "overruns"
+    } ;
+
+    public static void main(String[] args) {
+	if (args.length != 2) {
+	    System.err.println("usage: java PipelineCompare <capture> <port>") ;
+	    System.exit(2) ;
+	}
+
+	long[] nativeStats = new long[SerialDevice.STAT_COUNT] ;
+	long[] javaStats = new long[SerialDevice.STAT_COUNT] ;
+	List nativeReads = run(args[0], args[1], "native", nativeStats) ;
+	List javaReads = run(args[0], args[1], "java", javaStats) ;
+
+	int polls = Math.max(nativeReads.size(), javaReads.size()) ;
+	int reads = 0 ;
+	for (int p = 0 ; p < polls ; p++) {
+	    double[] n = p < nativeReads.size() ?
+		(double[])nativeReads.get(p) : null ;
+	    double[] j = p < javaReads.size() ?
+		(double[])javaReads.get(p) : null ;
+	    if (n == null && j == null)
+		continue ;
+
+	    if (n == null || j == null || ! Arrays.equals(n, j)) {
+		System.out.println("poll " + p + ": native " + format(n) +
+				   ", java " + format(j)) ;
+		System.exit(1) ;
+	    }
+	    reads++ ;
+	}
+
+	for (int s = 0 ; s < STATS.length ; s++) {
+	    if (nativeStats[STATS[s]] != javaStats[STATS[s]]) {
+		System.out.println(STAT_NAMES[s] + ": native " +
+				   nativeStats[STATS[s]] + ", java " +
+				   javaStats[STATS[s]]) ;
+		System.exit(1) ;
+	    }
+	}
+
+	System.out.println(polls + " polls, " + reads + " reads, " +
+			   nativeStats[SerialDevice.STAT_PACKETS] +
+			   " packets: pipelines agree") ;
+	System.exit(0) ;
+    }
+
+    // Replays the capture through a tracker with the given pipeline, and
+    // returns for each poll its new read as the 16 transform values
+    // followed by the 4 buttons, or null if there wasn't one.
+    private static List run(String capture, String port, String pipeline,
+			    long[] stats) {
+	LogitechTracker t = new LogitechTracker() ;
+	t.setPipeline(pipeline) ;
+	t.setSerialTransport("replay") ;
+	t.setSerialPort(port) ;
+	t.setReplayFile(capture) ;
+	t.setReplaySpeed(0.0) ;
+	if (! t.initialize()) {
+	    System.err.println("initialize() failed") ;
+	    System.exit(1) ;
+	}
+
+	Sensor sensor = t.getSensor(0) ;
+	Transform3D t3d = new Transform3D() ;
+	double[] m = new double[16] ;
+	int[] buttons = new int[4] ;
+	int lastIndex = sensor.getCurrentSensorReadIndex() ;
+	List reads = new ArrayList() ;
+
+	while (t.getReplayRemaining() != 0) {
+	    t.pollAndProcessInput() ;
+	    if (sensor.getCurrentSensorReadIndex() == lastIndex) {
+		reads.add(null) ;
+		continue ;
+	    }
+
+	    lastIndex = sensor.getCurrentSensorReadIndex() ;
+	    sensor.getRead(t3d) ;
+	    t3d.get(m) ;
+	    sensor.lastButtons(buttons) ;
+
+	    double[] read = new double[20] ;
+	    System.arraycopy(m, 0, read, 0, 16) ;
+	    for (int k = 0 ; k < 4 ; k++)
+		read[16 + k] = buttons[k] ;
+	    reads.add(read) ;
+	}
+
+	t.getStatistics(stats) ;
+	t.close() ;
+	return reads ;
+    }
+
+    private static String format(double[] read) {
+	if (read == null)
+	    return "no read" ;
+
+	StringBuffer b = new StringBuffer() ;
+	for (int k = 0 ; k < read.length ; k++) {
+	    if (k == 16) b.append(" buttons") ;
+	    b.append(' ').append(read[k]) ;
+	}
+	return b.toString() ;
+    }
+}
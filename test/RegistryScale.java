@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 1996-2002 Sun Microsystems, Inc. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistribution in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ *
+ * Neither the name of Sun Microsystems, Inc. or the names of
+ * contributors may be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * This software is provided "AS IS," without a warranty of any
+ * kind. ALL EXPRESS OR IMPLIED CONDITIONS, REPRESENTATIONS AND
+ * WARRANTIES, INCLUDING ANY IMPLIED WARRANTY OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE OR NON-INFRINGEMENT, ARE HEREBY
+ * EXCLUDED. SUN AND ITS LICENSORS SHALL NOT BE LIABLE FOR ANY DAMAGES
+ * SUFFERED BY LICENSEE AS A RESULT OF USING, MODIFYING OR
+ * DISTRIBUTING THE SOFTWARE OR ITS DERIVATIVES. IN NO EVENT WILL SUN
+ * OR ITS LICENSORS BE LIABLE FOR ANY LOST REVENUE, PROFIT OR DATA, OR
+ * FOR DIRECT, INDIRECT, SPECIAL, CONSEQUENTIAL, INCIDENTAL OR
+ * PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS OF THE THEORY OF
+ * LIABILITY, ARISING OUT OF THE USE OF OR INABILITY TO USE SOFTWARE,
+ * EVEN IF SUN HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * You acknowledge that Software is not designed,licensed or intended
+ * for use in the design, construction, operation or maintenance of
+ * any nuclear facility.
+ */
+
+import javax.media.j3d.InputDevice ;
+import com.sun.j3d.input.* ;
+
+/**
+ * Creates, configures, and closes many serial devices in several
+ * independent contexts, one thread per context, and prints how long each
+ * step took per device.  No ports are opened, so no hardware or simulator
+ * is needed.  Usage:<p>
+ *
+ * <code>java RegistryScale [contexts [devices per context]]</code><p>
+ *
+ * The defaults are 4 contexts of 500 devices.  Half of the devices are
+ * Gameports and half LogitechTrackers.  The exit status is 1 if any step
+ * fails.
+ */
+public class RegistryScale {
+    public static void main(String[] args) throws InterruptedException {
+	final int contexts = args.length > 0 ? Integer.parseInt(args[0]) : 4 ;
+	final int count = args.length > 1 ? Integer.parseInt(args[1]) : 500 ;
+	final long[][] times = new long[contexts][3] ;
+	final Throwable[] errors = new Throwable[contexts] ;
+
+	Thread[] threads = new Thread[contexts] ;
+	long start = System.nanoTime() ;
+	for (int c = 0 ; c < contexts ; c++) {
+	    final int n = c ;
+	    threads[c] = new Thread() {
+		public void run() {
+		    try {
+			exercise(n, count, times[n]) ;
+		    } catch (Throwable t) {
+			errors[n] = t ;
+		    }
+		}
+	    } ;
+	    threads[c].start() ;
+	}
+
+	for (int c = 0 ; c < contexts ; c++)
+	    threads[c].join() ;
+
+	long elapsed = System.nanoTime() - start ;
+	int status = 0 ;
+	for (int c = 0 ; c < contexts ; c++) {
+	    if (errors[c] != null) {
+		System.out.println("context " + c + ": " + errors[c]) ;
+		status = 1 ;
+		continue ;
+	    }
+	    System.out.println
+		("context " + c + ": create " + times[c][0] / count +
+		 " ns, configure " + times[c][1] / count +
+		 " ns, close " + times[c][2] / count + " ns per device") ;
+	}
+	System.out.println(contexts * count + " devices in " +
+			   elapsed / 1000000 + " ms") ;
+	System.exit(status) ;
+    }
+
+    private static void exercise(int n, int count, long[] times) {
+	SerialContext context = new SerialContext() ;
+	SerialDevice[] devices = new SerialDevice[count] ;
+
+	long t0 = System.nanoTime() ;
+	for (int i = 0 ; i < count ; i++)
+	    devices[i] = (i % 2 == 0) ?
+		(SerialDevice)new Gameport(context) :
+		(SerialDevice)new LogitechTracker(context) ;
+
+	long t1 = System.nanoTime() ;
+	for (int i = 0 ; i < count ; i++) {
+	    devices[i].setSerialPort("/dev/ttyS" + n + "." + i) ;
+	    devices[i].setBaudRate(19200) ;
+	    devices[i].setSerialBufferSize(4096) ;
+	}
+
+	long t2 = System.nanoTime() ;
+	for (int i = 0 ; i < count ; i++)
+	    ((InputDevice)devices[i]).close() ;
+
+	long t3 = System.nanoTime() ;
+	context.close() ;
+
+	times[0] = t1 - t0 ;
+	times[1] = t2 - t1 ;
+	times[2] = t3 - t2 ;
+    }
+}
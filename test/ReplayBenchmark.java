@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 1996-2002 Sun Microsystems, Inc. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistribution in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ *
+ * Neither the name of Sun Microsystems, Inc. or the names of
+ * contributors may be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * This software is provided "AS IS," without a warranty of any
+ * kind. ALL EXPRESS OR IMPLIED CONDITIONS, REPRESENTATIONS AND
+ * WARRANTIES, INCLUDING ANY IMPLIED WARRANTY OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE OR NON-INFRINGEMENT, ARE HEREBY
+ * EXCLUDED. SUN AND ITS LICENSORS SHALL NOT BE LIABLE FOR ANY DAMAGES
+ * SUFFERED BY LICENSEE AS A RESULT OF USING, MODIFYING OR
+ * DISTRIBUTING THE SOFTWARE OR ITS DERIVATIVES. IN NO EVENT WILL SUN
+ * OR ITS LICENSORS BE LIABLE FOR ANY LOST REVENUE, PROFIT OR DATA, OR
+ * FOR DIRECT, INDIRECT, SPECIAL, CONSEQUENTIAL, INCIDENTAL OR
+ * PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS OF THE THEORY OF
+ * LIABILITY, ARISING OUT OF THE USE OF OR INABILITY TO USE SOFTWARE,
+ * EVEN IF SUN HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * You acknowledge that Software is not designed,licensed or intended
+ * for use in the design, construction, operation or maintenance of
+ * any nuclear facility.
+ */
+
+import javax.media.j3d.* ;
+import com.sun.j3d.input.* ;
+
+/**
+ * Replays a capture through LogitechTrackers or Gameports as fast as they
+ * can be polled, to measure the cost of the drivers on recorded data and to
+ * check that they decode it the same way every time.  Usage:<p>
+ *
+ * <code>java ReplayBenchmark [-n runs] [-pipeline native|java]
+ * [-history records] &lt;capture&gt; logitech|gameport &lt;port&gt;
+ * ...</code><p>
+ *
+ * The capture is one written with the <code>CaptureFile</code> property,
+ * for instance by SensorDump's `-capture' flag, and each port names a port
+ * recorded in it.  Each run initializes the devices with the "replay"
+ * serial transport at a <code>ReplaySpeed</code> of 0, polls them until
+ * every replay is finished, and closes them.  For each run the number of
+ * polls, the average time per poll, the number of new sensor reads, and a
+ * checksum of every new read's transform and buttons are printed.  Since a
+ * replay at full speed doesn't depend on the timing of the polls, the
+ * checksums of all the runs are the same; the exit status is 1 if they
+ * aren't.  The `-pipeline' flag sets the <code>Pipeline</code> property of
+ * the LogitechTrackers, so that the two can be timed against each other
+ * and their checksums compared, and the `-history' flag sets their
+ * <code>SampleHistory</code> property.
+ */
+public class ReplayBenchmark {
+    private static String pipeline = "native" ;
+    private static int history = 0 ;
+
+    public static void main(String[] args) {
+	int runs = 3 ;
+	int i = 0 ;
+
+	if (args.length > 1 && args[0].equals("-n")) {
+	    runs = Integer.parseInt(args[1]) ;
+	    i = 2 ;
+	}
+	if (args.length - i > 1 && args[i].equals("-pipeline")) {
+	    pipeline = args[i+1] ;
+	    i += 2 ;
+	}
+	if (args.length - i > 1 && args[i].equals("-history")) {
+	    history = Integer.parseInt(args[i+1]) ;
+	    i += 2 ;
+	}
+	if (args.length - i < 3 || (args.length - i - 1) % 2 != 0)
+	    usage() ;
+
+	long first = 0 ;
+	boolean same = true ;
+	for (int r = 0 ; r < runs ; r++) {
+	    long sum = run(args, i) ;
+	    if (r == 0)
+		first = sum ;
+	    else if (sum != first)
+		same = false ;
+	}
+	System.exit(same ? 0 : 1) ;
+    }
+
+    private static long run(String[] args, int i) {
+	String capture = args[i++] ;
+	InputDevice[] devices = new InputDevice[(args.length - i) / 2] ;
+	for (int d = 0 ; d < devices.length ; d++, i += 2) {
+	    if (args[i].equals("logitech")) {
+		devices[d] = new LogitechTracker() ;
+		((LogitechTracker)devices[d]).setPipeline(pipeline) ;
+		if (history != 0)
+		    ((LogitechTracker)devices[d]).setSampleHistory(history) ;
+	    }
+	    else if (args[i].equals("gameport"))
+		devices[d] = new Gameport() ;
+	    else
+		usage() ;
+
+	    ((SerialDevice)devices[d]).setSerialTransport("replay") ;
+	    ((SerialDevice)devices[d]).setSerialPort(args[i+1]) ;
+	    ((SerialDevice)devices[d]).setReplayFile(capture) ;
+	    ((SerialDevice)devices[d]).setReplaySpeed(0.0) ;
+	}
+
+	for (int d = 0 ; d < devices.length ; d++) {
+	    if (! devices[d].initialize()) {
+		System.err.println("initialize() failed") ;
+		System.exit(1) ;
+	    }
+	}
+
+	int sensorCount = 0 ;
+	for (int d = 0 ; d < devices.length ; d++)
+	    sensorCount += devices[d].getSensorCount() ;
+
+	Sensor[] sensors = new Sensor[sensorCount] ;
+	for (int d = 0, s = 0 ; d < devices.length ; d++)
+	    for (int j = 0 ; j < devices[d].getSensorCount() ; j++)
+		sensors[s++] = devices[d].getSensor(j) ;
+
+	Transform3D t3d = new Transform3D() ;
+	double[] m = new double[16] ;
+	int[] buttons = new int[4] ;
+	int[] lastIndex = new int[sensorCount] ;
+	long sum = 0 ;
+	int polls = 0 ;
+	int reads = 0 ;
+
+	long t0 = System.nanoTime() ;
+	for (boolean done = false ; !done ; polls++) {
+	    done = true ;
+	    for (int d = 0 ; d < devices.length ; d++) {
+		devices[d].pollAndProcessInput() ;
+		if (((SerialDevice)devices[d]).getReplayRemaining() != 0)
+		    done = false ;
+	    }
+
+	    for (int s = 0 ; s < sensorCount ; s++) {
+		Sensor sensor = sensors[s] ;
+		if (sensor.getCurrentSensorReadIndex() == lastIndex[s])
+		    continue ;
+
+		lastIndex[s] = sensor.getCurrentSensorReadIndex() ;
+		sensor.getRead(t3d) ;
+		t3d.get(m) ;
+		sensor.lastButtons(buttons) ;
+		for (int k = 0 ; k < 16 ; k++)
+		    sum = 31 * sum + Double.doubleToLongBits(m[k]) ;
+		for (int k = 0 ; k < buttons.length ; k++)
+		    sum = 31 * sum + buttons[k] ;
+		reads++ ;
+	    }
+	}
+	long t1 = System.nanoTime() ;
+
+	for (int d = 0 ; d < devices.length ; d++)
+	    devices[d].close() ;
+
+	System.out.println
+	    (polls + " polls, " + ((t1 - t0) / polls) + " ns/poll, " +
+	     reads + " reads, checksum " + Long.toHexString(sum)) ;
+	return sum ;
+    }
+
+    private static void usage() {
+	System.err.println("usage: java ReplayBenchmark [-n runs] " +
+			   "[-pipeline native|java] [-history records] " +
+			   "<capture> " +
+			   "logitech|gameport <port> ...") ;
+	System.exit(2) ;
+    }
+}
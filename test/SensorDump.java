@@ -0,0 +1,416 @@
+/*
+ * Copyright (c) 1996-2002 Sun Microsystems, Inc. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistribution in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ *
+ * Neither the name of Sun Microsystems, Inc. or the names of
+ * contributors may be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * This software is provided "AS IS," without a warranty of any
+ * kind. ALL EXPRESS OR IMPLIED CONDITIONS, REPRESENTATIONS AND
+ * WARRANTIES, INCLUDING ANY IMPLIED WARRANTY OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE OR NON-INFRINGEMENT, ARE HEREBY
+ * EXCLUDED. SUN AND ITS LICENSORS SHALL NOT BE LIABLE FOR ANY DAMAGES
+ * SUFFERED BY LICENSEE AS A RESULT OF USING, MODIFYING OR
+ * DISTRIBUTING THE SOFTWARE OR ITS DERIVATIVES. IN NO EVENT WILL SUN
+ * OR ITS LICENSORS BE LIABLE FOR ANY LOST REVENUE, PROFIT OR DATA, OR
+ * FOR DIRECT, INDIRECT, SPECIAL, CONSEQUENTIAL, INCIDENTAL OR
+ * PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS OF THE THEORY OF
+ * LIABILITY, ARISING OUT OF THE USE OF OR INABILITY TO USE SOFTWARE,
+ * EVEN IF SUN HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * You acknowledge that Software is not designed,licensed or intended
+ * for use in the design, construction, operation or maintenance of
+ * any nuclear facility.
+ */
+
+import java.text.DecimalFormat ;
+import javax.media.j3d.* ;
+import com.sun.j3d.input.* ;
+
+/**
+ * Polls LogitechTrackers or Gameports without a display and prints their
+ * sensor reads.  Together with the serialsim simulator in this directory
+ * this exercises the serial devices, native code included, without the
+ * hardware or a window system.  A device named other than logitech or
+ * gameport is a ProtocolDevice using the SerialProtocol of that name.
+ * Usage:<p>
+ *
+ * <code>java SensorDump [-java | -shared] [-lowlatency [-cpu n]]
+ * [-capture name] [-replay name [-speed x]] [-reconnect ms] [-async]
+ * [-probecache file] [-pipeline native|java] [-stats] [-blocking]
+ * [-t seconds] [-r polls/second] logitech|gameport|&lt;protocol&gt; &lt;port&gt; ...</code><p>
+ *
+ * All the devices are initialized together, and the time each spent
+ * opening its port, resetting, and probing is printed.  They are then
+ * polled at the given rate (default 100 per second) for the given time
+ * (default 5 seconds), and each sensor's position and buttons are printed
+ * every half second.  At the end the number of new reads of each sensor is
+ * printed along with how old they were on average when polled, measured
+ * from the time their data arrived.  The `-java' flag selects the Java
+ * serial transport, `-shared' the native transport reading through
+ * serialmux, and `-lowlatency' the low-latency mode of the native
+ * transport, pinning its reader thread to CPU n if `-cpu' is given; the
+ * parts of the mode that were applied are printed.  `-capture' captures
+ * the characters read from all the ports in the named capture files, which
+ * capturedump prints, and `-replay' feeds the devices the characters
+ * recorded for their ports in such a capture instead of reading the ports,
+ * at the given speed relative to the recording (default 1, with 0 as fast
+ * as the devices are polled); the polling stops early once every replay is
+ * finished.  `-reconnect' reconnects devices whose ports are lost or have
+ * been silent for the given time, or only lost if it is 0; the reads of a
+ * device being reconnected are printed as stale, and the number of times
+ * each device was reconnected is printed at the end.  `-async' initializes
+ * the devices asynchronously and starts polling at once; the time each
+ * device took to become ready is printed when it does.  `-probecache'
+ * keeps the operational info of Logitech trackers in the given file, so
+ * that a second run doesn't reset them; compare the probe times printed.
+ * `-pipeline' selects the native or Java tracking pipeline of the Logitech
+ * trackers.
+ * `-stats' prints the I/O and framing counts of each device every second
+ * from a separate monitoring thread, and once more before it is closed.
+ * `-blocking' sets the devices to the BLOCKING processing mode and reads
+ * each from a thread of its own, as Java 3D would, instead of polling
+ * them; the mean age is then measured as each read is published, so
+ * compare it with the polled mean age of a run without the flag.
+ * The exit status is 1 if a device couldn't be initialized or if no sensor
+ * read ever changed, so the program can be used in automated tests.
+ */
+public class SensorDump {
+    // Tells the BLOCKING mode reader threads to stop.
+    private static volatile boolean done = false ;
+
+    public static void main(String[] args) throws InterruptedException {
+	String transport = "native" ;
+	String capture = null ;
+	String replay = null ;
+	double speed = 1.0 ;
+	int reconnect = -1 ;
+	boolean async = false ;
+	String probeCache = null ;
+	String pipeline = "native" ;
+	boolean stats = false ;
+	boolean blocking = false ;
+	boolean lowLatency = false ;
+	int cpu = -1 ;
+	double seconds = 5.0 ;
+	double rate = 100.0 ;
+	int i = 0 ;
+
+	for ( ; i < args.length && args[i].startsWith("-") ; i++) {
+	    if (args[i].equals("-java"))
+		transport = "java" ;
+	    else if (args[i].equals("-shared"))
+		transport = "shared" ;
+	    else if (args[i].equals("-lowlatency"))
+		lowLatency = true ;
+	    else if (args[i].equals("-cpu") && i+1 < args.length)
+		cpu = Integer.parseInt(args[++i]) ;
+	    else if (args[i].equals("-capture") && i+1 < args.length)
+		capture = args[++i] ;
+	    else if (args[i].equals("-replay") && i+1 < args.length)
+		replay = args[++i] ;
+	    else if (args[i].equals("-speed") && i+1 < args.length)
+		speed = Double.parseDouble(args[++i]) ;
+	    else if (args[i].equals("-reconnect") && i+1 < args.length)
+		reconnect = Integer.parseInt(args[++i]) ;
+	    else if (args[i].equals("-async"))
+		async = true ;
+	    else if (args[i].equals("-probecache") && i+1 < args.length)
+		probeCache = args[++i] ;
+	    else if (args[i].equals("-pipeline") && i+1 < args.length)
+		pipeline = args[++i] ;
+	    else if (args[i].equals("-stats"))
+		stats = true ;
+	    else if (args[i].equals("-blocking"))
+		blocking = true ;
+	    else if (args[i].equals("-t") && i+1 < args.length)
+		seconds = Double.parseDouble(args[++i]) ;
+	    else if (args[i].equals("-r") && i+1 < args.length)
+		rate = Double.parseDouble(args[++i]) ;
+	    else
+		usage() ;
+	}
+	if (replay != null)
+	    transport = "replay" ;
+
+	if (args.length == i || (args.length - i) % 2 != 0)
+	    usage() ;
+
+	InputDevice[] devices = new InputDevice[(args.length - i) / 2] ;
+	for (int d = 0 ; d < devices.length ; d++, i += 2) {
+	    if (args[i].equals("logitech")) {
+		devices[d] = new LogitechTracker() ;
+		((LogitechTracker)devices[d]).setProbeCache(probeCache) ;
+		((LogitechTracker)devices[d]).setPipeline(pipeline) ;
+	    }
+	    else if (args[i].equals("gameport"))
+		devices[d] = new Gameport() ;
+	    else
+		devices[d] = new ProtocolDevice(args[i]) ;
+
+	    ((SerialDevice)devices[d]).setSerialTransport(transport) ;
+	    ((SerialDevice)devices[d]).setSerialPort(args[i+1]) ;
+	    ((SerialDevice)devices[d]).setLowLatency(lowLatency) ;
+	    ((SerialDevice)devices[d]).setReaderCPU(cpu) ;
+	    ((SerialDevice)devices[d]).setCaptureFile(capture) ;
+	    ((SerialDevice)devices[d]).setReplayFile(replay) ;
+	    ((SerialDevice)devices[d]).setReplaySpeed(speed) ;
+	    ((SerialDevice)devices[d]).setAsyncInitialize(async) ;
+	    if (blocking)
+		devices[d].setProcessingMode(InputDevice.BLOCKING) ;
+	    if (reconnect >= 0) {
+		((SerialDevice)devices[d]).setReconnect(true) ;
+		((SerialDevice)devices[d]).setReconnectSilence(reconnect) ;
+	    }
+	}
+
+	// The first initialize() opens the ports of all the devices.
+	long initStart = System.nanoTime() ;
+	for (int d = 0 ; d < devices.length ; d++) {
+	    if (! devices[d].initialize()) {
+		System.err.println("initialize() failed") ;
+		System.exit(1) ;
+	    }
+	}
+	System.out.println("initialized in " +
+			   (System.nanoTime() - initStart) / 1000000 + " ms") ;
+
+	if (stats) {
+	    final InputDevice[] monitored = devices ;
+	    Thread monitor = new Thread() {
+		    public void run() {
+			try {
+			    for (;;) {
+				Thread.sleep(1000) ;
+				printStatistics(monitored) ;
+			    }
+			} catch (InterruptedException e) {
+			}
+		    }
+		} ;
+	    monitor.setDaemon(true) ;
+	    monitor.start() ;
+	}
+
+	boolean[] ready = new boolean[devices.length] ;
+	for (int d = 0 ; d < devices.length ; d++)
+	    ready[d] = printReady(devices, d, lowLatency, initStart) ;
+
+	int sensorCount = 0 ;
+	for (int d = 0 ; d < devices.length ; d++)
+	    sensorCount += devices[d].getSensorCount() ;
+
+	Sensor[] sensors = new Sensor[sensorCount] ;
+	for (int d = 0, s = 0 ; d < devices.length ; d++)
+	    for (int j = 0 ; j < devices[d].getSensorCount() ; j++)
+		sensors[s++] = devices[d].getSensor(j) ;
+
+	Transform3D t3d = new Transform3D() ;
+	double[] m = new double[16] ;
+	int[] buttons = new int[4] ;
+	int[] lastIndex = new int[sensorCount] ;
+	SerialDevice[] owner = new SerialDevice[sensorCount] ;
+	for (int d = 0, s = 0 ; d < devices.length ; d++)
+	    for (int j = 0 ; j < devices[d].getSensorCount() ; j++)
+		owner[s++] = (SerialDevice)devices[d] ;
+	final int[] changes = new int[sensorCount] ;
+	final long[] latency = new long[sensorCount] ;
+	DecimalFormat f = new DecimalFormat(" 0.000;-0.000") ;
+
+	// In the BLOCKING mode each device is read by a thread of its own,
+	// which counts the reads of its sensors as they are published.
+	Thread[] readers = new Thread[blocking ? devices.length : 0] ;
+	for (int d = 0, s = 0 ; d < readers.length ; d++) {
+	    final InputDevice device = devices[d] ;
+	    final Sensor[] own = new Sensor[device.getSensorCount()] ;
+	    final int first = s ;
+	    for (int j = 0 ; j < own.length ; j++)
+		own[j] = sensors[s++] ;
+
+	    readers[d] = new Thread() {
+		    public void run() {
+			int[] last = new int[own.length] ;
+			while (! done) {
+			    device.pollAndProcessInput() ;
+			    long now = System.currentTimeMillis() ;
+			    for (int j = 0 ; j < own.length ; j++) {
+				int index = own[j].getCurrentSensorReadIndex() ;
+				if (index != last[j]) {
+				    last[j] = index ;
+				    latency[first+j] += now - own[j].lastTime() ;
+				    changes[first+j]++ ;
+				}
+			    }
+			}
+		    }
+		} ;
+	    readers[d].start() ;
+	}
+
+	long period = (long)(1e9 / rate) ;
+	long start = System.nanoTime() ;
+	long end = start + (long)(seconds * 1e9) ;
+	long nextPrint = start ;
+
+	for (long t = start ; t < end ; t = System.nanoTime()) {
+	    for (int d = 0 ; d < devices.length ; d++) {
+		if (! ready[d])
+		    ready[d] = printReady(devices, d, lowLatency, initStart) ;
+		if (! blocking)
+		    devices[d].pollAndProcessInput() ;
+	    }
+
+	    for (int s = 0 ; s < sensorCount ; s++) {
+		Sensor sensor = sensors[s] ;
+		sensor.getRead(t3d) ;
+		t3d.get(m) ;
+		if (! blocking &&
+		    sensor.getCurrentSensorReadIndex() != lastIndex[s]) {
+		    lastIndex[s] = sensor.getCurrentSensorReadIndex() ;
+		    latency[s] += System.currentTimeMillis() - sensor.lastTime() ;
+		    changes[s]++ ;
+		}
+
+		if (t >= nextPrint) {
+		    sensor.lastButtons(buttons) ;
+		    System.out.println
+			(f.format((t - start) / 1e9) + "s sensor " + s +
+			 " position" + f.format(m[3]) + f.format(m[7]) +
+			 f.format(m[11]) + " buttons " + buttons[0] +
+			 buttons[1] + buttons[2] + buttons[3] +
+			 (owner[s].isStale() ? " stale" : "") +
+			 (owner[s].getReadiness() == SerialDevice.INITIALIZING ?
+			  " nominal" : "")) ;
+		}
+	    }
+
+	    if (t >= nextPrint) nextPrint += 500000000L ;
+	    if (replay != null && replaysFinished(devices))
+		break ;
+
+	    Thread.sleep(Math.max(0L, (period - (System.nanoTime() - t)) /
+				  1000000L)) ;
+	}
+
+	done = true ;
+	for (int d = 0 ; d < readers.length ; d++)
+	    readers[d].join() ;
+
+	if (stats)
+	    printStatistics(devices) ;
+
+	boolean failed = false ;
+	for (int d = 0 ; d < devices.length ; d++) {
+	    if (((SerialDevice)devices[d]).getReadiness() != SerialDevice.READY)
+		failed = true ;
+	    if (reconnect >= 0)
+		System.out.println
+		    ("device " + d + " reconnected " +
+		     ((SerialDevice)devices[d]).getReconnectCount() + " times") ;
+	    devices[d].close() ;
+	}
+
+	DecimalFormat ms = new DecimalFormat("0.000") ;
+	int total = 0 ;
+	for (int s = 0 ; s < sensorCount ; s++) {
+	    System.out.println
+		("sensor " + s + ": " + changes[s] + " reads, mean age " +
+		 ms.format(changes[s] == 0 ? 0.0 :
+			   (double)latency[s] / changes[s]) + " ms") ;
+	    total += changes[s] ;
+	}
+	System.exit(total > 0 && ! failed ? 0 : 1) ;
+    }
+
+    // Prints how a device's initialization went once it is no longer
+    // initializing, and returns true if it has been printed.
+    private static boolean printReady(InputDevice[] devices, int d,
+				      boolean lowLatency, long initStart) {
+	int readiness = ((SerialDevice)devices[d]).getReadiness() ;
+	if (readiness == SerialDevice.INITIALIZING)
+	    return false ;
+
+	if (readiness == SerialDevice.FAILED) {
+	    System.out.println
+		("device " + d + " failed: " +
+		 ((SerialDevice)devices[d]).getInitializeError().getMessage()) ;
+	    return true ;
+	}
+
+	DecimalFormat ms = new DecimalFormat("0.000") ;
+	long[] l = ((SerialDevice)devices[d]).getInitLatency() ;
+	System.out.println
+	    ("device " + d + " ready after " +
+	     (System.nanoTime() - initStart) / 1000000 + " ms") ;
+	System.out.println
+	    ("device " + d + " open " +
+	     ms.format(l[SerialDevice.INIT_OPEN] / 1e6) + " ms, reset " +
+	     ms.format(l[SerialDevice.INIT_RESET] / 1e6) + " ms, probe " +
+	     ms.format(l[SerialDevice.INIT_PROBE] / 1e6) + " ms") ;
+
+	if (lowLatency) {
+	    int status = ((SerialDevice)devices[d]).getLowLatencyStatus() ;
+	    System.out.println
+		("device " + d + " low latency:" +
+		 ((status & SerialDevice.LOW_LATENCY_PORT) != 0 ?
+		  " port" : "") +
+		 ((status & SerialDevice.LOW_LATENCY_VMIN) != 0 ?
+		  " vmin" : "") +
+		 ((status & SerialDevice.LOW_LATENCY_SCHED_FIFO) != 0 ?
+		  " sched_fifo" : "") +
+		 ((status & SerialDevice.LOW_LATENCY_CPU) != 0 ?
+		  " cpu" : "") +
+		 (status == 0 ? " none" : "")) ;
+	}
+	return true ;
+    }
+
+    // Prints the I/O and framing counts of each device.
+    private static void printStatistics(InputDevice[] devices) {
+	long[] c = new long[SerialDevice.STAT_COUNT] ;
+	for (int d = 0 ; d < devices.length ; d++) {
+	    ((SerialDevice)devices[d]).getStatistics(c) ;
+	    System.out.println
+		("device " + d + " stats: " +
+		 c[SerialDevice.STAT_BYTES] + " bytes in " +
+		 c[SerialDevice.STAT_READS] + " reads (" +
+		 c[SerialDevice.STAT_EMPTY_READS] + " empty), " +
+		 c[SerialDevice.STAT_OVERRUNS] + " overrun, " +
+		 c[SerialDevice.STAT_RESYNC] + " resync, " +
+		 c[SerialDevice.STAT_PACKETS] + " packets, " +
+		 c[SerialDevice.STAT_BAD_PACKETS] + " bad, " +
+		 c[SerialDevice.STAT_CLOCK_REJECTS] + " clock rejects") ;
+	}
+    }
+
+    private static boolean replaysFinished(InputDevice[] devices) {
+	for (int d = 0 ; d < devices.length ; d++)
+	    if (((SerialDevice)devices[d]).getReplayRemaining() != 0)
+		return false ;
+	return true ;
+    }
+
+    private static void usage() {
+	System.err.println("usage: java SensorDump [-java | -shared] " +
+			   "[-lowlatency [-cpu n]] [-capture name] " +
+			   "[-replay name [-speed x]] [-reconnect ms] [-async] " +
+			   "[-probecache file] [-pipeline native|java] " +
+			   "[-stats] [-blocking] " +
+			   "[-t seconds] [-r polls/second] " +
+			   "logitech|gameport|<protocol> " +
+			   "<port> ...") ;
+	System.exit(2) ;
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 1996-2002 Sun Microsystems, Inc. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistribution in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ *
+ * Neither the name of Sun Microsystems, Inc. or the names of
+ * contributors may be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * This software is provided "AS IS," without a warranty of any
+ * kind. ALL EXPRESS OR IMPLIED CONDITIONS, REPRESENTATIONS AND
+ * WARRANTIES, INCLUDING ANY IMPLIED WARRANTY OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE OR NON-INFRINGEMENT, ARE HEREBY
+ * EXCLUDED. SUN AND ITS LICENSORS SHALL NOT BE LIABLE FOR ANY DAMAGES
+ * SUFFERED BY LICENSEE AS A RESULT OF USING, MODIFYING OR
+ * DISTRIBUTING THE SOFTWARE OR ITS DERIVATIVES. IN NO EVENT WILL SUN
+ * OR ITS LICENSORS BE LIABLE FOR ANY LOST REVENUE, PROFIT OR DATA, OR
+ * FOR DIRECT, INDIRECT, SPECIAL, CONSEQUENTIAL, INCIDENTAL OR
+ * PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS OF THE THEORY OF
+ * LIABILITY, ARISING OUT OF THE USE OF OR INABILITY TO USE SOFTWARE,
+ * EVEN IF SUN HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * You acknowledge that Software is not designed,licensed or intended
+ * for use in the design, construction, operation or maintenance of
+ * any nuclear facility.
+ */
+
+import com.sun.j3d.input.Gameport ;
+
+/**
+ * Compares the cost per poll of the native and Java serial transports.<p>
+ *
+ * A <code>Gameport</code> is opened on the given serial port with each
+ * transport in turn, and <code>getRawEvent</code> is called repeatedly
+ * while the device streams packets.  The port must be attached to
+ * something that is sending gameport packets: a real gameport device or a
+ * pseudo-terminal driven by a simulator.  Usage:<p>
+ *
+ * <code>java SerialBenchmark &lt;port&gt; [polls]</code><p>
+ *
+ * For each transport the average time per poll is printed, along with the
+ * number of polls that returned a new packet.  Half as many untimed polls
+ * are made first to warm up the JIT.
+ */
+public class SerialBenchmark {
+    public static void main(String[] args) {
+	if (args.length < 1) {
+	    System.err.println("usage: java SerialBenchmark <port> [polls]") ;
+	    System.exit(1) ;
+	}
+
+	String port = args[0] ;
+	int polls = args.length > 1 ? Integer.parseInt(args[1]) : 200000 ;
+
+	run("native", port, polls) ;
+	run("java", port, polls) ;
+    }
+
+    private static void run(String transport, String port, int polls) {
+	double[] p1 = new double[2] ;
+	double[] p2 = new double[2] ;
+	int[] buttons = new int[4] ;
+
+	Gameport g = new Gameport() ;
+	g.setSerialTransport(transport) ;
+	g.setSerialPort(port) ;
+	g.initialize() ;
+
+	for (int i = 0 ; i < polls / 2 ; i++)
+	    g.getRawEvent(p1, p2, buttons) ;
+
+	int events = 0 ;
+	long t0 = System.nanoTime() ;
+	for (int i = 0 ; i < polls ; i++)
+	    if (g.getRawEvent(p1, p2, buttons)) events++ ;
+	long t1 = System.nanoTime() ;
+
+	g.close() ;
+
+	System.out.println
+	    (transport + ": " + ((t1 - t0) / polls) + " ns/poll, " +
+	     events + " of " + polls + " polls returned a packet") ;
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (c) 1996-2002 Sun Microsystems, Inc. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistribution in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ *
+ * Neither the name of Sun Microsystems, Inc. or the names of
+ * contributors may be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * This software is provided "AS IS," without a warranty of any
+ * kind. ALL EXPRESS OR IMPLIED CONDITIONS, REPRESENTATIONS AND
+ * WARRANTIES, INCLUDING ANY IMPLIED WARRANTY OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE OR NON-INFRINGEMENT, ARE HEREBY
+ * EXCLUDED. SUN AND ITS LICENSORS SHALL NOT BE LIABLE FOR ANY DAMAGES
+ * SUFFERED BY LICENSEE AS A RESULT OF USING, MODIFYING OR
+ * DISTRIBUTING THE SOFTWARE OR ITS DERIVATIVES. IN NO EVENT WILL SUN
+ * OR ITS LICENSORS BE LIABLE FOR ANY LOST REVENUE, PROFIT OR DATA, OR
+ * FOR DIRECT, INDIRECT, SPECIAL, CONSEQUENTIAL, INCIDENTAL OR
+ * PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS OF THE THEORY OF
+ * LIABILITY, ARISING OUT OF THE USE OF OR INABILITY TO USE SOFTWARE,
+ * EVEN IF SUN HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * You acknowledge that Software is not designed,licensed or intended
+ * for use in the design, construction, operation or maintenance of
+ * any nuclear facility.
+ */
+
+/*
+ * Serial throughput and latency test for the native serial transport.
+ *
+ * baudtest opens a pseudo-terminal through serial_ports_init_open_probe()
+ * at each of the given baud rates, so the port is configured and read by the
+ * same code as a real device, and streams 24-byte records into it back to
+ * back for a few seconds.  A pty has no baud rate of its own, so the writer
+ * emulates the line: record k starts on the wire k record times after the
+ * first and is written to the pty when its last character would have
+ * arrived, at 10 bits per character.  The reader polls the ring buffer at
+ * the given interval, like an input device polled every frame, and notes
+ * when each record is complete.
+ *
+ * For each baud rate the delivered bytes per second and records per second
+ * are printed, along with the per-record latency from the start of the
+ * record on the wire to its detection by the poll.  The latency is about
+ * the record's wire time plus half the poll interval.  Usage:
+ *
+ *   baudtest [-t seconds] [-p poll_microseconds] [baud ...]
+ *
+ * The default is 2 seconds at each of 9600 through 230400 baud, polled
+ * every 1000 microseconds.  This links serial.c directly and is built with
+ * `make baudtest' on Linux after the library has been built.
+ */
+
+#define _XOPEN_SOURCE 600
+#define _DEFAULT_SOURCE
+
+#include <errno.h>
+#include <fcntl.h>
+#include <pthread.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <unistd.h>
+#include "serial.h"
+
+#define RECORD_SIZE	24
+#define MAX_RECORDS	(1 << 20)
+
+typedef struct baudtest_unit {
+    SERIAL_DEVICE_COMMON_FIELDS ;
+} baudtest_unit ;
+
+static int	master_fd ;
+static int	baud ;
+static double	duration = 2.0 ;
+static double	start ;
+static volatile int writing ;
+
+/* start time of each record on the emulated wire */
+static double	wire_start[MAX_RECORDS] ;
+static double	latency[MAX_RECORDS] ;
+
+
+static double
+now_seconds(void) {
+    struct timespec ts ;
+    clock_gettime(CLOCK_MONOTONIC, &ts) ;
+    return ts.tv_sec + ts.tv_nsec * 1e-9 ;
+}
+
+static void
+sleep_until(double t) {
+    struct timespec ts ;
+    ts.tv_sec = (time_t)t ;
+    ts.tv_nsec = (long)((t - ts.tv_sec) * 1e9) ;
+    while (clock_nanosleep(CLOCK_MONOTONIC, TIMER_ABSTIME, &ts, 0) == EINTR)
+	;
+}
+
+static int
+compare(const void *a, const void *b) {
+    double x = *(double *)a, y = *(double *)b ;
+    return x < y ? -1 : x > y ;
+}
+
+/*
+ *  The test driver has no protocol; the records just carry a sequence
+ *  number after a MOUSE6D-style 0xF0 0xF0 header.
+ */
+static void
+baudtest_nop(serial_device_substruct *unit) {
+}
+
+static int
+baudtest_probe(serial_device_substruct *unit) {
+    return 1 ;
+}
+
+static serial_device_substruct *
+baudtest_create_instance() {
+    baudtest_unit *unit = (baudtest_unit *)calloc(1, sizeof(baudtest_unit)) ;
+    return (serial_device_substruct *)unit ;
+}
+
+/*
+ *  Emulate a serial line at the current baud rate.
+ */
+static void *
+writer(void *arg) {
+    double record_time = RECORD_SIZE * 10.0 / baud ;
+    unsigned char rec[RECORD_SIZE] ;
+    int k ;
+
+    memset(rec, 0, sizeof(rec)) ;
+    rec[0] = rec[1] = 0xF0 ;
+
+    for (k = 0 ; k < MAX_RECORDS ; k++) {
+	wire_start[k] = start + k * record_time ;
+	if (wire_start[k] + record_time > start + duration) break ;
+
+	sleep_until(wire_start[k] + record_time) ;
+	rec[2] = k & 0xFF ;
+	rec[3] = (k >> 8) & 0xFF ;
+	rec[4] = (k >> 16) & 0xFF ;
+	write(master_fd, rec, RECORD_SIZE) ;
+    }
+
+    writing = 0 ;
+    return 0 ;
+}
+
+static int
+run(nu_serial_ctx_type *ctx, long poll_us) {
+    serial_device_substruct *unit ;
+    unsigned int i, e ;
+    long bytes = 0 ;
+    int n = 0, k, lost = 0, dev ;
+    double elapsed, t ;
+    pthread_t tid ;
+
+    if ((dev = serial_add_device(ctx, 0)) == -1)
+	return 0 ;
+
+    unit = serial_device(ctx, dev) ;
+    unit->port_name = strdup(ptsname(master_fd)) ;
+    unit->baud = baud ;
+    unit->ring_size = 1 << 16 ;
+
+    if (!serial_baud_supported(baud)) {
+	printf("%8d  not supported on this system\n", baud) ;
+	serial_close(ctx, dev) ;
+	return 1 ;
+    }
+
+    if (!serial_ports_init_open_probe(ctx))
+	return 0 ;
+
+    writing = 1 ;
+    start = now_seconds() + 0.01 ;
+    pthread_create(&tid, 0, writer, 0) ;
+
+    i = unit->ring_last ;
+    while (writing || i != RING_HEAD(&unit->ring)) {
+	serial_read(unit) ;
+	e = RING_HEAD(&unit->ring) ;
+	t = now_seconds() ;
+
+	/* the writer never gets ahead of a poll by more than the ring */
+	for ( ; e - i >= RECORD_SIZE ; i += RECORD_SIZE) {
+	    if (RING_CHAR(&unit->ring, i) != 0xF0) {
+		lost++ ;
+		break ;
+	    }
+	    k = RING_CHAR(&unit->ring, i+2) |
+		RING_CHAR(&unit->ring, i+3) << 8 |
+		RING_CHAR(&unit->ring, i+4) << 16 ;
+	    latency[n++] = t - wire_start[k] ;
+	    bytes += RECORD_SIZE ;
+	}
+	if (lost) break ;
+	usleep(poll_us) ;
+    }
+
+    elapsed = now_seconds() - start ;
+    pthread_join(tid, 0) ;
+    serial_close(ctx, dev) ;
+
+    if (lost || n == 0) {
+	printf("%8d  framing lost\n", baud) ;
+	return 0 ;
+    }
+
+    qsort(latency, n, sizeof(double), compare) ;
+    printf("%8d  %9.0f  %9.1f  %9.2f  %9.2f  %9.2f  %9.2f\n",
+	   baud, bytes / elapsed, n / elapsed,
+	   RECORD_SIZE * 10000.0 / baud,
+	   latency[n/2] * 1000.0, latency[n*99/100] * 1000.0,
+	   latency[n-1] * 1000.0) ;
+    return 1 ;
+}
+
+int
+main(int argc, char *argv[]) {
+    static int default_bauds[] =
+	{ 9600, 19200, 38400, 57600, 115200, 230400 } ;
+    nu_serial_ctx_type *ctx ;
+    peripheral_driver *d ;
+    long poll_us = 1000 ;
+    int c, i, ok = 1 ;
+
+    while ((c = getopt(argc, argv, "t:p:")) != -1) {
+	switch (c) {
+	  case 't': duration = atof(optarg) ; break ;
+	  case 'p': poll_us = atol(optarg) ; break ;
+	  default:
+	    fprintf(stderr, "usage: baudtest [-t seconds] "
+		    "[-p poll_microseconds] [baud ...]\n") ;
+	    return 2 ;
+	}
+    }
+
+    if ((master_fd = posix_openpt(O_RDWR | O_NOCTTY)) < 0 ||
+	grantpt(master_fd) < 0 || unlockpt(master_fd) < 0) {
+	perror("baudtest: can't open pty") ;
+	return 1 ;
+    }
+
+    ctx = serial_context_create() ;
+    d = serial_add_peripheral_driver(ctx) ;
+    d->peripheral_driver_name = "baudtest" ;
+    d->reset_device = baudtest_nop ;
+    d->probe_device = baudtest_probe ;
+    d->close_device = baudtest_nop ;
+    d->create_instance = baudtest_create_instance ;
+
+    printf("%d byte records, polled every %ld us\n\n", RECORD_SIZE, poll_us) ;
+    printf("    baud    bytes/s  records/s    wire ms  median ms     p99 ms"
+	   "     max ms\n") ;
+
+    if (optind == argc)
+	for (i = 0 ; i < sizeof(default_bauds)/sizeof(int) ; i++) {
+	    baud = default_bauds[i] ;
+	    ok &= run(ctx, poll_us) ;
+	}
+    else
+	for (i = optind ; i < argc ; i++) {
+	    baud = atoi(argv[i]) ;
+	    ok &= run(ctx, poll_us) ;
+	}
+
+    serial_context_free(ctx) ;
+    return ok ? 0 : 1 ;
+}
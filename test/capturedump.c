@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 1996-2002 Sun Microsystems, Inc. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistribution in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ *
+ * Neither the name of Sun Microsystems, Inc. or the names of
+ * contributors may be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * This software is provided "AS IS," without a warranty of any
+ * kind. ALL EXPRESS OR IMPLIED CONDITIONS, REPRESENTATIONS AND
+ * WARRANTIES, INCLUDING ANY IMPLIED WARRANTY OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE OR NON-INFRINGEMENT, ARE HEREBY
+ * EXCLUDED. SUN AND ITS LICENSORS SHALL NOT BE LIABLE FOR ANY DAMAGES
+ * SUFFERED BY LICENSEE AS A RESULT OF USING, MODIFYING OR
+ * DISTRIBUTING THE SOFTWARE OR ITS DERIVATIVES. IN NO EVENT WILL SUN
+ * OR ITS LICENSORS BE LIABLE FOR ANY LOST REVENUE, PROFIT OR DATA, OR
+ * FOR DIRECT, INDIRECT, SPECIAL, CONSEQUENTIAL, INCIDENTAL OR
+ * PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS OF THE THEORY OF
+ * LIABILITY, ARISING OUT OF THE USE OF OR INABILITY TO USE SOFTWARE,
+ * EVEN IF SUN HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * You acknowledge that Software is not designed,licensed or intended
+ * for use in the design, construction, operation or maintenance of
+ * any nuclear facility.
+ */
+
+/*
+ * Print the capture segment files written by SerialDevice.setCaptureFile().
+ *
+ * usage:  capturedump [-x] [-u unit] segment ...
+ *
+ * Each record is printed on a line with its time in seconds since the
+ * first segment given was created, its unit, its type, and its length;
+ * OPEN records also give the driver and port of the unit, and COMMAND
+ * records the command.  -x adds a hex dump of the characters read, and -u
+ * limits the output to one unit.  At the end the number of chunks and
+ * characters read and commands sent is printed for each unit, along with
+ * the largest gap between chunks.
+ *
+ * The segments of a capture are independent, so any of them can be read,
+ * including the one being written.
+ */
+
+#include <errno.h>
+#include <fcntl.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include "serialcapture.h"
+
+#define MAX_UNITS 65536
+
+typedef struct unit_stats {
+    unsigned long long chunks, chars, commands ;
+    int64_t last, max_gap ;
+} unit_stats ;
+
+static unit_stats *stats ;
+static int64_t origin = 0 ;
+static int hex = 0 ;
+static int only = -1 ;
+
+static void
+usage(void)
+{
+    fprintf(stderr, "usage:  capturedump [-x] [-u unit] segment ...\n") ;
+    exit(2) ;
+}
+
+static void
+print_record(serial_capture_record *rec)
+{
+    unsigned char *data = (unsigned char *)(rec + 1) ;
+    unit_stats *u = &stats[rec->unit] ;
+    unsigned int i ;
+
+    switch (rec->type) {
+      case SERIAL_CAPTURE_DATA:
+	u->chunks++ ;
+	u->chars += rec->length ;
+	if (u->last && rec->time - u->last > u->max_gap)
+	    u->max_gap = rec->time - u->last ;
+	u->last = rec->time ;
+	break ;
+      case SERIAL_CAPTURE_COMMAND:
+	u->commands++ ;
+	break ;
+    }
+
+    if (only >= 0 && rec->unit != only)
+	return ;
+
+    printf("%12.6f unit %d ", (rec->time - origin) / 1e9, rec->unit) ;
+    switch (rec->type) {
+      case SERIAL_CAPTURE_OPEN:
+	printf("open %s %s\n", (char *)data,
+	       (char *)data + strlen((char *)data) + 1) ;
+	return ;
+      case SERIAL_CAPTURE_COMMAND:
+	printf("command") ;
+	for (i = 0 ; i < rec->length ; i++)
+	    printf(data[i] >= ' ' && data[i] < 0x7f ? " %c" : " 0x%02x",
+		   data[i]) ;
+	printf("\n") ;
+	return ;
+      case SERIAL_CAPTURE_DATA:
+	printf("read %u", rec->length) ;
+	break ;
+      default:
+	printf("type %d length %u", rec->type, rec->length) ;
+	break ;
+    }
+
+    if (hex)
+	for (i = 0 ; i < rec->length ; i++)
+	    printf(i % 24 ? " %02x" : "\n    %02x", data[i]) ;
+    printf("\n") ;
+}
+
+static int
+dump(const char *name)
+{
+    serial_capture_header *h ;
+    serial_capture_record *rec ;
+    struct stat st ;
+    uint64_t off, size, end ;
+    int fd ;
+
+    if ((fd = open(name, O_RDONLY)) == -1 || fstat(fd, &st) == -1) {
+	fprintf(stderr, "capturedump:  cannot open %s (%d)\n", name, errno) ;
+	return 0 ;
+    }
+
+    h = (serial_capture_header *)
+	mmap(0, st.st_size, PROT_READ, MAP_SHARED, fd, 0) ;
+    close(fd) ;
+    if ((void *)h == MAP_FAILED ||
+	st.st_size < SERIAL_CAPTURE_HEADER_SIZE ||
+	h->magic != SERIAL_CAPTURE_MAGIC ||
+	h->version != SERIAL_CAPTURE_VERSION) {
+	fprintf(stderr, "capturedump:  %s is not a capture segment\n", name) ;
+	return 0 ;
+    }
+
+    if (origin == 0) origin = h->time ;
+    printf("%s: segment %u of pid %d, %llu bytes\n", name, h->segment,
+	   h->pid, (unsigned long long)st.st_size) ;
+
+    end = st.st_size < h->size ? st.st_size : h->size ;
+    for (off = h->header_size ; off + sizeof(*rec) <= end ; off += size) {
+	rec = (serial_capture_record *)((char *)h + off) ;
+	if (rec->length == 0)
+	    break ;
+	size = SERIAL_CAPTURE_RECORD_SIZE(rec->length) ;
+	if (off + size > end)
+	    break ;
+	print_record(rec) ;
+    }
+
+    munmap((void *)h, st.st_size) ;
+    return 1 ;
+}
+
+int
+main(int argc, char *argv[])
+{
+    int c, i, status = 0 ;
+
+    while ((c = getopt(argc, argv, "xu:")) != -1) {
+	switch (c) {
+	  case 'x': hex = 1 ; break ;
+	  case 'u': only = atoi(optarg) ; break ;
+	  default: usage() ;
+	}
+    }
+    if (optind == argc) usage() ;
+
+    stats = (unit_stats *)calloc(MAX_UNITS, sizeof(unit_stats)) ;
+    if (!stats) {
+	fprintf(stderr, "capturedump:  out of memory\n") ;
+	return 1 ;
+    }
+
+    for (i = optind ; i < argc ; i++)
+	if (!dump(argv[i]))
+	    status = 1 ;
+
+    for (i = 0 ; i < MAX_UNITS ; i++)
+	if (stats[i].chunks || stats[i].commands)
+	    printf("unit %d: %llu chars in %llu reads, %llu commands, "
+		   "longest gap %.3f ms\n", i, stats[i].chars, stats[i].chunks,
+		   stats[i].commands, stats[i].max_gap / 1e6) ;
+
+    return status ;
+}
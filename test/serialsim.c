@@ -0,0 +1,842 @@
+/*
+ * Copyright (c) 1996-2002 Sun Microsystems, Inc. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistribution in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ *
+ * Neither the name of Sun Microsystems, Inc. or the names of
+ * contributors may be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * This software is provided "AS IS," without a warranty of any
+ * kind. ALL EXPRESS OR IMPLIED CONDITIONS, REPRESENTATIONS AND
+ * WARRANTIES, INCLUDING ANY IMPLIED WARRANTY OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE OR NON-INFRINGEMENT, ARE HEREBY
+ * EXCLUDED. SUN AND ITS LICENSORS SHALL NOT BE LIABLE FOR ANY DAMAGES
+ * SUFFERED BY LICENSEE AS A RESULT OF USING, MODIFYING OR
+ * DISTRIBUTING THE SOFTWARE OR ITS DERIVATIVES. IN NO EVENT WILL SUN
+ * OR ITS LICENSORS BE LIABLE FOR ANY LOST REVENUE, PROFIT OR DATA, OR
+ * FOR DIRECT, INDIRECT, SPECIAL, CONSEQUENTIAL, INCIDENTAL OR
+ * PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS OF THE THEORY OF
+ * LIABILITY, ARISING OUT OF THE USE OF OR INABILITY TO USE SOFTWARE,
+ * EVEN IF SUN HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * You acknowledge that Software is not designed,licensed or intended
+ * for use in the design, construction, operation or maintenance of
+ * any nuclear facility.
+ */
+
+/*
+ * Serial device simulator for testing LogitechTracker and Gameport without
+ * the hardware.
+ *
+ * serialsim opens a pseudo-terminal, prints the name of its slave side on
+ * standard output, and then speaks the device protocol on it, so that the
+ * SerialPort property of a LogitechTracker or Gameport can simply be set to
+ * that name.  With -l the slave is also given a fixed name through a
+ * symbolic link, which is convenient for configuration files.
+ *
+ * In redbarron mode it answers the commands sent by redbarron.c: *R resets,
+ * *m replies with a 30-byte current operational information record, *$
+ * sets the slave transmitter type, 0x2a 0xf2 selects raw mode, and *S and *D
+ * start and stop streaming.  With -w the unit ignores commands for a while
+ * after a reset, as real hardware does while it boots.  While streaming it
+ * sends a 24-byte raw record per period containing the time of flight in
+ * counts of 1/6144000 second from each of the three speakers to each of the
+ * three microphones of the receiver, plus the lower left speaker to the
+ * transmitter's calibration microphone, all computed from the pose of the
+ * receiver at the time each speaker fired.  The ext_ref_time field is the
+ * device clock in milliseconds and rolls over every 60 seconds.
+ *
+ * In gameport mode it sends the 6-byte sync/buttons/x1/y1/x2/y2 packet once
+ * per period.  The gameport has no command set and anything read from the
+ * port is discarded.
+ *
+ * The pose or stick values follow a built-in trajectory or a script file
+ * (-s).  A script is a list of lines of the form
+ *
+ *   pose    <t> <x> <y> <z> <yaw> <pitch> <roll> [<buttons>]
+ *   axes    <t> <x1> <y1> <x2> <y2> [<buttons>]
+ *   rate    <t> <packets per second>
+ *   dropout <t> <probability that a packet is not sent>
+ *   noise   <t> <probability that garbage is sent before a packet>
+ *   errors  <t> <probability that a byte has a bit error>
+ *   skew    <t> <device clock rate error in parts per million>
+ *   loop    <t>
+ *
+ * where <t> is seconds since the simulator started.  Poses are the position
+ * in meters and the yaw, pitch, and roll in degrees of the receiver relative
+ * to the transmitter; with all zero the receiver is centered on the
+ * transmitter and facing it.  Poses and stick values are interpolated
+ * linearly between successive lines, which must be in time order, while
+ * the other settings change at the given time and stay in effect until
+ * changed again.  A loop line restarts the script at time <t>.  Anything
+ * after a `#' is a comment.  The corresponding command line options give
+ * the settings at time 0.
+ *
+ * A pty delivers characters as soon as they are written.  With -b the
+ * simulator emulates a serial line of the given baud rate instead: each
+ * packet is written when its last character would have arrived at 10 bits
+ * per character, and packets queue behind each other if the rate is more
+ * than the line can carry.
+ *
+ * Each line of a Logitech master/slave pair needs its own serialsim; use -x
+ * for the slave.  On exit a summary of the traffic is printed on standard
+ * error.
+ */
+
+#define _XOPEN_SOURCE 600
+#define _DEFAULT_SOURCE
+
+#include <ctype.h>
+#include <errno.h>
+#include <fcntl.h>
+#include <math.h>
+#include <signal.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <termios.h>
+#include <time.h>
+#include <unistd.h>
+#include <sys/select.h>
+
+#define MODE_REDBARRON	1
+#define MODE_GAMEPORT	2
+
+#define SET_RATE	0
+#define SET_DROPOUT	1
+#define SET_NOISE	2
+#define SET_ERRORS	3
+#define SET_SKEW	4
+#define SET_COUNT	5
+
+#define MAX_LINES	4096
+#define RECORD_SIZE	24
+#define OP_INFO_SIZE	30
+#define COUNTS_PER_SECOND 6144000.0
+#define METERS_PER_INCH	0.0254
+#define DEG		(M_PI/180.0)
+
+/*
+ *  A script line.  v holds the pose or stick values for keyframes, or the
+ *  new value of the setting in v[0].
+ */
+typedef struct script_line {
+    double	t ;
+    int		setting ;	/* SET_* index or -1 for a keyframe */
+    double	v[6] ;
+    int		buttons ;
+} script_line ;
+
+static script_line	lines[MAX_LINES] ;
+static int		line_count = 0 ;
+static double		loop_time = 0.0 ;
+
+/* settings in effect; the script overrides the command line values */
+static double		settings[SET_COUNT] ;
+
+/* device geometry in meters */
+static double		r_baseline = 0.1450, r_leftleg = 0.0875 ;
+static double		t_baseline = 0.3048, t_leftleg = 0.3048 ;
+static double		t_cal = 0.2032 ;
+static double		speed_of_sound = 343.0 ;
+
+/* emulated line rate, or 0 to deliver packets immediately */
+static int		baud = 0 ;
+static double		wire_free = 0.0 ;
+
+/* redbarron device state */
+static int		slave = 0 ;
+static int		raw_mode = 0 ;
+static int		streaming = 0 ;
+static int		transmitter_on = 1 ;
+static int		xmiter_type = 1 ;
+
+/* commands are ignored for reset_delay seconds after a *R */
+static double		reset_delay = 0.0 ;
+static double		reset_done = 0.0 ;
+
+static int		verbose = 0 ;
+static int		master_fd = -1 ;
+static char		*link_name = 0 ;
+static volatile sig_atomic_t done = 0 ;
+
+/* traffic summary */
+static long		n_packets, n_dropped, n_noise, n_errors ;
+static long		n_overrun, n_commands, n_late ;
+
+
+static double
+now_seconds(void) {
+    struct timespec ts ;
+    clock_gettime(CLOCK_MONOTONIC, &ts) ;
+    return ts.tv_sec + ts.tv_nsec * 1e-9 ;
+}
+
+static void
+on_signal(int sig) {
+    done = 1 ;
+}
+
+static void
+cleanup(void) {
+    if (link_name) unlink(link_name) ;
+}
+
+static void
+usage(void) {
+    fprintf(stderr,
+"usage: serialsim [options] redbarron|gameport\n"
+"  -l path       create a symbolic link to the pty slave\n"
+"  -t seconds    exit after this long (default: run until killed)\n"
+"  -r rate       packets per second (default 50)\n"
+"  -b baud       emulate the line rate (default: no delay)\n"
+"  -d prob       packet dropout probability\n"
+"  -n prob       probability of 1-8 garbage bytes before a packet\n"
+"  -e prob       per-byte bit error probability\n"
+"  -k ppm        device clock skew in parts per million\n"
+"  -o ms         initial device clock (ext_ref_time) in milliseconds\n"
+"  -s script     trajectory and settings script\n"
+"  -p static     hold still instead of the default moving trajectory\n"
+"  -x            act as a Logitech slave unit\n"
+"  -R base,leg   receiver mic baseline and left leg in meters\n"
+"  -T base,leg,cal transmitter geometry in meters\n"
+"  -c m/s        speed of sound (default 343)\n"
+"  -w ms         ignore commands for this long after a reset\n"
+"  -S seed       random number seed\n"
+"  -v            log commands on stderr\n") ;
+    exit(2) ;
+}
+
+
+/*
+ *  Read a script file into lines[].  Returns 0 on failure.
+ */
+static int
+read_script(const char *name, int mode) {
+    static const char *names[] =
+	{ "rate", "dropout", "noise", "errors", "skew" } ;
+    FILE *f ;
+    char buf[512], word[32] ;
+    int lineno = 0, i, n, nvals ;
+    double last_keyframe = 0.0 ;
+    script_line *l ;
+
+    if ((f = fopen(name, "r")) == 0) {
+	perror(name) ;
+	return 0 ;
+    }
+
+    while (fgets(buf, sizeof(buf), f)) {
+	char *p = strchr(buf, '#') ;
+	lineno++ ;
+	if (p) *p = 0 ;
+	if (sscanf(buf, "%31s", word) != 1) continue ;
+
+	if (line_count == MAX_LINES) {
+	    fprintf(stderr, "%s: more than %d lines\n", name, MAX_LINES) ;
+	    fclose(f) ;
+	    return 0 ;
+	}
+
+	l = &lines[line_count] ;
+	memset(l, 0, sizeof(script_line)) ;
+	l->setting = -1 ;
+
+	if (strcmp(word, "loop") == 0) {
+	    if (sscanf(buf, "%*s %lf", &loop_time) != 1) goto bad ;
+	    continue ;
+	}
+	else if (strcmp(word, "pose") == 0 && mode == MODE_REDBARRON) {
+	    nvals = 6 ;
+	}
+	else if (strcmp(word, "axes") == 0 && mode == MODE_GAMEPORT) {
+	    nvals = 4 ;
+	}
+	else {
+	    for (i = 0 ; i < SET_COUNT ; i++)
+		if (strcmp(word, names[i]) == 0) break ;
+	    if (i == SET_COUNT) goto bad ;
+
+	    l->setting = i ;
+	    nvals = 1 ;
+	}
+
+	n = sscanf(buf, "%*s %lf %lf %lf %lf %lf %lf %lf %i", &l->t,
+		   &l->v[0], &l->v[1], &l->v[2], &l->v[3], &l->v[4], &l->v[5],
+		   &l->buttons) ;
+	if (nvals == 4)
+	    /* the buttons follow the fourth value */
+	    n = sscanf(buf, "%*s %lf %lf %lf %lf %lf %i", &l->t,
+		       &l->v[0], &l->v[1], &l->v[2], &l->v[3], &l->buttons) ;
+
+	if (n < 1 + nvals) goto bad ;
+	if (l->setting < 0) {
+	    if (l->t < last_keyframe) {
+		fprintf(stderr, "%s:%d: time goes backwards\n", name, lineno) ;
+		fclose(f) ;
+		return 0 ;
+	    }
+	    last_keyframe = l->t ;
+	}
+
+	line_count++ ;
+	continue ;
+
+      bad:
+	fprintf(stderr, "%s:%d: can't parse `%s'\n", name, lineno, word) ;
+	fclose(f) ;
+	return 0 ;
+    }
+
+    fclose(f) ;
+    return 1 ;
+}
+
+/*
+ *  Evaluate the script at time t.  The interpolated keyframe values are
+ *  returned in v and buttons, and settings[] is updated.  Returns 0 if the
+ *  script has no keyframes.
+ */
+static int
+eval_script(double t, double v[6], int *buttons) {
+    double when[SET_COUNT] ;
+    int i, j, prev = -1, next = -1 ;
+
+    if (loop_time > 0.0)
+	t = fmod(t, loop_time) ;
+
+    /* the latest setting of each kind at or before t takes effect */
+    for (j = 0 ; j < SET_COUNT ; j++) when[j] = -1.0 ;
+
+    for (i = 0 ; i < line_count ; i++) {
+	j = lines[i].setting ;
+	if (lines[i].t > t) {
+	    if (j < 0 && next < 0) next = i ;
+	    continue ;
+	}
+	if (j < 0)
+	    prev = i ;
+	else if (lines[i].t >= when[j]) {
+	    settings[j] = lines[i].v[0] ;
+	    when[j] = lines[i].t ;
+	}
+    }
+
+    if (prev < 0 && next < 0) return 0 ;
+    if (prev < 0) prev = next ;
+    if (next < 0) next = prev ;
+
+    if (next == prev || lines[next].t <= lines[prev].t) {
+	for (j = 0 ; j < 6 ; j++) v[j] = lines[prev].v[j] ;
+    }
+    else {
+	double a = (t - lines[prev].t) / (lines[next].t - lines[prev].t) ;
+	for (j = 0 ; j < 6 ; j++)
+	    v[j] = lines[prev].v[j] + a * (lines[next].v[j] - lines[prev].v[j]) ;
+    }
+    *buttons = lines[prev].buttons ;
+    return 1 ;
+}
+
+/*
+ *  Built-in trajectories.  The moving receiver circles 10cm around a point
+ *  60cm in front of the transmitter while turning its head, and the moving
+ *  gameport sticks sweep around their ranges.  Buttons cycle every 2 seconds.
+ */
+static int still = 0 ;
+
+static void
+trajectory(int mode, double t, double v[6], int *buttons) {
+    if (line_count > 0 && eval_script(t, v, buttons))
+	return ;
+
+    if (mode == MODE_REDBARRON) {
+	v[0] = still ? 0.0 : 0.10 * cos(2*M_PI*t / 4.0) ;
+	v[1] = still ? 0.0 : 0.10 * sin(2*M_PI*t / 4.0) ;
+	v[2] = 0.60 ;
+	v[3] = still ? 0.0 : 15.0 * sin(2*M_PI*t / 3.0) ;
+	v[4] = still ? 0.0 : 10.0 * sin(2*M_PI*t / 5.0) ;
+	v[5] = 0.0 ;
+	*buttons = still ? 0 : ((int)(t / 2.0) & 0x7) ;
+    }
+    else {
+	v[0] = still ? 128 : 128 + 100 * sin(2*M_PI*t / 4.0) ;
+	v[1] = still ? 128 : 128 + 100 * cos(2*M_PI*t / 4.0) ;
+	v[2] = still ? 128 : 128 + 100 * sin(2*M_PI*t / 7.0) ;
+	v[3] = still ? 128 : 128 + 100 * cos(2*M_PI*t / 7.0) ;
+	*buttons = still ? 0 : ((int)(t / 2.0) & 0xF) ;
+    }
+}
+
+
+/*
+ *  Write a packet, adding line noise and bit errors.  Whatever doesn't fit
+ *  in the pty because the reader isn't keeping up is counted as overrun.
+ */
+static void
+send_bytes(unsigned char *buf, int len, int noisy) {
+    unsigned char out[RECORD_SIZE + OP_INFO_SIZE + 8] ;
+    int i, n = 0, w ;
+
+    if (noisy && settings[SET_NOISE] > 0.0 &&
+	drand48() < settings[SET_NOISE]) {
+	int k = 1 + (int)(drand48() * 8) ;
+	for (i = 0 ; i < k ; i++)
+	    out[n++] = (unsigned char)(drand48() * 256) ;
+	n_noise += k ;
+    }
+
+    for (i = 0 ; i < len ; i++) {
+	out[n] = buf[i] ;
+	if (noisy && settings[SET_ERRORS] > 0.0 &&
+	    drand48() < settings[SET_ERRORS]) {
+	    out[n] ^= 1 << (int)(drand48() * 8) ;
+	    n_errors++ ;
+	}
+	n++ ;
+    }
+
+    if (baud > 0) {
+	/* deliver when the last character would have arrived */
+	double t = now_seconds(), end ;
+	struct timespec ts ;
+
+	end = (t > wire_free ? t : wire_free) + n * 10.0 / baud ;
+	ts.tv_sec = (time_t)end ;
+	ts.tv_nsec = (long)((end - ts.tv_sec) * 1e9) ;
+	while (clock_nanosleep(CLOCK_MONOTONIC, TIMER_ABSTIME, &ts, 0) == EINTR
+	       && ! done)
+	    ;
+	wire_free = end ;
+    }
+
+    w = write(master_fd, out, n) ;
+    if (w < n) n_overrun += n - (w > 0 ? w : 0) ;
+}
+
+static void
+put_short(unsigned char *p, double v) {
+    long i = lrint(v) ;
+    if (i < 0) i = 0 ;
+    if (i > 0xFFFF) i = 0xFFFF ;
+
+    /* the Logitech tracker is little-endian */
+    p[0] = i & 0xFF ;
+    p[1] = (i >> 8) & 0xFF ;
+}
+
+
+/*
+ *  Send the current operational information record.
+ */
+static void
+send_op_info(void) {
+    unsigned char ev[OP_INFO_SIZE] ;
+
+    memset(ev, 0, sizeof(ev)) ;
+    ev[0] = 0x80 | 1 ;				/* firmware version index */
+    ev[1] = 6 ;					/* dimension */
+    ev[2] = streaming ;				/* reporting mode */
+    ev[3] = raw_mode ;				/* reporting data type */
+    ev[4] = RECORD_SIZE ;
+    ev[5] = 0 ;					/* tracking mode */
+    ev[6] = slave ? 0x1 : 0x2 ;
+    ev[7] = 0x40 ;				/* audio level */
+    ev[8] = 1 ;					/* receiver type */
+    ev[9] = xmiter_type ;
+
+    /* dimensions are in thousandths of an inch */
+    put_short(ev + 10, r_baseline / METERS_PER_INCH * 1000) ;
+    put_short(ev + 12, r_leftleg / METERS_PER_INCH * 1000) ;
+    put_short(ev + 15, t_baseline / METERS_PER_INCH * 1000) ;
+    put_short(ev + 17, t_leftleg / METERS_PER_INCH * 1000) ;
+    put_short(ev + 19, t_cal / METERS_PER_INCH * 1000) ;
+
+    send_bytes(ev, OP_INFO_SIZE, 0) ;
+}
+
+/*
+ *  Compute the microphone positions for the pose v in transmitter
+ *  coordinates.  The receiver's microphones are at (hbd, 0, 0), (-hbd, 0, 0),
+ *  and (0, h, 0) in its own coordinates, as described in redbarron.c.
+ */
+static void
+mic_positions(double v[6], double m[3][3]) {
+    double hbd = r_baseline / 2.0 ;
+    double h = sqrt(r_leftleg*r_leftleg - hbd*hbd) ;
+    double local[3][3] = {{hbd, 0, 0}, {-hbd, 0, 0}, {0, h, 0}} ;
+    double cy = cos(v[3]*DEG), sy = sin(v[3]*DEG) ;
+    double cp = cos(v[4]*DEG), sp = sin(v[4]*DEG) ;
+    double cr = cos(v[5]*DEG), sr = sin(v[5]*DEG) ;
+    double rot[3][3] ;
+    int i, j ;
+
+    /* yaw about y, then pitch about x, then roll about z */
+    rot[0][0] =  cy*cr + sy*sp*sr ;
+    rot[0][1] = -cy*sr + sy*sp*cr ;
+    rot[0][2] =  sy*cp ;
+    rot[1][0] =  cp*sr ;
+    rot[1][1] =  cp*cr ;
+    rot[1][2] = -sp ;
+    rot[2][0] = -sy*cr + cy*sp*sr ;
+    rot[2][1] =  sy*sr + cy*sp*cr ;
+    rot[2][2] =  cy*cp ;
+
+    for (i = 0 ; i < 3 ; i++)
+	for (j = 0 ; j < 3 ; j++)
+	    m[i][j] = v[j] + rot[j][0]*local[i][0] +
+		rot[j][1]*local[i][1] + rot[j][2]*local[i][2] ;
+}
+
+static double
+distance(double *a, double *b) {
+    double dx = a[0]-b[0], dy = a[1]-b[1], dz = a[2]-b[2] ;
+    return sqrt(dx*dx + dy*dy + dz*dz) ;
+}
+
+/*
+ *  Send a raw record for the speakers fired at host time t and device time
+ *  dev_t.  The top speaker fires at t, the lower right 1/150 second before,
+ *  and the lower left 1/150 second before that.
+ */
+static void
+send_record(int mode, double t, double dev_t) {
+    unsigned char rec[RECORD_SIZE] ;
+    double hsb = t_baseline / 2.0 ;
+    double spk[3][3] = {{-hsb, 0, 0}, {hsb, 0, 0}, {0, 0, 0}} ;
+    double cal[3] = {-hsb + t_cal, 0, 0} ;
+    double v[6], m[3][3], tm = speed_of_sound / COUNTS_PER_SECOND ;
+    int buttons, raw, s ;
+
+    spk[2][1] = sqrt(t_leftleg*t_leftleg - hsb*hsb) ;
+
+    /* header; raw mode swaps button bits 0 and 2 */
+    trajectory(mode, t, v, &buttons) ;
+    raw = (buttons & 0xA) | ((buttons & 0x1) << 2) | ((buttons & 0x4) >> 2) ;
+    rec[0] = 0xF0 | raw ;
+    rec[1] = 0xF0 ;
+
+    /* fields are in the order of redbarron_raw_int */
+    for (s = 0 ; s < 3 ; s++) {
+	static const int field[3] = {1, 5, 9} ;
+	unsigned char *p = rec + 2*field[s] ;
+
+	trajectory(mode, t - (2-s)/150.0, v, &buttons) ;
+	mic_positions(v, m) ;
+
+	put_short(p + 0, distance(spk[s], m[1]) / tm) ;	/* to lr mic */
+	put_short(p + 2, distance(spk[s], m[0]) / tm) ;	/* to ll mic */
+	put_short(p + 4, distance(spk[s], m[2]) / tm) ;	/* to top mic */
+	if (s == 0)
+	    put_short(p + 6, distance(spk[0], cal) / tm) ;
+    }
+
+    /* device clock in milliseconds, rolling over every minute */
+    put_short(rec + 16, fmod(floor(dev_t * 1000.0), 60000.0)) ;
+
+    send_bytes(rec, RECORD_SIZE, 1) ;
+}
+
+static void
+send_gameport(int mode, double t) {
+    unsigned char pkt[6] ;
+    double v[6] ;
+    int buttons, i ;
+
+    trajectory(mode, t, v, &buttons) ;
+    pkt[0] = 0 ;
+    pkt[1] = (buttons & 0xF) << 4 ;
+    for (i = 0 ; i < 4 ; i++)
+	pkt[2+i] = v[i] < 0 ? 0 : v[i] > 255 ? 255 : (unsigned char)v[i] ;
+
+    send_bytes(pkt, 6, 1) ;
+}
+
+
+/*
+ *  Interpret characters sent to a Logitech unit.  Returns 1 if a single
+ *  record was requested with *d.
+ */
+static int
+redbarron_input(unsigned char *buf, int n) {
+    static unsigned char cmd[16] ;
+    static int len = 0, need = 2 ;
+    int i, demand = 0 ;
+
+    for (i = 0 ; i < n ; i++) {
+	if (len == 0 && buf[i] != '*' && buf[i] != '!') {
+	    if (verbose) fprintf(stderr, "serialsim: stray 0x%02x\n", buf[i]) ;
+	    continue ;
+	}
+
+	cmd[len++] = buf[i] ;
+	if (len == 2 && cmd[0] == '*' && cmd[1] == '$')
+	    need = 3 ;			/* count byte follows */
+	else if (len == 3 && cmd[1] == '$')
+	    need = 3 + cmd[2] ;
+	else if (len == 2 && cmd[0] == '!')
+	    need = 5 ;			/* tactile feedback */
+
+	if (len < need && len < (int)sizeof(cmd))
+	    continue ;
+
+	n_commands++ ;
+	if (now_seconds() < reset_done) {
+	    if (verbose) fprintf(stderr, "serialsim: busy, command dropped\n") ;
+	    len = 0 ;
+	    need = 2 ;
+	    continue ;
+	}
+
+	if (verbose) {
+	    int j ;
+	    fprintf(stderr, "serialsim: command") ;
+	    for (j = 0 ; j < len ; j++)
+		fprintf(stderr, isprint(cmd[j]) ? " %c" : " 0x%02x", cmd[j]) ;
+	    fprintf(stderr, "\n") ;
+	}
+
+	if (cmd[0] == '*') switch (cmd[1]) {
+	  case 'R':
+	    streaming = raw_mode = 0 ;
+	    transmitter_on = 1 ;
+	    if (slave) xmiter_type = 0 ;
+	    reset_done = now_seconds() + reset_delay ;
+	    break ;
+	  case 'm':
+	    send_op_info() ;
+	    break ;
+	  case 0xf2:
+	    raw_mode = 1 ;
+	    break ;
+	  case 'S':
+	    streaming = 1 ;
+	    break ;
+	  case 'D':
+	    streaming = 0 ;
+	    break ;
+	  case 'd':
+	    demand = 1 ;
+	    break ;
+	  case 'A':
+	    transmitter_on = 1 ;
+	    break ;
+	  case 'O':
+	    transmitter_on = 0 ;
+	    break ;
+	  case '$':
+	    if (cmd[2] >= 2 && cmd[3] == 0x1)
+		xmiter_type = cmd[4] ;
+	    break ;
+	  default:
+	    /* *> *H *h *G and the like don't affect raw records */
+	    break ;
+	}
+
+	len = 0 ;
+	need = 2 ;
+    }
+
+    return demand ;
+}
+
+
+int
+main(int argc, char *argv[]) {
+    int c, mode, demand ;
+    char *script = 0, *slave_name ;
+    double duration = 0.0, clock_ms = 0.0, start, last, t, next, dev_t, stamp ;
+    long seed = 1 ;
+    int slave_fd ;
+    struct termios tio ;
+
+    settings[SET_RATE] = 50.0 ;
+
+    while ((c = getopt(argc, argv, "l:t:r:b:d:n:e:k:o:s:p:xR:T:c:w:S:v")) != -1) {
+	switch (c) {
+	  case 'l': link_name = optarg ; break ;
+	  case 't': duration = atof(optarg) ; break ;
+	  case 'r': settings[SET_RATE] = atof(optarg) ; break ;
+	  case 'b': baud = atoi(optarg) ; break ;
+	  case 'd': settings[SET_DROPOUT] = atof(optarg) ; break ;
+	  case 'n': settings[SET_NOISE] = atof(optarg) ; break ;
+	  case 'e': settings[SET_ERRORS] = atof(optarg) ; break ;
+	  case 'k': settings[SET_SKEW] = atof(optarg) ; break ;
+	  case 'o': clock_ms = atof(optarg) ; break ;
+	  case 's': script = optarg ; break ;
+	  case 'p': still = strcmp(optarg, "static") == 0 ; break ;
+	  case 'x': slave = 1 ; xmiter_type = 0 ; break ;
+	  case 'R':
+	    if (sscanf(optarg, "%lf,%lf", &r_baseline, &r_leftleg) != 2)
+		usage() ;
+	    break ;
+	  case 'T':
+	    if (sscanf(optarg, "%lf,%lf,%lf",
+		       &t_baseline, &t_leftleg, &t_cal) != 3)
+		usage() ;
+	    break ;
+	  case 'c': speed_of_sound = atof(optarg) ; break ;
+	  case 'w': reset_delay = atof(optarg) / 1000.0 ; break ;
+	  case 'S': seed = atol(optarg) ; break ;
+	  case 'v': verbose = 1 ; break ;
+	  default: usage() ;
+	}
+    }
+
+    if (optind != argc - 1) usage() ;
+    if (strcmp(argv[optind], "redbarron") == 0)
+	mode = MODE_REDBARRON ;
+    else if (strcmp(argv[optind], "gameport") == 0)
+	mode = MODE_GAMEPORT ;
+    else
+	usage() ;
+
+    if (2*r_leftleg <= r_baseline || 2*t_leftleg <= t_baseline) {
+	fprintf(stderr, "serialsim: a left leg must exceed half the baseline\n") ;
+	return 2 ;
+    }
+
+    if (script && !read_script(script, mode))
+	return 2 ;
+
+    srand48(seed) ;
+
+    /*
+     *  Open the pty.  The slave is kept open here too, so that the device
+     *  doesn't hang up when the program under test closes and reopens it,
+     *  and is put in raw mode so that nothing is echoed back before the
+     *  program under test configures it.
+     */
+    if ((master_fd = posix_openpt(O_RDWR | O_NOCTTY)) < 0 ||
+	grantpt(master_fd) < 0 || unlockpt(master_fd) < 0 ||
+	(slave_name = ptsname(master_fd)) == 0) {
+	perror("serialsim: can't open pty") ;
+	return 1 ;
+    }
+
+    if ((slave_fd = open(slave_name, O_RDWR | O_NOCTTY)) < 0) {
+	perror(slave_name) ;
+	return 1 ;
+    }
+    tcgetattr(slave_fd, &tio) ;
+    tio.c_iflag &= ~(IGNBRK|BRKINT|PARMRK|ISTRIP|INLCR|IGNCR|ICRNL|IXON) ;
+    tio.c_oflag &= ~OPOST ;
+    tio.c_lflag &= ~(ECHO|ECHONL|ICANON|ISIG|IEXTEN) ;
+    tio.c_cflag &= ~(CSIZE|PARENB) ;
+    tio.c_cflag |= CS8 ;
+    tcsetattr(slave_fd, TCSANOW, &tio) ;
+    fcntl(master_fd, F_SETFL, O_NONBLOCK) ;
+
+    if (link_name) {
+	unlink(link_name) ;
+	if (symlink(slave_name, link_name) < 0) {
+	    perror(link_name) ;
+	    return 1 ;
+	}
+	atexit(cleanup) ;
+    }
+
+    signal(SIGINT, on_signal) ;
+    signal(SIGTERM, on_signal) ;
+    signal(SIGPIPE, SIG_IGN) ;
+
+    printf("%s\n", slave_name) ;
+    fflush(stdout) ;
+
+    /* the gameport streams from power up */
+    if (mode == MODE_GAMEPORT) streaming = raw_mode = 1 ;
+
+    /*
+     *  dev_t is the device clock, which runs at the skewed rate, and next is
+     *  the device time at which the next packet is due.
+     */
+    start = last = now_seconds() ;
+    dev_t = next = clock_ms / 1000.0 ;
+
+    while (! done) {
+	unsigned char buf[256] ;
+	struct timespec ts ;
+	fd_set fds ;
+	double wait, rate, skew, v[6] ;
+	int n, b, ready ;
+
+	t = now_seconds() ;
+	if (duration > 0.0 && t - start >= duration) break ;
+
+	/* bring the scripted settings up to date */
+	if (line_count > 0) eval_script(t - start, v, &b) ;
+	rate = settings[SET_RATE] > 0.0 ? settings[SET_RATE] : 1.0 ;
+	skew = 1.0 + settings[SET_SKEW] * 1e-6 ;
+
+	dev_t += (t - last) * skew ;
+	last = t ;
+
+	if (! (streaming && raw_mode))
+	    next = dev_t + 1.0 / rate ;
+	else if (dev_t - next > 10.0 / rate) {
+	    /* more than 10 periods behind; don't try to catch up */
+	    n_late++ ;
+	    next = dev_t ;
+	}
+
+	if (dev_t < next) {
+	    wait = (next - dev_t) / skew ;
+	    if (wait > 0.1) wait = 0.1 ;
+	    ts.tv_sec = 0 ;
+	    ts.tv_nsec = (long)(wait * 1e9) ;
+
+	    FD_ZERO(&fds) ;
+	    FD_SET(master_fd, &fds) ;
+	    ready = pselect(master_fd + 1, &fds, 0, 0, &ts, 0) ;
+	    if (ready > 0) {
+		demand = 0 ;
+		while ((n = read(master_fd, buf, sizeof(buf))) > 0)
+		    if (mode == MODE_REDBARRON)
+			demand |= redbarron_input(buf, n) ;
+
+		if (demand && raw_mode && transmitter_on)
+		    send_record(mode, now_seconds() - start, dev_t) ;
+	    }
+	    continue ;
+	}
+
+	/* the device paces itself with its own clock */
+	stamp = next ;
+	next += 1.0 / rate ;
+
+	if (settings[SET_DROPOUT] > 0.0 &&
+	    drand48() < settings[SET_DROPOUT]) {
+	    n_dropped++ ;
+	    continue ;
+	}
+
+	if (mode == MODE_GAMEPORT)
+	    send_gameport(mode, t - start) ;
+	else if (transmitter_on)
+	    send_record(mode, t - start, stamp) ;
+	else
+	    continue ;
+
+	n_packets++ ;
+    }
+
+    fprintf(stderr, "serialsim: %ld packets sent, %ld dropped, "
+	    "%ld noise bytes, %ld bit errors, %ld bytes overrun, "
+	    "%ld commands, %ld late\n", n_packets, n_dropped, n_noise,
+	    n_errors, n_overrun, n_commands, n_late) ;
+
+    close(slave_fd) ;
+    close(master_fd) ;
+    return 0 ;
+}